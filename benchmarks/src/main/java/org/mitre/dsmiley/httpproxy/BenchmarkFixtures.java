@@ -0,0 +1,106 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockServletConfig;
+
+import javax.servlet.ServletException;
+
+/**
+ * Requests and responses with header and cookie sets like a browser's and a web application's, as
+ * the proxy gets them.
+ */
+class BenchmarkFixtures {
+
+  static final String SERVLET_NAME = "proxy";
+  static final String TARGET_URI = "http://backend.example.com:8080/api";
+
+  /** The body of {@link #newTargetResponse(boolean)}. */
+  static final byte[] BODY = new byte[2048];
+
+  private BenchmarkFixtures() {}
+
+  /** Initializes the servlet like a container would, proxying to {@code targetUri}. */
+  static <S extends ProxyServlet> S initServlet(S servlet, String targetUri) throws ServletException {
+    MockServletConfig config = new MockServletConfig(SERVLET_NAME);
+    config.addInitParameter(ProxyServlet.P_TARGET_URI, targetUri);
+    config.addInitParameter(ProxyServlet.P_LOG, "false");
+    config.addInitParameter(ProxyServlet.P_POOL_EVICTIONINTERVAL, "0");
+    // the fixtures share a name, so several of them would register the same MBean
+    config.addInitParameter(ProxyServlet.P_JMX, "false");
+    servlet.init(config);
+    return servlet;
+  }
+
+  /** A GET of /app/proxy/users/42/orders?..., with the cookies of two proxied servlets and the app. */
+  static MockHttpServletRequest newRequest(String queryString) {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/app/proxy/users/42/orders");
+    request.setServerName("www.example.com");
+    request.setServerPort(443);
+    request.setScheme("https");
+    request.setSecure(true);
+    request.setRemoteAddr("203.0.113.7");
+    request.setContextPath("/app");
+    request.setServletPath("/proxy");
+    request.setPathInfo("/users/42/orders");
+    request.setQueryString(queryString);
+    request.addHeader("Host", "www.example.com");
+    request.addHeader("User-Agent",
+            "Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0");
+    request.addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+    request.addHeader("Accept-Language", "en-US,en;q=0.5");
+    request.addHeader("Accept-Encoding", "gzip, deflate, br");
+    request.addHeader("Referer", "https://www.example.com/app/users/42");
+    request.addHeader("Connection", "keep-alive");
+    request.addHeader("Cookie", "JSESSIONID=8A1B2C3D4E5F60718293A4B5C6D7E8F9; "
+            + "!Proxy!" + SERVLET_NAME + "SESSION=ZjQ2YzE3NzgtNDk0Ny00; "
+            + "!Proxy!" + SERVLET_NAME + "locale=en_US; "
+            + "!Proxy!other" + "SESSION=YWJjZGVmZ2hpams; _ga=GA1.2.1234567890.1690000000");
+    request.addHeader("Upgrade-Insecure-Requests", "1");
+    request.addHeader("X-Requested-With", "XMLHttpRequest");
+    request.addHeader("X-Forwarded-For", "198.51.100.23");
+    return request;
+  }
+
+  /** A response of the target, a redirect to itself or a 200, with cookies and hop-by-hop headers. */
+  static HttpResponse newTargetResponse(boolean redirect) {
+    HttpResponse response = redirect
+            ? new BasicHttpResponse(HttpVersion.HTTP_1_1, 302, "Found")
+            : new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.addHeader("Date", "Tue, 18 Jul 2023 10:15:30 GMT");
+    response.addHeader("Server", "Apache-Coyote/1.1");
+    response.addHeader("Content-Type", "application/json;charset=UTF-8");
+    response.addHeader("Content-Length", Integer.toString(BODY.length));
+    response.addHeader("Cache-Control", "no-cache, no-store, max-age=0, must-revalidate");
+    response.addHeader("ETag", "\"5d8c72a5edda8d6a\"");
+    response.addHeader("Vary", "Accept-Encoding");
+    response.addHeader("Set-Cookie", "SESSION=ZjQ2YzE3NzgtNDk0Ny00; Path=/api; HttpOnly");
+    response.addHeader("Set-Cookie", "locale=en_US; Max-Age=31536000; Path=/api");
+    response.addHeader("Keep-Alive", "timeout=20");
+    response.addHeader("Connection", "keep-alive");
+    if (redirect)
+      response.addHeader("Location", TARGET_URI + "/users/42/orders/1001?view=summary");
+    response.setEntity(new ByteArrayEntity(BODY, ContentType.APPLICATION_JSON));
+    return response;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.concurrent.TimeUnit;
+
+/** The renaming of cookies between the client and the target. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookieBenchmark {
+
+  private ProxyServlet servlet;
+  private MockHttpServletRequest request;
+  private MockHttpServletResponse response;
+  private String cookieHeader;
+  private String setCookieHeader;
+
+  @Setup
+  public void setUp() throws Exception {
+    servlet = BenchmarkFixtures.initServlet(new ProxyServlet(), BenchmarkFixtures.TARGET_URI);
+    request = BenchmarkFixtures.newRequest(null);
+    response = new MockHttpServletResponse();
+    cookieHeader = request.getHeader("Cookie");
+    setCookieHeader = "SESSION=ZjQ2YzE3NzgtNDk0Ny00; Path=/api; Secure; HttpOnly";
+  }
+
+  @TearDown
+  public void tearDown() {
+    servlet.destroy();
+  }
+
+  /** Client to target: keeps and renames the cookies of this servlet only. */
+  @Benchmark
+  public String getRealCookie() {
+    return servlet.getRealCookie(cookieHeader);
+  }
+
+  /** Target to client. */
+  @Benchmark
+  public MockHttpServletResponse copyProxyCookie() {
+    response.reset();
+    servlet.copyProxyCookie(request, response, setCookieHeader);
+    return response;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHttpRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The copying of headers, including the hop-by-hop filtering, the Host and cookie rewriting, and a
+ * redirect's Location.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderCopyBenchmark {
+
+  private ProxyServlet servlet;
+  private MockHttpServletRequest request;
+  private MockHttpServletResponse response;
+  private HttpResponse targetResponse;
+
+  @Setup
+  public void setUp() throws Exception {
+    servlet = BenchmarkFixtures.initServlet(new ProxyServlet(), BenchmarkFixtures.TARGET_URI);
+    request = BenchmarkFixtures.newRequest("view=summary");
+    servlet.initTargetAttributes(request);
+    response = new MockHttpServletResponse();
+    targetResponse = BenchmarkFixtures.newTargetResponse(true);
+  }
+
+  @TearDown
+  public void tearDown() {
+    servlet.destroy();
+  }
+
+  @Benchmark
+  public HttpRequest copyRequestHeaders() {
+    HttpRequest proxyRequest = new BasicHttpRequest("GET", "/api/users/42/orders?view=summary");
+    servlet.copyRequestHeaders(request, proxyRequest);
+    return proxyRequest;
+  }
+
+  @Benchmark
+  public MockHttpServletResponse copyResponseHeaders() {
+    response.reset();
+    servlet.copyResponseHeaders(targetResponse, request, response);
+    return response;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole exchange through {@code service()} but without the network: the target's response is
+ * canned. For {@link URITemplateProxyServlet}, this includes the expansion of the template.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceBenchmark {
+
+  /** Answers with the canned response instead of calling the target. */
+  @SuppressWarnings("serial")
+  static class StubProxyServlet extends ProxyServlet {
+    @Override
+    protected HttpResponse doExecute(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                                     HttpRequest proxyRequest) {
+      return BenchmarkFixtures.newTargetResponse(false);
+    }
+  }
+
+  @SuppressWarnings("serial")
+  static class StubURITemplateProxyServlet extends URITemplateProxyServlet {
+    @Override
+    protected HttpResponse doExecute(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                                     HttpRequest proxyRequest) {
+      return BenchmarkFixtures.newTargetResponse(false);
+    }
+  }
+
+  private ProxyServlet proxyServlet;
+  private ProxyServlet templateServlet;
+  private MockHttpServletRequest proxyRequest;
+  private MockHttpServletRequest templateRequest;
+
+  @Setup
+  public void setUp() throws Exception {
+    proxyServlet = BenchmarkFixtures.initServlet(new StubProxyServlet(), BenchmarkFixtures.TARGET_URI);
+    templateServlet = BenchmarkFixtures.initServlet(new StubURITemplateProxyServlet(),
+            "http://{host}:{port}/{ctx}");
+    proxyRequest = BenchmarkFixtures.newRequest("view=summary&page=2");
+    templateRequest = BenchmarkFixtures.newRequest(
+            "host=backend.example.com&port=8080&ctx=api&view=summary&page=2");
+  }
+
+  @TearDown
+  public void tearDown() {
+    proxyServlet.destroy();
+    templateServlet.destroy();
+  }
+
+  @Benchmark
+  public MockHttpServletResponse proxyService() throws Exception {
+    proxyRequest.clearAttributes();// the target attributes
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    proxyServlet.service(proxyRequest, response);
+    return response;
+  }
+
+  @Benchmark
+  public MockHttpServletResponse uriTemplateService() throws Exception {
+    templateRequest.clearAttributes();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    templateServlet.service(templateRequest, response);
+    return response;
+  }
+}
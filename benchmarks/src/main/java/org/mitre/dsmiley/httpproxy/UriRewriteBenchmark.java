@@ -0,0 +1,83 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/** The rewriting of URIs: of the request to the target, and of redirects back to the client. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UriRewriteBenchmark {
+
+  private static final String CLEAN_QUERY = "q=proxy+servlet&sort=date:desc&page=2&size=50";
+  private static final String DIRTY_QUERY = "q=a|b c&filter={\"status\":\"open\"}&tag=%E2%9C%93&path=/x^y";
+
+  private ProxyServlet servlet;
+  private MockHttpServletRequest request;
+  private String redirectUrl;
+
+  @Setup
+  public void setUp() throws Exception {
+    servlet = BenchmarkFixtures.initServlet(new ProxyServlet(), BenchmarkFixtures.TARGET_URI);
+    request = BenchmarkFixtures.newRequest(CLEAN_QUERY);
+    servlet.initTargetAttributes(request);
+    redirectUrl = BenchmarkFixtures.TARGET_URI + "/users/42/orders/1001?view=summary";
+  }
+
+  @TearDown
+  public void tearDown() {
+    servlet.destroy();
+  }
+
+  /** Nothing to escape: the common case. */
+  @Benchmark
+  public CharSequence encodeUriQueryClean() {
+    return ProxyServlet.encodeUriQuery(CLEAN_QUERY, false);
+  }
+
+  @Benchmark
+  public CharSequence encodeUriQueryEscaping() {
+    return ProxyServlet.encodeUriQuery(DIRTY_QUERY, false);
+  }
+
+  @Benchmark
+  public String rewriteUrlFromRequest() {
+    return servlet.rewriteUrlFromRequest(request);
+  }
+
+  @Benchmark
+  public String rewriteUrlFromResponse() {
+    return servlet.rewriteUrlFromResponse(request, redirectUrl);
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.RequestLine;
+import org.apache.http.client.methods.AbstractExecutionAwareRequest;
+import org.apache.http.message.BasicRequestLine;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * A request to the target that can be aborted from another thread while it's executed, like
+ * {@link org.apache.http.client.methods.HttpRequestBase}, but keeping the request URI as is
+ * (already encoded by the proxy) instead of parsing it into a {@link java.net.URI}.
+ */
+class AbortableProxyRequest extends AbstractExecutionAwareRequest {
+
+  private final String method;
+  private final String uri;
+
+  AbortableProxyRequest(String method, String uri) {
+    this.method = method;
+    this.uri = uri;
+  }
+
+  public RequestLine getRequestLine() {
+    return new BasicRequestLine(method, uri, HttpVersion.HTTP_1_1);
+  }
+
+  public ProtocolVersion getProtocolVersion() {
+    return HttpVersion.HTTP_1_1;
+  }
+
+  /** With a body. */
+  static class WithEntity extends AbortableProxyRequest implements HttpEntityEnclosingRequest {
+    private HttpEntity entity;
+
+    WithEntity(String method, String uri) {
+      super(method, uri);
+    }
+
+    public boolean expectContinue() {
+      Header expect = getFirstHeader(HTTP.EXPECT_DIRECTIVE);
+      return expect != null && HTTP.EXPECT_CONTINUE.equalsIgnoreCase(expect.getValue());
+    }
+
+    public void setEntity(HttpEntity entity) {
+      this.entity = entity;
+    }
+
+    public HttpEntity getEntity() {
+      return entity;
+    }
+  }
+}
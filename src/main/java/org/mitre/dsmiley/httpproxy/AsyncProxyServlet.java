@@ -0,0 +1,635 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.util.EntityUtils;
+import org.mitre.dsmiley.httpproxy.accesslog.AccessLog;
+import org.mitre.dsmiley.httpproxy.breaker.CircuitBreakerRegistry;
+import org.mitre.dsmiley.httpproxy.bulkhead.BulkheadRegistry;
+import org.mitre.dsmiley.httpproxy.cache.RequestCoalescer;
+import org.mitre.dsmiley.httpproxy.cache.ResponseCache;
+import org.mitre.dsmiley.httpproxy.hedge.Hedger;
+import org.mitre.dsmiley.httpproxy.lb.Endpoint;
+import org.mitre.dsmiley.httpproxy.limit.AdaptiveConcurrencyLimiter;
+import org.mitre.dsmiley.httpproxy.metrics.CountingEntity;
+import org.mitre.dsmiley.httpproxy.metrics.PhaseLatencies;
+import org.mitre.dsmiley.httpproxy.pool.ConnectionPoolConfig;
+import org.mitre.dsmiley.httpproxy.retry.RetryPolicy;
+
+import javax.management.ObjectName;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link ProxyServlet} that doesn't hold a container thread while waiting on the target. The
+ * request is put into asynchronous mode with {@link HttpServletRequest#startAsync()}, the exchange
+ * with the target is run by a non-blocking
+ * <a href="http://hc.apache.org/httpcomponents-asyncclient-4.1.x/">Apache HttpAsyncClient</a>,
+ * and the {@link AsyncContext} is completed when the response has been sent, on error, or on
+ * timeout.
+ * <p>
+ *   The servlet must be declared with {@code <async-supported>true</async-supported>}, as must any
+ *   filter in front of it. The hooks of the base class ({@link #rewriteUrlFromRequest},
+ *   {@link #copyRequestHeaders}, {@link #copyResponseHeaders}, {@link #copyResponseEntity},
+ *   {@link #handleRequestException}) are honored; {@link #doExecute} is not used, nor is the
+ *   blocking client: the async client's pool is sized by the same {@code http.pool.*} parameters.
+ * </p>
+ * <p>
+ *   By default the request and response bodies are streamed with Servlet 3.1 non-blocking I/O
+ *   ({@link javax.servlet.ReadListener}/{@link javax.servlet.WriteListener}) through bounded
+ *   buffers, so that neither a slow client nor a slow target holds a thread; the buffers apply
+ *   backpressure in both directions. {@link #copyResponseEntity} and
+ *   {@link #newProxyRequestWithEntity}'s stream are then not used. With {@link #P_NONBLOCKINGIO}
+ *   false (e.g. on a Servlet 3.0 container), blocking I/O is used instead, so both bodies are
+ *   buffered in memory: the request body is read on the container thread before the exchange
+ *   starts (the I/O reactor thread must not block on the client), and the response body is
+ *   buffered by the async client before being written to the client.
+ * </p>
+ * <p>
+ *   The stages of {@link #doExecute} aren't run, so their parameters make {@link #init()} fail with a
+ *   {@link ServletException}: {@link #P_RESPONSECACHE_MAXBYTES}, {@link #P_RESPONSECACHE_DISKDIRECTORY},
+ *   {@link #P_COALESCE}, {@link #P_CIRCUITBREAKER}, {@link #P_BULKHEAD_MAXCONCURRENT},
+ *   {@link #P_CONCURRENCYLIMIT}, {@link #P_RETRY_MAXRETRIES}, {@link #P_HEDGE},
+ *   {@link #P_LATENCYHISTOGRAMS} and {@link #P_ACCESSLOG}. Rate limiting, load balancing, health checks
+ *   and outlier ejection are honored. Of the JFR events only {@code Error} is emitted, and
+ *   {@link #P_JMX} is ignored.
+ * </p>
+ */
+@SuppressWarnings({"serial"})
+public class AsyncProxyServlet extends ProxyServlet {
+
+  /** A integer parameter name to set the timeout of the asynchronous request (millis) */
+  public static final String P_ASYNCTIMEOUT = "asyncTimeout";
+
+  /** A boolean parameter name to stream bodies with Servlet 3.1 non-blocking I/O (default true) */
+  public static final String P_NONBLOCKINGIO = "nonBlockingIO";
+
+  /** A integer parameter name to set the size of the body buffers of non-blocking I/O (bytes) */
+  public static final String P_IOBUFFERSIZE = "ioBufferSize";
+
+  protected long asyncTimeout = -1;
+  protected boolean doNonBlockingIO = true;
+  protected int ioBufferSize = 32 * 1024;
+
+  private CloseableHttpAsyncClient asyncProxyClient;
+  private PoolingNHttpClientConnectionManager asyncConnectionManager;
+
+  @Override
+  public void init() throws ServletException {
+    String nonBlockingIOString = getConfigParam(P_NONBLOCKINGIO);
+    if (nonBlockingIOString != null) {
+      this.doNonBlockingIO = Boolean.parseBoolean(nonBlockingIOString);
+    }
+
+    super.init();
+
+    String asyncTimeoutString = getConfigParam(P_ASYNCTIMEOUT);
+    if (asyncTimeoutString != null) {
+      this.asyncTimeout = Long.parseLong(asyncTimeoutString);
+    }
+
+    String ioBufferSizeString = getConfigParam(P_IOBUFFERSIZE);
+    if (ioBufferSizeString != null) {
+      this.ioBufferSize = Integer.parseInt(ioBufferSizeString);
+    }
+
+    asyncProxyClient = createHttpAsyncClient();
+    asyncProxyClient.start();
+  }
+
+  /** The blocking client isn't used, so neither it nor its pool is created. */
+  @Override
+  protected boolean usesBlockingClient() {
+    return false;
+  }
+
+  /** Not registered: the MBean's pool is that of the blocking client, which isn't used. */
+  @Override
+  protected ObjectName registerMBean() {
+    return null;
+  }
+
+  /** Not supported, see the class javadoc: throws if a cache is configured. */
+  @Override
+  protected ResponseCache createResponseCache() throws ServletException {
+    String maxBytesString = getConfigParam(P_RESPONSECACHE_MAXBYTES);
+    if (maxBytesString != null && Long.parseLong(maxBytesString) > 0)
+      throw unsupported(P_RESPONSECACHE_MAXBYTES);
+    if (getConfigParam(P_RESPONSECACHE_DISKDIRECTORY) != null)
+      throw unsupported(P_RESPONSECACHE_DISKDIRECTORY);
+    return null;
+  }
+
+  /** Not supported, see the class javadoc: throws if {@link #P_COALESCE} is true. */
+  @Override
+  protected RequestCoalescer createRequestCoalescer() throws ServletException {
+    if (super.createRequestCoalescer() != null)
+      throw unsupported(P_COALESCE);
+    return null;
+  }
+
+  /** Not supported, see the class javadoc: throws if {@link #P_CIRCUITBREAKER} is true. */
+  @Override
+  protected CircuitBreakerRegistry createCircuitBreakers() throws ServletException {
+    if (super.createCircuitBreakers() != null)
+      throw unsupported(P_CIRCUITBREAKER);
+    return null;
+  }
+
+  /** Not supported, see the class javadoc: throws if {@link #P_BULKHEAD_MAXCONCURRENT} is set. */
+  @Override
+  protected BulkheadRegistry createBulkheads() throws ServletException {
+    if (super.createBulkheads() != null)
+      throw unsupported(P_BULKHEAD_MAXCONCURRENT);
+    return null;
+  }
+
+  /** Not supported, see the class javadoc: throws if {@link #P_CONCURRENCYLIMIT} is true. */
+  @Override
+  protected AdaptiveConcurrencyLimiter createConcurrencyLimiter() throws ServletException {
+    if (super.createConcurrencyLimiter() != null)
+      throw unsupported(P_CONCURRENCYLIMIT);
+    return null;
+  }
+
+  /** Not supported, see the class javadoc: throws if {@link #P_RETRY_MAXRETRIES} is more than 0. */
+  @Override
+  protected RetryPolicy createRetryPolicy() throws ServletException {
+    if (super.createRetryPolicy() != null)
+      throw unsupported(P_RETRY_MAXRETRIES);
+    return null;
+  }
+
+  /** Not supported, see the class javadoc: throws if {@link #P_HEDGE} is true. */
+  @Override
+  protected Hedger createHedger() throws ServletException {
+    if (Boolean.parseBoolean(getConfigParam(P_HEDGE)))
+      throw unsupported(P_HEDGE);
+    return null;
+  }
+
+  /** Not supported, see the class javadoc: throws if {@link #P_LATENCYHISTOGRAMS} is true. */
+  @Override
+  protected PhaseLatencies createPhaseLatencies() throws ServletException {
+    if (super.createPhaseLatencies() != null)
+      throw unsupported(P_LATENCYHISTOGRAMS);
+    return null;
+  }
+
+  /** Not supported, see the class javadoc: throws if {@link #P_ACCESSLOG} is true. */
+  @Override
+  protected AccessLog createAccessLog() throws ServletException {
+    if (Boolean.parseBoolean(getConfigParam(P_ACCESSLOG)))
+      throw unsupported(P_ACCESSLOG);
+    return null;
+  }
+
+  private ServletException unsupported(String param) {
+    return new ServletException(getClass().getSimpleName() + " doesn't support the " + param + " init parameter");
+  }
+
+  /**
+   * Called from {@link #init(javax.servlet.ServletConfig)}. It's started by the caller.
+   * It's configured like {@link #createHttpClient()}, with the pool of
+   * {@link #createAsyncConnectionManager()}.
+   */
+  protected CloseableHttpAsyncClient createHttpAsyncClient() throws ServletException {
+    try {
+      asyncConnectionManager = createAsyncConnectionManager();
+    } catch (IOReactorException e) {
+      throw new ServletException("Trying to create the I/O reactor of the async client: "+e,e);
+    }
+    HttpAsyncClientBuilder clientBuilder = HttpAsyncClients.custom()
+                                             .setDefaultRequestConfig(buildRequestConfig())
+                                             .setConnectionManager(asyncConnectionManager);
+    if (useSystemProperties)
+      clientBuilder = clientBuilder.useSystemProperties();
+    return clientBuilder.build();
+  }
+
+  /**
+   * Called from {@link #createHttpAsyncClient()}. The pool of connections to the target(s), sized
+   * like the blocking one by {@link #buildConnectionPoolConfig()}; the lease timeout is in
+   * {@link #buildRequestConfig()}.
+   */
+  protected PoolingNHttpClientConnectionManager createAsyncConnectionManager() throws IOReactorException {
+    IOReactorConfig.Builder ioReactorConfig = IOReactorConfig.custom()
+            .setTcpNoDelay(poolConfig.isTcpNoDelay());
+    if (readTimeout > 0)
+      ioReactorConfig.setSoTimeout(readTimeout);
+    if (connectTimeout > 0)
+      ioReactorConfig.setConnectTimeout(connectTimeout);
+    if (poolConfig.getSendBufferSize() > 0)
+      ioReactorConfig.setSndBufSize(poolConfig.getSendBufferSize());
+    if (poolConfig.getReceiveBufferSize() > 0)
+      ioReactorConfig.setRcvBufSize(poolConfig.getReceiveBufferSize());
+    Registry<SchemeIOSessionStrategy> ioSessionStrategies = RegistryBuilder.<SchemeIOSessionStrategy>create()
+            .register("http", NoopIOSessionStrategy.INSTANCE)
+            .register("https", useSystemProperties
+                    ? SSLIOSessionStrategy.getSystemDefaultStrategy() : SSLIOSessionStrategy.getDefaultStrategy())
+            .build();
+    PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+            new DefaultConnectingIOReactor(ioReactorConfig.build()), null, ioSessionStrategies, null, null,
+            poolConfig.getConnectionTtl(), TimeUnit.MILLISECONDS);
+    connectionManager.setMaxTotal(poolConfig.getMaxTotal());
+    connectionManager.setDefaultMaxPerRoute(poolConfig.getMaxPerRoute());
+    for (Map.Entry<HttpHost, Integer> override : poolConfig.getMaxPerRouteOverrides().entrySet()) {
+      connectionManager.setMaxPerRoute(ConnectionPoolConfig.routeOf(override.getKey()), override.getValue());
+    }
+    return connectionManager;
+  }
+
+  /**
+   * The pool of connections used by the async http client; null if a sub-class created the client
+   * without {@link #createAsyncConnectionManager()}.
+   */
+  protected PoolingNHttpClientConnectionManager getAsyncConnectionManager() {
+    return asyncConnectionManager;
+  }
+
+  /**
+   * The async http client used.
+   * @see #createHttpAsyncClient()
+   */
+  protected CloseableHttpAsyncClient getAsyncProxyClient() {
+    return asyncProxyClient;
+  }
+
+  @Override
+  public void destroy() {
+    if (asyncProxyClient != null) {
+      try {
+        asyncProxyClient.close();
+      } catch (IOException e) {
+        log("While destroying servlet, shutting down HttpAsyncClient: "+e, e);
+      }
+    }
+    super.destroy();
+  }
+
+  @Override
+  protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
+      throws ServletException, IOException {
+    try {
+      checkRateLimit(servletRequest);
+      initTargetAttributes(servletRequest);
+    } catch (RequestRejectedException e) {
+      metrics.count(e.getStatusCode());
+      sendRejection(servletRequest, servletResponse, e);
+      return;
+    }
+
+    HttpRequest proxyRequest = newProxyRequest(servletRequest);
+
+    AsyncContext asyncContext = servletRequest.startAsync(servletRequest, servletResponse);
+    if (asyncTimeout >= 0) {
+      asyncContext.setTimeout(asyncTimeout);
+    }
+    AsyncExchange exchange = new AsyncExchange(asyncContext, servletRequest, servletResponse, proxyRequest,
+            getEndpoint(servletRequest));
+    asyncContext.addListener(exchange);
+    metrics.begin();//ended by the exchange
+
+    if (doLog) {
+      log("proxy async " + servletRequest.getMethod() + " uri: " + servletRequest.getRequestURI() + " -- " +
+              proxyRequest.getRequestLine().getUri());
+    }
+    HttpHost target = getTargetHost(servletRequest);
+    if (doNonBlockingIO) {
+      HttpAsyncRequestProducer producer;
+      if (proxyRequest instanceof HttpEntityEnclosingRequest) {
+        producer = exchange.inputProducer = new ServletInputProducer(target,
+                (HttpEntityEnclosingRequest) proxyRequest, asyncContext, ioBufferSize);
+      } else {
+        producer = HttpAsyncMethods.create(target, proxyRequest);
+      }
+      exchange.future = asyncProxyClient.execute(producer, exchange.newStreamingConsumer(), exchange);
+    } else {
+      if (proxyRequest instanceof HttpEntityEnclosingRequest) {
+        HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) proxyRequest;
+        if (entityRequest.getEntity() != null) {
+          exchange.requestEntity = new CountingEntity(entityRequest.getEntity());
+          entityRequest.setEntity(exchange.requestEntity);
+        }
+      }
+      exchange.future = asyncProxyClient.execute(target, proxyRequest, exchange);
+    }
+  }
+
+  /**
+   * With non-blocking I/O the body is streamed by a {@link ServletInputProducer}, so the entity
+   * only describes it. Otherwise it's buffered here, on the container thread, since the async
+   * client would read a stream on its I/O reactor thread.
+   */
+  @Override
+  protected HttpRequest newProxyRequestWithEntity(String method, String proxyRequestUri,
+                                                HttpServletRequest servletRequest)
+          throws IOException {
+    if (!doNonBlockingIO) {
+      HttpEntityEnclosingRequest eProxyRequest = (HttpEntityEnclosingRequest)
+              super.newProxyRequestWithEntity(method, proxyRequestUri, servletRequest);
+      if (!eProxyRequest.getEntity().isRepeatable()) {
+        ByteArrayEntity entity = new ByteArrayEntity(EntityUtils.toByteArray(eProxyRequest.getEntity()));
+        entity.setContentType(servletRequest.getContentType());
+        eProxyRequest.setEntity(entity);
+      }
+      return eProxyRequest;
+    }
+    HttpEntityEnclosingRequest eProxyRequest =
+            new BasicHttpEntityEnclosingRequest(method, proxyRequestUri);
+    BasicHttpEntity entity = new BasicHttpEntity();
+    long contentLength = getContentLength(servletRequest);
+    entity.setContentLength(contentLength);
+    entity.setChunked(contentLength < 0);
+    eProxyRequest.setEntity(entity);
+    return eProxyRequest;
+  }
+
+  /**
+   * Sends the proxied response to the client. Called on a container thread (via
+   * {@link AsyncContext#start(Runnable)}) once the response from the target has arrived.
+   */
+  protected void sendProxyResponse(HttpResponse proxyResponse, HttpRequest proxyRequest,
+                                   HttpServletRequest servletRequest, HttpServletResponse servletResponse)
+      throws IOException {
+    if (sendProxyResponseHead(proxyResponse, servletRequest, servletResponse)) {
+      copyResponseEntity(proxyResponse, servletResponse, proxyRequest, servletRequest);
+    }
+  }
+
+  /**
+   * Sends the status and headers of the proxied response to the client.
+   * @return whether the body should be sent too
+   */
+  protected boolean sendProxyResponseHead(HttpResponse proxyResponse, HttpServletRequest servletRequest,
+                                          HttpServletResponse servletResponse) {
+    int statusCode = proxyResponse.getStatusLine().getStatusCode();
+    //noinspection deprecation
+    servletResponse.setStatus(statusCode, proxyResponse.getStatusLine().getReasonPhrase());
+
+    copyResponseHeaders(proxyResponse, servletRequest, servletResponse);
+
+    if (statusCode == HttpServletResponse.SC_NOT_MODIFIED) {
+      servletResponse.setIntHeader(HttpHeaders.CONTENT_LENGTH, 0);
+      return false;
+    }
+    return proxyResponse.getEntity() != null;
+  }
+
+  /**
+   * Handles a failed exchange by giving {@link #handleRequestException} the chance to deal with
+   * it. If it throws (as it does by default), the error is logged and, if still possible, a
+   * {@code 502 Bad Gateway} is sent.
+   */
+  protected void sendProxyError(HttpRequest proxyRequest, Exception e, HttpServletResponse servletResponse) {
+    try {
+      handleRequestException(proxyRequest, e);
+    } catch (Exception rethrown) {
+      log("Error proxying " + proxyRequest.getRequestLine().getUri() + ": " + rethrown, rethrown);
+      if (!servletResponse.isCommitted()) {
+        try {
+          servletResponse.sendError(HttpServletResponse.SC_BAD_GATEWAY);
+        } catch (IOException ignore) {
+          // the client has gone away
+        }
+      }
+    }
+  }
+
+  /**
+   * The state of one asynchronous exchange. It's both the callback of the target exchange and the
+   * listener of the servlet's {@link AsyncContext}; whichever finishes first completes it. With
+   * non-blocking I/O, the response is sent by its {@link ServletOutputConsumer} instead.
+   */
+  private class AsyncExchange implements FutureCallback<HttpResponse>, AsyncListener {
+    private final AsyncContext asyncContext;
+    private final HttpServletRequest servletRequest;
+    private final HttpServletResponse servletResponse;
+    private final HttpRequest proxyRequest;
+    /** The load balanced target; null if none. */
+    private final Endpoint endpoint;
+    private final long startNanos;
+    private final AtomicBoolean done = new AtomicBoolean();
+    /** Whether the target's part is over, as seen by the endpoint. */
+    private final AtomicBoolean targetDone = new AtomicBoolean();
+    volatile Future<HttpResponse> future;
+    private boolean streaming;
+    /** Sent to the client; -1 if none, or it failed. */
+    private volatile int statusCode = -1;
+    // count the body bytes, depending on the mode
+    volatile ServletInputProducer inputProducer;
+    volatile CountingEntity requestEntity;
+    private volatile ServletOutputConsumer outputConsumer;
+    private volatile CountingEntity responseEntity;
+
+    AsyncExchange(AsyncContext asyncContext, HttpServletRequest servletRequest,
+                  HttpServletResponse servletResponse, HttpRequest proxyRequest, Endpoint endpoint) {
+      this.asyncContext = asyncContext;
+      this.servletRequest = servletRequest;
+      this.servletResponse = servletResponse;
+      this.proxyRequest = proxyRequest;
+      this.endpoint = endpoint;
+      this.startNanos = endpoint != null ? endpoint.begin() : System.nanoTime();
+    }
+
+    /**
+     * Ends the request to the endpoint, like {@link #doExecute} does: when the response head
+     * arrived (statusCode), or when it failed (-1). Once.
+     */
+    private void targetEnded(int statusCode) {
+      if (endpoint == null || !targetDone.compareAndSet(false, true))
+        return;
+      long latencyNanos = System.nanoTime() - startNanos;
+      endpoint.end(startNanos, statusCode >= 0);
+      if (healthChecker != null)
+        healthChecker.onResponse(endpoint, statusCode, latencyNanos);
+    }
+
+    /** Ends the request to the endpoint without a verdict on the target, e.g. the client left. */
+    private void targetCancelled() {
+      if (endpoint != null && targetDone.compareAndSet(false, true))
+        endpoint.cancel();
+    }
+
+    ServletOutputConsumer newStreamingConsumer() {
+      streaming = true;
+      return outputConsumer = new ServletOutputConsumer(asyncContext, ioBufferSize) {
+        @Override
+        protected boolean sendHead(HttpResponse response) {
+          targetEnded(response.getStatusLine().getStatusCode());
+          if (done.get())
+            return false;
+          statusCode = response.getStatusLine().getStatusCode();
+          return sendProxyResponseHead(response, servletRequest, servletResponse);
+        }
+
+        @Override
+        protected void onFinished() {
+          complete();
+        }
+
+        @Override
+        protected void onFailure(Throwable t) {
+          AsyncExchange.this.failed(t instanceof Exception ? (Exception) t : new RuntimeException(t));
+          cancelExchange();
+        }
+      };
+    }
+
+    public void completed(final HttpResponse proxyResponse) {
+      if (streaming)
+        return;//the consumer sends the response
+      targetEnded(proxyResponse.getStatusLine().getStatusCode());
+      if (done.get()) {
+        EntityUtils.consumeQuietly(proxyResponse.getEntity());
+        return;
+      }
+      // don't write to the client on the I/O reactor thread
+      asyncContext.start(new Runnable() {
+        public void run() {
+          try {
+            if (done.get())
+              return;
+            if (proxyResponse.getEntity() != null) {
+              responseEntity = new CountingEntity(proxyResponse.getEntity());
+              proxyResponse.setEntity(responseEntity);
+            }
+            statusCode = proxyResponse.getStatusLine().getStatusCode();
+            sendProxyResponse(proxyResponse, proxyRequest, servletRequest, servletResponse);
+          } catch (Exception e) {
+            statusCode = -1;
+            sendProxyError(proxyRequest, e, servletResponse);
+          } finally {
+            EntityUtils.consumeQuietly(proxyResponse.getEntity());
+            complete();
+          }
+        }
+      });
+    }
+
+    public void failed(final Exception e) {
+      targetEnded(-1);//no-op if the response came
+      if (done.compareAndSet(false, true)) {
+        statusCode = -1;
+        // don't write to the client on the I/O reactor thread
+        asyncContext.start(new Runnable() {
+          public void run() {
+            try {
+              sendProxyError(proxyRequest, e, servletResponse);
+            } finally {
+              asyncContext.complete();
+            }
+          }
+        });
+      }
+    }
+
+    public void cancelled() {
+      targetCancelled();
+      complete();
+    }
+
+    public void onTimeout(AsyncEvent event) throws IOException {
+      targetEnded(-1);//too slow, if no response came
+      if (done.compareAndSet(false, true)) {
+        cancelExchange();
+        if (!servletResponse.isCommitted()) {
+          statusCode = HttpServletResponse.SC_GATEWAY_TIMEOUT;
+          servletResponse.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        } else {
+          statusCode = -1;
+        }
+        asyncContext.complete();
+      }
+    }
+
+    public void onError(AsyncEvent event) throws IOException {
+      targetCancelled();
+      if (done.compareAndSet(false, true)) {
+        statusCode = -1;
+        cancelExchange();
+        asyncContext.complete();
+      }
+    }
+
+    public void onComplete(AsyncEvent event) throws IOException {
+      done.set(true);
+      targetCancelled();//no-op if it ended
+      metrics.end(statusCode, requestBytes(), responseBytes());
+    }
+
+    private long requestBytes() {
+      ServletInputProducer producer = inputProducer;
+      CountingEntity entity = requestEntity;
+      return producer != null ? producer.getCount() : entity != null ? entity.getCount() : 0;
+    }
+
+    private long responseBytes() {
+      ServletOutputConsumer consumer = outputConsumer;
+      CountingEntity entity = responseEntity;
+      return consumer != null ? consumer.getCount() : entity != null ? entity.getCount() : 0;
+    }
+
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
+
+    private void cancelExchange() {
+      Future<HttpResponse> f = future;
+      if (f != null) {
+        f.cancel(true);
+      }
+    }
+
+    private void complete() {
+      if (done.compareAndSet(false, true)) {
+        asyncContext.complete();
+      }
+    }
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.mitre.dsmiley.httpproxy.breaker.CircuitBreaker;
+import org.mitre.dsmiley.httpproxy.bulkhead.Bulkhead;
+import org.mitre.dsmiley.httpproxy.limit.AdaptiveConcurrencyLimiter;
+import org.mitre.dsmiley.httpproxy.metrics.LatencyHistogram;
+import org.mitre.dsmiley.httpproxy.metrics.PhaseLatencies;
+import org.mitre.dsmiley.httpproxy.metrics.ProxyMetrics;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the metrics of the {@link ProxyServlet}s of the web application (see
+ * {@link ProxyServletRegistry}) in the Prometheus text format: requests by status class, failures,
+ * body bytes, requests in flight, the connections of each pool by route, the slots, queues and
+ * rejections of the bulkheads, the adaptive concurrency limit, the states of the circuit breakers,
+ * and the phase latencies of the servlets having {@link ProxyServlet#P_LATENCYHISTOGRAMS} (as
+ * summaries). Map it to e.g. {@code /metrics}, next to the proxy servlets.
+ * <p>
+ *   The values are read from atomic counters; serving them doesn't block the requests being
+ *   proxied. {@link AsyncProxyServlet}s count their exchanges, but have no blocking pool to
+ *   report.
+ * </p>
+ */
+@SuppressWarnings({"serial"})
+public class ProxyMetricsServlet extends HttpServlet {
+
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+  /** The labels of the {@link CircuitBreaker} states, by value. */
+  private static final String[] BREAKER_STATES = {"closed", "open", "half_open"};
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    StringBuilder out = new StringBuilder(4096);
+    writeMetrics(out, ProxyServletRegistry.get(getServletContext()).getServlets());
+    byte[] bytes = out.toString().getBytes("UTF-8");
+    resp.setContentType(CONTENT_TYPE);
+    resp.setContentLength(bytes.length);
+    resp.getOutputStream().write(bytes);
+  }
+
+  /** Writes the metrics of the servlets. Sub-classes can override it to add their own. */
+  protected void writeMetrics(StringBuilder out, List<ProxyServlet> servlets) {
+    header(out, "proxy_requests_total", "counter", "Requests answered, by status class (none: failed).");
+    for (ProxyServlet servlet : servlets) {
+      ProxyMetrics metrics = servlet.getMetrics();
+      for (String statusClass : ProxyMetrics.getStatusClasses()) {
+        sample(out, "proxy_requests_total", metrics.getRequestCount(statusClass),
+                "servlet", servlet.getServletName(), "code", statusClass);
+      }
+    }
+    header(out, "proxy_errors_total", "counter", "Requests that failed without a response.");
+    for (ProxyServlet servlet : servlets) {
+      sample(out, "proxy_errors_total", servlet.getMetrics().getErrorCount(), "servlet", servlet.getServletName());
+    }
+    header(out, "proxy_request_bytes_total", "counter", "Bytes of request bodies sent to the targets.");
+    for (ProxyServlet servlet : servlets) {
+      sample(out, "proxy_request_bytes_total", servlet.getMetrics().getRequestBytes(),
+              "servlet", servlet.getServletName());
+    }
+    header(out, "proxy_response_bytes_total", "counter", "Bytes of response bodies sent to the clients.");
+    for (ProxyServlet servlet : servlets) {
+      sample(out, "proxy_response_bytes_total", servlet.getMetrics().getResponseBytes(),
+              "servlet", servlet.getServletName());
+    }
+    header(out, "proxy_requests_in_flight", "gauge", "Requests being proxied.");
+    for (ProxyServlet servlet : servlets) {
+      sample(out, "proxy_requests_in_flight", servlet.getMetrics().getInFlight(), "servlet", servlet.getServletName());
+    }
+    writePoolMetrics(out, servlets);
+    writeBulkheadMetrics(out, servlets);
+    writeConcurrencyLimitMetrics(out, servlets);
+    writeCircuitBreakerMetrics(out, servlets);
+    writeLatencyMetrics(out, servlets);
+  }
+
+  private void writePoolMetrics(StringBuilder out, List<ProxyServlet> servlets) {
+    // a pool shared by the servlets of a client profile is reported once, named after the profile
+    Map<PoolingHttpClientConnectionManager, String> pools =
+            new IdentityHashMap<PoolingHttpClientConnectionManager, String>();
+    for (ProxyServlet servlet : servlets) {
+      PoolingHttpClientConnectionManager connectionManager = servlet.getConnectionManager();
+      if (connectionManager != null && !pools.containsKey(connectionManager))
+        pools.put(connectionManager, servlet.clientProfile != null ? servlet.clientProfile : servlet.getServletName());
+    }
+    header(out, "proxy_pool_connections", "gauge", "Pooled connections to a route, by state (pending: awaited).");
+    for (Map.Entry<PoolingHttpClientConnectionManager, String> pool : pools.entrySet()) {
+      for (HttpRoute route : pool.getKey().getRoutes()) {
+        PoolStats stats = pool.getKey().getStats(route);
+        String routeLabel = route.getTargetHost().toURI();
+        sample(out, "proxy_pool_connections", stats.getLeased(), "pool", pool.getValue(), "route", routeLabel,
+                "state", "leased");
+        sample(out, "proxy_pool_connections", stats.getAvailable(), "pool", pool.getValue(), "route", routeLabel,
+                "state", "available");
+        sample(out, "proxy_pool_connections", stats.getPending(), "pool", pool.getValue(), "route", routeLabel,
+                "state", "pending");
+      }
+    }
+    header(out, "proxy_pool_max_connections", "gauge", "The most connections to a route.");
+    for (Map.Entry<PoolingHttpClientConnectionManager, String> pool : pools.entrySet()) {
+      for (HttpRoute route : pool.getKey().getRoutes()) {
+        sample(out, "proxy_pool_max_connections", pool.getKey().getStats(route).getMax(),
+                "pool", pool.getValue(), "route", route.getTargetHost().toURI());
+      }
+    }
+  }
+
+  private void writeBulkheadMetrics(StringBuilder out, List<ProxyServlet> servlets) {
+    header(out, "proxy_bulkhead_in_flight", "gauge", "Requests holding a slot of a bulkhead.");
+    for (ProxyServlet servlet : servlets) {
+      if (servlet.getBulkheads() == null)
+        continue;
+      for (Bulkhead bulkhead : servlet.getBulkheads().getBulkheads()) {
+        sample(out, "proxy_bulkhead_in_flight", bulkhead.getInFlight(),
+                "servlet", servlet.getServletName(), "bulkhead", bulkhead.getName());
+      }
+    }
+    header(out, "proxy_bulkhead_queued", "gauge", "Requests waiting for a slot of a bulkhead.");
+    for (ProxyServlet servlet : servlets) {
+      if (servlet.getBulkheads() == null)
+        continue;
+      for (Bulkhead bulkhead : servlet.getBulkheads().getBulkheads()) {
+        sample(out, "proxy_bulkhead_queued", bulkhead.getQueued(),
+                "servlet", servlet.getServletName(), "bulkhead", bulkhead.getName());
+      }
+    }
+    header(out, "proxy_bulkhead_rejected_total", "counter", "Requests a bulkhead rejected (full, or timed out).");
+    for (ProxyServlet servlet : servlets) {
+      if (servlet.getBulkheads() == null)
+        continue;
+      for (Bulkhead bulkhead : servlet.getBulkheads().getBulkheads()) {
+        sample(out, "proxy_bulkhead_rejected_total", bulkhead.getRejectedCount(),
+                "servlet", servlet.getServletName(), "bulkhead", bulkhead.getName());
+      }
+    }
+  }
+
+  private void writeConcurrencyLimitMetrics(StringBuilder out, List<ProxyServlet> servlets) {
+    header(out, "proxy_concurrency_limit", "gauge", "The adaptive limit of the requests in flight.");
+    for (ProxyServlet servlet : servlets) {
+      AdaptiveConcurrencyLimiter limiter = servlet.getConcurrencyLimiter();
+      if (limiter != null)
+        sample(out, "proxy_concurrency_limit", limiter.getLimit(), "servlet", servlet.getServletName());
+    }
+    header(out, "proxy_concurrency_in_flight", "gauge", "Requests holding a permit of the concurrency limiter.");
+    for (ProxyServlet servlet : servlets) {
+      AdaptiveConcurrencyLimiter limiter = servlet.getConcurrencyLimiter();
+      if (limiter != null)
+        sample(out, "proxy_concurrency_in_flight", limiter.getInFlight(), "servlet", servlet.getServletName());
+    }
+    header(out, "proxy_concurrency_no_load_rtt_seconds", "gauge", "The round trip time measured without queuing.");
+    for (ProxyServlet servlet : servlets) {
+      AdaptiveConcurrencyLimiter limiter = servlet.getConcurrencyLimiter();
+      if (limiter != null)
+        sample(out, "proxy_concurrency_no_load_rtt_seconds", limiter.getNoLoadRttMicros() / 1e6,
+                "servlet", servlet.getServletName());
+    }
+    header(out, "proxy_concurrency_rejected_total", "counter", "Requests the concurrency limiter rejected.");
+    for (ProxyServlet servlet : servlets) {
+      AdaptiveConcurrencyLimiter limiter = servlet.getConcurrencyLimiter();
+      if (limiter != null)
+        sample(out, "proxy_concurrency_rejected_total", limiter.getRejectedCount(), "servlet", servlet.getServletName());
+    }
+  }
+
+  private void writeCircuitBreakerMetrics(StringBuilder out, List<ProxyServlet> servlets) {
+    header(out, "proxy_circuit_breaker_state", "gauge", "The state of the circuit breaker of a target (1: current).");
+    for (ProxyServlet servlet : servlets) {
+      if (servlet.getCircuitBreakers() == null)
+        continue;
+      for (CircuitBreaker breaker : servlet.getCircuitBreakers().getBreakers().values()) {
+        int state = breaker.getState();
+        for (int i = 0; i < BREAKER_STATES.length; i++) {
+          sample(out, "proxy_circuit_breaker_state", state == i ? 1 : 0,
+                  "servlet", servlet.getServletName(), "target", breaker.getName(), "state", BREAKER_STATES[i]);
+        }
+      }
+    }
+    header(out, "proxy_circuit_breaker_opened_total", "counter", "Times the circuit breaker of a target opened.");
+    for (ProxyServlet servlet : servlets) {
+      if (servlet.getCircuitBreakers() == null)
+        continue;
+      for (CircuitBreaker breaker : servlet.getCircuitBreakers().getBreakers().values()) {
+        sample(out, "proxy_circuit_breaker_opened_total", breaker.getOpenCount(),
+                "servlet", servlet.getServletName(), "target", breaker.getName());
+      }
+    }
+    header(out, "proxy_circuit_breaker_not_permitted_total", "counter",
+            "Requests the circuit breaker of a target rejected.");
+    for (ProxyServlet servlet : servlets) {
+      if (servlet.getCircuitBreakers() == null)
+        continue;
+      for (CircuitBreaker breaker : servlet.getCircuitBreakers().getBreakers().values()) {
+        sample(out, "proxy_circuit_breaker_not_permitted_total", breaker.getNotPermittedCount(),
+                "servlet", servlet.getServletName(), "target", breaker.getName());
+      }
+    }
+  }
+
+  private void writeLatencyMetrics(StringBuilder out, List<ProxyServlet> servlets) {
+    header(out, "proxy_phase_latency_seconds", "summary", "The latency of a phase of the exchanges.");
+    for (ProxyServlet servlet : servlets) {
+      PhaseLatencies latencies = servlet.getPhaseLatencies();
+      if (latencies == null)
+        continue;
+      for (Map.Entry<PhaseLatencies.Key, LatencyHistogram> entry : latencies.getHistograms().entrySet()) {
+        PhaseLatencies.Key key = entry.getKey();
+        LatencyHistogram histogram = entry.getValue();
+        String[] labels = {"servlet", servlet.getServletName(), "phase", key.getPhase().getLabel(),
+                "host", key.getHost(), "method", key.getMethod(), "code", key.getStatusClass()};
+        for (double quantile : QUANTILES) {
+          String[] quantileLabels = new String[labels.length + 2];
+          System.arraycopy(labels, 0, quantileLabels, 0, labels.length);
+          quantileLabels[labels.length] = "quantile";
+          quantileLabels[labels.length + 1] = Double.toString(quantile);
+          sample(out, "proxy_phase_latency_seconds", histogram.getQuantileMicros(quantile) / 1e6, quantileLabels);
+        }
+        sample(out, "proxy_phase_latency_seconds_sum", histogram.getSumMicros() / 1e6, labels);
+        sample(out, "proxy_phase_latency_seconds_count", histogram.getCount(), labels);
+      }
+    }
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  /** Appends a sample; {@code labels} are names and values, alternately. */
+  private static void sample(StringBuilder out, String name, long value, String... labels) {
+    labels(out.append(name), labels).append(' ').append(value).append('\n');
+  }
+
+  private static void sample(StringBuilder out, String name, double value, String... labels) {
+    labels(out.append(name), labels).append(' ').append(value).append('\n');
+  }
+
+  private static StringBuilder labels(StringBuilder out, String... labels) {
+    out.append('{');
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0)
+        out.append(',');
+      out.append(labels[i]).append("=\"");
+      String value = labels[i + 1];
+      for (int c = 0; c < value.length(); c++) {
+        char ch = value.charAt(c);
+        if (ch == '\\' || ch == '"')
+          out.append('\\').append(ch);
+        else if (ch == '\n')
+          out.append("\\n");
+        else
+          out.append(ch);
+      }
+      out.append('"');
+    }
+    return out.append('}');
+  }
+}
@@ -27,29 +27,82 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.AbstractExecutionAwareRequest;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.utils.URIUtils;
 import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.execchain.RequestAbortedException;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.message.HeaderGroup;
 import org.apache.http.util.EntityUtils;
-
+import org.mitre.dsmiley.httpproxy.accesslog.AccessLog;
+import org.mitre.dsmiley.httpproxy.breaker.CircuitBreaker;
+import org.mitre.dsmiley.httpproxy.breaker.CircuitBreakerConfig;
+import org.mitre.dsmiley.httpproxy.breaker.CircuitBreakerRegistry;
+import org.mitre.dsmiley.httpproxy.bulkhead.Bulkhead;
+import org.mitre.dsmiley.httpproxy.bulkhead.BulkheadRegistry;
+import org.mitre.dsmiley.httpproxy.cache.DiskCache;
+import org.mitre.dsmiley.httpproxy.cache.RequestCoalescer;
+import org.mitre.dsmiley.httpproxy.cache.ResponseCache;
+import org.mitre.dsmiley.httpproxy.health.HealthCheckConfig;
+import org.mitre.dsmiley.httpproxy.health.HealthChecker;
+import org.mitre.dsmiley.httpproxy.hedge.Hedger;
+import org.mitre.dsmiley.httpproxy.lb.Endpoint;
+import org.mitre.dsmiley.httpproxy.lb.LoadBalancer;
+import org.mitre.dsmiley.httpproxy.limit.AdaptiveConcurrencyLimiter;
+import org.mitre.dsmiley.httpproxy.metrics.CountingEntity;
+import org.mitre.dsmiley.httpproxy.metrics.ExchangeTimings;
+import org.mitre.dsmiley.httpproxy.metrics.PhaseLatencies;
+import org.mitre.dsmiley.httpproxy.metrics.ProxyEvents;
+import org.mitre.dsmiley.httpproxy.metrics.ProxyMetrics;
+import org.mitre.dsmiley.httpproxy.metrics.TimingRequestExecutor;
+import org.mitre.dsmiley.httpproxy.pool.ConnectionEvictor;
+import org.mitre.dsmiley.httpproxy.pool.ConnectionPoolConfig;
+import org.mitre.dsmiley.httpproxy.pool.PoolExhaustedException;
+import org.mitre.dsmiley.httpproxy.pool.SharedClientRegistry;
+import org.mitre.dsmiley.httpproxy.pool.SharedClientRegistry.SharedClient;
+import org.mitre.dsmiley.httpproxy.ratelimit.RateLimiter;
+import org.mitre.dsmiley.httpproxy.retry.RetryPolicy;
+import org.mitre.dsmiley.httpproxy.uri.UriRewriter;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.net.HttpCookie;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Enumeration;
-import java.util.Formatter;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * An HTTP reverse proxy/gateway servlet. It is designed to be extended for customization
@@ -95,197 +148,1831 @@ public class ProxyServlet extends HttpServlet {
   /** A boolean parameter whether to use JVM-defined system properties to configure various networking aspects. */
   public static final String P_USESYSTEMPROPERTIES = "useSystemProperties";
 
-  /** The parameter name for the target (destination) URI to proxy to. */
+  /** A integer parameter name to set the maximum number of pooled connections in total */
+  public static final String P_POOL_MAXTOTAL = "http.pool.maxTotal";
+
+  /** A integer parameter name to set the maximum number of pooled connections per route (target host) */
+  public static final String P_POOL_MAXPERROUTE = "http.pool.maxPerRoute";
+
+  /** A parameter name to override the maximum per route, e.g. "host1:8080=100, https://host2=20" */
+  public static final String P_POOL_ROUTEOVERRIDES = "http.pool.maxPerRoute.overrides";
+
+  /** A integer parameter name to set the time to live of pooled connections (millis) */
+  public static final String P_POOL_TTL = "http.pool.ttl";
+
+  /** A integer parameter name to set the inactivity after which a pooled connection is validated (millis) */
+  public static final String P_POOL_VALIDATEAFTERINACTIVITY = "http.pool.validateAfterInactivity";
+
+  /** A integer parameter name to set the maximum wait to lease a pooled connection (millis; default 5000; 0 waits forever) */
+  public static final String P_POOL_LEASETIMEOUT = "http.pool.leaseTimeout";
+
+  /** A integer parameter name to set how often expired and idle pooled connections are closed (millis); 0 disables */
+  public static final String P_POOL_EVICTIONINTERVAL = "http.pool.evictionInterval";
+
+  /** A integer parameter name to set the time after which an idle pooled connection is closed (millis) */
+  public static final String P_POOL_MAXIDLETIME = "http.pool.maxIdleTime";
+
+  /** A integer parameter name to set the maximum number of target hosts whose idle connections are pooled */
+  public static final String P_POOL_MAXROUTES = "http.pool.maxRoutes";
+
+  /** A boolean parameter name to set TCP_NODELAY on the sockets to the target (default true) */
+  public static final String P_TCPNODELAY = "http.socket.tcpNoDelay";
+
+  /** A integer parameter name to set the SO_SNDBUF of the sockets to the target (bytes) */
+  public static final String P_SENDBUFFERSIZE = "http.socket.sendBufferSize";
+
+  /** A integer parameter name to set the SO_RCVBUF of the sockets to the target (bytes) */
+  public static final String P_RECEIVEBUFFERSIZE = "http.socket.receiveBufferSize";
+
+  /**
+   * A parameter name to share the http client, and so its pool, with the other servlets of the web
+   * application having the same client profile (an arbitrary name). If not a servlet init parameter,
+   * it's read from the context init parameters, so all servlets can share one by default. The value
+   * {@value #CLIENT_PROFILE_DEDICATED} (or none) gives the servlet its own client.
+   */
+  public static final String P_CLIENT_PROFILE = "http.client.profile";
+
+  /** The {@link #P_CLIENT_PROFILE} value for a client of the servlet's own. */
+  public static final String CLIENT_PROFILE_DEDICATED = "dedicated";
+
+  /** A long parameter name to enable a cache of the target's responses of at most this many bytes */
+  public static final String P_RESPONSECACHE_MAXBYTES = "responseCache.maxBytes";
+
+  /** A integer parameter name to set the size of the largest response body cached (bytes; default 1MB) */
+  public static final String P_RESPONSECACHE_MAXENTRYBYTES = "responseCache.maxEntryBytes";
+
+  /**
+   * A parameter name to enable a cache of large responses (those with bodies over
+   * {@link #P_RESPONSECACHE_MAXENTRYBYTES}) in memory-mapped files of this directory, one per servlet
+   */
+  public static final String P_RESPONSECACHE_DISKDIRECTORY = "responseCache.diskDirectory";
+
+  /** A long parameter name to set the disk space of the cache of large responses (bytes; default 1GB) */
+  public static final String P_RESPONSECACHE_DISKMAXBYTES = "responseCache.diskMaxBytes";
+
+  /** A integer parameter name to set the size of the files of the cache of large responses (bytes; default 64MB) */
+  public static final String P_RESPONSECACHE_DISKSEGMENTBYTES = "responseCache.diskSegmentBytes";
+
+  /** A boolean parameter name to coalesce identical concurrent GET requests into one to the target */
+  public static final String P_COALESCE = "coalesce";
+
+  /** A parameter name for the request headers whose values must match to coalesce requests (comma separated) */
+  public static final String P_COALESCE_HEADERS = "coalesce.headers";
+
+  /** A integer parameter name to set the longest a coalesced request waits for the first one (millis; default 5000) */
+  public static final String P_COALESCE_TIMEOUT = "coalesce.timeout";
+
+  /** A integer parameter name to set the size of the largest response body shared by coalesced requests (bytes; default 1MB) */
+  public static final String P_COALESCE_MAXBODYBYTES = "coalesce.maxBodyBytes";
+
+  /**
+   * A parameter name for the strategy choosing among several target URIs: roundRobin (the default),
+   * weighted, leastOutstanding, p2c or peakEwma. See {@link LoadBalancer}.
+   */
+  public static final String P_LOADBALANCER = "loadBalancer";
+
+  /** A parameter name for the weights of the target URIs, in the same order (whitespace or comma separated) */
+  public static final String P_LOADBALANCER_WEIGHTS = "loadBalancer.weights";
+
+  /**
+   * A parameter name for the path probed on each load balanced target, e.g. /health. Active health
+   * checks are disabled unless it's set. See {@link HealthChecker}.
+   */
+  public static final String P_HEALTHCHECK_PATH = "healthCheck.path";
+
+  /** A integer parameter name to set the time between probes of a target (millis; default 10000) */
+  public static final String P_HEALTHCHECK_INTERVAL = "healthCheck.interval";
+
+  /** A integer parameter name to set the connect and read timeout of a probe (millis; default 2000) */
+  public static final String P_HEALTHCHECK_TIMEOUT = "healthCheck.timeout";
+
+  /** A parameter name for the status codes of a healthy probe, e.g. "200-299, 304" (default "200-399") */
+  public static final String P_HEALTHCHECK_EXPECTEDSTATUS = "healthCheck.expectedStatus";
+
+  /** A integer parameter name to set the number of failed probes after which a target is down (default 2) */
+  public static final String P_HEALTHCHECK_UNHEALTHYTHRESHOLD = "healthCheck.unhealthyThreshold";
+
+  /** A integer parameter name to set the number of healthy probes after which a target is up again (default 2) */
+  public static final String P_HEALTHCHECK_HEALTHYTHRESHOLD = "healthCheck.healthyThreshold";
+
+  /**
+   * A integer parameter name to set the number of consecutive failed requests (5xx or no response) after
+   * which a load balanced target is ejected (default 5; 0 disables it)
+   */
+  public static final String P_OUTLIER_CONSECUTIVEFAILURES = "outlier.consecutiveFailures";
+
+  /**
+   * A parameter name for the factor by which a target's latency average must exceed the others' median
+   * for its responses to count as failed (default 0, disabled)
+   */
+  public static final String P_OUTLIER_LATENCYFACTOR = "outlier.latencyFactor";
+
+  /** A integer parameter name to set the latency under which a response is never an outlier (millis; default 100) */
+  public static final String P_OUTLIER_MINLATENCY = "outlier.minLatency";
+
+  /** A integer parameter name to set the time of the first ejection of a target, doubling with each next (millis; default 30000) */
+  public static final String P_OUTLIER_BASEEJECTIONTIME = "outlier.baseEjectionTime";
+
+  /** A integer parameter name to set the longest ejection of a target (millis; default 300000) */
+  public static final String P_OUTLIER_MAXEJECTIONTIME = "outlier.maxEjectionTime";
+
+  /** A integer parameter name to set the most targets ejected at once, in percent (default 50) */
+  public static final String P_OUTLIER_MAXEJECTIONPERCENT = "outlier.maxEjectionPercent";
+
+  /**
+   * A boolean parameter name to fail requests fast, with a 503, while their target host is failing. See
+   * {@link CircuitBreaker}.
+   */
+  public static final String P_CIRCUITBREAKER = "circuitBreaker";
+
+  /** A integer parameter name to set the percentage of failed calls (5xx or no response) opening the circuit (default 50) */
+  public static final String P_CIRCUITBREAKER_FAILURERATETHRESHOLD = "circuitBreaker.failureRateThreshold";
+
+  /** A integer parameter name to set the time to response headers from which a call is slow (millis; default 10000) */
+  public static final String P_CIRCUITBREAKER_SLOWCALLDURATION = "circuitBreaker.slowCallDuration";
+
+  /** A integer parameter name to set the percentage of slow calls opening the circuit (default 100) */
+  public static final String P_CIRCUITBREAKER_SLOWCALLRATETHRESHOLD = "circuitBreaker.slowCallRateThreshold";
+
+  /** A integer parameter name to set the number of calls in the window below which the circuit stays closed (default 20) */
+  public static final String P_CIRCUITBREAKER_MINIMUMCALLS = "circuitBreaker.minimumCalls";
+
+  /** A integer parameter name to set the length of the sliding window of calls (millis; default 10000) */
+  public static final String P_CIRCUITBREAKER_WINDOW = "circuitBreaker.window";
+
+  /** A integer parameter name to set how long the circuit stays open before trial calls (millis; default 30000) */
+  public static final String P_CIRCUITBREAKER_WAITDURATION = "circuitBreaker.waitDuration";
+
+  /** A integer parameter name to set the number of trial calls closing the circuit if they succeed (default 5) */
+  public static final String P_CIRCUITBREAKER_HALFOPENCALLS = "circuitBreaker.halfOpenCalls";
+
+  /**
+   * A integer parameter name to set the most times a request that the target didn't process is retried
+   * (default 0, disabled). Only idempotent requests are, whose body can be replayed. See {@link RetryPolicy}.
+   */
+  public static final String P_RETRY_MAXRETRIES = "retry.maxRetries";
+
+  /** A integer parameter name to set the retries allowed per 100 requests to a target (default 10) */
+  public static final String P_RETRY_BUDGETPERCENT = "retry.budgetPercent";
+
+  /** A parameter name for the retries allowed per second to a target regardless of its budget (default 1) */
+  public static final String P_RETRY_MINPERSECOND = "retry.minPerSecond";
+
+  /** A integer parameter name to set the backoff before the first retry, doubling with each next (millis; default 50) */
+  public static final String P_RETRY_BACKOFF = "retry.backoff";
+
+  /** A integer parameter name to set the longest backoff before a retry (millis; default 1000) */
+  public static final String P_RETRY_MAXBACKOFF = "retry.maxBackoff";
+
+  /**
+   * A integer parameter name to set the size of the largest body of an idempotent request buffered so that
+   * it can be retried (bytes; default 65536)
+   */
+  public static final String P_RETRY_MAXBODYBYTES = "retry.maxBodyBytes";
+
+  /**
+   * A boolean parameter name to hedge safe requests: if the response doesn't come within a delay, a copy
+   * is sent to another load balanced target, and the first response is used. See {@link Hedger}.
+   */
+  public static final String P_HEDGE = "hedge";
+
+  /**
+   * A parameter name for the delay after which a request is hedged: millis, or a percentile of the recent
+   * latencies like "p95" (the default)
+   */
+  public static final String P_HEDGE_DELAY = "hedge.delay";
+
+  /** A integer parameter name to set the shortest delay after which a request is hedged (millis; default 10) */
+  public static final String P_HEDGE_MINDELAY = "hedge.minDelay";
+
+  /** A integer parameter name to set the hedges allowed per 100 requests (default 5) */
+  public static final String P_HEDGE_BUDGETPERCENT = "hedge.budgetPercent";
+
+  /**
+   * A integer parameter name to set the most requests of the servlet (or of each target host) in flight at
+   * once; others wait in a queue, or get a 503. Unset disables it. See {@link Bulkhead}.
+   */
+  public static final String P_BULKHEAD_MAXCONCURRENT = "bulkhead.maxConcurrent";
+
+  /** A integer parameter name to set the most requests waiting for one in flight to end (default 10) */
+  public static final String P_BULKHEAD_MAXQUEUED = "bulkhead.maxQueued";
+
+  /** A integer parameter name to set the longest a request waits in the queue (millis; default 500) */
+  public static final String P_BULKHEAD_QUEUETIMEOUT = "bulkhead.queueTimeout";
+
+  /**
+   * A boolean parameter name to have a bulkhead per target host rather than one for the servlet (default false).
+   * A retry on another target moves to that target's bulkhead; a hedge takes a free slot of its target's.
+   */
+  public static final String P_BULKHEAD_PERTARGET = "bulkhead.perTarget";
+
+  /**
+   * A boolean parameter name to limit the requests in flight to the targets to a limit adjusted from their
+   * latency; requests beyond it get a 503 at once. See {@link AdaptiveConcurrencyLimiter}. (default false)
+   */
+  public static final String P_CONCURRENCYLIMIT = "concurrencyLimit";
+
+  /** A integer parameter name to set the limit the adaptive concurrency limiter starts with (default 20) */
+  public static final String P_CONCURRENCYLIMIT_INITIAL = "concurrencyLimit.initial";
+
+  /** A integer parameter name to set the lowest adaptive concurrency limit (default 1) */
+  public static final String P_CONCURRENCYLIMIT_MIN = "concurrencyLimit.min";
+
+  /** A integer parameter name to set the highest adaptive concurrency limit (default 1000) */
+  public static final String P_CONCURRENCYLIMIT_MAX = "concurrencyLimit.max";
+
+  /**
+   * A double parameter name to limit the rate of requests per client (per second); others get a 429. Unset
+   * disables it. See {@link RateLimiter}.
+   */
+  public static final String P_RATELIMIT = "rateLimit";
+
+  /** A integer parameter name to set the most requests a client may send at once (default the rate, at least 1) */
+  public static final String P_RATELIMIT_BURST = "rateLimit.burst";
+
+  /**
+   * A parameter name to set what identifies a client: {@code remoteAddr} (default), {@code forwardedFor} (the first
+   * X-Forwarded-For hop, else the remote address), {@code header:<name>} (e.g. of an API key, else the remote
+   * address), or {@code route} (one limit for all the requests of the servlet).
+   */
+  public static final String P_RATELIMIT_KEY = "rateLimit.key";
+
+  /** A integer parameter name to set the most clients whose rate is tracked (default 100000) */
+  public static final String P_RATELIMIT_MAXKEYS = "rateLimit.maxKeys";
+
+  /**
+   * A boolean parameter name to record the latencies of the phases of the exchanges (rewrite, headers, lease,
+   * connect, first byte, body, total) by target host, method and status class. See {@link PhaseLatencies}.
+   * (default false)
+   */
+  public static final String P_LATENCYHISTOGRAMS = "latencyHistograms";
+
+  /**
+   * A boolean parameter name to log the exchanges asynchronously: method, URI, rewritten URI, target, status,
+   * bytes and the times of their phases. Replaces the per-request lines of {@link #P_LOG}. See {@link AccessLog}.
+   * (default false)
+   */
+  public static final String P_ACCESSLOG = "accessLog";
+
+  /** A parameter name for the file the access log is appended to (default: commons-logging, at info) */
+  public static final String P_ACCESSLOG_FILE = "accessLog.file";
+
+  /** A parameter name for the format of the access log: {@code text} or {@code json} lines (default text) */
+  public static final String P_ACCESSLOG_FORMAT = "accessLog.format";
+
+  /** A double parameter name to set the fraction of the exchanges logged, in (0, 1] (default 1) */
+  public static final String P_ACCESSLOG_SAMPLERATE = "accessLog.sampleRate";
+
+  /**
+   * A integer parameter name to set the most records waiting to be written; more are dropped (and counted)
+   * (default 8192)
+   */
+  public static final String P_ACCESSLOG_BUFFERSIZE = "accessLog.bufferSize";
+
+  /**
+   * A boolean parameter name to register a JMX MBean of the servlet, to inspect and resize its connection pool
+   * while it runs. See {@link ProxyServletMXBean}. (default true)
+   */
+  public static final String P_JMX = "jmx";
+
+  /**
+   * The parameter name for the target (destination) URI to proxy to. Several, separated by whitespace,
+   * are load balanced; see {@link #P_LOADBALANCER}.
+   */
   protected static final String P_TARGET_URI = "targetUri";
   protected static final String ATTR_TARGET_URI =
           ProxyServlet.class.getSimpleName() + ".targetUri";
   protected static final String ATTR_TARGET_HOST =
           ProxyServlet.class.getSimpleName() + ".targetHost";
+  /** The {@link Endpoint} chosen by the load balancer, if any. */
+  protected static final String ATTR_ENDPOINT =
+          ProxyServlet.class.getSimpleName() + ".endpoint";
+  /** The {@link Bulkhead} slot held by the request, if it went to the target. */
+  private static final String ATTR_BULKHEAD =
+          ProxyServlet.class.getSimpleName() + ".bulkhead";
+  /** The last failure of an attempt on a reused connection, for the {@link #retryPolicy}. */
+  private static final String ATTR_REUSED_CONNECTION_FAILURE =
+          ProxyServlet.class.getSimpleName() + ".reusedConnectionFailure";
+
+  /* MISC */
+
+  protected boolean doLog = false;
+  protected boolean doForwardIP = true;
+  /** User agents shouldn't send the url fragment but what if it does? */
+  protected boolean doSendUrlFragment = true;
+  protected boolean doPreserveHost = false;
+  protected boolean doPreserveCookies = false;
+  protected boolean doHandleRedirects = false;
+  protected boolean useSystemProperties = false;
+  protected int connectTimeout = -1;
+  protected int readTimeout = -1;
+  protected ConnectionPoolConfig poolConfig;
+  /** The shared client's profile; null if the client is dedicated. See {@link #P_CLIENT_PROFILE}. */
+  protected String clientProfile;
+  /** Null if disabled. See {@link #P_RESPONSECACHE_MAXBYTES}. */
+  protected ResponseCache responseCache;
+  /** Null if disabled. See {@link #P_COALESCE}. */
+  protected RequestCoalescer requestCoalescer;
+
+  //These next 3 are cached here, and should only be referred to in initialization logic. See the
+  // ATTR_* parameters.
+  /** From the configured parameter "targetUri". */
+  protected String targetUri;
+  protected URI targetUriObj;//new URI(targetUri)
+  protected HttpHost targetHost;//URIUtils.extractHost(targetUriObj);
+  /** Null unless there are several target URIs. They're then those of the first. */
+  protected LoadBalancer loadBalancer;
+  /** Null if disabled, or there's no load balancer. See {@link #P_HEDGE}. */
+  protected Hedger hedger;
+  /** Null if disabled. See {@link #P_RETRY_MAXRETRIES}. */
+  protected RetryPolicy retryPolicy;
+  /** The size of the largest request body buffered to be retried. */
+  protected int retryMaxBodyBytes = 64 * 1024;
+  /** Null if disabled. See {@link #P_BULKHEAD_MAXCONCURRENT}. */
+  protected BulkheadRegistry bulkheads;
+  /** Null if disabled. See {@link #P_CIRCUITBREAKER}. */
+  protected CircuitBreakerRegistry circuitBreakers;
+  /** The counters of the exchanges. */
+  protected ProxyMetrics metrics;
+  /** Null if disabled. See {@link #P_LATENCYHISTOGRAMS}. */
+  protected PhaseLatencies phaseLatencies;
+  /** Null if disabled. See {@link #P_ACCESSLOG}. */
+  protected AccessLog accessLog;
+  /** Null if disabled. See {@link #P_RATELIMIT}. */
+  protected RateLimiter rateLimiter;
+  /** See {@link #P_RATELIMIT_KEY}. */
+  protected String rateLimitKey = "remoteAddr";
+  /** Null if disabled. See {@link #P_CONCURRENCYLIMIT}. */
+  protected AdaptiveConcurrencyLimiter concurrencyLimiter;
+  /** Null unless there's a load balancer. See {@link #P_HEALTHCHECK_PATH}. */
+  protected HealthChecker healthChecker;
+
+  private HttpClient proxyClient;
+  /** The client of the health checks when there's no {@link #proxyClient}; else null. */
+  private CloseableHttpClient healthCheckClient;
+  private PoolingHttpClientConnectionManager connectionManager;
+  private ConnectionEvictor connectionEvictor;
+  /** Null if not registered. */
+  private ObjectName mbeanName;
+  /** The request config of this servlet, when the client's default is another servlet's. */
+  private RequestConfig sharedClientRequestConfig;
+
+  @Override
+  public String getServletInfo() {
+    return "A proxy servlet by David Smiley, dsmiley@apache.org";
+  }
+
+
+  protected String getTargetUri(HttpServletRequest servletRequest) {
+    return (String) servletRequest.getAttribute(ATTR_TARGET_URI);
+  }
+
+  protected HttpHost getTargetHost(HttpServletRequest servletRequest) {
+    return (HttpHost) servletRequest.getAttribute(ATTR_TARGET_HOST);
+  }
+
+  /** The target chosen by the load balancer; null if there's none. */
+  protected Endpoint getEndpoint(HttpServletRequest servletRequest) {
+    return (Endpoint) servletRequest.getAttribute(ATTR_ENDPOINT);
+  }
+
+  /**
+   * Reads a configuration parameter. By default it reads servlet init parameters but
+   * it can be overridden.
+   */
+  protected String getConfigParam(String key) {
+    return getServletConfig().getInitParameter(key);
+  }
+
+  @Override
+  public void init() throws ServletException {
+    String doLogStr = getConfigParam(P_LOG);
+    if (doLogStr != null) {
+      this.doLog = Boolean.parseBoolean(doLogStr);
+    }
+
+    String doForwardIPString = getConfigParam(P_FORWARDEDFOR);
+    if (doForwardIPString != null) {
+      this.doForwardIP = Boolean.parseBoolean(doForwardIPString);
+    }
+
+    String preserveHostString = getConfigParam(P_PRESERVEHOST);
+    if (preserveHostString != null) {
+      this.doPreserveHost = Boolean.parseBoolean(preserveHostString);
+    }
+
+    String preserveCookiesString = getConfigParam(P_PRESERVECOOKIES);
+    if (preserveCookiesString != null) {
+      this.doPreserveCookies = Boolean.parseBoolean(preserveCookiesString);
+    }
+
+    String handleRedirectsString = getConfigParam(P_HANDLEREDIRECTS);
+    if (handleRedirectsString != null) {
+      this.doHandleRedirects = Boolean.parseBoolean(handleRedirectsString);
+    }
+
+    String connectTimeoutString = getConfigParam(P_CONNECTTIMEOUT);
+    if (connectTimeoutString != null) {
+      this.connectTimeout = Integer.parseInt(connectTimeoutString);
+    }
+
+    String readTimeoutString = getConfigParam(P_READTIMEOUT);
+    if (readTimeoutString != null) {
+      this.readTimeout = Integer.parseInt(readTimeoutString);
+    }
+
+    String useSystemPropertiesString = getConfigParam(P_USESYSTEMPROPERTIES);
+    if (useSystemPropertiesString != null) {
+      this.useSystemProperties = Boolean.parseBoolean(useSystemPropertiesString);
+    }
+
+    poolConfig = buildConnectionPoolConfig();
+
+    initTarget();//sets target*
+
+    if (usesBlockingClient()) {
+      clientProfile = readClientProfile();
+      if (clientProfile != null) {
+        acquireSharedClient();
+      } else {
+        proxyClient = createHttpClient();
+        connectionEvictor = startConnectionEvictor(getServletName());
+      }
+    }
+
+    metrics = new ProxyMetrics(getServletName());
+    phaseLatencies = createPhaseLatencies();
+    accessLog = createAccessLog();
+    if (accessLog != null)
+      accessLog.start(getServletName());
+    rateLimiter = createRateLimiter();
+    responseCache = createResponseCache();
+    requestCoalescer = createRequestCoalescer();
+    circuitBreakers = createCircuitBreakers();
+    bulkheads = createBulkheads();
+    concurrencyLimiter = createConcurrencyLimiter();
+    retryPolicy = createRetryPolicy();
+    hedger = createHedger();
+    if (hedger != null)
+      hedger.start(getServletName());
+
+    healthChecker = createHealthChecker();
+    if (healthChecker != null)
+      healthChecker.start(getServletName());
+
+    ProxyServletRegistry.get(getServletContext()).register(this);
+    mbeanName = registerMBean();
+  }
+
+  /**
+   * Registers the {@link ProxyServletMXBean} of the servlet in the platform MBean server, unless
+   * {@link #P_JMX} is false. Returns its name, or null if it's not registered; a failure is logged.
+   * The name has the context path and the servlet name, and an {@code instance} key from 2 up if
+   * another servlet has that name already (e.g. the same webapp in another virtual host).
+   */
+  protected ObjectName registerMBean() {
+    String jmxString = getConfigParam(P_JMX);
+    if (jmxString != null && !Boolean.parseBoolean(jmxString))
+      return null;
+    String contextPath = getServletContext().getContextPath();
+    String baseName = "org.mitre.dsmiley.httpproxy:type=ProxyServlet,context="
+            + ObjectName.quote(contextPath != null ? contextPath : "") + ",name=" + ObjectName.quote(getServletName());
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ProxyServletManagement mbean = new ProxyServletManagement(this);
+      for (int instance = 1; ; instance++) {
+        ObjectName name = new ObjectName(instance == 1 ? baseName : baseName + ",instance=" + instance);
+        try {
+          server.registerMBean(mbean, name);
+          return name;
+        } catch (InstanceAlreadyExistsException e) {
+          // try the next instance
+        }
+      }
+    } catch (JMException e) {
+      log("Registering the MBean of servlet " + getServletName() + ": " + e, e);
+      return null;
+    }
+  }
+
+  /**
+   * Creates the hedger of safe requests, or returns null if {@link #P_HEDGE} isn't true or there's
+   * no load balancer (no other target to send a hedge to).
+   * @throws ServletException if a parameter is invalid
+   */
+  protected Hedger createHedger() throws ServletException {
+    if (!Boolean.parseBoolean(getConfigParam(P_HEDGE)) || loadBalancer == null)
+      return null;
+    try {
+      long fixedDelay = -1;
+      double quantile = 0.95;
+      String delayString = getConfigParam(P_HEDGE_DELAY);
+      if (delayString != null) {
+        delayString = delayString.trim();
+        if (delayString.startsWith("p"))
+          quantile = Double.parseDouble(delayString.substring(1)) / 100;
+        else
+          fixedDelay = Long.parseLong(delayString);
+      }
+      String minDelayString = getConfigParam(P_HEDGE_MINDELAY);
+      String budgetPercentString = getConfigParam(P_HEDGE_BUDGETPERCENT);
+      return new Hedger(fixedDelay, quantile,
+              minDelayString != null ? Long.parseLong(minDelayString) : 10,
+              budgetPercentString != null ? Integer.parseInt(budgetPercentString) : 5);
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Trying to process hedge init parameters: "+e,e);
+    }
+  }
+
+  /**
+   * Creates the policy retrying requests that got no response, or returns null if
+   * {@link #P_RETRY_MAXRETRIES} isn't more than 0.
+   * @throws ServletException if a parameter is invalid
+   */
+  protected RetryPolicy createRetryPolicy() throws ServletException {
+    try {
+      String maxRetriesString = getConfigParam(P_RETRY_MAXRETRIES);
+      int maxRetries = maxRetriesString != null ? Integer.parseInt(maxRetriesString) : 0;
+      if (maxRetries <= 0)
+        return null;
+      String budgetPercentString = getConfigParam(P_RETRY_BUDGETPERCENT);
+      String minPerSecondString = getConfigParam(P_RETRY_MINPERSECOND);
+      String backoffString = getConfigParam(P_RETRY_BACKOFF);
+      String maxBackoffString = getConfigParam(P_RETRY_MAXBACKOFF);
+      String maxBodyBytesString = getConfigParam(P_RETRY_MAXBODYBYTES);
+      if (maxBodyBytesString != null) {
+        this.retryMaxBodyBytes = Integer.parseInt(maxBodyBytesString);
+      }
+      return new RetryPolicy(maxRetries,
+              budgetPercentString != null ? Integer.parseInt(budgetPercentString) : 10,
+              minPerSecondString != null ? Double.parseDouble(minPerSecondString) : 1,
+              backoffString != null ? Long.parseLong(backoffString) : 50,
+              maxBackoffString != null ? Long.parseLong(maxBackoffString) : 1000);
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Trying to process retry init parameters: "+e,e);
+    }
+  }
+
+  /**
+   * Creates the bulkheads capping the concurrent requests, or returns null if
+   * {@link #P_BULKHEAD_MAXCONCURRENT} isn't set.
+   * @throws ServletException if a parameter is invalid
+   */
+  protected BulkheadRegistry createBulkheads() throws ServletException {
+    String maxConcurrentString = getConfigParam(P_BULKHEAD_MAXCONCURRENT);
+    if (maxConcurrentString == null)
+      return null;
+    try {
+      String maxQueuedString = getConfigParam(P_BULKHEAD_MAXQUEUED);
+      String queueTimeoutString = getConfigParam(P_BULKHEAD_QUEUETIMEOUT);
+      return new BulkheadRegistry(getServletName(), Boolean.parseBoolean(getConfigParam(P_BULKHEAD_PERTARGET)),
+              Integer.parseInt(maxConcurrentString),
+              maxQueuedString != null ? Integer.parseInt(maxQueuedString) : 10,
+              queueTimeoutString != null ? Long.parseLong(queueTimeoutString) : 500);
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Trying to process bulkhead init parameters: "+e,e);
+    }
+  }
+
+  /**
+   * Creates the histograms of the latencies of the phases of the exchanges, or returns null if
+   * {@link #P_LATENCYHISTOGRAMS} isn't true.
+   */
+  protected PhaseLatencies createPhaseLatencies() throws ServletException {
+    if (!Boolean.parseBoolean(getConfigParam(P_LATENCYHISTOGRAMS)))
+      return null;
+    return new PhaseLatencies(getServletName(), 100);
+  }
+
+  /**
+   * Creates (but doesn't start) the access log, or returns null if {@link #P_ACCESSLOG} isn't true.
+   * @throws ServletException if a parameter is invalid, or the file can't be opened
+   */
+  protected AccessLog createAccessLog() throws ServletException {
+    if (!Boolean.parseBoolean(getConfigParam(P_ACCESSLOG)))
+      return null;
+    AccessLog.Format format;
+    double sampleRate;
+    int bufferSize;
+    try {
+      String formatString = getConfigParam(P_ACCESSLOG_FORMAT);
+      format = formatString != null ? AccessLog.Format.valueOf(formatString.trim().toUpperCase(Locale.ENGLISH))
+              : AccessLog.Format.TEXT;
+      String sampleRateString = getConfigParam(P_ACCESSLOG_SAMPLERATE);
+      sampleRate = sampleRateString != null ? Double.parseDouble(sampleRateString) : 1;
+      String bufferSizeString = getConfigParam(P_ACCESSLOG_BUFFERSIZE);
+      bufferSize = bufferSizeString != null ? Integer.parseInt(bufferSizeString) : 8192;
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Trying to process access log init parameters: "+e,e);
+    }
+    Writer writer = null;
+    String fileString = getConfigParam(P_ACCESSLOG_FILE);
+    if (fileString != null) {
+      try {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileString, true), "UTF-8"));
+      } catch (IOException e) {
+        throw new ServletException("Trying to open the access log " + fileString + ": "+e,e);
+      }
+    }
+    try {
+      return new AccessLog(writer, format, sampleRate, bufferSize);
+    } catch (IllegalArgumentException e) {
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (IOException ignored) {
+        }
+      }
+      throw new ServletException("Trying to process access log init parameters: "+e,e);
+    }
+  }
+
+  /**
+   * Creates the limiter of the rate of requests per client, or returns null if {@link #P_RATELIMIT}
+   * isn't set.
+   * @throws ServletException if a parameter is invalid
+   */
+  protected RateLimiter createRateLimiter() throws ServletException {
+    String rateString = getConfigParam(P_RATELIMIT);
+    if (rateString == null)
+      return null;
+    try {
+      String keyString = getConfigParam(P_RATELIMIT_KEY);
+      if (keyString != null) {
+        if (!keyString.equals("remoteAddr") && !keyString.equals("forwardedFor") && !keyString.equals("route")
+                && !(keyString.startsWith("header:") && keyString.length() > "header:".length()))
+          throw new IllegalArgumentException("Unknown " + P_RATELIMIT_KEY + ": " + keyString);
+        rateLimitKey = keyString;
+      }
+      double rate = Double.parseDouble(rateString);
+      String burstString = getConfigParam(P_RATELIMIT_BURST);
+      String maxKeysString = getConfigParam(P_RATELIMIT_MAXKEYS);
+      return new RateLimiter(rate,
+              burstString != null ? Integer.parseInt(burstString) : Math.max(1, (int) Math.ceil(rate)),
+              maxKeysString != null ? Integer.parseInt(maxKeysString) : 100000);
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Trying to process rateLimit init parameters: "+e,e);
+    }
+  }
+
+  /**
+   * Creates the adaptive limiter of the requests in flight, or returns null if
+   * {@link #P_CONCURRENCYLIMIT} isn't true.
+   * @throws ServletException if a parameter is invalid
+   */
+  protected AdaptiveConcurrencyLimiter createConcurrencyLimiter() throws ServletException {
+    if (!Boolean.parseBoolean(getConfigParam(P_CONCURRENCYLIMIT)))
+      return null;
+    try {
+      String initialString = getConfigParam(P_CONCURRENCYLIMIT_INITIAL);
+      String minString = getConfigParam(P_CONCURRENCYLIMIT_MIN);
+      String maxString = getConfigParam(P_CONCURRENCYLIMIT_MAX);
+      int min = minString != null ? Integer.parseInt(minString) : 1;
+      int max = maxString != null ? Integer.parseInt(maxString) : 1000;
+      int initial = initialString != null ? Integer.parseInt(initialString) : Math.max(min, Math.min(max, 20));
+      return new AdaptiveConcurrencyLimiter(getServletName(), initial, min, max);
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Trying to process concurrencyLimit init parameters: "+e,e);
+    }
+  }
+
+  /**
+   * Creates the circuit breakers of the target hosts, or returns null if {@link #P_CIRCUITBREAKER}
+   * isn't true.
+   * @throws ServletException if a parameter is invalid
+   */
+  protected CircuitBreakerRegistry createCircuitBreakers() throws ServletException {
+    if (!Boolean.parseBoolean(getConfigParam(P_CIRCUITBREAKER)))
+      return null;
+    CircuitBreakerConfig config = new CircuitBreakerConfig();
+    try {
+      String failureRateThresholdString = getConfigParam(P_CIRCUITBREAKER_FAILURERATETHRESHOLD);
+      if (failureRateThresholdString != null) {
+        config.setFailureRateThreshold(Integer.parseInt(failureRateThresholdString));
+      }
+
+      String slowCallDurationString = getConfigParam(P_CIRCUITBREAKER_SLOWCALLDURATION);
+      if (slowCallDurationString != null) {
+        config.setSlowCallDuration(Long.parseLong(slowCallDurationString));
+      }
+
+      String slowCallRateThresholdString = getConfigParam(P_CIRCUITBREAKER_SLOWCALLRATETHRESHOLD);
+      if (slowCallRateThresholdString != null) {
+        config.setSlowCallRateThreshold(Integer.parseInt(slowCallRateThresholdString));
+      }
+
+      String minimumCallsString = getConfigParam(P_CIRCUITBREAKER_MINIMUMCALLS);
+      if (minimumCallsString != null) {
+        config.setMinimumCalls(Integer.parseInt(minimumCallsString));
+      }
+
+      String windowString = getConfigParam(P_CIRCUITBREAKER_WINDOW);
+      if (windowString != null) {
+        config.setWindow(Long.parseLong(windowString));
+      }
+
+      String waitDurationString = getConfigParam(P_CIRCUITBREAKER_WAITDURATION);
+      if (waitDurationString != null) {
+        config.setWaitDuration(Long.parseLong(waitDurationString));
+      }
+
+      String halfOpenCallsString = getConfigParam(P_CIRCUITBREAKER_HALFOPENCALLS);
+      if (halfOpenCallsString != null) {
+        config.setHalfOpenCalls(Integer.parseInt(halfOpenCallsString));
+      }
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Trying to process circuitBreaker init parameters: "+e,e);
+    }
+    return new CircuitBreakerRegistry(config, 1000);
+  }
+
+  /**
+   * Creates the health checker of the load balanced targets, or returns null if there's no load
+   * balancer or nothing is checked. Called after the http client is created.
+   */
+  protected HealthChecker createHealthChecker() throws ServletException {
+    if (loadBalancer == null)
+      return null;
+    HealthCheckConfig config = buildHealthCheckConfig();
+    if (!config.isEnabled())
+      return null;
+    HttpClient client = proxyClient;
+    if (client == null && config.getPath() != null) {
+      // a small client of its own, e.g. for AsyncProxyServlet
+      HttpClientBuilder clientBuilder = HttpClientBuilder.create()
+              .setDefaultRequestConfig(buildRequestConfig())
+              .setMaxConnTotal(loadBalancer.getEndpoints().size());
+      if (useSystemProperties)
+        clientBuilder = clientBuilder.useSystemProperties();
+      client = healthCheckClient = clientBuilder.build();
+    }
+    return new HealthChecker(loadBalancer.getEndpoints(), config, client);
+  }
+
+  /**
+   * Reads the health check settings from the init parameters.
+   * @throws ServletException if a parameter is invalid
+   */
+  protected HealthCheckConfig buildHealthCheckConfig() throws ServletException {
+    HealthCheckConfig config = new HealthCheckConfig();
+    try {
+      config.setPath(getConfigParam(P_HEALTHCHECK_PATH));
+      String intervalString = getConfigParam(P_HEALTHCHECK_INTERVAL);
+      if (intervalString != null) {
+        config.setInterval(Long.parseLong(intervalString));
+      }
+
+      String timeoutString = getConfigParam(P_HEALTHCHECK_TIMEOUT);
+      if (timeoutString != null) {
+        config.setTimeout(Integer.parseInt(timeoutString));
+      }
+
+      String expectedStatusString = getConfigParam(P_HEALTHCHECK_EXPECTEDSTATUS);
+      if (expectedStatusString != null) {
+        config.setExpectedStatus(expectedStatusString);
+      }
+
+      String unhealthyThresholdString = getConfigParam(P_HEALTHCHECK_UNHEALTHYTHRESHOLD);
+      if (unhealthyThresholdString != null) {
+        config.setUnhealthyThreshold(Integer.parseInt(unhealthyThresholdString));
+      }
+
+      String healthyThresholdString = getConfigParam(P_HEALTHCHECK_HEALTHYTHRESHOLD);
+      if (healthyThresholdString != null) {
+        config.setHealthyThreshold(Integer.parseInt(healthyThresholdString));
+      }
+
+      String consecutiveFailuresString = getConfigParam(P_OUTLIER_CONSECUTIVEFAILURES);
+      if (consecutiveFailuresString != null) {
+        config.setConsecutiveFailures(Integer.parseInt(consecutiveFailuresString));
+      }
+
+      String latencyFactorString = getConfigParam(P_OUTLIER_LATENCYFACTOR);
+      if (latencyFactorString != null) {
+        config.setLatencyFactor(Double.parseDouble(latencyFactorString));
+      }
+
+      String minLatencyString = getConfigParam(P_OUTLIER_MINLATENCY);
+      if (minLatencyString != null) {
+        config.setMinOutlierLatency(Long.parseLong(minLatencyString));
+      }
+
+      String baseEjectionTimeString = getConfigParam(P_OUTLIER_BASEEJECTIONTIME);
+      if (baseEjectionTimeString != null) {
+        config.setBaseEjectionTime(Long.parseLong(baseEjectionTimeString));
+      }
+
+      String maxEjectionTimeString = getConfigParam(P_OUTLIER_MAXEJECTIONTIME);
+      if (maxEjectionTimeString != null) {
+        config.setMaxEjectionTime(Long.parseLong(maxEjectionTimeString));
+      }
+
+      String maxEjectionPercentString = getConfigParam(P_OUTLIER_MAXEJECTIONPERCENT);
+      if (maxEjectionPercentString != null) {
+        config.setMaxEjectionPercent(Integer.parseInt(maxEjectionPercentString));
+      }
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Trying to process healthCheck and outlier init parameters: "+e,e);
+    }
+    return config;
+  }
+
+  /** Creates the coalescer of identical requests, or returns null if {@link #P_COALESCE} isn't true. */
+  protected RequestCoalescer createRequestCoalescer() throws ServletException {
+    if (!Boolean.parseBoolean(getConfigParam(P_COALESCE)))
+      return null;
+    String headers = "Accept, Accept-Encoding, Accept-Language, Authorization, Cookie";
+    String headersString = getConfigParam(P_COALESCE_HEADERS);
+    if (headersString != null) {
+      headers = headersString;
+    }
+    long timeout = 5000;
+    String timeoutString = getConfigParam(P_COALESCE_TIMEOUT);
+    if (timeoutString != null) {
+      timeout = Long.parseLong(timeoutString);
+    }
+    int maxBodyBytes = 1024 * 1024;
+    String maxBodyBytesString = getConfigParam(P_COALESCE_MAXBODYBYTES);
+    if (maxBodyBytesString != null) {
+      maxBodyBytes = Integer.parseInt(maxBodyBytesString);
+    }
+    return new RequestCoalescer(headers.trim().length() == 0 ? new String[0] : headers.trim().split("\\s*,\\s*"),
+            timeout, maxBodyBytes);
+  }
+
+  /**
+   * Creates the cache of the target's responses, or returns null if neither
+   * {@link #P_RESPONSECACHE_MAXBYTES} nor {@link #P_RESPONSECACHE_DISKDIRECTORY} is set.
+   */
+  protected ResponseCache createResponseCache() throws ServletException {
+    String maxBytesString = getConfigParam(P_RESPONSECACHE_MAXBYTES);
+    long maxBytes = maxBytesString != null ? Long.parseLong(maxBytesString) : 0;
+    DiskCache diskCache = createDiskCache();
+    if (maxBytes <= 0 && diskCache == null)
+      return null;
+    int maxEntryBytes = 1024 * 1024;
+    String maxEntryBytesString = getConfigParam(P_RESPONSECACHE_MAXENTRYBYTES);
+    if (maxEntryBytesString != null) {
+      maxEntryBytes = Integer.parseInt(maxEntryBytesString);
+    }
+    return new ResponseCache(Math.max(0, maxBytes), maxEntryBytes, diskCache);
+  }
+
+  /** Opens the cache of large responses, or returns null if {@link #P_RESPONSECACHE_DISKDIRECTORY} isn't set. */
+  protected DiskCache createDiskCache() throws ServletException {
+    String directory = getConfigParam(P_RESPONSECACHE_DISKDIRECTORY);
+    if (directory == null)
+      return null;
+    long maxBytes = 1024L * 1024 * 1024;
+    String maxBytesString = getConfigParam(P_RESPONSECACHE_DISKMAXBYTES);
+    if (maxBytesString != null) {
+      maxBytes = Long.parseLong(maxBytesString);
+    }
+    int segmentBytes = 64 * 1024 * 1024;
+    String segmentBytesString = getConfigParam(P_RESPONSECACHE_DISKSEGMENTBYTES);
+    if (segmentBytesString != null) {
+      segmentBytes = Integer.parseInt(segmentBytesString);
+    }
+    try {
+      return new DiskCache(new File(directory), maxBytes, segmentBytes);
+    } catch (IOException e) {
+      throw new ServletException("Opening the response cache in " + directory + ": " + e, e);
+    }
+  }
+
+  /** Reads {@link #P_CLIENT_PROFILE}; null means a dedicated client. */
+  protected String readClientProfile() {
+    String profile = getConfigParam(P_CLIENT_PROFILE);
+    if (profile == null)
+      profile = getServletContext().getInitParameter(P_CLIENT_PROFILE);
+    if (profile == null)
+      return null;
+    profile = profile.trim();
+    if (profile.length() == 0 || CLIENT_PROFILE_DEDICATED.equals(profile))
+      return null;
+    return profile;
+  }
+
+  private ConnectionEvictor startConnectionEvictor(String name) {
+    if (connectionManager == null)
+      return null;
+    ConnectionEvictor evictor = poolConfig.createConnectionEvictor(connectionManager);
+    if (evictor != null)
+      evictor.start(name);
+    return evictor;
+  }
+
+  /**
+   * Gets the client of {@link #clientProfile} from the context's {@link SharedClientRegistry}.
+   * If this servlet is the first of the profile, it creates the client as it would a dedicated one,
+   * so the pool and socket settings of the profile are the first servlet's.
+   */
+  private void acquireSharedClient() {
+    SharedClient shared = SharedClientRegistry.get(getServletContext()).acquire(clientProfile,
+        new SharedClientRegistry.ClientFactory() {
+          public SharedClient create() {
+            HttpClient client = createHttpClient();
+            return new SharedClient(client, connectionManager,
+                    startConnectionEvictor("profile-" + clientProfile), poolConfig);
+          }
+        });
+    proxyClient = shared.getClient();
+    connectionManager = shared.getConnectionManager();
+    connectionEvictor = shared.getConnectionEvictor();
+    sharedClientRequestConfig = buildRequestConfig();
+    ConnectionPoolConfig sharedPoolConfig = shared.getPoolConfig();
+    if (sharedPoolConfig != null && sharedPoolConfig != poolConfig
+            && !sharedPoolConfig.toString().equals(poolConfig.toString())) {
+      log("Client profile " + clientProfile + " already has a pool " + sharedPoolConfig
+              + "; ignoring the pool settings of servlet " + getServletName() + ": " + poolConfig);
+    }
+  }
+
+  /**
+   * Reads the settings of the pool of connections to the target. Sub-classes can override it to
+   * configure the pool differently.
+   */
+  protected ConnectionPoolConfig buildConnectionPoolConfig() throws ServletException {
+    ConnectionPoolConfig config = new ConnectionPoolConfig();
+    try {
+      String maxTotalString = getConfigParam(P_POOL_MAXTOTAL);
+      if (maxTotalString != null) {
+        config.setMaxTotal(Integer.parseInt(maxTotalString));
+      }
+
+      String maxPerRouteString = getConfigParam(P_POOL_MAXPERROUTE);
+      if (maxPerRouteString != null) {
+        config.setMaxPerRoute(Integer.parseInt(maxPerRouteString));
+      }
+
+      String routeOverridesString = getConfigParam(P_POOL_ROUTEOVERRIDES);
+      if (routeOverridesString != null) {
+        config.parseMaxPerRouteOverrides(routeOverridesString);
+      }
+
+      String ttlString = getConfigParam(P_POOL_TTL);
+      if (ttlString != null) {
+        config.setConnectionTtl(Long.parseLong(ttlString));
+      }
+
+      String validateString = getConfigParam(P_POOL_VALIDATEAFTERINACTIVITY);
+      if (validateString != null) {
+        config.setValidateAfterInactivity(Integer.parseInt(validateString));
+      }
+
+      String leaseTimeoutString = getConfigParam(P_POOL_LEASETIMEOUT);
+      if (leaseTimeoutString != null) {
+        config.setLeaseTimeout(Integer.parseInt(leaseTimeoutString));
+      }
+
+      String evictionIntervalString = getConfigParam(P_POOL_EVICTIONINTERVAL);
+      if (evictionIntervalString != null) {
+        config.setEvictionInterval(Long.parseLong(evictionIntervalString));
+      }
+
+      String maxIdleTimeString = getConfigParam(P_POOL_MAXIDLETIME);
+      if (maxIdleTimeString != null) {
+        config.setMaxIdleTime(Long.parseLong(maxIdleTimeString));
+      }
+
+      String maxRoutesString = getConfigParam(P_POOL_MAXROUTES);
+      if (maxRoutesString != null) {
+        config.setMaxRoutes(Integer.parseInt(maxRoutesString));
+      }
+
+      String tcpNoDelayString = getConfigParam(P_TCPNODELAY);
+      if (tcpNoDelayString != null) {
+        config.setTcpNoDelay(Boolean.parseBoolean(tcpNoDelayString));
+      }
+
+      String sendBufferString = getConfigParam(P_SENDBUFFERSIZE);
+      if (sendBufferString != null) {
+        config.setSendBufferSize(Integer.parseInt(sendBufferString));
+      }
+
+      String receiveBufferString = getConfigParam(P_RECEIVEBUFFERSIZE);
+      if (receiveBufferString != null) {
+        config.setReceiveBufferSize(Integer.parseInt(receiveBufferString));
+      }
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Trying to process connection pool init parameters: "+e,e);
+    }
+    return config;
+  }
+
+  /**
+   * Sub-classes can override specific behaviour of {@link org.apache.http.client.config.RequestConfig}.
+   */
+  protected RequestConfig buildRequestConfig() {
+    return RequestConfig.custom()
+            .setRedirectsEnabled(doHandleRedirects)
+            .setCookieSpec(CookieSpecs.IGNORE_COOKIES) // we handle them in the servlet instead
+            .setConnectTimeout(connectTimeout)
+            .setSocketTimeout(readTimeout)
+            .setConnectionRequestTimeout(poolConfig.getLeaseTimeout())
+            .build();
+  }
+
+  /**
+   * Sub-classes can override specific behaviour of {@link org.apache.http.config.SocketConfig}.
+   */
+  protected SocketConfig buildSocketConfig() {
+    SocketConfig.Builder builder = poolConfig.socketConfigBuilder();
+    if (readTimeout >= 1) {
+      builder.setSoTimeout(readTimeout);
+    }
+    return builder.build();
+  }
+
+  protected void initTarget() throws ServletException {
+    targetUri = getConfigParam(P_TARGET_URI);
+    if (targetUri == null)
+      throw new ServletException(P_TARGET_URI+" is required.");
+    targetUri = targetUri.trim();
+    String[] targetUris = targetUri.split("\\s+");
+    if (targetUris.length > 1) {
+      loadBalancer = createLoadBalancer(targetUris);
+      targetUri = targetUris[0];
+    }
+    //test it's valid
+    try {
+      targetUriObj = new URI(targetUri);
+    } catch (Exception e) {
+      throw new ServletException("Trying to process targetUri init parameter: "+e,e);
+    }
+    targetHost = URIUtils.extractHost(targetUriObj);
+  }
+
+  /**
+   * Called from {@link #init(javax.servlet.ServletConfig)}.
+   * HttpClient offers many opportunities for customization.
+   * In any case, it should be thread-safe.
+   */
+  protected HttpClient createHttpClient() {
+    connectionManager = createConnectionManager();
+    HttpClientBuilder clientBuilder = HttpClientBuilder.create()
+                                        .setDefaultRequestConfig(buildRequestConfig())
+                                        .setDefaultSocketConfig(buildSocketConfig())
+                                        .setConnectionManager(connectionManager)
+                                        .setRequestExecutor(new TimingRequestExecutor());
+    if (useSystemProperties)
+      clientBuilder = clientBuilder.useSystemProperties();
+    return clientBuilder.build();
+  }
+
+  /**
+   * Called from {@link #createHttpClient()}. The pool of connections to the target(s), as
+   * configured by {@link #buildConnectionPoolConfig()}.
+   */
+  protected PoolingHttpClientConnectionManager createConnectionManager() {
+    return poolConfig.createConnectionManager(buildSocketConfig(), useSystemProperties);
+  }
+
+  /**
+   * Whether the target is called with the {@link #getProxyClient() http client}. If not (e.g.
+   * {@link AsyncProxyServlet}), it's not created, nor is its pool.
+   */
+  protected boolean usesBlockingClient() {
+    return true;
+  }
+
+  /**
+   * The http client used; null if not {@link #usesBlockingClient()}.
+   * @see #createHttpClient()
+   */
+  protected HttpClient getProxyClient() {
+    return proxyClient;
+  }
+
+  /**
+   * The pool of connections used by the http client; null if a sub-class created the client
+   * without {@link #createConnectionManager()}.
+   */
+  protected PoolingHttpClientConnectionManager getConnectionManager() {
+    return connectionManager;
+  }
+
+  /** The daemon evicting expired and idle connections from the pool (maybe shared); null if disabled. */
+  protected ConnectionEvictor getConnectionEvictor() {
+    return connectionEvictor;
+  }
+
+  /** The coalescer of identical requests; null if disabled. */
+  protected RequestCoalescer getRequestCoalescer() {
+    return requestCoalescer;
+  }
+
+  /** The hedger of safe requests; null if disabled. */
+  protected Hedger getHedger() {
+    return hedger;
+  }
+
+  /** The policy retrying requests that got no response; null if disabled. */
+  protected RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  /**
+   * The bulkheads capping the concurrent requests; null if disabled. Their counts can be read while
+   * requests are served, e.g. to export them.
+   */
+  public BulkheadRegistry getBulkheads() {
+    return bulkheads;
+  }
+
+  /** The counters of the exchanges. They can be read while requests are served. */
+  public ProxyMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * The histograms of the latencies of the phases of the exchanges; null if disabled. They can be
+   * read while requests are served, e.g. to export them.
+   */
+  public PhaseLatencies getPhaseLatencies() {
+    return phaseLatencies;
+  }
+
+  /** The log of the exchanges; null if disabled. */
+  protected AccessLog getAccessLog() {
+    return accessLog;
+  }
+
+  /** The limiter of the rate of requests per client; null if disabled. */
+  protected RateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
+  /**
+   * The adaptive limiter of the requests in flight; null if disabled. Its limit and counts can be
+   * read while requests are served, e.g. to export them.
+   */
+  public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+    return concurrencyLimiter;
+  }
+
+  /**
+   * The circuit breakers of the target hosts; null if disabled. Their states and counts can be read
+   * while requests are served, e.g. to export them.
+   */
+  public CircuitBreakerRegistry getCircuitBreakers() {
+    return circuitBreakers;
+  }
+
+  /** The health checker of the load balanced targets; null if disabled. */
+  protected HealthChecker getHealthChecker() {
+    return healthChecker;
+  }
+
+  /** The cache of the target's responses; null if disabled. */
+  protected ResponseCache getResponseCache() {
+    return responseCache;
+  }
+
+  @Override
+  public void destroy() {
+    ProxyServletRegistry.get(getServletContext()).unregister(this);
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (JMException e) {
+        log("Unregistering the MBean of servlet " + getServletName() + ": " + e, e);
+      }
+      mbeanName = null;
+    }
+    if (healthChecker != null)
+      healthChecker.shutdown();
+    if (healthCheckClient != null) {
+      try {
+        healthCheckClient.close();
+      } catch (IOException e) {
+        log("While destroying servlet, shutting down the health check HttpClient: "+e, e);
+      }
+    }
+    if (hedger != null)
+      hedger.shutdown();
+    if (clientProfile != null) {
+      // the last servlet of the profile closes the client
+      if (proxyClient != null) {
+        proxyClient = null;
+        try {
+          SharedClientRegistry.get(getServletContext()).release(clientProfile);
+        } catch (IOException e) {
+          log("While destroying servlet, shutting down shared HttpClient: "+e, e);
+        }
+      }
+    } else {
+      closeDedicatedClient();
+    }
+    if (responseCache != null)
+      responseCache.close();
+    if (accessLog != null)
+      accessLog.shutdown();
+    super.destroy();
+  }
+
+  private void closeDedicatedClient() {
+    if (connectionEvictor != null) {
+      connectionEvictor.shutdown();
+    }
+    //Usually, clients implement Closeable:
+    if (proxyClient instanceof Closeable) {
+      try {
+        ((Closeable) proxyClient).close();
+      } catch (IOException e) {
+        log("While destroying servlet, shutting down HttpClient: "+e, e);
+      }
+    } else {
+      //Older releases require we do this:
+      if (proxyClient != null)
+        proxyClient.getConnectionManager().shutdown();
+    }
+  }
+
+  @Override
+  protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
+      throws ServletException, IOException {
+    long startNanos = System.nanoTime();
+    ProxyEvents events = ProxyEvents.get();
+    Object exchangeEvent = events.beginExchange();
+    try {
+      checkRateLimit(servletRequest);
+      initTargetAttributes(servletRequest);
+    } catch (RequestRejectedException e) {
+      metrics.count(e.getStatusCode());
+      sendRejection(servletRequest, servletResponse, e);
+      events.endExchange(exchangeEvent, servletRequest.getMethod(), servletRequest.getRequestURI(), null,
+              e.getStatusCode(), 0, 0);
+      return;
+    }
+    ExchangeTimings timings = null;
+    if (phaseLatencies != null || accessLog != null) {
+      timings = new ExchangeTimings();
+      servletRequest.setAttribute(ExchangeTimings.ATTR, timings);
+    }
+
+    HttpRequest proxyRequest = newProxyRequest(servletRequest);
+    CountingEntity requestEntity = null;
+    if (proxyRequest instanceof HttpEntityEnclosingRequest) {
+      HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) proxyRequest;
+      if (entityRequest.getEntity() != null) {
+        requestEntity = new CountingEntity(entityRequest.getEntity());
+        entityRequest.setEntity(requestEntity);
+      }
+    }
+
+    HttpResponse proxyResponse = null;
+    CountingEntity responseEntity = null;
+    int statusCode = -1;
+    metrics.begin();
+    try {
+      if (responseCache != null)
+        proxyResponse = responseCache.lookup(proxyRequest, getCacheUri(proxyRequest));
+      if (proxyResponse == null) {
+        // Execute the request
+        proxyResponse = requestCoalescer != null
+                ? executeCoalesced(servletRequest, servletResponse, proxyRequest)
+                : executeAndCache(servletRequest, servletResponse, proxyRequest);
+      }
+
+      // Process the response:
+
+      // Pass the response code. This method with the "reason phrase" is deprecated but it's the
+      //   only way to pass the reason along too.
+      statusCode = proxyResponse.getStatusLine().getStatusCode();
+      //noinspection deprecation
+      servletResponse.setStatus(statusCode, proxyResponse.getStatusLine().getReasonPhrase());
+
+      // Copying response headers to make sure SESSIONID or other Cookie which comes from the remote
+      // server will be saved in client when the proxied url was redirected to another one.
+      // See issue [#51](https://github.com/mitre/HTTP-Proxy-Servlet/issues/51)
+      copyResponseHeaders(proxyResponse, servletRequest, servletResponse);
+
+      if (statusCode == HttpServletResponse.SC_NOT_MODIFIED) {
+        // 304 needs special handling.  See:
+        // http://www.ics.uci.edu/pub/ietf/http/rfc1945.html#Code304
+        // Don't send body entity/content!
+        servletResponse.setIntHeader(HttpHeaders.CONTENT_LENGTH, 0);
+      } else {
+        if (proxyResponse.getEntity() != null) {
+          responseEntity = new CountingEntity(proxyResponse.getEntity());
+          proxyResponse.setEntity(responseEntity);
+        }
+        // Send the content to the client
+        long bodyStartNanos = timings != null ? System.nanoTime() : 0;
+        Object bodyEvent = events.beginBody();
+        try {
+          copyResponseEntity(proxyResponse, servletResponse, proxyRequest, servletRequest);
+        } finally {
+          events.endBody(bodyEvent, getTargetHost(servletRequest),
+                  responseEntity != null ? responseEntity.getCount() : 0);
+        }
+        if (timings != null)
+          timings.setBodyNanos(System.nanoTime() - bodyStartNanos);
+      }
+
+    } catch (RequestRejectedException e) {
+      statusCode = e.getStatusCode();
+      sendRejection(servletRequest, servletResponse, e);
+    } catch (Exception e) {
+      statusCode = -1;
+      handleRequestException(proxyRequest, e);
+    } finally {
+      // make sure the entire entity was consumed, so the connection is released
+      if (proxyResponse != null)
+        EntityUtils.consumeQuietly(proxyResponse.getEntity());
+      Bulkhead bulkhead = (Bulkhead) servletRequest.getAttribute(ATTR_BULKHEAD);
+      if (bulkhead != null)
+        bulkhead.release();
+      long requestBytes = requestEntity != null ? requestEntity.getCount() : 0;
+      long responseBytes = responseEntity != null ? responseEntity.getCount() : 0;
+      metrics.end(statusCode, requestBytes, responseBytes);
+      long totalNanos = System.nanoTime() - startNanos;
+      if (phaseLatencies != null) {
+        phaseLatencies.recordExchange(getTargetHost(servletRequest), servletRequest.getMethod(), statusCode,
+                totalNanos, timings);
+      }
+      if (accessLog != null) {
+        accessLog.log(servletRequest, proxyRequest.getRequestLine().getUri(), getTargetHost(servletRequest),
+                statusCode, requestBytes, responseBytes, totalNanos, timings);
+      }
+      events.endExchange(exchangeEvent, servletRequest.getMethod(), servletRequest.getRequestURI(),
+              getTargetHost(servletRequest), statusCode, requestBytes, responseBytes);
+      //Note: Don't need to close servlet outputStream:
+      // http://stackoverflow.com/questions/1159168/should-one-call-close-on-httpservletresponse-getoutputstream-getwriter
+    }
+  }
+
+  /**
+   * Takes a slot of the request's bulkhead, waiting in its queue if needed, until the response is
+   * sent (see {@link #ATTR_BULKHEAD}), if there are bulkheads.
+   * @throws RequestRejectedException (503) if the queue is full or the wait timed out
+   */
+  private void acquireBulkhead(HttpServletRequest servletRequest) throws InterruptedIOException {
+    if (bulkheads == null)
+      return;
+    Bulkhead bulkhead = bulkheads.get(getTargetHost(servletRequest));
+    try {
+      if (bulkhead.tryAcquire()) {
+        servletRequest.setAttribute(ATTR_BULKHEAD, bulkhead);
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting in the bulkhead of " + bulkhead.getName());
+    }
+    throw new RequestRejectedException("The bulkhead of " + bulkhead.getName() + " is full",
+            HttpServletResponse.SC_SERVICE_UNAVAILABLE, -1);
+  }
 
-  /* MISC */
+  /**
+   * Throws a {@link RequestRejectedException} (429 Too Many Requests) if the client of the request
+   * is over its rate limit, with the Retry-After and RateLimit headers.
+   */
+  protected void checkRateLimit(HttpServletRequest servletRequest) {
+    if (rateLimiter == null)
+      return;
+    String key = getRateLimitKey(servletRequest);
+    long waitNanos = rateLimiter.tryAcquire(key);
+    if (waitNanos == 0)
+      return;
+    long resetNanos = rateLimiter.getBucket(key).getNanosUntilFull(System.nanoTime());
+    throw new RequestRejectedException("Over the rate limit: " + key, 429, (waitNanos + 999999999) / 1000000000)
+            .addHeader("RateLimit-Limit", Integer.toString(rateLimiter.getBurst()))
+            .addHeader("RateLimit-Remaining", "0")
+            .addHeader("RateLimit-Reset", Long.toString((resetNanos + 999999999) / 1000000000));
+  }
 
-  protected boolean doLog = false;
-  protected boolean doForwardIP = true;
-  /** User agents shouldn't send the url fragment but what if it does? */
-  protected boolean doSendUrlFragment = true;
-  protected boolean doPreserveHost = false;
-  protected boolean doPreserveCookies = false;
-  protected boolean doHandleRedirects = false;
-  protected boolean useSystemProperties = false;
-  protected int connectTimeout = -1;
-  protected int readTimeout = -1;
+  /** What identifies the client of the request for rate limiting. See {@link #P_RATELIMIT_KEY}. */
+  protected String getRateLimitKey(HttpServletRequest servletRequest) {
+    String key = null;
+    if (rateLimitKey.equals("route")) {
+      return getServletName();
+    } else if (rateLimitKey.equals("forwardedFor")) {
+      key = servletRequest.getHeader("X-Forwarded-For");
+      if (key != null) {
+        int commaIdx = key.indexOf(',');
+        key = (commaIdx >= 0 ? key.substring(0, commaIdx) : key).trim();
+      }
+    } else if (rateLimitKey.startsWith("header:")) {
+      key = servletRequest.getHeader(rateLimitKey.substring("header:".length()));
+    }
+    if (key == null || key.length() == 0)
+      key = servletRequest.getRemoteAddr();
+    return key;
+  }
 
-  //These next 3 are cached here, and should only be referred to in initialization logic. See the
-  // ATTR_* parameters.
-  /** From the configured parameter "targetUri". */
-  protected String targetUri;
-  protected URI targetUriObj;//new URI(targetUri)
-  protected HttpHost targetHost;//URIUtils.extractHost(targetUriObj);
+  /**
+   * Answers a request the proxy refused to send to the target, with the exception's status code
+   * and headers.
+   */
+  protected void sendRejection(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                               RequestRejectedException e) throws IOException {
+    if (doLog) {
+      log("rejected " + servletRequest.getMethod() + " uri: " + servletRequest.getRequestURI() + " -- " +
+              e.getMessage());
+    }
+    if (servletResponse.isCommitted())
+      return;
+    servletResponse.reset();
+    servletResponse.setStatus(e.getStatusCode());
+    if (e.getRetryAfterSeconds() >= 0)
+      servletResponse.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()));
+    for (Header header : e.getHeaders()) {
+      servletResponse.addHeader(header.getName(), header.getValue());
+    }
+    servletResponse.setIntHeader(HttpHeaders.CONTENT_LENGTH, 0);
+  }
 
-  private HttpClient proxyClient;
+  private HttpResponse executeAndCache(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                                       HttpRequest proxyRequest) throws IOException {
+    // only requests that go to the target take a slot, not coalesced ones
+    acquireBulkhead(servletRequest);
+    long requestTime = System.currentTimeMillis();
+    HttpResponse proxyResponse;
+    if (hedger != null && getEndpoint(servletRequest) != null && Hedger.isHedgeable(proxyRequest))
+      proxyResponse = executeHedged(servletRequest, servletResponse, proxyRequest);
+    else if (retryPolicy != null)
+      proxyResponse = executeWithRetries(servletRequest, servletResponse, proxyRequest);
+    else
+      proxyResponse = doExecute(servletRequest, servletResponse, proxyRequest);
+    if (responseCache != null)
+      proxyResponse = responseCache.store(proxyRequest, getCacheUri(proxyRequest), proxyResponse, requestTime);
+    return proxyResponse;
+  }
 
-  @Override
-  public String getServletInfo() {
-    return "A proxy servlet by David Smiley, dsmiley@apache.org";
+  /**
+   * The URI the response cache and the request coalescer key {@code proxyRequest} on: when load
+   * balanced, that of the first target URI, so that the replicas share their responses. With
+   * {@link #P_PRESERVEHOST}, its authority is the Host header's, since the target serves each
+   * virtual host its own responses.
+   */
+  protected String getCacheUri(HttpRequest proxyRequest) {
+    String uri = proxyRequest.getRequestLine().getUri();
+    if (loadBalancer != null) {
+      String replicaUri = null;
+      for (Endpoint endpoint : loadBalancer.getEndpoints()) {
+        String endpointUri = endpoint.getTargetUri();
+        if (uri.startsWith(endpointUri) && (replicaUri == null || endpointUri.length() > replicaUri.length()))
+          replicaUri = endpointUri;
+      }
+      if (replicaUri != null)
+        uri = targetUri + uri.substring(replicaUri.length());
+    }
+    Header host = doPreserveHost ? proxyRequest.getFirstHeader(HttpHeaders.HOST) : null;
+    if (host == null)
+      return uri;
+    int authorityStart = uri.indexOf("://");
+    if (authorityStart < 0)
+      return uri;
+    authorityStart += 3;
+    int authorityEnd = authorityStart;
+    while (authorityEnd < uri.length() && "/?#".indexOf(uri.charAt(authorityEnd)) < 0)
+      authorityEnd++;
+    return uri.substring(0, authorityStart) + host.getValue() + uri.substring(authorityEnd);
   }
 
+  /**
+   * Executes the request, and retries it per the {@link #retryPolicy} if no response came: after
+   * a backoff, on another target if load balanced. If a retry is rejected (e.g. its circuit is
+   * open), the last failure is thrown.
+   */
+  private HttpResponse executeWithRetries(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                                          HttpRequest proxyRequest) throws IOException {
+    retryPolicy.onRequest(getTargetHost(servletRequest));
+    try {
+      return doExecute(servletRequest, servletResponse, proxyRequest);
+    } catch (IOException e) {
+      return retry(servletRequest, servletResponse, proxyRequest, e);
+    }
+  }
 
-  protected String getTargetUri(HttpServletRequest servletRequest) {
-    return (String) servletRequest.getAttribute(ATTR_TARGET_URI);
+  /**
+   * Retries the request, which failed with {@code failure}, per the {@link #retryPolicy}. Throws
+   * the last failure if it's not retried or the retries failed.
+   */
+  private HttpResponse retry(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                             HttpRequest proxyRequest, IOException failure) throws IOException {
+    for (int retry = 1; retryPolicy.shouldRetry(proxyRequest, failure,
+            servletRequest.getAttribute(ATTR_REUSED_CONNECTION_FAILURE) == failure, retry,
+            getTargetHost(servletRequest)); retry++) {
+      try {
+        Thread.sleep(retryPolicy.getBackoffMillis(retry));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (doLog) {
+        log("retry " + retry + " of " + proxyRequest.getRequestLine().getUri() + " after: " + failure);
+      }
+      proxyRequest = newRetryRequest(servletRequest, proxyRequest);
+      try {
+        moveBulkhead(servletRequest);
+        return doExecute(servletRequest, servletResponse, proxyRequest);
+      } catch (RequestRejectedException e) {
+        break;
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    throw failure;
   }
 
-  protected HttpHost getTargetHost(HttpServletRequest servletRequest) {
-    return (HttpHost) servletRequest.getAttribute(ATTR_TARGET_HOST);
+  /**
+   * Moves the request's {@link Bulkhead} slot to the bulkhead of its target, if it changed (a retry
+   * on another target, with a bulkhead per target).
+   * @throws RequestRejectedException if that bulkhead is full
+   */
+  private void moveBulkhead(HttpServletRequest servletRequest) throws InterruptedIOException {
+    Bulkhead held = (Bulkhead) servletRequest.getAttribute(ATTR_BULKHEAD);
+    if (held == null || held == bulkheads.get(getTargetHost(servletRequest)))
+      return;
+    servletRequest.removeAttribute(ATTR_BULKHEAD);
+    held.release();
+    acquireBulkhead(servletRequest);
   }
 
   /**
-   * Reads a configuration parameter. By default it reads servlet init parameters but
-   * it can be overridden.
+   * Makes the request to retry after {@code failedRequest} got no response. If load balanced, it's
+   * sent to another target if one is available. Otherwise it's {@code failedRequest} itself.
    */
-  protected String getConfigParam(String key) {
-    return getServletConfig().getInitParameter(key);
+  protected HttpRequest newRetryRequest(HttpServletRequest servletRequest, HttpRequest failedRequest) {
+    Endpoint endpoint = selectOtherEndpoint(getEndpoint(servletRequest));
+    if (endpoint == null)
+      return failedRequest;
+    servletRequest.setAttribute(ATTR_ENDPOINT, endpoint);
+    servletRequest.setAttribute(ATTR_TARGET_URI, endpoint.getTargetUri());
+    servletRequest.setAttribute(ATTR_TARGET_HOST, endpoint.getTargetHost());
+    return copyProxyRequest(servletRequest, failedRequest);
   }
 
-  @Override
-  public void init() throws ServletException {
-    String doLogStr = getConfigParam(P_LOG);
-    if (doLogStr != null) {
-      this.doLog = Boolean.parseBoolean(doLogStr);
+  /**
+   * Chooses an available load balanced target other than {@code endpoint}; null if there's none
+   * (or no load balancer).
+   */
+  private Endpoint selectOtherEndpoint(Endpoint endpoint) {
+    if (loadBalancer == null || endpoint == null)
+      return null;
+    for (int i = 0; i < loadBalancer.getEndpoints().size(); i++) {
+      Endpoint other = loadBalancer.select();
+      if (other == null)
+        return null;
+      if (other != endpoint)
+        return other;
     }
+    return null;
+  }
 
-    String doForwardIPString = getConfigParam(P_FORWARDEDFOR);
-    if (doForwardIPString != null) {
-      this.doForwardIP = Boolean.parseBoolean(doForwardIPString);
+  /**
+   * Copies {@code proxyRequest} for the request's target (per its attributes), which may have
+   * changed: the URI is rewritten, and so is the Host header. The body is shared, so it must be
+   * repeatable. The copy can be aborted from another thread.
+   */
+  protected HttpRequest copyProxyRequest(HttpServletRequest servletRequest, HttpRequest proxyRequest) {
+    String method = proxyRequest.getRequestLine().getMethod();
+    String uri = rewriteUrlFromRequest(servletRequest);
+    AbortableProxyRequest copy;
+    if (proxyRequest instanceof HttpEntityEnclosingRequest) {
+      AbortableProxyRequest.WithEntity eCopy = new AbortableProxyRequest.WithEntity(method, uri);
+      eCopy.setEntity(((HttpEntityEnclosingRequest) proxyRequest).getEntity());
+      copy = eCopy;
+    } else {
+      copy = new AbortableProxyRequest(method, uri);
     }
-
-    String preserveHostString = getConfigParam(P_PRESERVEHOST);
-    if (preserveHostString != null) {
-      this.doPreserveHost = Boolean.parseBoolean(preserveHostString);
+    for (Header header : proxyRequest.getAllHeaders()) {
+      if (!doPreserveHost && header.getName().equalsIgnoreCase(HttpHeaders.HOST)) {
+        HttpHost host = getTargetHost(servletRequest);
+        copy.addHeader(HttpHeaders.HOST,
+                host.getPort() != -1 ? host.getHostName() + ":" + host.getPort() : host.getHostName());
+      } else {
+        copy.addHeader(header);
+      }
     }
+    return copy;
+  }
 
-    String preserveCookiesString = getConfigParam(P_PRESERVECOOKIES);
-    if (preserveCookiesString != null) {
-      this.doPreserveCookies = Boolean.parseBoolean(preserveCookiesString);
+  /**
+   * Executes the request with the {@link #hedger}: if its response doesn't come within the delay,
+   * a copy is sent to another target, and the first response is used.
+   */
+  private HttpResponse executeHedged(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                                     HttpRequest proxyRequest) throws IOException {
+    if (retryPolicy != null)
+      retryPolicy.onRequest(getTargetHost(servletRequest));
+    HedgeAttempt primary = new HedgeAttempt(servletRequest, servletResponse, proxyRequest,
+            copyProxyRequest(servletRequest, proxyRequest), false);
+    HttpResponse proxyResponse;
+    try {
+      proxyResponse = hedger.execute(primary);
+    } catch (IOException e) {
+      if (primary.hedge != null)
+        primary.hedge.done();
+      // failed before the hedge delay (e.g. a reset connection): retry it like any other request
+      if (retryPolicy == null || (primary.hedge != null && primary.hedge.executed))
+        throw e;
+      return retry(servletRequest, servletResponse, proxyRequest, e);
+    } catch (RuntimeException e) {
+      if (primary.hedge != null)
+        primary.hedge.done();
+      throw e;
     }
-
-    String handleRedirectsString = getConfigParam(P_HANDLEREDIRECTS);
-    if (handleRedirectsString != null) {
-      this.doHandleRedirects = Boolean.parseBoolean(handleRedirectsString);
+    HedgeAttempt hedge = primary.hedge;
+    if (hedge != null && proxyResponse == hedge.response) {
+      // the hedge won; its target and bulkhead slot are the request's
+      Endpoint endpoint = getEndpoint(hedge.servletRequest);
+      servletRequest.setAttribute(ATTR_ENDPOINT, endpoint);
+      servletRequest.setAttribute(ATTR_TARGET_URI, endpoint.getTargetUri());
+      servletRequest.setAttribute(ATTR_TARGET_HOST, endpoint.getTargetHost());
+      Bulkhead bulkhead = hedge.bulkhead.getAndSet(null);
+      if (bulkhead != null) {
+        ((Bulkhead) servletRequest.getAttribute(ATTR_BULKHEAD)).release();
+        servletRequest.setAttribute(ATTR_BULKHEAD, bulkhead);
+      }
     }
+    if (hedge != null)
+      hedge.done();
+    return proxyResponse;
+  }
 
-    String connectTimeoutString = getConfigParam(P_CONNECTTIMEOUT);
-    if (connectTimeoutString != null) {
-      this.connectTimeout = Integer.parseInt(connectTimeoutString);
+  /**
+   * A request to a target, sent by {@link #doExecute}, or a hedge of it to another target. A hedge
+   * takes a free slot of its target's bulkhead (if any) while it's sent; the request's own slot is
+   * in {@link #ATTR_BULKHEAD}.
+   */
+  private class HedgeAttempt implements Hedger.Attempt {
+    final HttpServletRequest servletRequest;
+    final HttpServletResponse servletResponse;
+    final HttpRequest proxyRequest;
+    final HttpRequest abortableRequest;
+    final boolean isHedge;
+    volatile HedgeAttempt hedge;
+    /** Whether it was sent; a hedge may be created but not sent (e.g. over budget). */
+    volatile boolean executed;
+    volatile HttpResponse response;
+    /** The bulkhead slot of a hedge, until taken by the request if the hedge won. */
+    final AtomicReference<Bulkhead> bulkhead = new AtomicReference<Bulkhead>();
+    /** The hedge and the request each say when they're done with the slot; the last releases it. */
+    private final AtomicInteger slotHolders = new AtomicInteger(2);
+
+    HedgeAttempt(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                 HttpRequest proxyRequest, HttpRequest abortableRequest, boolean isHedge) {
+      this.servletRequest = servletRequest;
+      this.servletResponse = servletResponse;
+      this.proxyRequest = proxyRequest;
+      this.abortableRequest = abortableRequest;
+      this.isHedge = isHedge;
     }
 
-    String readTimeoutString = getConfigParam(P_READTIMEOUT);
-    if (readTimeoutString != null) {
-      this.readTimeout = Integer.parseInt(readTimeoutString);
+    public HttpResponse execute() throws IOException {
+      executed = true;
+      if (!isHedge) {
+        response = doExecute(servletRequest, servletResponse, abortableRequest);
+        return response;
+      }
+      try {
+        if (bulkheads != null) {
+          Bulkhead targetBulkhead = bulkheads.get(getTargetHost(servletRequest));
+          if (!targetBulkhead.tryAcquireNow())
+            throw new RequestRejectedException("The bulkhead of " + targetBulkhead.getName() + " is full",
+                    HttpServletResponse.SC_SERVICE_UNAVAILABLE, -1);
+          bulkhead.set(targetBulkhead);
+        }
+        response = doExecute(servletRequest, servletResponse, abortableRequest);
+        return response;
+      } finally {
+        done();
+      }
     }
 
-    String useSystemPropertiesString = getConfigParam(P_USESYSTEMPROPERTIES);
-    if (useSystemPropertiesString != null) {
-      this.useSystemProperties = Boolean.parseBoolean(useSystemPropertiesString);
+    /** Called by a hedge, and by the request, once done with the hedge's slot. */
+    void done() {
+      if (slotHolders.decrementAndGet() == 0) {
+        Bulkhead held = bulkhead.getAndSet(null);
+        if (held != null)
+          held.release();
+      }
     }
 
-    initTarget();//sets target*
-
-    proxyClient = createHttpClient();
-  }
+    public void abort() {
+      ((AbortableHttpRequest) abortableRequest).abort();
+    }
 
-  /**
-   * Sub-classes can override specific behaviour of {@link org.apache.http.client.config.RequestConfig}.
-   */
-  protected RequestConfig buildRequestConfig() {
-    return RequestConfig.custom()
-            .setRedirectsEnabled(doHandleRedirects)
-            .setCookieSpec(CookieSpecs.IGNORE_COOKIES) // we handle them in the servlet instead
-            .setConnectTimeout(connectTimeout)
-            .setSocketTimeout(readTimeout)
-            .build();
+    public Hedger.Attempt newHedge() {
+      Endpoint endpoint = selectOtherEndpoint(getEndpoint(servletRequest));
+      if (endpoint == null)
+        return null;
+      HttpServletRequest hedgeRequest = new EndpointRequestWrapper(servletRequest, endpoint);
+      hedge = new HedgeAttempt(hedgeRequest, servletResponse, proxyRequest,
+              copyProxyRequest(hedgeRequest, proxyRequest), true);
+      return hedge;
+    }
   }
 
-  /**
-   * Sub-classes can override specific behaviour of {@link org.apache.http.config.SocketConfig}.
-   */
-  protected SocketConfig buildSocketConfig() {
+  /** The request, with another load balanced target in its attributes. */
+  private static class EndpointRequestWrapper extends HttpServletRequestWrapper {
+    private final Endpoint endpoint;
 
-    if (readTimeout < 1) {
-      return null;
+    EndpointRequestWrapper(HttpServletRequest request, Endpoint endpoint) {
+      super(request);
+      this.endpoint = endpoint;
     }
 
-    return SocketConfig.custom()
-            .setSoTimeout(readTimeout)
-            .build();
+    @Override
+    public Object getAttribute(String name) {
+      if (ATTR_ENDPOINT.equals(name))
+        return endpoint;
+      if (ATTR_TARGET_URI.equals(name))
+        return endpoint.getTargetUri();
+      if (ATTR_TARGET_HOST.equals(name))
+        return endpoint.getTargetHost();
+      return super.getAttribute(name);
+    }
   }
 
-  protected void initTarget() throws ServletException {
-    targetUri = getConfigParam(P_TARGET_URI);
-    if (targetUri == null)
-      throw new ServletException(P_TARGET_URI+" is required.");
-    //test it's valid
+  /** Executes the request, unless an identical one is in progress whose response is then shared. */
+  private HttpResponse executeCoalesced(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                                        HttpRequest proxyRequest) throws IOException {
+    RequestCoalescer.Flight flight = requestCoalescer.join(proxyRequest, getCacheUri(proxyRequest));
+    if (flight != null && !flight.isLeader()) {
+      HttpResponse sharedResponse = flight.await();
+      if (sharedResponse != null)
+        return sharedResponse;
+      flight = null;//on our own
+    }
+    if (flight == null)
+      return executeAndCache(servletRequest, servletResponse, proxyRequest);
     try {
-      targetUriObj = new URI(targetUri);
-    } catch (Exception e) {
-      throw new ServletException("Trying to process targetUri init parameter: "+e,e);
+      return flight.share(executeAndCache(servletRequest, servletResponse, proxyRequest));
+    } finally {
+      flight.cancel();
     }
-    targetHost = URIUtils.extractHost(targetUriObj);
   }
 
   /**
-   * Called from {@link #init(javax.servlet.ServletConfig)}.
-   * HttpClient offers many opportunities for customization.
-   * In any case, it should be thread-safe.
+   * Creates the load balancer of the target URIs.
+   * @throws ServletException if its parameters are invalid
    */
-  protected HttpClient createHttpClient() {
-    HttpClientBuilder clientBuilder = HttpClientBuilder.create()
-                                        .setDefaultRequestConfig(buildRequestConfig())
-                                        .setDefaultSocketConfig(buildSocketConfig());
-    if (useSystemProperties)
-      clientBuilder = clientBuilder.useSystemProperties();
-    return clientBuilder.build();
+  protected LoadBalancer createLoadBalancer(String[] targetUris) throws ServletException {
+    String[] weights = null;
+    String weightsString = getConfigParam(P_LOADBALANCER_WEIGHTS);
+    if (weightsString != null) {
+      weights = weightsString.trim().split("[,\\s]+");
+      if (weights.length != targetUris.length)
+        throw new ServletException(P_LOADBALANCER_WEIGHTS + " must have a weight per target URI");
+    }
+    String strategy = getConfigParam(P_LOADBALANCER);
+    try {
+      List<Endpoint> endpoints = new ArrayList<Endpoint>(targetUris.length);
+      for (int i = 0; i < targetUris.length; i++) {
+        endpoints.add(new Endpoint(targetUris[i], weights != null ? Integer.parseInt(weights[i]) : 1));
+      }
+      return LoadBalancer.create(strategy != null ? strategy : LoadBalancer.ROUND_ROBIN, endpoints);
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Trying to process targetUri and loadBalancer init parameters: "+e,e);
+    }
   }
 
   /**
-   * The http client used.
-   * @see #createHttpClient()
+   * The load balancer of the target URIs; null if there's none.
    */
-  protected HttpClient getProxyClient() {
-    return proxyClient;
+  protected LoadBalancer getLoadBalancer() {
+    return loadBalancer;
   }
 
-  @Override
-  public void destroy() {
-    //Usually, clients implement Closeable:
-    if (proxyClient instanceof Closeable) {
-      try {
-        ((Closeable) proxyClient).close();
-      } catch (IOException e) {
-        log("While destroying servlet, shutting down HttpClient: "+e, e);
-      }
-    } else {
-      //Older releases require we do this:
-      if (proxyClient != null)
-        proxyClient.getConnectionManager().shutdown();
+  /**
+   * Initializes the target request attributes from the caches (or load balancer) if unset by a
+   * subclass by this point.
+   * @throws RequestRejectedException if no load balanced target is available
+   */
+  protected void initTargetAttributes(HttpServletRequest servletRequest) {
+    if (loadBalancer != null && servletRequest.getAttribute(ATTR_TARGET_URI) == null) {
+      Endpoint endpoint = loadBalancer.select();
+      if (endpoint == null)
+        throw new RequestRejectedException("No target is available", HttpServletResponse.SC_SERVICE_UNAVAILABLE, -1);
+      servletRequest.setAttribute(ATTR_ENDPOINT, endpoint);
+      servletRequest.setAttribute(ATTR_TARGET_URI, endpoint.getTargetUri());
+      servletRequest.setAttribute(ATTR_TARGET_HOST, endpoint.getTargetHost());
     }
-    super.destroy();
-  }
-
-  @Override
-  protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
-      throws ServletException, IOException {
-    //initialize request attributes from caches if unset by a subclass by this point
     if (servletRequest.getAttribute(ATTR_TARGET_URI) == null) {
       servletRequest.setAttribute(ATTR_TARGET_URI, targetUri);
     }
     if (servletRequest.getAttribute(ATTR_TARGET_HOST) == null) {
       servletRequest.setAttribute(ATTR_TARGET_HOST, targetHost);
     }
+  }
 
-    // Make the Request
+  /**
+   * Makes the request to send to the target: rewrites the URL, attaches the body (if any) and
+   * copies the request headers.
+   */
+  protected HttpRequest newProxyRequest(HttpServletRequest servletRequest) throws IOException {
     //note: we won't transfer the protocol version because I'm not sure it would truly be compatible
     String method = servletRequest.getMethod();
+    ExchangeTimings timings = (ExchangeTimings) servletRequest.getAttribute(ExchangeTimings.ATTR);
+    long startNanos = timings != null ? System.nanoTime() : 0;
     String proxyRequestUri = rewriteUrlFromRequest(servletRequest);
+    if (timings != null)
+      timings.setRewriteNanos(System.nanoTime() - startNanos);
     HttpRequest proxyRequest;
     //spec: RFC 2616, sec 4.3: either of these two headers signal that there is a message body.
     if (servletRequest.getHeader(HttpHeaders.CONTENT_LENGTH) != null ||
@@ -295,50 +1982,18 @@ public class ProxyServlet extends HttpServlet {
       proxyRequest = new BasicHttpRequest(method, proxyRequestUri);
     }
 
+    if (timings != null)
+      startNanos = System.nanoTime();
     copyRequestHeaders(servletRequest, proxyRequest);
 
     setXForwardedForHeader(servletRequest, proxyRequest);
-
-    HttpResponse proxyResponse = null;
-    try {
-      // Execute the request
-      proxyResponse = doExecute(servletRequest, servletResponse, proxyRequest);
-
-      // Process the response:
-
-      // Pass the response code. This method with the "reason phrase" is deprecated but it's the
-      //   only way to pass the reason along too.
-      int statusCode = proxyResponse.getStatusLine().getStatusCode();
-      //noinspection deprecation
-      servletResponse.setStatus(statusCode, proxyResponse.getStatusLine().getReasonPhrase());
-
-      // Copying response headers to make sure SESSIONID or other Cookie which comes from the remote
-      // server will be saved in client when the proxied url was redirected to another one.
-      // See issue [#51](https://github.com/mitre/HTTP-Proxy-Servlet/issues/51)
-      copyResponseHeaders(proxyResponse, servletRequest, servletResponse);
-
-      if (statusCode == HttpServletResponse.SC_NOT_MODIFIED) {
-        // 304 needs special handling.  See:
-        // http://www.ics.uci.edu/pub/ietf/http/rfc1945.html#Code304
-        // Don't send body entity/content!
-        servletResponse.setIntHeader(HttpHeaders.CONTENT_LENGTH, 0);
-      } else {
-        // Send the content to the client
-        copyResponseEntity(proxyResponse, servletResponse, proxyRequest, servletRequest);
-      }
-
-    } catch (Exception e) {
-      handleRequestException(proxyRequest, e);
-    } finally {
-      // make sure the entire entity was consumed, so the connection is released
-      if (proxyResponse != null)
-        EntityUtils.consumeQuietly(proxyResponse.getEntity());
-      //Note: Don't need to close servlet outputStream:
-      // http://stackoverflow.com/questions/1159168/should-one-call-close-on-httpservletresponse-getoutputstream-getwriter
-    }
+    if (timings != null)
+      timings.setHeadersNanos(System.nanoTime() - startNanos);
+    return proxyRequest;
   }
 
   protected void handleRequestException(HttpRequest proxyRequest, Exception e) throws ServletException, IOException {
+    ProxyEvents.get().error(proxyRequest.getRequestLine().getMethod(), proxyRequest.getRequestLine().getUri(), e);
     //abort request, according to best practice with HttpClient
     if (proxyRequest instanceof AbortableHttpRequest) {
       AbortableHttpRequest abortableHttpRequest = (AbortableHttpRequest) proxyRequest;
@@ -356,11 +2011,98 @@ public class ProxyServlet extends HttpServlet {
 
   protected HttpResponse doExecute(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
                                    HttpRequest proxyRequest) throws IOException {
-    if (doLog) {
+    if (doLog && accessLog == null) {
       log("proxy " + servletRequest.getMethod() + " uri: " + servletRequest.getRequestURI() + " -- " +
               proxyRequest.getRequestLine().getUri());
     }
-    return proxyClient.execute(getTargetHost(servletRequest), proxyRequest);
+    HttpHost target = getTargetHost(servletRequest);
+    AdaptiveConcurrencyLimiter limiter = concurrencyLimiter;
+    if (limiter != null && !limiter.tryAcquire()) {
+      throw new RequestRejectedException("Over the concurrency limit of " + limiter.getName(),
+              HttpServletResponse.SC_SERVICE_UNAVAILABLE, 1);
+    }
+    CircuitBreaker circuitBreaker = circuitBreakers != null ? circuitBreakers.get(target) : null;
+    long breakerPermit = circuitBreaker != null ? circuitBreaker.tryAcquire() : CircuitBreaker.CLOSED_PERMIT;
+    if (breakerPermit == CircuitBreaker.NOT_PERMITTED) {
+      if (limiter != null)
+        limiter.release();
+      throw new RequestRejectedException("The circuit of " + circuitBreaker.getName() + " is open",
+              HttpServletResponse.SC_SERVICE_UNAVAILABLE, (circuitBreaker.getRemainingOpenMillis() + 999) / 1000);
+    }
+    Endpoint endpoint = getEndpoint(servletRequest);
+    long startNanos = endpoint != null ? endpoint.begin() : System.nanoTime();
+    // the attempt's own timings, since a hedged request has several attempts at once
+    ExchangeTimings exchangeTimings = (ExchangeTimings) servletRequest.getAttribute(ExchangeTimings.ATTR);
+    ProxyEvents events = ProxyEvents.get();
+    ExchangeTimings timings = exchangeTimings != null || events.isRecording() ? new ExchangeTimings() : null;
+    if (timings != null)
+      timings.setLeaseEvent(events.beginLease());
+    HttpResponse proxyResponse = null;
+    boolean poolExhausted = false;
+    boolean aborted = false;
+    HttpClientContext context = null;
+    try {
+      if (sharedClientRequestConfig != null || timings != null || retryPolicy != null) {
+        context = HttpClientContext.create();
+        // the shared client's default request config is that of the servlet that created it
+        if (sharedClientRequestConfig != null)
+          context.setRequestConfig(sharedClientRequestConfig);
+        if (timings != null)
+          context.setAttribute(ExchangeTimings.ATTR, timings);
+        proxyResponse = proxyClient.execute(target, proxyRequest, context);
+      } else {
+        proxyResponse = proxyClient.execute(target, proxyRequest);
+      }
+      return proxyResponse;
+    } catch (ConnectionPoolTimeoutException e) {
+      poolExhausted = true;//not the target's fault
+      throw new PoolExhaustedException(target, connectionManager != null
+              ? connectionManager.getStats(ConnectionPoolConfig.routeOf(target)) : null, e);
+    } catch (RequestAbortedException e) {
+      aborted = true;//e.g. the losing attempt of a hedged request
+      throw e;
+    } catch (IOException e) {
+      if (context != null && context.getAttribute(TimingRequestExecutor.ATTR_REUSED_CONNECTION) != null)
+        servletRequest.setAttribute(ATTR_REUSED_CONNECTION_FAILURE, e);
+      throw e;
+    } finally {
+      int statusCode = proxyResponse != null ? proxyResponse.getStatusLine().getStatusCode() : -1;
+      long latencyNanos = System.nanoTime() - startNanos;
+      // aborting may also surface as a socket error
+      if (proxyResponse == null && proxyRequest instanceof AbstractExecutionAwareRequest
+              && ((AbstractExecutionAwareRequest) proxyRequest).isAborted())
+        aborted = true;
+      if (timings != null) {
+        timings.leased(target);//if it failed before
+        timings.attemptEnded(startNanos, startNanos + latencyNanos);
+        if (phaseLatencies != null)
+          phaseLatencies.recordAttempt(target, proxyRequest.getRequestLine().getMethod(), statusCode, timings);
+        if (exchangeTimings != null && !aborted)
+          exchangeTimings.setAttempt(timings);
+      }
+      // an aborted attempt (e.g. a hedge that lost) says nothing about the target
+      if (endpoint != null) {
+        if (aborted)
+          endpoint.cancel();
+        else
+          endpoint.end(startNanos, proxyResponse != null);
+        if (healthChecker != null && !poolExhausted && !aborted)
+          healthChecker.onResponse(endpoint, statusCode, latencyNanos);
+      }
+      if (circuitBreaker != null) {
+        if (poolExhausted || aborted)
+          circuitBreaker.release(breakerPermit);
+        else
+          circuitBreaker.onResult(breakerPermit, statusCode < 0 || statusCode >= 500, latencyNanos);
+      }
+      if (limiter != null) {
+        if (aborted)
+          limiter.release();
+        else // pool exhaustion is overload too, of the proxy
+          limiter.onSample(latencyNanos, statusCode < 0 || statusCode == HttpServletResponse.SC_SERVICE_UNAVAILABLE
+                  || statusCode == HttpServletResponse.SC_GATEWAY_TIMEOUT);
+      }
+    }
   }
 
   protected HttpRequest newProxyRequestWithEntity(String method, String proxyRequestUri,
@@ -368,15 +2110,27 @@ public class ProxyServlet extends HttpServlet {
           throws IOException {
     HttpEntityEnclosingRequest eProxyRequest =
             new BasicHttpEntityEnclosingRequest(method, proxyRequestUri);
+    long contentLength = getContentLength(servletRequest);
+    if (retryPolicy != null && contentLength > 0 && contentLength <= retryMaxBodyBytes
+            && RetryPolicy.isIdempotent(method)) {
+      // buffered, so that it can be retried
+      byte[] body = new byte[(int) contentLength];
+      DataInputStream in = new DataInputStream(servletRequest.getInputStream());
+      in.readFully(body);
+      ByteArrayEntity entity = new ByteArrayEntity(body);
+      entity.setContentType(servletRequest.getContentType());
+      eProxyRequest.setEntity(entity);
+      return eProxyRequest;
+    }
     // Add the input entity (streamed)
     //  note: we don't bother ensuring we close the servletInputStream since the container handles it
     eProxyRequest.setEntity(
-            new InputStreamEntity(servletRequest.getInputStream(), getContentLength(servletRequest)));
+            new InputStreamEntity(servletRequest.getInputStream(), contentLength));
     return eProxyRequest;
   }
 
   // Get the header value as a long in order to more correctly proxy very large requests
-  private long getContentLength(HttpServletRequest request) {
+  protected long getContentLength(HttpServletRequest request) {
     String contentLengthHeader = request.getHeader("Content-Length");
     if (contentLengthHeader != null) {
       return Long.parseLong(contentLengthHeader);
@@ -453,7 +2207,7 @@ public class ProxyServlet extends HttpServlet {
     }
   }
 
-  private void setXForwardedForHeader(HttpServletRequest servletRequest,
+  protected void setXForwardedForHeader(HttpServletRequest servletRequest,
                                       HttpRequest proxyRequest) {
     if (doForwardIP) {
       String forHeaderName = "X-Forwarded-For";
@@ -571,39 +2325,19 @@ public class ProxyServlet extends HttpServlet {
    * It's used to make the new request.
    */
   protected String rewriteUrlFromRequest(HttpServletRequest servletRequest) {
-    StringBuilder uri = new StringBuilder(500);
-    uri.append(getTargetUri(servletRequest));
-    // Handle the path given to the servlet
-    String pathInfo = servletRequest.getPathInfo();
-    if (pathInfo != null) {//ex: /my/path.html
-      // getPathInfo() returns decoded string, so we need encodeUriQuery to encode "%" characters
-      uri.append(encodeUriQuery(pathInfo, true));
-    }
-    // Handle the query string & fragment
+    // getPathInfo() returns decoded string, so "%" characters are encoded; the query string and
+    // fragment are not decoded, so "%" characters are kept to avoid double-encoding
+    String pathInfo = servletRequest.getPathInfo();//ex: /my/path.html
     String queryString = servletRequest.getQueryString();//ex:(following '?'): name=value&foo=bar#fragment
-    String fragment = null;
-    //split off fragment from queryString, updating queryString if found
-    if (queryString != null) {
-      int fragIdx = queryString.indexOf('#');
-      if (fragIdx >= 0) {
-        fragment = queryString.substring(fragIdx + 1);
-        queryString = queryString.substring(0,fragIdx);
-      }
-    }
-
-    queryString = rewriteQueryStringFromRequest(servletRequest, queryString);
-    if (queryString != null && queryString.length() > 0) {
-      uri.append('?');
-      // queryString is not decoded, so we need encodeUriQuery not to encode "%" characters, to avoid double-encoding
-      uri.append(encodeUriQuery(queryString, false));
+    //split off fragment from queryString, if found (rare; user agents shouldn't send it)
+    int fragIdx = queryString != null ? queryString.indexOf('#') : -1;
+    if (fragIdx < 0) {
+      queryString = rewriteQueryStringFromRequest(servletRequest, queryString);
+      return UriRewriter.rewrite(getTargetUri(servletRequest), pathInfo, queryString, null);
     }
-
-    if (doSendUrlFragment && fragment != null) {
-      uri.append('#');
-      // fragment is not decoded, so we need encodeUriQuery not to encode "%" characters, to avoid double-encoding
-      uri.append(encodeUriQuery(fragment, false));
-    }
-    return uri.toString();
+    String fragment = doSendUrlFragment ? queryString.substring(fragIdx + 1) : null;
+    queryString = rewriteQueryStringFromRequest(servletRequest, queryString.substring(0, fragIdx));
+    return UriRewriter.rewrite(getTargetUri(servletRequest), pathInfo, queryString, fragment);
   }
 
   protected String rewriteQueryStringFromRequest(HttpServletRequest servletRequest, String queryString) {
@@ -661,38 +2395,15 @@ public class ProxyServlet extends HttpServlet {
    *
    * @param in example: name=value&amp;foo=bar#fragment
    * @param encodePercent determine whether percent characters need to be encoded
+   * @see UriRewriter#encode(CharSequence, boolean)
    */
   protected static CharSequence encodeUriQuery(CharSequence in, boolean encodePercent) {
     //Note that I can't simply use URI.java to encode because it will escape pre-existing escaped things.
-    StringBuilder outBuf = null;
-    Formatter formatter = null;
-    for(int i = 0; i < in.length(); i++) {
-      char c = in.charAt(i);
-      boolean escape = true;
-      if (c < 128) {
-        if (asciiQueryChars.get((int)c) && !(encodePercent && c == '%')) {
-          escape = false;
-        }
-      } else if (!Character.isISOControl(c) && !Character.isSpaceChar(c)) {//not-ascii
-        escape = false;
-      }
-      if (!escape) {
-        if (outBuf != null)
-          outBuf.append(c);
-      } else {
-        //escape
-        if (outBuf == null) {
-          outBuf = new StringBuilder(in.length() + 5*3);
-          outBuf.append(in,0,i);
-          formatter = new Formatter(outBuf);
-        }
-        //leading %, 0 padded, width 2, capital hex
-        formatter.format("%%%02X",(int)c);//TODO
-      }
-    }
-    return outBuf != null ? outBuf : in;
+    return UriRewriter.encode(in, encodePercent);
   }
 
+  /** @deprecated no longer used; {@link UriRewriter} has its own table. */
+  @Deprecated
   protected static final BitSet asciiQueryChars;
   static {
     char[] c_unreserved = "_-!.~'()*".toCharArray();//plus alphanum
@@ -0,0 +1,94 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * The JMX view of a {@link ProxyServlet}: its settings, counters and connection pool, whose size
+ * can be changed and whose idle connections can be evicted while it runs, e.g. during an incident.
+ * Registered as {@code org.mitre.dsmiley.httpproxy:type=ProxyServlet,context="...",name="..."};
+ * see {@link ProxyServlet#P_JMX}.
+ * <p>
+ *   A pool shared by the servlets of a client profile is changed for all of them. The pool
+ *   attributes are -1 when the servlet has no pool of its own making (e.g. a sub-class created the
+ *   client).
+ * </p>
+ */
+public interface ProxyServletMXBean {
+
+  String getServletName();
+
+  String getTargetUri();
+
+  /** (millis; -1 is the default) */
+  int getConnectTimeout();
+
+  /** The socket timeout (millis; -1 is the default). */
+  int getReadTimeout();
+
+  /** The longest wait for a pooled connection (millis; -1 is forever). */
+  int getLeaseTimeout();
+
+  long getRequestCount();
+
+  long getErrorCount();
+
+  int getInFlight();
+
+  long getRequestBytes();
+
+  long getResponseBytes();
+
+  int getPoolMaxTotal();
+
+  void setPoolMaxTotal(int maxTotal);
+
+  /** The maximum connections per route unless overridden. */
+  int getPoolMaxPerRoute();
+
+  void setPoolMaxPerRoute(int maxPerRoute);
+
+  /**
+   * Overrides the maximum connections of a route.
+   * @param target like {@code host:port} or {@code https://host}
+   */
+  void setPoolMaxPerRoute(String target, int maxPerRoute);
+
+  int getPoolLeased();
+
+  int getPoolAvailable();
+
+  /** The number of requests waiting for a connection. */
+  int getPoolPending();
+
+  /** The stats of each route, like {@code http://host:8080 leased=1 available=2 pending=0 max=50}. */
+  String[] getPoolRouteStats();
+
+  /** The number of connections the pool's evictor closed. */
+  long getEvictedConnectionCount();
+
+  /**
+   * Closes the expired connections, and those idle for longer than the pool's maximum idle time.
+   * @return how many were closed
+   */
+  int evictIdleConnections();
+
+  /**
+   * Closes the connections idle for longer than {@code idleMillis} (0: all idle ones).
+   * @return how many were closed
+   */
+  int closeIdleConnections(long idleMillis);
+}
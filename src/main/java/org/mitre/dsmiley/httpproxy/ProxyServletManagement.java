@@ -0,0 +1,165 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.mitre.dsmiley.httpproxy.pool.ConnectionEvictor;
+import org.mitre.dsmiley.httpproxy.pool.ConnectionPoolConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** The {@link ProxyServletMXBean} of a servlet. */
+class ProxyServletManagement implements ProxyServletMXBean {
+
+  private final ProxyServlet servlet;
+
+  ProxyServletManagement(ProxyServlet servlet) {
+    this.servlet = servlet;
+  }
+
+  public String getServletName() {
+    return servlet.getServletName();
+  }
+
+  public String getTargetUri() {
+    return servlet.targetUri;
+  }
+
+  public int getConnectTimeout() {
+    return servlet.connectTimeout;
+  }
+
+  public int getReadTimeout() {
+    return servlet.readTimeout;
+  }
+
+  public int getLeaseTimeout() {
+    return servlet.poolConfig.getLeaseTimeout();
+  }
+
+  public long getRequestCount() {
+    return servlet.getMetrics().getRequestCount();
+  }
+
+  public long getErrorCount() {
+    return servlet.getMetrics().getErrorCount();
+  }
+
+  public int getInFlight() {
+    return servlet.getMetrics().getInFlight();
+  }
+
+  public long getRequestBytes() {
+    return servlet.getMetrics().getRequestBytes();
+  }
+
+  public long getResponseBytes() {
+    return servlet.getMetrics().getResponseBytes();
+  }
+
+  private PoolingHttpClientConnectionManager pool() {
+    PoolingHttpClientConnectionManager connectionManager = servlet.getConnectionManager();
+    if (connectionManager == null)
+      throw new IllegalStateException("Servlet " + getServletName() + " has no connection pool of its own making");
+    return connectionManager;
+  }
+
+  public int getPoolMaxTotal() {
+    return servlet.getConnectionManager() != null ? pool().getMaxTotal() : -1;
+  }
+
+  public void setPoolMaxTotal(int maxTotal) {
+    if (maxTotal <= 0)
+      throw new IllegalArgumentException("maxTotal must be > 0");
+    pool().setMaxTotal(maxTotal);
+    servlet.log("JMX: set the pool's max total connections to " + maxTotal);
+  }
+
+  public int getPoolMaxPerRoute() {
+    return servlet.getConnectionManager() != null ? pool().getDefaultMaxPerRoute() : -1;
+  }
+
+  public void setPoolMaxPerRoute(int maxPerRoute) {
+    if (maxPerRoute <= 0)
+      throw new IllegalArgumentException("maxPerRoute must be > 0");
+    pool().setDefaultMaxPerRoute(maxPerRoute);
+    servlet.log("JMX: set the pool's max connections per route to " + maxPerRoute);
+  }
+
+  public void setPoolMaxPerRoute(String target, int maxPerRoute) {
+    if (maxPerRoute <= 0)
+      throw new IllegalArgumentException("maxPerRoute must be > 0");
+    HttpRoute route = ConnectionPoolConfig.routeOf(ConnectionPoolConfig.parseHost(target.trim()));
+    pool().setMaxPerRoute(route, maxPerRoute);
+    servlet.log("JMX: set the pool's max connections to " + route.getTargetHost() + " to " + maxPerRoute);
+  }
+
+  public int getPoolLeased() {
+    return servlet.getConnectionManager() != null ? pool().getTotalStats().getLeased() : -1;
+  }
+
+  public int getPoolAvailable() {
+    return servlet.getConnectionManager() != null ? pool().getTotalStats().getAvailable() : -1;
+  }
+
+  public int getPoolPending() {
+    return servlet.getConnectionManager() != null ? pool().getTotalStats().getPending() : -1;
+  }
+
+  public String[] getPoolRouteStats() {
+    if (servlet.getConnectionManager() == null)
+      return new String[0];
+    List<String> routeStats = new ArrayList<String>();
+    for (HttpRoute route : pool().getRoutes()) {
+      PoolStats stats = pool().getStats(route);
+      routeStats.add(route.getTargetHost().toURI() + " leased=" + stats.getLeased() + " available="
+              + stats.getAvailable() + " pending=" + stats.getPending() + " max=" + stats.getMax());
+    }
+    return routeStats.toArray(new String[routeStats.size()]);
+  }
+
+  public long getEvictedConnectionCount() {
+    ConnectionEvictor evictor = servlet.getConnectionEvictor();
+    return evictor != null ? evictor.getEvictedCount() : 0;
+  }
+
+  public int evictIdleConnections() {
+    ConnectionEvictor evictor = servlet.getConnectionEvictor();
+    if (evictor != null)
+      return evictor.evict();
+    return closeIdle(servlet.poolConfig.getMaxIdleTime());
+  }
+
+  public int closeIdleConnections(long idleMillis) {
+    if (idleMillis < 0)
+      throw new IllegalArgumentException("idleMillis must be >= 0");
+    return closeIdle(idleMillis);
+  }
+
+  private int closeIdle(long idleMillis) {
+    PoolingHttpClientConnectionManager connectionManager = pool();
+    int availableBefore = connectionManager.getTotalStats().getAvailable();
+    connectionManager.closeExpiredConnections();
+    if (idleMillis >= 0)
+      connectionManager.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+    return Math.max(0, availableBefore - connectionManager.getTotalStats().getAvailable());
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import javax.servlet.ServletContext;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The {@link ProxyServlet}s of a web application, e.g. for {@link ProxyMetricsServlet} to report
+ * on. A servlet registers itself when initialized and unregisters when destroyed. There's one
+ * registry per {@link ServletContext}; see {@link #get(ServletContext)}.
+ */
+public class ProxyServletRegistry {
+
+  /** The {@link ServletContext} attribute holding the registry. */
+  public static final String ATTR_REGISTRY = ProxyServletRegistry.class.getName();
+
+  private final List<ProxyServlet> servlets = new CopyOnWriteArrayList<ProxyServlet>();
+
+  /** Returns the registry of the context, creating it if needed. */
+  public static ProxyServletRegistry get(ServletContext servletContext) {
+    synchronized (ProxyServletRegistry.class) {
+      ProxyServletRegistry registry = (ProxyServletRegistry) servletContext.getAttribute(ATTR_REGISTRY);
+      if (registry == null) {
+        registry = new ProxyServletRegistry();
+        servletContext.setAttribute(ATTR_REGISTRY, registry);
+      }
+      return registry;
+    }
+  }
+
+  void register(ProxyServlet servlet) {
+    servlets.add(servlet);
+  }
+
+  void unregister(ProxyServlet servlet) {
+    servlets.remove(servlet);
+  }
+
+  /** The servlets initialized and not destroyed, in the order they were initialized. Unmodifiable. */
+  public List<ProxyServlet> getServlets() {
+    return Collections.unmodifiableList(servlets);
+  }
+}
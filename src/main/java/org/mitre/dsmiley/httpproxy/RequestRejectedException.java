@@ -0,0 +1,67 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The proxy refuses a request without sending it to the target, e.g. because no target is
+ * available. {@link ProxyServlet} answers it with the status code, a {@code Retry-After} header if
+ * known, and the other headers; see {@link ProxyServlet#sendRejection}.
+ */
+@SuppressWarnings("serial")
+public class RequestRejectedException extends RuntimeException {
+
+  private final int statusCode;
+  private final long retryAfterSeconds;
+  private final List<Header> headers = new ArrayList<Header>(2);
+
+  /**
+   * @param statusCode e.g. 503 (Service Unavailable) or 429 (Too Many Requests)
+   * @param retryAfterSeconds when the client may try again; -1 if unknown
+   */
+  public RequestRejectedException(String message, int statusCode, long retryAfterSeconds) {
+    super(message);
+    this.statusCode = statusCode;
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  /** The delay for the Retry-After header (seconds); -1 if none. */
+  public long getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  /** Adds a header to the response. Returns this. */
+  public RequestRejectedException addHeader(String name, String value) {
+    headers.add(new BasicHeader(name, value));
+    return this;
+  }
+
+  /** The other headers of the response. */
+  public List<Header> getHeaders() {
+    return Collections.unmodifiableList(headers);
+  }
+}
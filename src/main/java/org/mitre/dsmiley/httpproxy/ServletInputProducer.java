@@ -0,0 +1,164 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streams the servlet request body to the target without blocking. The container reads into a
+ * bounded buffer via a {@link ReadListener}, and the I/O reactor drains it to the target
+ * connection. When the buffer is full, reading from the client stops until the target has taken
+ * some of it; when it's empty, output to the target is suspended until the client sends more.
+ */
+class ServletInputProducer implements HttpAsyncRequestProducer, ReadListener {
+
+  private final HttpHost target;
+  private final HttpEntityEnclosingRequest request;
+  private final AsyncContext asyncContext;
+  private final ServletInputStream in;
+  private final ByteBuffer buffer;//in "fill" mode between calls
+
+  // guarded by this
+  private IOControl ioControl;
+  private boolean endOfInput;
+  /** We stopped reading while the input was ready because the buffer was full. */
+  private boolean readPaused;
+  private Throwable error;
+  private long count;
+
+  ServletInputProducer(HttpHost target, HttpEntityEnclosingRequest request, AsyncContext asyncContext,
+                       int bufferSize) throws IOException {
+    this.target = target;
+    this.request = request;
+    this.asyncContext = asyncContext;
+    this.buffer = ByteBuffer.allocate(bufferSize);
+    this.in = asyncContext.getRequest().getInputStream();
+    in.setReadListener(this);
+  }
+
+  /** The number of bytes of the body read from the client so far. */
+  synchronized long getCount() {
+    return count;
+  }
+
+  /* ReadListener; called by the container */
+
+  public void onDataAvailable() throws IOException {
+    readAvailable();
+  }
+
+  public synchronized void onAllDataRead() throws IOException {
+    endOfInput = true;
+    if (ioControl != null)
+      ioControl.requestOutput();
+  }
+
+  public synchronized void onError(Throwable t) {
+    error = t;
+    if (ioControl != null)
+      ioControl.requestOutput();//so that produceContent fails the exchange
+  }
+
+  private synchronized void readAvailable() throws IOException {
+    readPaused = false;
+    while (!endOfInput) {
+      if (!buffer.hasRemaining()) {
+        readPaused = true;//produceContent will resume
+        return;
+      }
+      if (!in.isReady())
+        return;//onDataAvailable will be called
+      int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      if (read < 0) {
+        endOfInput = true;
+      } else {
+        buffer.position(buffer.position() + read);
+        count += read;
+      }
+      if (ioControl != null)
+        ioControl.requestOutput();
+    }
+  }
+
+  /* HttpAsyncRequestProducer; called by the I/O reactor */
+
+  public HttpHost getTarget() {
+    return target;
+  }
+
+  public HttpRequest generateRequest() {
+    return request;
+  }
+
+  public synchronized void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+    this.ioControl = ioControl;
+    if (error != null)
+      throw new IOException("Error reading the client request body: " + error, error);
+    buffer.flip();
+    encoder.write(buffer);
+    buffer.compact();
+    if (buffer.position() == 0) {
+      if (endOfInput) {
+        encoder.complete();
+        return;
+      }
+      ioControl.suspendOutput();//until the client sends more
+    }
+    if (readPaused && buffer.hasRemaining()) {
+      readPaused = false;
+      // the container won't call onDataAvailable again until isReady() returns false, so resume
+      // reading ourselves, on a container thread
+      asyncContext.start(new Runnable() {
+        public void run() {
+          try {
+            readAvailable();
+          } catch (IOException e) {
+            onError(e);
+          }
+        }
+      });
+    }
+  }
+
+  public void requestCompleted(HttpContext context) {
+  }
+
+  public void failed(Exception ex) {
+  }
+
+  public boolean isRepeatable() {
+    return false;
+  }
+
+  public void resetRequest() {
+  }
+
+  public void close() {
+  }
+}
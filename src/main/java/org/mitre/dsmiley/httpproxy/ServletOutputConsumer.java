@@ -0,0 +1,207 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streams the target's response body to the servlet client without blocking. The I/O reactor
+ * fills a bounded buffer from the target connection and the container drains it via a
+ * {@link WriteListener}. When the buffer is full, input from the target is suspended until the
+ * client has taken some of it.
+ * <p>
+ *   The response head (status and headers) is handed to {@link #sendHead(HttpResponse)} on a
+ *   container thread; when it's done, {@link #onFinished()} is called.
+ * </p>
+ */
+abstract class ServletOutputConsumer extends AbstractAsyncResponseConsumer<HttpResponse>
+    implements WriteListener {
+
+  private final AsyncContext asyncContext;
+  private final ByteBuffer buffer;//in "fill" mode between calls
+
+  private volatile HttpResponse response;
+
+  // guarded by this
+  private IOControl ioControl;
+  private ServletOutputStream out;//set once the head has been sent, if there is a body to send
+  private boolean discardContent;
+  private boolean inputSuspended;
+  private boolean endOfContent;
+  /** The last isReady() returned true but there was nothing to write; we must resume writing. */
+  private boolean writeStalled;
+  private boolean finished;
+  private long count;
+
+  ServletOutputConsumer(AsyncContext asyncContext, int bufferSize) {
+    this.asyncContext = asyncContext;
+    this.buffer = ByteBuffer.allocate(bufferSize);
+  }
+
+  /**
+   * Sends the status and headers to the client. Called on a container thread.
+   * @return whether a body should follow
+   */
+  protected abstract boolean sendHead(HttpResponse response) throws IOException;
+
+  /** The whole response has been sent to the client. Called once. */
+  protected abstract void onFinished();
+
+  /** Sending the response failed, either on the client or the target side. */
+  protected abstract void onFailure(Throwable t);
+
+  /** The number of bytes of the body written to the client so far. */
+  synchronized long getCount() {
+    return count;
+  }
+
+  @Override
+  protected void onResponseReceived(final HttpResponse response) {
+    this.response = response;
+    asyncContext.start(new Runnable() {
+      public void run() {
+        try {
+          boolean hasBody = sendHead(response);
+          synchronized (ServletOutputConsumer.this) {
+            if (!hasBody) {
+              discardContent = true;
+              buffer.clear();
+              resumeInput();
+              finished = true;
+            } else {
+              out = asyncContext.getResponse().getOutputStream();
+            }
+          }
+          if (hasBody) {
+            out.setWriteListener(ServletOutputConsumer.this);//calls onWritePossible
+          } else {
+            onFinished();
+          }
+        } catch (Exception e) {
+          onFailure(e);
+        }
+      }
+    });
+  }
+
+  @Override
+  protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+  }
+
+  @Override
+  protected synchronized void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+    this.ioControl = ioControl;
+    if (discardContent) {
+      buffer.clear();
+    }
+    decoder.read(buffer);
+    if (decoder.isCompleted()) {
+      endOfContent = true;
+    }
+    if (!buffer.hasRemaining()) {
+      ioControl.suspendInput();//until the client takes some
+      inputSuspended = true;
+    }
+    if (discardContent) {
+      buffer.clear();
+    } else if (writeStalled && (buffer.position() > 0 || endOfContent)) {
+      resumeWriting();
+    }
+  }
+
+  @Override
+  protected synchronized HttpResponse buildResult(HttpContext context) {
+    endOfContent = true;
+    if (writeStalled) {
+      resumeWriting();
+    }
+    return response;
+  }
+
+  @Override
+  protected void releaseResources() {
+  }
+
+  /* WriteListener; called by the container */
+
+  public void onWritePossible() throws IOException {
+    boolean done = false;
+    synchronized (this) {
+      if (finished)
+        return;
+      writeStalled = false;
+      while (out.isReady()) {
+        if (buffer.position() == 0) {
+          if (!endOfContent) {
+            writeStalled = true;//onContentReceived will resume
+            return;
+          }
+          finished = done = true;
+          break;
+        }
+        buffer.flip();
+        count += buffer.remaining();
+        out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        buffer.clear();
+        resumeInput();
+      }
+    }
+    if (done) {
+      onFinished();
+    }
+  }
+
+  public void onError(Throwable t) {
+    onFailure(t);
+  }
+
+  // must hold the lock
+  private void resumeInput() {
+    if (inputSuspended) {
+      inputSuspended = false;
+      ioControl.requestInput();
+    }
+  }
+
+  // must hold the lock
+  private void resumeWriting() {
+    writeStalled = false;
+    // the container won't call onWritePossible again until isReady() returns false, so resume
+    // writing ourselves, on a container thread
+    asyncContext.start(new Runnable() {
+      public void run() {
+        try {
+          onWritePossible();
+        } catch (IOException e) {
+          onFailure(e);
+        }
+      }
+    });
+  }
+}
@@ -16,20 +16,12 @@
 
 package org.mitre.dsmiley.httpproxy;
 
-import org.apache.http.NameValuePair;
-import org.apache.http.client.utils.URIUtils;
-import org.apache.http.client.utils.URLEncodedUtils;
+import org.mitre.dsmiley.httpproxy.uri.UriTemplate;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -55,17 +47,35 @@ public class URITemplateProxyServlet extends ProxyServlet {
   * But that's not how the spec works. So for now we will require a proxy arg to be present
   * if defined for this proxy URL.
   */
+  /**
+   * A integer parameter name to set how many target hosts (when the template's scheme or authority
+   * has variables) are cached, so they're not parsed again. 0 disables it.
+   */
+  public static final String P_HOSTCACHESIZE = "targetHostCacheSize";
+
   protected static final Pattern TEMPLATE_PATTERN = Pattern.compile("\\{(.+?)\\}");
   private static final String ATTR_QUERY_STRING =
           URITemplateProxyServlet.class.getSimpleName() + ".queryString";
 
   protected String targetUriTemplate;//has {name} parts
+  /** {@link #targetUriTemplate}, compiled. */
+  protected UriTemplate uriTemplate;
 
   @Override
   protected void initTarget() throws ServletException {
     targetUriTemplate = getConfigParam(P_TARGET_URI);
     if (targetUriTemplate == null)
       throw new ServletException(P_TARGET_URI+" is required.");
+    try {
+      int hostCacheSize = UriTemplate.DEFAULT_HOST_CACHE_SIZE;
+      String hostCacheSizeString = getConfigParam(P_HOSTCACHESIZE);
+      if (hostCacheSizeString != null) {
+        hostCacheSize = Integer.parseInt(hostCacheSizeString);
+      }
+      uriTemplate = UriTemplate.compile(targetUriTemplate, hostCacheSize);
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Trying to process targetUri init parameter: "+e,e);
+    }
 
     //leave this.target* null to prevent accidental mis-use
   }
@@ -74,7 +84,6 @@ public class URITemplateProxyServlet extends ProxyServlet {
   protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
           throws ServletException, IOException {
 
-    //First collect params
     /*
      * Do not use servletRequest.getParameter(arg) because that will
      * typically read and consume the servlet InputStream (where our
@@ -83,59 +92,16 @@ public class URITemplateProxyServlet extends ProxyServlet {
      * we can keep the proxy parameters in the query string and not
      * have to add them to a URL encoded form attachment.
      */
-    String requestQueryString = servletRequest.getQueryString();
-    String queryString = "";
-    if (requestQueryString != null) {
-      queryString = "?" + requestQueryString;//no "?" but might have "#"
-    }
-    int hash = queryString.indexOf('#');
-    if (hash >= 0) {
-      queryString = queryString.substring(0, hash);
-    }
-    List<NameValuePair> pairs;
-    try {
-      //note: HttpClient 4.2 lets you parse the string without building the URI
-      pairs = URLEncodedUtils.parse(new URI(queryString), "UTF-8");
-    } catch (URISyntaxException e) {
-      throw new ServletException("Unexpected URI parsing error on " + queryString, e);
-    }
-    LinkedHashMap<String, String> params = new LinkedHashMap<String, String>();
-    for (NameValuePair pair : pairs) {
-      params.put(pair.getName(), pair.getValue());
-    }
-
-    //Now rewrite the URL
-    StringBuffer urlBuf = new StringBuffer();//note: StringBuilder isn't supported by Matcher
-    Matcher matcher = TEMPLATE_PATTERN.matcher(targetUriTemplate);
-    while (matcher.find()) {
-      String arg = matcher.group(1);
-      String replacement = params.remove(arg);//note we remove
-      if (replacement == null) {
-        throw new ServletException("Missing HTTP parameter "+arg+" to fill the template");
-      }
-      matcher.appendReplacement(urlBuf, replacement);
-    }
-    matcher.appendTail(urlBuf);
-    String newTargetUri = urlBuf.toString();
-    servletRequest.setAttribute(ATTR_TARGET_URI, newTargetUri);
-    URI targetUriObj;
+    UriTemplate.Expansion expansion;
     try {
-      targetUriObj = new URI(newTargetUri);
-    } catch (Exception e) {
-      throw new ServletException("Rewritten targetUri is invalid: " + newTargetUri,e);
-    }
-    servletRequest.setAttribute(ATTR_TARGET_HOST, URIUtils.extractHost(targetUriObj));
-
-    //Determine the new query string based on removing the used names
-    StringBuilder newQueryBuf = new StringBuilder(queryString.length());
-    for (Map.Entry<String, String> nameVal : params.entrySet()) {
-      if (newQueryBuf.length() > 0)
-        newQueryBuf.append('&');
-      newQueryBuf.append(nameVal.getKey()).append('=');
-      if (nameVal.getValue() != null)
-        newQueryBuf.append(nameVal.getValue());
+      //the template variables are removed from the query string
+      expansion = uriTemplate.expand(servletRequest.getQueryString());
+    } catch (IllegalArgumentException e) {
+      throw new ServletException(e.getMessage(), e);
     }
-    servletRequest.setAttribute(ATTR_QUERY_STRING, newQueryBuf.toString());
+    servletRequest.setAttribute(ATTR_TARGET_URI, expansion.getTargetUri());
+    servletRequest.setAttribute(ATTR_TARGET_HOST, expansion.getTargetHost());
+    servletRequest.setAttribute(ATTR_QUERY_STRING, expansion.getQueryString());
 
     super.service(servletRequest, servletResponse);
   }
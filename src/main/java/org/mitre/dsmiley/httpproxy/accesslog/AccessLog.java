@@ -0,0 +1,274 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.accesslog;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.mitre.dsmiley.httpproxy.metrics.ExchangeTimings;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A log of the proxied exchanges, written by a daemon so that requests don't wait on it. A request
+ * thread claims a slot of a bounded ring buffer with a CAS and fills it with references and numbers
+ * (nothing is formatted or allocated); the writer formats the records it finds in batches, and
+ * writes each batch at once. When the buffer is full, the record is dropped and counted rather
+ * than waited for.
+ * <p>
+ *   The lines go to a {@link Writer} (e.g. of a file), or else to the commons-logging log of this
+ *   class at info level, one call per line, from the writer thread.
+ * </p>
+ */
+public class AccessLog {
+
+  private static final Log log = LogFactory.getLog(AccessLog.class);
+
+  public enum Format {
+    /** See {@link AccessLogRecord#appendText}. */
+    TEXT,
+    /** JSON lines; see {@link AccessLogRecord#appendJson}. */
+    JSON
+  }
+
+  private static final int BATCH_SIZE = 256;
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final Writer writer;
+  private final Format format;
+  private final double sampleRate;
+  private final long sampleThreshold;
+  private final AccessLogRecord[] slots;
+  private final int mask;
+  /** The sequence of the next slot to claim. */
+  private final AtomicLong tail = new AtomicLong();
+  /** The sequence of the next record to write; only the writer thread changes it. */
+  private volatile long head;
+  private final AtomicLong sampleCounter = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final AtomicLong writtenCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final StringBuilder batch = new StringBuilder(BATCH_SIZE * 256);
+  private final SimpleDateFormat dateFormat = AccessLogRecord.newDateFormat();
+  private volatile boolean running;
+  private Thread thread;
+
+  /**
+   * @param writer of the lines, closed on {@link #shutdown()}; null logs them instead
+   * @param sampleRate the fraction of the exchanges to log, in (0, 1]
+   * @param bufferSize the maximum number of records waiting to be written; rounded up to a power
+   *                   of 2
+   */
+  public AccessLog(Writer writer, Format format, double sampleRate, int bufferSize) {
+    if (format == null)
+      throw new IllegalArgumentException("format is required");
+    if (!(sampleRate > 0 && sampleRate <= 1))
+      throw new IllegalArgumentException("sampleRate must be in (0, 1]");
+    if (bufferSize <= 0 || bufferSize > (1 << 30))
+      throw new IllegalArgumentException("bufferSize must be > 0");
+    this.writer = writer;
+    this.format = format;
+    this.sampleRate = sampleRate;
+    this.sampleThreshold = (long) (sampleRate * (1L << 53));
+    int capacity = Integer.highestOneBit(bufferSize);
+    if (capacity < bufferSize)
+      capacity <<= 1;
+    slots = new AccessLogRecord[capacity];
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = new AccessLogRecord();
+    }
+    mask = capacity - 1;
+  }
+
+  /** Starts the writer daemon. */
+  public synchronized void start(String name) {
+    if (thread != null)
+      throw new IllegalStateException("Already started");
+    running = true;
+    thread = new Thread(new Runnable() {
+      public void run() {
+        writeUntilShutdown();
+      }
+    }, "AccessLog-" + name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops the writer after it wrote what's buffered (waiting a few seconds at most), and closes the
+   * writer.
+   */
+  public synchronized void shutdown() {
+    if (thread != null) {
+      running = false;
+      LockSupport.unpark(thread);
+      try {
+        thread.join(5000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      thread = null;
+    }
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        log.warn("Closing the access log: " + e, e);
+      }
+    }
+  }
+
+  /**
+   * Logs an exchange, unless it's not sampled, or the buffer is full (it's then counted as
+   * dropped).
+   *
+   * @param rewrittenUri sent to the target; null if the request wasn't rewritten
+   * @param target null if unknown
+   * @param statusCode sent to the client; -1 if none
+   * @param timings of the exchange; null if unknown
+   * @return whether the exchange is logged
+   */
+  public boolean log(HttpServletRequest servletRequest, String rewrittenUri, HttpHost target, int statusCode,
+                     long requestBytes, long responseBytes, long totalNanos, ExchangeTimings timings) {
+    if (sampleRate < 1 && !isSampled())
+      return false;
+    long sequence;
+    do {
+      sequence = tail.get();
+      if (sequence - head >= slots.length) {
+        droppedCount.incrementAndGet();
+        return false;
+      }
+    } while (!tail.compareAndSet(sequence, sequence + 1));
+
+    AccessLogRecord record = slots[(int) sequence & mask];
+    record.timeMillis = System.currentTimeMillis();
+    record.remoteAddr = servletRequest.getRemoteAddr();
+    record.method = servletRequest.getMethod();
+    record.uri = servletRequest.getRequestURI();
+    record.queryString = servletRequest.getQueryString();
+    record.rewrittenUri = rewrittenUri;
+    record.target = target;
+    record.statusCode = statusCode;
+    record.requestBytes = requestBytes;
+    record.responseBytes = responseBytes;
+    record.totalNanos = totalNanos;
+    record.rewriteNanos = timings != null ? timings.getRewriteNanos() : -1;
+    record.headersNanos = timings != null ? timings.getHeadersNanos() : -1;
+    record.leaseNanos = timings != null ? timings.getLeaseNanos() : -1;
+    record.connectNanos = timings != null ? timings.getConnectNanos() : -1;
+    record.firstByteNanos = timings != null ? timings.getFirstByteNanos() : -1;
+    record.bodyNanos = timings != null ? timings.getBodyNanos() : -1;
+    record.sequence = sequence;//publishes it
+    return true;
+  }
+
+  /** Picks about {@link #sampleRate} of the calls, spread by hashing a counter. */
+  private boolean isSampled() {
+    long hash = sampleCounter.getAndIncrement() * 0x9E3779B97F4A7C15L;
+    return (hash >>> 11) < sampleThreshold;
+  }
+
+  private void writeUntilShutdown() {
+    while (true) {
+      boolean stopping = !running;
+      if (write() == 0) {
+        if (stopping)
+          return;
+        LockSupport.parkNanos(this, IDLE_NANOS);
+      }
+    }
+  }
+
+  /**
+   * Writes a batch of the buffered records, in order, up to the first one not published yet. Called
+   * by the writer thread only (or instead of it, if it's not started).
+   * @return the number of records written
+   */
+  protected int write() {
+    int count = 0;
+    batch.setLength(0);
+    long sequence = head;
+    for (; count < BATCH_SIZE; count++, sequence++) {
+      AccessLogRecord record = slots[(int) sequence & mask];
+      if (record.sequence != sequence)
+        break;
+      if (format == Format.JSON)
+        record.appendJson(batch, dateFormat);
+      else
+        record.appendText(batch, dateFormat);
+      record.clear();
+      head = sequence + 1;//frees the slot
+      if (writer != null) {
+        batch.append('\n');
+      } else {
+        log.info(batch.toString());
+        batch.setLength(0);
+      }
+    }
+    if (count > 0 && writer != null) {
+      try {
+        writer.write(batch.toString());
+        writer.flush();
+      } catch (IOException e) {
+        // don't flood the log if e.g. the disk is full
+        if (failedCount.getAndAdd(count) == 0)
+          log.warn("Writing the access log: " + e, e);
+        return count;
+      }
+    }
+    writtenCount.addAndGet(count);
+    return count;
+  }
+
+  /** The number of records dropped because the buffer was full. */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  public long getWrittenCount() {
+    return writtenCount.get();
+  }
+
+  /** The number of records lost to write errors. */
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  /** The number of records waiting to be written. */
+  public int getPendingCount() {
+    return (int) Math.max(0, tail.get() - head);
+  }
+
+  public int getBufferSize() {
+    return slots.length;
+  }
+
+  public Format getFormat() {
+    return format;
+  }
+
+  public double getSampleRate() {
+    return sampleRate;
+  }
+}
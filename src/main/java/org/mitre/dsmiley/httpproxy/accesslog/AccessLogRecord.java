@@ -0,0 +1,205 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.accesslog;
+
+import org.apache.http.HttpHost;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * An entry of the {@link AccessLog}. The records are the reused slots of its ring buffer: a request
+ * thread fills one with references and numbers only, and the writer thread formats it. Durations
+ * are in nanos, -1 when unknown.
+ */
+public class AccessLogRecord {
+
+  // the sequence of the record published in this slot; written last, read first
+  volatile long sequence = -1;
+
+  long timeMillis;
+  String remoteAddr;
+  String method;
+  String uri;
+  String queryString;
+  String rewrittenUri;
+  HttpHost target;
+  int statusCode;
+  long requestBytes;
+  long responseBytes;
+  long totalNanos;
+  long rewriteNanos;
+  long headersNanos;
+  long leaseNanos;
+  long connectNanos;
+  long firstByteNanos;
+  long bodyNanos;
+
+  /** Drops the references, so the slot doesn't keep them until it's reused. */
+  void clear() {
+    remoteAddr = method = uri = queryString = rewrittenUri = null;
+    target = null;
+  }
+
+  public long getTimeMillis() { return timeMillis; }
+
+  public String getRemoteAddr() { return remoteAddr; }
+
+  public String getMethod() { return method; }
+
+  /** The URI requested of the proxy, without the query string. */
+  public String getUri() { return uri; }
+
+  /** Null if none. */
+  public String getQueryString() { return queryString; }
+
+  /** The URI sent to the target; null if the request wasn't rewritten. */
+  public String getRewrittenUri() { return rewrittenUri; }
+
+  /** Null if unknown. */
+  public HttpHost getTarget() { return target; }
+
+  /** Sent to the client; -1 if none (the exchange failed). */
+  public int getStatusCode() { return statusCode; }
+
+  public long getRequestBytes() { return requestBytes; }
+
+  public long getResponseBytes() { return responseBytes; }
+
+  public long getTotalNanos() { return totalNanos; }
+
+  public long getRewriteNanos() { return rewriteNanos; }
+
+  public long getHeadersNanos() { return headersNanos; }
+
+  public long getLeaseNanos() { return leaseNanos; }
+
+  public long getConnectNanos() { return connectNanos; }
+
+  public long getFirstByteNanos() { return firstByteNanos; }
+
+  public long getBodyNanos() { return bodyNanos; }
+
+  /**
+   * Appends the record as a line of text, like:
+   * {@code 2017-01-01T00:00:00.000Z 10.0.0.1 "GET /proxy/a?b" http://target:8080 "/a?b" 200 12 3456
+   * total=12.345 rewrite=0.010 headers=0.020 lease=0.100 connect=- firstByte=10.200 body=1.500},
+   * with the byte counts of the request and response bodies, and the times in milliseconds ("-" if
+   * unknown).
+   */
+  public void appendText(StringBuilder sb, SimpleDateFormat dateFormat) {
+    sb.append(dateFormat.format(new Date(timeMillis))).append(' ');
+    sb.append(remoteAddr != null ? remoteAddr : "-").append(" \"").append(method).append(' ').append(uri);
+    if (queryString != null)
+      sb.append('?').append(queryString);
+    sb.append("\" ").append(target != null ? target.toURI() : "-");
+    sb.append(" \"").append(rewrittenUri != null ? rewrittenUri : "-").append("\" ");
+    sb.append(statusCode >= 0 ? Integer.toString(statusCode) : "-");
+    sb.append(' ').append(requestBytes).append(' ').append(responseBytes);
+    appendTextMillis(sb, "total", totalNanos);
+    appendTextMillis(sb, "rewrite", rewriteNanos);
+    appendTextMillis(sb, "headers", headersNanos);
+    appendTextMillis(sb, "lease", leaseNanos);
+    appendTextMillis(sb, "connect", connectNanos);
+    appendTextMillis(sb, "firstByte", firstByteNanos);
+    appendTextMillis(sb, "body", bodyNanos);
+  }
+
+  /**
+   * Appends the record as a JSON object, on one line. Unknown values are omitted; the times are in
+   * milliseconds.
+   */
+  public void appendJson(StringBuilder sb, SimpleDateFormat dateFormat) {
+    sb.append("{\"time\":\"").append(dateFormat.format(new Date(timeMillis))).append('"');
+    appendJsonString(sb, "remoteAddr", remoteAddr);
+    appendJsonString(sb, "method", method);
+    appendJsonString(sb, "uri", uri);
+    appendJsonString(sb, "query", queryString);
+    appendJsonString(sb, "target", target != null ? target.toURI() : null);
+    appendJsonString(sb, "rewrittenUri", rewrittenUri);
+    if (statusCode >= 0)
+      sb.append(",\"status\":").append(statusCode);
+    sb.append(",\"requestBytes\":").append(requestBytes);
+    sb.append(",\"responseBytes\":").append(responseBytes);
+    appendJsonMillis(sb, "totalMs", totalNanos);
+    appendJsonMillis(sb, "rewriteMs", rewriteNanos);
+    appendJsonMillis(sb, "headersMs", headersNanos);
+    appendJsonMillis(sb, "leaseMs", leaseNanos);
+    appendJsonMillis(sb, "connectMs", connectNanos);
+    appendJsonMillis(sb, "firstByteMs", firstByteNanos);
+    appendJsonMillis(sb, "bodyMs", bodyNanos);
+    sb.append('}');
+  }
+
+  /** An ISO 8601 format of UTC times, with millis. Not thread-safe. */
+  public static SimpleDateFormat newDateFormat() {
+    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return dateFormat;
+  }
+
+  private static void appendTextMillis(StringBuilder sb, String name, long nanos) {
+    sb.append(' ').append(name).append('=');
+    if (nanos < 0)
+      sb.append('-');
+    else
+      appendMillis(sb, nanos);
+  }
+
+  private static void appendJsonMillis(StringBuilder sb, String name, long nanos) {
+    if (nanos < 0)
+      return;
+    sb.append(",\"").append(name).append("\":");
+    appendMillis(sb, nanos);
+  }
+
+  /** Appends the nanos as millis with 3 decimals, without going through a double. */
+  static void appendMillis(StringBuilder sb, long nanos) {
+    long micros = nanos / 1000;
+    sb.append(micros / 1000).append('.');
+    long fraction = micros % 1000;
+    if (fraction < 100)
+      sb.append('0');
+    if (fraction < 10)
+      sb.append('0');
+    sb.append(fraction);
+  }
+
+  private static void appendJsonString(StringBuilder sb, String name, String value) {
+    if (value == null)
+      return;
+    sb.append(",\"").append(name).append("\":\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"': sb.append("\\\""); break;
+        case '\\': sb.append("\\\\"); break;
+        case '\n': sb.append("\\n"); break;
+        case '\r': sb.append("\\r"); break;
+        case '\t': sb.append("\\t"); break;
+        default:
+          if (c < 0x20) {
+            sb.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    sb.append('"');
+  }
+}
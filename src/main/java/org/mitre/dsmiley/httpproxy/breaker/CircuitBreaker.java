@@ -0,0 +1,254 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.breaker;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fails calls to a target fast while it's failing, instead of having each wait for its timeouts.
+ * <ul>
+ *   <li>Closed: calls go through, and their outcomes are counted in a sliding window. When the
+ *   rate of failed or slow calls reaches its threshold, the circuit opens.</li>
+ *   <li>Open: calls are refused (see {@link #tryAcquire()}) for a while.</li>
+ *   <li>Half-open: a few trial calls go through. If they all succeed, the circuit closes;
+ *   otherwise it opens again.</li>
+ * </ul>
+ * A permit tells the state it was given in, so that only the outcomes of the trial calls of the
+ * current half-open period count as trials; that of a call permitted earlier is ignored.
+ * No lock is taken. A successful call while closed only increments counters; the rates are
+ * computed after a failed or slow call. The window is made of 10 buckets which are reset lazily,
+ * so a count racing with a reset may be lost; the rates are approximate.
+ */
+public class CircuitBreaker {
+
+  private static final Log log = LogFactory.getLog(CircuitBreaker.class);
+
+  public static final int CLOSED = 0;
+  public static final int OPEN = 1;
+  public static final int HALF_OPEN = 2;
+
+  /** Returned by {@link #tryAcquire()} when the call is refused. */
+  public static final long NOT_PERMITTED = -1;
+  /** The permit of a call while closed. That of a trial call is the number of its half-open period. */
+  public static final long CLOSED_PERMIT = 0;
+
+  private static final int BUCKETS = 10;
+  /** The epoch of a bucket out of the window. */
+  private static final long NO_EPOCH = Long.MIN_VALUE / 2;
+
+  private final String name;
+  private final CircuitBreakerConfig config;
+  private final long bucketNanos;
+  private final long slowCallNanos;
+  private final long originNanos = System.nanoTime();
+
+  /** The state in the low 2 bits; above, the number of half-open periods so far. */
+  private final AtomicLong stateAndPeriod = new AtomicLong(CLOSED);
+  private volatile long openedAtNanos;
+  // the window: per bucket, its epoch and counts
+  private final AtomicLongArray epochs = new AtomicLongArray(BUCKETS);
+  private final AtomicLongArray calls = new AtomicLongArray(BUCKETS);
+  private final AtomicLongArray failures = new AtomicLongArray(BUCKETS);
+  private final AtomicLongArray slowCalls = new AtomicLongArray(BUCKETS);
+  // half-open trials
+  private final AtomicInteger trialPermits = new AtomicInteger();
+  private final AtomicInteger trialSuccesses = new AtomicInteger();
+
+  private final AtomicLong notPermittedCount = new AtomicLong();
+  private final AtomicLong openCount = new AtomicLong();
+
+  public CircuitBreaker(String name, CircuitBreakerConfig config) {
+    this.name = name;
+    this.config = config;
+    this.bucketNanos = TimeUnit.MILLISECONDS.toNanos(config.getWindow()) / BUCKETS;
+    this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(config.getSlowCallDuration());
+    for (int i = 0; i < BUCKETS; i++) {
+      epochs.set(i, NO_EPOCH);
+    }
+  }
+
+  /**
+   * Returns the permit of a call, or {@link #NOT_PERMITTED}. The outcome of a permitted call must be
+   * reported with {@link #onResult(long, boolean, long)}, or else {@link #release(long)}.
+   */
+  public long tryAcquire() {
+    long current = stateAndPeriod.get();
+    if (stateOf(current) == OPEN) {
+      if (System.nanoTime() - openedAtNanos < TimeUnit.MILLISECONDS.toNanos(config.getWaitDuration())) {
+        notPermittedCount.incrementAndGet();
+        return NOT_PERMITTED;
+      }
+      if (stateAndPeriod.compareAndSet(current, halfOpen(periodOf(current) + 1))) {
+        trialPermits.set(0);
+        trialSuccesses.set(0);
+        if (log.isDebugEnabled())
+          log.debug("Circuit of " + name + " is half-open");
+      }
+      current = stateAndPeriod.get();
+    }
+    int s = stateOf(current);
+    if (s == CLOSED)
+      return CLOSED_PERMIT;
+    if (s == HALF_OPEN) {
+      if (trialPermits.incrementAndGet() <= config.getHalfOpenCalls())
+        return periodOf(current);
+      trialPermits.decrementAndGet();
+    }
+    notPermittedCount.incrementAndGet();
+    return NOT_PERMITTED;
+  }
+
+  /** The call of the permit wasn't made, or its outcome says nothing about the target. */
+  public void release(long permit) {
+    if (permit > CLOSED_PERMIT && stateAndPeriod.get() == halfOpen(permit))
+      trialPermits.decrementAndGet();
+  }
+
+  /**
+   * Reports the outcome of a permitted call.
+   * @param permit the call's, from {@link #tryAcquire()}
+   * @param failure whether it failed (e.g. no response, or a 5xx)
+   * @param durationNanos the time to the response headers
+   */
+  public void onResult(long permit, boolean failure, long durationNanos) {
+    boolean slow = slowCallNanos > 0 && durationNanos >= slowCallNanos;
+    long current = stateAndPeriod.get();
+    if (permit > CLOSED_PERMIT) {
+      if (current != halfOpen(permit))
+        return;//a trial of an earlier half-open period
+      if (failure || slow) {
+        open(current, failure ? "a trial call failed" : "a trial call was slow");
+      } else if (trialSuccesses.incrementAndGet() >= config.getHalfOpenCalls()) {
+        resetWindow();
+        if (stateAndPeriod.compareAndSet(current, (periodOf(current) << 2) | CLOSED))
+          log.info("Circuit of " + name + " is closed");
+      }
+      return;
+    }
+    if (stateOf(current) != CLOSED)
+      return;//a call permitted before the circuit opened
+    int bucket = bucket();
+    calls.incrementAndGet(bucket);
+    if (failure)
+      failures.incrementAndGet(bucket);
+    if (slow)
+      slowCalls.incrementAndGet(bucket);
+    if (failure || slow)
+      checkRates(current);
+  }
+
+  private static int stateOf(long stateAndPeriod) {
+    return (int) (stateAndPeriod & 3);
+  }
+
+  private static long periodOf(long stateAndPeriod) {
+    return stateAndPeriod >>> 2;
+  }
+
+  private static long halfOpen(long period) {
+    return (period << 2) | HALF_OPEN;
+  }
+
+  private void checkRates(long closed) {
+    long epoch = epoch();
+    long callSum = 0, failureSum = 0, slowSum = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      if (epoch - epochs.get(i) < BUCKETS) {
+        callSum += calls.get(i);
+        failureSum += failures.get(i);
+        slowSum += slowCalls.get(i);
+      }
+    }
+    if (callSum < config.getMinimumCalls())
+      return;
+    if (failureSum * 100 >= config.getFailureRateThreshold() * callSum) {
+      open(closed, failureSum + " of " + callSum + " calls failed");
+    } else if (slowSum * 100 >= config.getSlowCallRateThreshold() * callSum) {
+      open(closed, slowSum + " of " + callSum + " calls were slow");
+    }
+  }
+
+  private void open(long from, String reason) {
+    openedAtNanos = System.nanoTime();
+    if (stateAndPeriod.compareAndSet(from, (periodOf(from) << 2) | OPEN)) {
+      openCount.incrementAndGet();
+      log.warn("Circuit of " + name + " is open: " + reason);
+    }
+  }
+
+  /** The index of the current bucket, reset if it's from an older epoch. */
+  private int bucket() {
+    long epoch = epoch();
+    int i = (int) (epoch % BUCKETS);
+    long bucketEpoch = epochs.get(i);
+    if (bucketEpoch != epoch && epochs.compareAndSet(i, bucketEpoch, epoch)) {
+      calls.set(i, 0);
+      failures.set(i, 0);
+      slowCalls.set(i, 0);
+    }
+    return i;
+  }
+
+  private long epoch() {
+    return (System.nanoTime() - originNanos) / bucketNanos;
+  }
+
+  private void resetWindow() {
+    for (int i = 0; i < BUCKETS; i++) {
+      epochs.set(i, NO_EPOCH);
+    }
+  }
+
+  /** One of {@link #CLOSED}, {@link #OPEN} or {@link #HALF_OPEN}. */
+  public int getState() {
+    return stateOf(stateAndPeriod.get());
+  }
+
+  /** The time (millis) until trial calls are let through; 0 unless open. */
+  public long getRemainingOpenMillis() {
+    if (getState() != OPEN)
+      return 0;
+    long elapsed = System.nanoTime() - openedAtNanos;
+    return Math.max(0, config.getWaitDuration() - TimeUnit.NANOSECONDS.toMillis(elapsed));
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** The number of calls refused. */
+  public long getNotPermittedCount() {
+    return notPermittedCount.get();
+  }
+
+  /** The number of times the circuit opened. */
+  public long getOpenCount() {
+    return openCount.get();
+  }
+
+  @Override
+  public String toString() {
+    int s = getState();
+    return "CircuitBreaker{" + name + ", " + (s == CLOSED ? "closed" : s == OPEN ? "open" : "half-open") + "}";
+  }
+}
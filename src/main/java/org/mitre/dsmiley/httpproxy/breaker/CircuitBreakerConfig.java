@@ -0,0 +1,71 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.breaker;
+
+/**
+ * Settings of the {@link CircuitBreaker}s of the targets.
+ */
+public class CircuitBreakerConfig {
+
+  private int failureRateThreshold = 50;
+  private long slowCallDuration = 10000;
+  private int slowCallRateThreshold = 100;
+  private int minimumCalls = 20;
+  private long window = 10000;
+  private long waitDuration = 30000;
+  private int halfOpenCalls = 5;
+
+  /** The percentage of failed calls in the window at which the circuit opens. */
+  public int getFailureRateThreshold() { return failureRateThreshold; }
+  public void setFailureRateThreshold(int failureRateThreshold) { this.failureRateThreshold = failureRateThreshold; }
+
+  /** The time to the response headers (millis) from which a call is slow. 0 disables it. */
+  public long getSlowCallDuration() { return slowCallDuration; }
+  public void setSlowCallDuration(long slowCallDuration) { this.slowCallDuration = slowCallDuration; }
+
+  /** The percentage of slow calls in the window at which the circuit opens. */
+  public int getSlowCallRateThreshold() { return slowCallRateThreshold; }
+  public void setSlowCallRateThreshold(int slowCallRateThreshold) { this.slowCallRateThreshold = slowCallRateThreshold; }
+
+  /** The number of calls in the window below which the rates aren't considered. */
+  public int getMinimumCalls() { return minimumCalls; }
+  public void setMinimumCalls(int minimumCalls) { this.minimumCalls = minimumCalls; }
+
+  /** The length of the sliding window of calls (millis). */
+  public long getWindow() { return window; }
+  public void setWindow(long window) {
+    if (window < 10)
+      throw new IllegalArgumentException("window must be >= 10 millis: " + window);
+    this.window = window;
+  }
+
+  /** How long the circuit stays open before trial calls are let through (millis). */
+  public long getWaitDuration() { return waitDuration; }
+  public void setWaitDuration(long waitDuration) { this.waitDuration = waitDuration; }
+
+  /** The number of trial calls when half-open; if they all succeed, the circuit closes. */
+  public int getHalfOpenCalls() { return halfOpenCalls; }
+  public void setHalfOpenCalls(int halfOpenCalls) { this.halfOpenCalls = halfOpenCalls; }
+
+  @Override
+  public String toString() {
+    return "CircuitBreakerConfig{failureRateThreshold=" + failureRateThreshold +
+            ", slowCallDuration=" + slowCallDuration + ", slowCallRateThreshold=" + slowCallRateThreshold +
+            ", minimumCalls=" + minimumCalls + ", window=" + window + ", waitDuration=" + waitDuration +
+            ", halfOpenCalls=" + halfOpenCalls + "}";
+  }
+}
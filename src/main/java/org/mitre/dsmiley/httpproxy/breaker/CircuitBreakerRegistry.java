@@ -0,0 +1,69 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.breaker;
+
+import org.apache.http.HttpHost;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link CircuitBreaker}s of a servlet, one per target host, created on first use. When there
+ * are many hosts (the target varies per request), closed breakers are dropped beyond a maximum.
+ */
+public class CircuitBreakerRegistry {
+
+  private final CircuitBreakerConfig config;
+  private final int maxHosts;
+  private final ConcurrentMap<HttpHost, CircuitBreaker> breakers = new ConcurrentHashMap<HttpHost, CircuitBreaker>();
+
+  public CircuitBreakerRegistry(CircuitBreakerConfig config, int maxHosts) {
+    this.config = config;
+    this.maxHosts = maxHosts;
+  }
+
+  /** Returns the breaker of the target host, creating it if needed. */
+  public CircuitBreaker get(HttpHost target) {
+    CircuitBreaker breaker = breakers.get(target);
+    if (breaker != null)
+      return breaker;
+    if (breakers.size() >= maxHosts)
+      removeClosed();
+    breaker = new CircuitBreaker(target.toURI(), config);
+    CircuitBreaker existing = breakers.putIfAbsent(target, breaker);
+    return existing != null ? existing : breaker;
+  }
+
+  private void removeClosed() {
+    for (Iterator<CircuitBreaker> it = breakers.values().iterator(); it.hasNext(); ) {
+      if (it.next().getState() == CircuitBreaker.CLOSED)
+        it.remove();
+    }
+  }
+
+  /** The breakers by target host. Unmodifiable. */
+  public Map<HttpHost, CircuitBreaker> getBreakers() {
+    return Collections.unmodifiableMap(breakers);
+  }
+
+  public CircuitBreakerConfig getConfig() {
+    return config;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.bulkhead;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the number of concurrent requests of a route (a servlet, or a target), so that when its
+ * backend is slow it takes a bounded number of container threads and pooled connections, and the
+ * other routes aren't affected. Requests beyond the cap wait in a small queue, for a while; when
+ * the queue is full or the wait times out, they're rejected.
+ * <p>
+ *   Acquiring a free slot takes no lock.
+ * </p>
+ */
+public class Bulkhead {
+
+  private final String name;
+  private final int maxConcurrent;
+  private final int maxQueued;
+  private final long queueTimeoutMillis;
+  private final Semaphore permits;
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong timeoutCount = new AtomicLong();
+
+  /**
+   * @param maxConcurrent the most requests in flight
+   * @param maxQueued the most requests waiting for one to end
+   * @param queueTimeoutMillis the longest a request waits
+   */
+  public Bulkhead(String name, int maxConcurrent, int maxQueued, long queueTimeoutMillis) {
+    if (maxConcurrent <= 0 || maxQueued < 0 || queueTimeoutMillis < 0)
+      throw new IllegalArgumentException("maxConcurrent must be > 0, maxQueued and queueTimeout >= 0");
+    this.name = name;
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueued = maxQueued;
+    this.queueTimeoutMillis = queueTimeoutMillis;
+    this.permits = new Semaphore(maxConcurrent, true);
+  }
+
+  /**
+   * Takes a slot, waiting in the queue if there's none free. Returns false if the request is
+   * rejected: the queue is full, or the wait timed out. Each successful call must be paired with
+   * a {@link #release()}.
+   */
+  public boolean tryAcquire() throws InterruptedException {
+    if (permits.tryAcquire())
+      return true;
+    if (queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      rejectedCount.incrementAndGet();
+      return false;
+    }
+    try {
+      if (permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS))
+        return true;
+    } finally {
+      queued.decrementAndGet();
+    }
+    timeoutCount.incrementAndGet();
+    rejectedCount.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Takes a free slot without queuing, e.g. for a hedge, which is worthless if it has to wait.
+   * Returns false if there's none; that isn't counted as a rejection.
+   */
+  public boolean tryAcquireNow() {
+    return permits.tryAcquire();
+  }
+
+  public void release() {
+    permits.release();
+  }
+
+  public String getName() { return name; }
+
+  public int getMaxConcurrent() { return maxConcurrent; }
+
+  public int getMaxQueued() { return maxQueued; }
+
+  /** The number of requests in flight. */
+  public int getInFlight() { return maxConcurrent - permits.availablePermits(); }
+
+  /** The number of requests waiting for a slot. */
+  public int getQueued() { return queued.get(); }
+
+  /** The number of requests rejected, including those whose wait timed out. */
+  public long getRejectedCount() { return rejectedCount.get(); }
+
+  /** The number of requests rejected because their wait timed out. */
+  public long getTimeoutCount() { return timeoutCount.get(); }
+
+  @Override
+  public String toString() {
+    return "Bulkhead{" + name + ", inFlight=" + getInFlight() + "/" + maxConcurrent +
+            ", queued=" + getQueued() + "/" + maxQueued + "}";
+  }
+}
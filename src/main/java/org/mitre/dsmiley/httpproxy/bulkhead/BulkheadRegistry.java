@@ -0,0 +1,99 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.bulkhead;
+
+import org.apache.http.HttpHost;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link Bulkhead}s of a servlet: one for all its requests, or one per target host, created on
+ * first use. When there are many hosts (the target varies per request), idle bulkheads are dropped
+ * beyond a maximum.
+ */
+public class BulkheadRegistry {
+
+  /** The idle per-target bulkheads are dropped beyond this many. */
+  private static final int MAX_HOSTS = 1000;
+
+  private final String name;
+  private final int maxConcurrent;
+  private final int maxQueued;
+  private final long queueTimeoutMillis;
+  private final Bulkhead shared;
+  private final ConcurrentMap<HttpHost, Bulkhead> byTarget = new ConcurrentHashMap<HttpHost, Bulkhead>();
+
+  /**
+   * @param name the name of the shared bulkhead
+   * @param perTarget whether there's a bulkhead per target host, rather than a shared one
+   * @see Bulkhead#Bulkhead(String, int, int, long)
+   */
+  public BulkheadRegistry(String name, boolean perTarget, int maxConcurrent, int maxQueued, long queueTimeoutMillis) {
+    if (maxConcurrent <= 0 || maxQueued < 0 || queueTimeoutMillis < 0)
+      throw new IllegalArgumentException("maxConcurrent must be > 0, maxQueued and queueTimeout >= 0");
+    this.name = name;
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueued = maxQueued;
+    this.queueTimeoutMillis = queueTimeoutMillis;
+    this.shared = perTarget ? null : new Bulkhead(name, maxConcurrent, maxQueued, queueTimeoutMillis);
+  }
+
+  /** Returns the bulkhead of a request to the target. */
+  public Bulkhead get(HttpHost target) {
+    if (shared != null)
+      return shared;
+    Bulkhead bulkhead = byTarget.get(target);
+    if (bulkhead != null)
+      return bulkhead;
+    if (byTarget.size() >= MAX_HOSTS)
+      removeIdle();
+    bulkhead = new Bulkhead(target.toURI(), maxConcurrent, maxQueued, queueTimeoutMillis);
+    Bulkhead existing = byTarget.putIfAbsent(target, bulkhead);
+    return existing != null ? existing : bulkhead;
+  }
+
+  private void removeIdle() {
+    for (Iterator<Bulkhead> it = byTarget.values().iterator(); it.hasNext(); ) {
+      Bulkhead bulkhead = it.next();
+      if (bulkhead.getInFlight() == 0 && bulkhead.getQueued() == 0)
+        it.remove();
+    }
+  }
+
+  /** Whether there's a bulkhead per target host. */
+  public boolean isPerTarget() {
+    return shared == null;
+  }
+
+  /** The bulkheads, e.g. to expose their counts. */
+  public Collection<Bulkhead> getBulkheads() {
+    if (shared != null)
+      return Collections.singletonList(shared);
+    List<Bulkhead> bulkheads = new ArrayList<Bulkhead>(byTarget.values());
+    return Collections.unmodifiableList(bulkheads);
+  }
+
+  public String getName() {
+    return name;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.cache;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpMessage;
+
+import java.util.Locale;
+
+/**
+ * The directives of the {@code Cache-Control} headers of a request or response that matter to a
+ * shared cache. See RFC 7234 section 5.2.
+ */
+class CacheControl {
+
+  boolean noStore;
+  boolean noCache;
+  boolean isPrivate;
+  boolean isPublic;
+  boolean mustRevalidate;
+  /** Seconds; -1 if absent. */
+  long maxAge = -1;
+  long sMaxAge = -1;
+  long minFresh = -1;
+
+  static CacheControl of(HttpMessage message) {
+    CacheControl cc = new CacheControl();
+    for (Header header : message.getHeaders("Cache-Control")) {
+      for (HeaderElement element : header.getElements()) {
+        String name = element.getName();
+        if (name.equalsIgnoreCase("no-store")) {
+          cc.noStore = true;
+        } else if (name.equalsIgnoreCase("no-cache")) {
+          cc.noCache = true;
+        } else if (name.equalsIgnoreCase("private")) {
+          cc.isPrivate = true;
+        } else if (name.equalsIgnoreCase("public")) {
+          cc.isPublic = true;
+        } else if (name.equalsIgnoreCase("must-revalidate") || name.equalsIgnoreCase("proxy-revalidate")) {
+          cc.mustRevalidate = true;
+        } else if (name.equalsIgnoreCase("max-age")) {
+          cc.maxAge = parseSeconds(element.getValue());
+        } else if (name.equalsIgnoreCase("s-maxage")) {
+          cc.sMaxAge = parseSeconds(element.getValue());
+        } else if (name.equalsIgnoreCase("min-fresh")) {
+          cc.minFresh = parseSeconds(element.getValue());
+        }
+      }
+    }
+    // HTTP/1.0
+    for (Header header : message.getHeaders("Pragma")) {
+      if (header.getValue().toLowerCase(Locale.ENGLISH).contains("no-cache"))
+        cc.noCache = true;
+    }
+    return cc;
+  }
+
+  /** Invalid values are taken as 0, i.e. stale (RFC 7234 section 4.2.1). */
+  private static long parseSeconds(String value) {
+    if (value == null)
+      return 0;
+    try {
+      return Math.max(0, Long.parseLong(value.trim()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.cache;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+
+/**
+ * A cached response and what's needed to tell whether it's fresh (RFC 7234 section 4.2.3) and
+ * which request headers it varies on. Its body is in memory; see {@link DiskCache} for the other
+ * kind.
+ */
+class CacheEntry {
+
+  final CachedResponse response;
+  final long freshnessLifetime;//millis
+  final long correctedInitialAge;//millis
+  /** Whether it can be served to requests with Authorization. */
+  final boolean authorizedShareable;
+  /** The lower-cased names of the request headers it varies on. */
+  final String[] varyNames;
+  /** The values of these headers in the request. */
+  final String varyKey;
+
+  CacheEntry(CachedResponse response, long freshnessLifetime, long correctedInitialAge,
+             boolean authorizedShareable, String[] varyNames, String varyKey) {
+    this.response = response;
+    this.freshnessLifetime = freshnessLifetime;
+    this.correctedInitialAge = correctedInitialAge;
+    this.authorizedShareable = authorizedShareable;
+    this.varyNames = varyNames;
+    this.varyKey = varyKey;
+  }
+
+  long currentAge(long now) {
+    return correctedInitialAge + Math.max(0, now - response.getResponseTime());
+  }
+
+  /** A new response with its status, headers and body. */
+  HttpResponse toHttpResponse() {
+    return response.toHttpResponse();
+  }
+
+  long getBodyLength() {
+    return response.getBody().length;
+  }
+
+  /** A new entity of {@code length} bytes of the body from {@code offset}. */
+  HttpEntity newEntity(long offset, long length) {
+    return new ByteArrayEntity(response.getBody(), (int) offset, (int) length);
+  }
+}
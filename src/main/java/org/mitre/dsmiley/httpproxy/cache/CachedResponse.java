@@ -0,0 +1,86 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.cache;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * A snapshot of a response of the target: status, headers and body, as received. Immutable, so
+ * it can be served to any number of clients, each through a new {@link HttpResponse}.
+ */
+public class CachedResponse {
+
+  private final StatusLine statusLine;
+  private final Header[] headers;
+  private final byte[] body;
+  private final long requestTime;
+  private final long responseTime;
+
+  /**
+   * @param requestTime when the request was sent (millis)
+   * @param responseTime when the response was received (millis)
+   */
+  public CachedResponse(StatusLine statusLine, Header[] headers, byte[] body,
+                        long requestTime, long responseTime) {
+    this.statusLine = statusLine;
+    this.headers = headers;
+    this.body = body;
+    this.requestTime = requestTime;
+    this.responseTime = responseTime;
+  }
+
+  public StatusLine getStatusLine() { return statusLine; }
+
+  public byte[] getBody() { return body; }
+
+  public long getRequestTime() { return requestTime; }
+
+  public long getResponseTime() { return responseTime; }
+
+  /** A copy of the headers. */
+  public Header[] getAllHeaders() { return headers.clone(); }
+
+  /** The first header of the name, or null. */
+  public Header getFirstHeader(String name) {
+    for (Header header : headers) {
+      if (header.getName().equalsIgnoreCase(name))
+        return header;
+    }
+    return null;
+  }
+
+  /** A new response with these status, headers and body. */
+  public HttpResponse toHttpResponse() {
+    HttpResponse response = new BasicHttpResponse(statusLine);
+    response.setHeaders(headers);
+    response.setEntity(new ByteArrayEntity(body));
+    return response;
+  }
+
+  /** An estimate of the memory it takes, in bytes. */
+  public long getWeight() {
+    long weight = 64 + body.length;
+    for (Header header : headers) {
+      weight += 32 + 2 * (header.getName().length() + header.getValue().length());
+    }
+    return weight;
+  }
+}
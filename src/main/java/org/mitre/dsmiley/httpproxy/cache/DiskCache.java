@@ -0,0 +1,579 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A cache tier for large responses, on disk: bodies are appended to memory-mapped segment files,
+ * and served by copying them out of the mapping (see {@link MappedRegionEntity}). An {@link OffHeapIndex} maps the
+ * URIs to their records. When the segments exceed the budget, the oldest one is deleted with all
+ * its responses, which makes it a FIFO cache rather than LRU.
+ * <p>
+ *   The index is rebuilt from the segments when the cache is opened again, so the cache survives
+ *   restarts (though not necessarily an OS crash). Each directory must be used by one cache only.
+ *   One response per URI is kept: a response varying on request headers is only served to
+ *   requests having the same values.
+ * </p>
+ * <p>
+ *   A body is written to disk as the client reads it from the target; the response is indexed
+ *   once it's complete. A body of unknown length (chunked) is given the rest of a segment, of
+ *   which it gives back what it didn't use if no other body was written after it meanwhile. See
+ *   {@link ResponseCache#ResponseCache(long, int, DiskCache)}.
+ * </p>
+ */
+public class DiskCache {
+
+  private static final Log log = LogFactory.getLog(DiskCache.class);
+
+  private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.dat");
+  private static final int MAGIC = 0x50524331;//"PRC1"
+  private static final int STATE_WRITING = 0;
+  private static final int STATE_COMPLETE = 1;
+  /** magic, state, meta length, unused, body length. Then the meta and the body. */
+  private static final int RECORD_HEADER_BYTES = 24;
+
+  private static class Segment {
+    final int id;
+    final File file;
+    final RandomAccessFile raf;
+    final MappedByteBuffer buffer;//never repositioned; duplicate() it
+    int writePosition;//guarded by the cache
+    volatile boolean dropped;
+
+    Segment(int id, File file, int capacity) throws IOException {
+      this.id = id;
+      this.file = file;
+      this.raf = new RandomAccessFile(file, "rw");
+      if (raf.length() < capacity)
+        raf.setLength(capacity);//sparse
+      this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    int capacity() {
+      return buffer.capacity();
+    }
+  }
+
+  /** A response whose body is a region of a segment. */
+  private static class DiskEntry extends CacheEntry {
+    private final ByteBuffer body;
+
+    DiskEntry(CachedResponse response, long freshnessLifetime, long correctedInitialAge,
+              boolean authorizedShareable, String[] varyNames, String varyKey, ByteBuffer body) {
+      super(response, freshnessLifetime, correctedInitialAge, authorizedShareable, varyNames, varyKey);
+      this.body = body;
+    }
+
+    @Override
+    HttpResponse toHttpResponse() {
+      HttpResponse httpResponse = super.toHttpResponse();
+      httpResponse.setEntity(newEntity(0, body.remaining()));
+      return httpResponse;
+    }
+
+    @Override
+    long getBodyLength() {
+      return body.remaining();
+    }
+
+    @Override
+    HttpEntity newEntity(long offset, long length) {
+      ByteBuffer region = body.duplicate();
+      region.position((int) offset);
+      region.limit((int) (offset + length));
+      return new MappedRegionEntity(region.slice());
+    }
+  }
+
+  private final File directory;
+  private final long maxBytes;
+  private final int segmentBytes;
+  private final List<Segment> segments = new ArrayList<Segment>();//guarded by this; oldest first
+  private final OffHeapIndex index = new OffHeapIndex(1024);//guarded by this
+  private int nextSegmentId;
+
+  private final AtomicLong storeCount = new AtomicLong();
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong droppedSegmentCount = new AtomicLong();
+
+  /**
+   * Opens the cache in the directory, creating it if needed, and indexes the responses of its
+   * segments.
+   *
+   * @param maxBytes the disk budget; at least 2 segments are kept
+   * @param segmentBytes the size of a segment file, which bounds the size of a response
+   */
+  public DiskCache(File directory, long maxBytes, int segmentBytes) throws IOException {
+    if (segmentBytes < 64 * 1024)
+      throw new IllegalArgumentException("segmentBytes must be >= 64KB");
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Can't create directory " + directory);
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.segmentBytes = segmentBytes;
+    rebuild();
+  }
+
+  private synchronized void rebuild() throws IOException {
+    List<Integer> ids = new ArrayList<Integer>();
+    String[] names = directory.list();
+    for (String name : names != null ? names : new String[0]) {
+      Matcher matcher = SEGMENT_NAME.matcher(name);
+      if (matcher.matches())
+        ids.add(Integer.valueOf(matcher.group(1)));
+    }
+    Collections.sort(ids);
+    long now = System.currentTimeMillis();
+    for (Integer id : ids) {
+      File file = segmentFile(id);
+      Segment segment = new Segment(id, file, (int) Math.min(Integer.MAX_VALUE, Math.max(file.length(), 1)));
+      segments.add(segment);
+      nextSegmentId = id + 1;
+      int offset = 0;
+      ByteBuffer buffer = segment.buffer;
+      while (offset + RECORD_HEADER_BYTES <= segment.capacity() && buffer.getInt(offset) == MAGIC) {
+        int recordLength = recordLength(buffer.getInt(offset + 8), buffer.getLong(offset + 16));
+        if (recordLength <= 0 || offset + (long) recordLength > segment.capacity())
+          break;//corrupt
+        if (buffer.getInt(offset + 4) == STATE_COMPLETE) {
+          CacheEntry entry = read(segment, offset);
+          if (entry != null && entry.currentAge(now) < entry.freshnessLifetime)
+            index.put(OffHeapIndex.hash(uriOf(segment, offset)), location(segment.id, offset));
+        }
+        offset += recordLength;
+      }
+      segment.writePosition = offset;
+    }
+    dropOldSegments(null);
+    if (log.isInfoEnabled() && !segments.isEmpty())
+      log.info("Indexed " + index.size() + " cached responses in " + segments.size() + " segments of " + directory);
+  }
+
+  private File segmentFile(int id) {
+    return new File(directory, String.format("segment-%08d.dat", id));
+  }
+
+  private static long location(int segmentId, int offset) {
+    return ((long) segmentId << 32) | offset;
+  }
+
+  private static int recordLength(int metaLength, long bodyLength) {
+    long length = RECORD_HEADER_BYTES + (long) metaLength + bodyLength;
+    if (metaLength < 0 || bodyLength < 0 || length > Integer.MAX_VALUE - 8)
+      return -1;
+    return (int) ((length + 7) & ~7L);//aligned
+  }
+
+  /**
+   * Returns the fresh or stale response of the URI, or null. Its freshness and Vary headers are
+   * checked by the caller.
+   */
+  CacheEntry get(String uri) {
+    long hash = OffHeapIndex.hash(uri);
+    Segment segment = null;
+    int offset;
+    synchronized (this) {
+      long location = index.get(hash);
+      if (location < 0)
+        return null;
+      int segmentId = (int) (location >>> 32);
+      offset = (int) location;
+      for (Segment candidate : segments) {
+        if (candidate.id == segmentId)
+          segment = candidate;
+      }
+      if (segment == null)
+        return null;
+    }
+    if (!uri.equals(uriOf(segment, offset)))
+      return null;//hash collision
+    CacheEntry entry = read(segment, offset);
+    if (entry != null)
+      hitCount.incrementAndGet();
+    return entry;
+  }
+
+  private static String uriOf(Segment segment, int offset) {
+    try {
+      return metaInput(segment, offset).readUTF();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static DataInputStream metaInput(Segment segment, int offset) {
+    ByteBuffer meta = segment.buffer.duplicate();
+    meta.position(offset + RECORD_HEADER_BYTES);
+    meta.limit(offset + RECORD_HEADER_BYTES + segment.buffer.getInt(offset + 8));
+    return new DataInputStream(new MappedRegionEntity(meta.slice()).getContent());
+  }
+
+  private static CacheEntry read(Segment segment, int offset) {
+    try {
+      DataInputStream in = metaInput(segment, offset);
+      in.readUTF();//uri
+      long requestTime = in.readLong();
+      long responseTime = in.readLong();
+      long freshnessLifetime = in.readLong();
+      long correctedInitialAge = in.readLong();
+      boolean authorizedShareable = in.readBoolean();
+      String[] varyNames = new String[in.readInt()];
+      for (int i = 0; i < varyNames.length; i++) {
+        varyNames[i] = in.readUTF();
+      }
+      String varyKey = in.readUTF();
+      ProtocolVersion protocolVersion = new ProtocolVersion(in.readUTF(), in.readInt(), in.readInt());
+      int status = in.readInt();
+      String reason = in.readUTF();
+      StatusLine statusLine = new BasicStatusLine(protocolVersion, status, reason.length() == 0 ? null : reason);
+      Header[] headers = new Header[in.readInt()];
+      for (int i = 0; i < headers.length; i++) {
+        headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+      }
+
+      int metaLength = segment.buffer.getInt(offset + 8);
+      int bodyOffset = offset + RECORD_HEADER_BYTES + metaLength;
+      ByteBuffer body = segment.buffer.duplicate();
+      body.position(bodyOffset);
+      body.limit((int) (bodyOffset + segment.buffer.getLong(offset + 16)));
+      return new DiskEntry(new CachedResponse(statusLine, headers, new byte[0], requestTime, responseTime),
+              freshnessLifetime, correctedInitialAge, authorizedShareable, varyNames, varyKey, body.slice());
+    } catch (IOException e) {
+      log.warn("Reading the cached response at " + offset + " of " + segment.file + ": " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Returns an entity reading {@code entity} and writing its content to a new record as it's
+   * read; the record is indexed when the content has been fully read. If there's no room, or the
+   * content turns out larger than a segment, the record is abandoned.
+   *
+   * @param entry the response's metadata; its body is ignored
+   */
+  HttpEntity store(String uri, CacheEntry entry, HttpEntity entity) throws IOException {
+    byte[] meta = writeMeta(uri, entry);
+    if (meta == null)
+      return entity;
+    long contentLength = entity.getContentLength();
+    int recordLength = recordLength(meta.length, Math.max(contentLength, 0));
+    if (recordLength < 0 || recordLength > segmentBytes)
+      return entity;
+
+    Segment segment;
+    int offset;
+    long bodyLength;//the most that will be written
+    synchronized (this) {
+      segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+      // an unknown length gets the rest of the segment, unless it's less than half of one
+      int needed = contentLength >= 0 ? recordLength : Math.max(recordLength, segmentBytes / 2);
+      if (segment == null || segment.writePosition + needed > segment.capacity()) {
+        int id = nextSegmentId++;
+        segment = new Segment(id, segmentFile(id), segmentBytes);
+        segments.add(segment);
+        dropOldSegments(segment);
+      }
+      offset = segment.writePosition;
+      if (contentLength >= 0) {
+        bodyLength = contentLength;
+      } else {
+        recordLength = (segment.capacity() - offset) & ~7;//aligned
+        bodyLength = recordLength - RECORD_HEADER_BYTES - meta.length;
+      }
+      segment.writePosition += recordLength;
+    }
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.position(offset + 4);
+    buffer.putInt(STATE_WRITING);
+    buffer.putInt(meta.length);
+    buffer.putInt(0);
+    buffer.putLong(bodyLength);
+    buffer.put(meta);
+    segment.buffer.putInt(offset, MAGIC);//last, so that a record with it is readable
+    return new RecordingEntity(entity, new RecordWriter(uri, segment, offset, buffer.position(), bodyLength,
+            contentLength < 0 ? offset + recordLength : -1));
+  }
+
+  private static byte[] writeMeta(String uri, CacheEntry entry) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeUTF(uri);
+      CachedResponse response = entry.response;
+      out.writeLong(response.getRequestTime());
+      out.writeLong(response.getResponseTime());
+      out.writeLong(entry.freshnessLifetime);
+      out.writeLong(entry.correctedInitialAge);
+      out.writeBoolean(entry.authorizedShareable);
+      out.writeInt(entry.varyNames.length);
+      for (String varyName : entry.varyNames) {
+        out.writeUTF(varyName);
+      }
+      out.writeUTF(entry.varyKey);
+      StatusLine statusLine = response.getStatusLine();
+      out.writeUTF(statusLine.getProtocolVersion().getProtocol());
+      out.writeInt(statusLine.getProtocolVersion().getMajor());
+      out.writeInt(statusLine.getProtocolVersion().getMinor());
+      out.writeInt(statusLine.getStatusCode());
+      out.writeUTF(statusLine.getReasonPhrase() == null ? "" : statusLine.getReasonPhrase());
+      Header[] headers = response.getAllHeaders();
+      out.writeInt(headers.length);
+      for (Header header : headers) {
+        out.writeUTF(header.getName());
+        out.writeUTF(header.getValue() == null ? "" : header.getValue());
+      }
+      out.flush();
+    } catch (IOException e) {
+      return null;//a string longer than 64KB
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Drops the oldest segments while over budget, except {@code keep}. */
+  private void dropOldSegments(Segment keep) {
+    while (segments.size() > 2 && (long) segments.size() * segmentBytes > maxBytes) {
+      Segment oldest = segments.get(0);
+      if (oldest == keep)
+        break;
+      segments.remove(0);
+      oldest.dropped = true;
+      index.removeLocations(location(oldest.id, 0), location(oldest.id + 1, 0));
+      close(oldest);
+      if (!oldest.file.delete())
+        log.warn("Couldn't delete " + oldest.file);
+      droppedSegmentCount.incrementAndGet();
+    }
+  }
+
+  private static void close(Segment segment) {
+    // the mapping stays valid for the responses being served from it until it's garbage collected
+    try {
+      segment.raf.close();
+    } catch (IOException e) {
+      log.warn("Closing " + segment.file + ": " + e);
+    }
+  }
+
+  private synchronized void commit(RecordWriter writer) {
+    Segment segment = writer.segment;
+    if (segment.dropped)
+      return;
+    if (writer.unknownLength) {
+      int metaLength = segment.buffer.getInt(writer.offset + 8);
+      segment.buffer.putLong(writer.offset + 16, writer.written);
+      int end = writer.offset + recordLength(metaLength, writer.written);
+      // give back the unused rest of the segment, unless it's not the last record anymore
+      if (segment.writePosition == writer.reservedEnd)
+        segment.writePosition = end;
+    }
+    segment.buffer.putInt(writer.offset + 4, STATE_COMPLETE);
+    index.put(OffHeapIndex.hash(writer.uri), location(writer.segment.id, writer.offset));
+    storeCount.incrementAndGet();
+  }
+
+  /** Removes the response of the URI, if any. */
+  synchronized void remove(String uri) {
+    long hash = OffHeapIndex.hash(uri);
+    long location = index.get(hash);
+    if (location < 0)
+      return;
+    for (Segment segment : segments) {
+      if (segment.id == (int) (location >>> 32)) {
+        if (uri.equals(uriOf(segment, (int) location)))
+          index.remove(hash);
+        return;
+      }
+    }
+  }
+
+  /** Writes what's read of a body to its record, and commits it once all was read. */
+  private class RecordWriter {
+    final String uri;
+    final Segment segment;
+    final int offset;
+    private final int bodyOffset;
+    /** The length announced, or the most there's room for if {@link #unknownLength}. */
+    private final long bodyLength;
+    final boolean unknownLength;
+    /** The end of the space reserved for a body of unknown length; -1 if known. */
+    final int reservedEnd;
+    long written;
+    private boolean done;
+
+    RecordWriter(String uri, Segment segment, int offset, int bodyOffset, long bodyLength, int reservedEnd) {
+      this.uri = uri;
+      this.segment = segment;
+      this.offset = offset;
+      this.bodyOffset = bodyOffset;
+      this.bodyLength = bodyLength;
+      this.unknownLength = reservedEnd >= 0;
+      this.reservedEnd = reservedEnd;
+    }
+
+    void write(byte[] b, int off, int len) {
+      if (done)
+        return;
+      if (written + len > bodyLength) {
+        done = true;//longer than announced, or than a segment; abandon it
+        return;
+      }
+      ByteBuffer buffer = segment.buffer.duplicate();
+      buffer.position((int) (bodyOffset + written));
+      buffer.put(b, off, len);
+      written += len;
+    }
+
+    void end() {
+      if (done)
+        return;
+      done = true;
+      if (unknownLength || written == bodyLength)
+        commit(this);
+    }
+
+    void abandon() {
+      done = true;//the space is reclaimed with the segment
+    }
+  }
+
+  /** Records the content of an entity as it's read. */
+  private static class RecordingEntity extends HttpEntityWrapper {
+    private final RecordWriter writer;
+    private InputStream content;
+
+    RecordingEntity(HttpEntity entity, RecordWriter writer) {
+      super(entity);
+      this.writer = writer;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      if (content == null) {
+        content = new FilterInputStream(wrappedEntity.getContent()) {
+          @Override
+          public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) {
+              writer.end();
+            } else {
+              writer.write(b, off, n);
+            }
+            return n;
+          }
+
+          @Override
+          public long skip(long n) throws IOException {
+            writer.abandon();
+            return super.skip(n);
+          }
+
+          @Override
+          public void close() throws IOException {
+            writer.abandon();//no-op if ended
+            super.close();
+          }
+        };
+      }
+      return content;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      InputStream in = getContent();
+      try {
+        byte[] buffer = new byte[8 * 1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          out.write(buffer, 0, n);
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /** Closes the segment files; the cache can't be used anymore. */
+  public synchronized void close() {
+    for (Segment segment : segments) {
+      segment.buffer.force();
+      close(segment);
+    }
+    segments.clear();
+  }
+
+  public File getDirectory() { return directory; }
+
+  public long getMaxBytes() { return maxBytes; }
+
+  public int getSegmentBytes() { return segmentBytes; }
+
+  /** The number of responses written to disk. */
+  public long getStoreCount() { return storeCount.get(); }
+
+  public long getHitCount() { return hitCount.get(); }
+
+  /** The number of segments deleted, with their responses, to stay within the budget. */
+  public long getDroppedSegmentCount() { return droppedSegmentCount.get(); }
+
+  public synchronized int getEntryCount() { return index.size(); }
+
+  public synchronized int getSegmentCount() { return segments.size(); }
+
+  /** The bytes of the segment files. */
+  public synchronized long getSize() {
+    long size = 0;
+    for (Segment segment : segments) {
+      size += segment.capacity();
+    }
+    return size;
+  }
+}
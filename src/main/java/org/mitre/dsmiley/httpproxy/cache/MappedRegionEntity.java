@@ -0,0 +1,99 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.cache;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An entity whose content is a region of a memory-mapped file. It isn't zero-copy when served: a
+ * servlet output stream only takes arrays (it's never a {@link WritableByteChannel}), so
+ * {@link #writeTo} copies the region out of the mapping (the page cache, without read calls) into
+ * a heap array, in large chunks, each written at once. Only a channel gets it without that copy.
+ */
+class MappedRegionEntity extends AbstractHttpEntity {
+
+  /** Large, so that a container writes each chunk straight to the socket rather than buffering it. */
+  private static final int CHUNK_SIZE = 256 * 1024;
+
+  private final ByteBuffer region;
+
+  /** @param region from its position to its limit; not modified */
+  MappedRegionEntity(ByteBuffer region) {
+    this.region = region;
+  }
+
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  public long getContentLength() {
+    return region.remaining();
+  }
+
+  public boolean isStreaming() {
+    return false;
+  }
+
+  public InputStream getContent() {
+    final ByteBuffer buffer = region.duplicate();
+    return new InputStream() {
+      @Override
+      public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        if (len == 0)
+          return 0;
+        if (!buffer.hasRemaining())
+          return -1;
+        len = Math.min(len, buffer.remaining());
+        buffer.get(b, off, len);
+        return len;
+      }
+
+      @Override
+      public int available() {
+        return buffer.remaining();
+      }
+    };
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    ByteBuffer buffer = region.duplicate();
+    if (out instanceof WritableByteChannel) {//not a servlet output stream
+      WritableByteChannel channel = (WritableByteChannel) out;
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+      return;
+    }
+    // straight from the mapping, not through getContent()
+    byte[] chunk = new byte[Math.min(CHUNK_SIZE, buffer.remaining())];
+    while (buffer.hasRemaining()) {
+      int len = Math.min(chunk.length, buffer.remaining());
+      buffer.get(chunk, 0, len);
+      out.write(chunk, 0, len);
+    }
+  }
+}
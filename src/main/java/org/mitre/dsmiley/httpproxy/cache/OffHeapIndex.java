@@ -0,0 +1,155 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A hash table of the 64-bit hashes of keys to locations (non-negative longs), stored in a direct
+ * buffer: 16 bytes per slot, with open addressing, so that millions of entries cost neither heap
+ * nor garbage collection time. Keys themselves aren't stored; a caller verifies that the key at
+ * the location is the one it looked up. Not thread-safe.
+ */
+class OffHeapIndex {
+
+  private static final int SLOT_BYTES = 16;
+  private static final long EMPTY = 0;
+  private static final long DELETED = -1;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  private ByteBuffer table;
+  private int capacity;//a power of 2
+  private int size;
+  private int used;//size and deleted slots
+
+  OffHeapIndex(int initialCapacity) {
+    int capacity = 16;
+    while (capacity < initialCapacity)
+      capacity <<= 1;
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    this.capacity = capacity;
+    this.table = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);//zeroed: all EMPTY
+    this.size = 0;
+    this.used = 0;
+  }
+
+  /** A hash of the key that is neither EMPTY nor DELETED; FNV-1a. */
+  static long hash(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash == EMPTY || hash == DELETED ? 1 : hash;
+  }
+
+  private int slotOf(long hash) {
+    return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+  }
+
+  /** The location of the hash, or -1. */
+  long get(long hash) {
+    for (int slot = slotOf(hash); ; slot = (slot + 1) & (capacity - 1)) {
+      long slotHash = table.getLong(slot * SLOT_BYTES);
+      if (slotHash == hash)
+        return table.getLong(slot * SLOT_BYTES + 8);
+      if (slotHash == EMPTY)
+        return -1;
+    }
+  }
+
+  /** Sets the location of the hash, replacing any. */
+  void put(long hash, long location) {
+    if (used + 1 > capacity * LOAD_FACTOR)
+      rehash(size + 1 > capacity * LOAD_FACTOR / 2 ? capacity * 2 : capacity);
+    int deletedSlot = -1;
+    int slot = slotOf(hash);
+    for (; ; slot = (slot + 1) & (capacity - 1)) {
+      long slotHash = table.getLong(slot * SLOT_BYTES);
+      if (slotHash == hash) {
+        table.putLong(slot * SLOT_BYTES + 8, location);
+        return;
+      }
+      if (slotHash == EMPTY)
+        break;
+      if (slotHash == DELETED && deletedSlot < 0)
+        deletedSlot = slot;
+    }
+    if (deletedSlot >= 0) {
+      slot = deletedSlot;
+    } else {
+      used++;
+    }
+    table.putLong(slot * SLOT_BYTES, hash);
+    table.putLong(slot * SLOT_BYTES + 8, location);
+    size++;
+  }
+
+  /** Removes the hash. Returns its location, or -1. */
+  long remove(long hash) {
+    for (int slot = slotOf(hash); ; slot = (slot + 1) & (capacity - 1)) {
+      long slotHash = table.getLong(slot * SLOT_BYTES);
+      if (slotHash == hash) {
+        table.putLong(slot * SLOT_BYTES, DELETED);
+        size--;
+        return table.getLong(slot * SLOT_BYTES + 8);
+      }
+      if (slotHash == EMPTY)
+        return -1;
+    }
+  }
+
+  /** Removes the entries whose location is within [from, to). Returns how many. */
+  int removeLocations(long from, long to) {
+    int removed = 0;
+    for (int slot = 0; slot < capacity; slot++) {
+      long slotHash = table.getLong(slot * SLOT_BYTES);
+      if (slotHash == EMPTY || slotHash == DELETED)
+        continue;
+      long location = table.getLong(slot * SLOT_BYTES + 8);
+      if (location >= from && location < to) {
+        table.putLong(slot * SLOT_BYTES, DELETED);
+        removed++;
+      }
+    }
+    size -= removed;
+    return removed;
+  }
+
+  private void rehash(int newCapacity) {
+    ByteBuffer old = table;
+    int oldCapacity = capacity;
+    allocate(newCapacity);
+    for (int slot = 0; slot < oldCapacity; slot++) {
+      long slotHash = old.getLong(slot * SLOT_BYTES);
+      if (slotHash != EMPTY && slotHash != DELETED)
+        put(slotHash, old.getLong(slot * SLOT_BYTES + 8));
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** The bytes of the table (off-heap). */
+  long getTableBytes() {
+    return (long) capacity * SLOT_BYTES;
+  }
+}
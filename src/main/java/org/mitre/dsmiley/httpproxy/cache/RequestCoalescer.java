@@ -0,0 +1,224 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.cache;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical concurrent GET and HEAD requests ("single flight"): the first one, the
+ * leader, goes to the target, and the others, its followers, wait for its response and get a copy
+ * of it instead of going to the target too. Requests are identical if they have the same method,
+ * URI, and values of the configured headers (and of the conditional and range headers).
+ * <p>
+ *   The response is shared from a buffer, so those with bodies larger than a maximum aren't
+ *   shared, and neither are those setting cookies or {@code private} or {@code no-store}. Then, or
+ *   if the leader fails or takes longer than the timeout, each follower goes to the target on its
+ *   own. Usage:
+ * </p>
+ * <pre>
+ * RequestCoalescer.Flight flight = coalescer.join(proxyRequest);
+ * if (flight == null) { execute } else if (!flight.isLeader()) { response = flight.await(); if (response == null) execute }
+ * else try { execute; response = flight.share(response); } finally { flight.cancel(); }
+ * </pre>
+ */
+public class RequestCoalescer {
+
+  /** Request headers always part of the key, since the response depends on them. */
+  private static final String[] CONDITIONAL_HEADERS = {"If-None-Match", "If-Modified-Since", "Range", "If-Range"};
+
+  private final String[] headerNames;
+  private final long timeoutMillis;
+  private final int maxBodyBytes;
+  private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+  private final AtomicLong leaderCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+  private final AtomicLong timeoutCount = new AtomicLong();
+  private final AtomicLong fallbackCount = new AtomicLong();
+
+  /** A request to the target, and those waiting for its response. */
+  public class Flight {
+    private final String key;
+    /** This, if it's the leader's. */
+    private final Flight leaderFlight;
+    private final CountDownLatch landed;
+    private volatile CachedResponse response;//the leader's; null if not shared
+
+    /** @param leaderFlight null for a leader */
+    private Flight(String key, Flight leaderFlight) {
+      this.key = key;
+      this.leaderFlight = leaderFlight != null ? leaderFlight : this;
+      this.landed = leaderFlight != null ? leaderFlight.landed : new CountDownLatch(1);
+    }
+
+    /** Whether this request goes to the target. */
+    public boolean isLeader() {
+      return leaderFlight == this;
+    }
+
+    /**
+     * (Follower) Waits for the leader's response, and returns a copy of it, or null if it's not
+     * shared or didn't come in time; then the request should go to the target itself.
+     */
+    public HttpResponse await() {
+      try {
+        if (!landed.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+          timeoutCount.incrementAndGet();
+          return null;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      CachedResponse shared = leaderFlight.response;
+      if (shared == null) {
+        fallbackCount.incrementAndGet();
+        return null;
+      }
+      coalescedCount.incrementAndGet();
+      return shared.toHttpResponse();
+    }
+
+    /**
+     * (Leader) Shares the target's response with the followers, if it's shareable, and returns
+     * the response to send, whose body might have been read (and so replaced).
+     */
+    public HttpResponse share(HttpResponse proxyResponse) throws IOException {
+      if (landed.getCount() == 0)
+        return proxyResponse;
+      if (isShareable(proxyResponse)) {
+        long now = System.currentTimeMillis();
+        byte[] body = ResponseCache.readBody(proxyResponse, maxBodyBytes);
+        if (body != null)
+          response = new CachedResponse(proxyResponse.getStatusLine(), proxyResponse.getAllHeaders(), body, now, now);
+      }
+      land();
+      return proxyResponse;
+    }
+
+    /** (Leader) Releases the followers without a response, unless shared already. Idempotent. */
+    public void cancel() {
+      if (landed.getCount() != 0)
+        land();
+    }
+
+    private void land() {
+      flights.remove(key, this);
+      landed.countDown();
+    }
+  }
+
+  /**
+   * @param headerNames the request headers whose values must be the same to coalesce requests,
+   *                    e.g. Accept-Encoding, Authorization and Cookie
+   * @param timeoutMillis the longest a follower waits for its leader
+   * @param maxBodyBytes larger responses aren't shared
+   */
+  public RequestCoalescer(String[] headerNames, long timeoutMillis, int maxBodyBytes) {
+    this.headerNames = headerNames.clone();
+    this.timeoutMillis = timeoutMillis;
+    this.maxBodyBytes = maxBodyBytes;
+  }
+
+  /**
+   * Returns the flight of the request: a new one it leads, or the one in progress it follows.
+   * Null if the request can't be coalesced (it's not a GET or HEAD, or has a body).
+   */
+  public Flight join(HttpRequest proxyRequest) {
+    return join(proxyRequest, proxyRequest.getRequestLine().getUri());
+  }
+
+  /**
+   * Like {@link #join(HttpRequest)}, with the request identified by {@code uri} rather than its
+   * own, e.g. the same one for each load balanced replica.
+   */
+  public Flight join(HttpRequest proxyRequest, String uri) {
+    String method = proxyRequest.getRequestLine().getMethod();
+    if (!(method.equals("GET") || method.equals("HEAD")) || hasBody(proxyRequest))
+      return null;
+    String key = keyOf(proxyRequest, uri);
+    Flight flight = new Flight(key, null);
+    Flight inProgress = flights.putIfAbsent(key, flight);
+    if (inProgress == null) {
+      leaderCount.incrementAndGet();
+      return flight;
+    }
+    return new Flight(key, inProgress);
+  }
+
+  private static boolean hasBody(HttpRequest request) {
+    if (!(request instanceof HttpEntityEnclosingRequest))
+      return false;
+    HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+    return entity != null && entity.getContentLength() != 0;
+  }
+
+  String keyOf(HttpRequest proxyRequest, String uri) {
+    StringBuilder key = new StringBuilder(128);
+    key.append(proxyRequest.getRequestLine().getMethod()).append(' ')
+            .append(ResponseCache.normalizeUri(uri));
+    appendHeaders(key, proxyRequest, headerNames);
+    appendHeaders(key, proxyRequest, CONDITIONAL_HEADERS);
+    return key.toString();
+  }
+
+  private static void appendHeaders(StringBuilder key, HttpRequest request, String[] names) {
+    for (String name : names) {
+      key.append('\n');
+      for (Header header : request.getHeaders(name)) {
+        key.append(header.getValue()).append(',');
+      }
+    }
+  }
+
+  private static boolean isShareable(HttpResponse response) {
+    if (response.containsHeader("Set-Cookie") || response.containsHeader("Set-Cookie2"))
+      return false;
+    CacheControl cacheControl = CacheControl.of(response);
+    return !cacheControl.isPrivate && !cacheControl.noStore;
+  }
+
+  /** The number of requests that went to the target as leaders. */
+  public long getLeaderCount() { return leaderCount.get(); }
+
+  /** The number of requests served their leader's response. */
+  public long getCoalescedCount() { return coalescedCount.get(); }
+
+  /** The number of followers that stopped waiting for their leader. */
+  public long getTimeoutCount() { return timeoutCount.get(); }
+
+  /** The number of followers whose leader's response couldn't be shared. */
+  public long getFallbackCount() { return fallbackCount.get(); }
+
+  /** The number of leaders in progress. */
+  public int getInFlightCount() { return flights.size(); }
+
+  public long getTimeoutMillis() { return timeoutMillis; }
+
+  public int getMaxBodyBytes() { return maxBodyBytes; }
+}
@@ -0,0 +1,586 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.cache;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory cache of the target's responses to GET requests, following the rules of a shared
+ * cache in RFC 7234: only responses with an explicit freshness lifetime ({@code s-maxage},
+ * {@code max-age} or {@code Expires}) are stored, {@code Vary} selects among variants, and
+ * {@code no-store}, {@code private} and requests with {@code Authorization} are honored.
+ * Responses are not revalidated; a stale one is replaced by the next response stored.
+ * <p>
+ *   It's bounded by a budget of bytes, evicting the least recently used URIs first. Responses
+ *   setting cookies are never stored. Larger responses can be stored in a {@link DiskCache}.
+ *   A single byte range of a cached 200 response is served from it (RFC 7233).
+ * </p>
+ */
+public class ResponseCache {
+
+  /** Cacheable by default; RFC 7231 section 6.1. */
+  private static final int[] CACHEABLE_STATUSES = {200, 203, 204, 300, 301, 404, 405, 410, 414, 501};
+
+  private static final String[] NO_VARY = new String[0];
+
+  /** The responses of a URI, by the values of the headers they vary on. */
+  private static class Variants {
+    final String[] varyNames;
+    final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(2);
+    long weight;
+
+    Variants(String[] varyNames) {
+      this.varyNames = varyNames;
+    }
+  }
+
+  private static class Entry extends CacheEntry {
+    final long weight;
+
+    Entry(CachedResponse response, long freshnessLifetime, long correctedInitialAge,
+          boolean authorizedShareable, String[] varyNames, String varyKey, long keyLength) {
+      super(response, freshnessLifetime, correctedInitialAge, authorizedShareable, varyNames, varyKey);
+      this.weight = response.getWeight() + 2 * keyLength;
+    }
+  }
+
+  private final long maxBytes;
+  private final int maxEntryBytes;
+  private final DiskCache diskCache;
+  /** By normalized URI, in access order. Guarded by this. */
+  private final LinkedHashMap<String, Variants> uris = new LinkedHashMap<String, Variants>(64, 0.75f, true);
+  private long bytes;//guarded by this
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong storeCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * @param maxBytes the budget of memory (estimated)
+   * @param maxEntryBytes responses with larger bodies aren't stored
+   */
+  public ResponseCache(long maxBytes, int maxEntryBytes) {
+    this(maxBytes, maxEntryBytes, null);
+  }
+
+  /**
+   * @param maxBytes the budget of memory (estimated); may be 0 with a disk cache
+   * @param maxEntryBytes responses with larger bodies are stored in the disk cache, if any
+   * @param diskCache may be null
+   */
+  public ResponseCache(long maxBytes, int maxEntryBytes, DiskCache diskCache) {
+    if (maxBytes < 0 || (maxBytes == 0 && diskCache == null) || maxEntryBytes < 0)
+      throw new IllegalArgumentException("maxBytes must be > 0 and maxEntryBytes >= 0");
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = (int) Math.min(maxEntryBytes, maxBytes);
+    this.diskCache = diskCache;
+  }
+
+  /**
+   * Returns the fresh cached response to the request, or null. It's a 304 (Not Modified) if the
+   * request is conditional and its condition matches, and a 206 (Partial Content) if it has a
+   * {@code Range}.
+   *
+   * @param proxyRequest the request to the target, with its headers (an absolute URI)
+   */
+  public HttpResponse lookup(HttpRequest proxyRequest) {
+    return lookup(proxyRequest, proxyRequest.getRequestLine().getUri());
+  }
+
+  /**
+   * Like {@link #lookup(HttpRequest)}, with the responses keyed on {@code uri} rather than that of
+   * the request, e.g. the same one for each load balanced replica.
+   */
+  public HttpResponse lookup(HttpRequest proxyRequest, String uri) {
+    if (!isCacheableMethod(proxyRequest))
+      return null;
+    CacheControl requestCc = CacheControl.of(proxyRequest);
+    if (requestCc.noStore || proxyRequest.containsHeader("If-Match")
+            || proxyRequest.containsHeader("If-Unmodified-Since"))
+      return null;//bypass; not a miss
+    uri = normalizeUri(uri);
+    CacheEntry entry = null;
+    synchronized (this) {
+      Variants variants = uris.get(uri);
+      if (variants != null)
+        entry = variants.entries.get(varyKey(proxyRequest, variants.varyNames));
+    }
+    if (entry == null && diskCache != null) {
+      entry = diskCache.get(uri);
+      if (entry != null && !entry.varyKey.equals(varyKey(proxyRequest, entry.varyNames)))
+        entry = null;
+    }
+    long now = System.currentTimeMillis();
+    if (entry == null || !isFresh(entry, requestCc, now)
+            || (proxyRequest.containsHeader("Authorization") && !entry.authorizedShareable)) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    hitCount.incrementAndGet();
+    HttpResponse response;
+    if (isNotModified(proxyRequest, entry.response)) {
+      response = notModified(entry.response);
+    } else {
+      response = rangeResponse(proxyRequest, entry);
+      if (response == null)
+        response = entry.toHttpResponse();
+    }
+    response.setHeader("Age", Long.toString(entry.currentAge(now) / 1000));
+    return response;
+  }
+
+  /**
+   * Stores the target's response to the request if it's cacheable. Either way, returns the
+   * response to send to the client, whose body might have been read (and so replaced). A
+   * successful response to an unsafe method (e.g. POST) invalidates the URI; RFC 7234 section 4.4.
+   *
+   * @param requestTime when the request was sent to the target (millis)
+   */
+  public HttpResponse store(HttpRequest proxyRequest, HttpResponse response, long requestTime)
+          throws IOException {
+    return store(proxyRequest, proxyRequest.getRequestLine().getUri(), response, requestTime);
+  }
+
+  /** Like {@link #store(HttpRequest, HttpResponse, long)}, keyed on {@code uri}. */
+  public HttpResponse store(HttpRequest proxyRequest, String uri, HttpResponse response, long requestTime)
+          throws IOException {
+    long responseTime = System.currentTimeMillis();
+    int status = response.getStatusLine().getStatusCode();
+    if (!isCacheableMethod(proxyRequest)) {
+      if (status < 400 && !isSafeMethod(proxyRequest))
+        invalidate(uri);
+      return response;
+    }
+    if (!isCacheableStatus(status))
+      return response;
+    CacheControl requestCc = CacheControl.of(proxyRequest);
+    CacheControl responseCc = CacheControl.of(response);
+    if (requestCc.noStore || responseCc.noStore || responseCc.isPrivate || responseCc.noCache
+            || response.containsHeader("Set-Cookie") || response.containsHeader("Set-Cookie2"))
+      return response;
+    boolean authorizedShareable = responseCc.isPublic || responseCc.sMaxAge >= 0 || responseCc.mustRevalidate;
+    if (proxyRequest.containsHeader("Authorization") && !authorizedShareable)
+      return response;
+    String[] varyNames = varyNames(response);
+    if (varyNames == null)
+      return response;//Vary: *
+    long dateValue = parseDate(response.getFirstHeader("Date"), responseTime);
+    long freshnessLifetime = freshnessLifetime(response, responseCc, dateValue);
+    if (freshnessLifetime <= 0)
+      return response;
+
+    // RFC 7234 section 4.2.3
+    long apparentAge = Math.max(0, responseTime - dateValue);
+    long correctedAgeValue = parseSeconds(response.getFirstHeader("Age")) * 1000 + (responseTime - requestTime);
+    long correctedInitialAge = Math.max(apparentAge, correctedAgeValue);
+    uri = normalizeUri(uri);
+    String varyKey = varyKey(proxyRequest, varyNames);
+    Header[] headers = withoutAge(response.getAllHeaders());
+
+    HttpEntity entity = response.getEntity();
+    boolean toDisk = diskCache != null && entity != null
+            && (entity.getContentLength() > maxEntryBytes || (entity.getContentLength() < 0 && maxBytes == 0));
+    byte[] body = null;
+    if (!toDisk) {
+      if (maxBytes == 0)
+        return response;
+      body = readBody(response, maxEntryBytes);
+      if (body == null && diskCache == null)
+        return response;//too large; its entity was replaced
+      toDisk = body == null;//too large, of unknown length (chunked); it's in the replaced entity
+    }
+    if (toDisk) {
+      CachedResponse cached = new CachedResponse(response.getStatusLine(), headers, new byte[0], requestTime, responseTime);
+      response.setEntity(diskCache.store(uri, new CacheEntry(cached, freshnessLifetime, correctedInitialAge,
+              authorizedShareable, varyNames, varyKey), response.getEntity()));
+      return response;
+    }
+
+    CachedResponse cached = new CachedResponse(response.getStatusLine(), headers, body, requestTime, responseTime);
+    put(uri, varyNames, varyKey, new Entry(cached, freshnessLifetime, correctedInitialAge, authorizedShareable,
+            varyNames, varyKey, uri.length() + varyKey.length()));
+    return response;
+  }
+
+  /** Removes the responses of the request's URI. */
+  public void invalidate(HttpRequest proxyRequest) {
+    invalidate(proxyRequest.getRequestLine().getUri());
+  }
+
+  /** Removes the responses of the URI. */
+  public void invalidate(String uri) {
+    uri = normalizeUri(uri);
+    synchronized (this) {
+      Variants removed = uris.remove(uri);
+      if (removed != null)
+        bytes -= removed.weight;
+    }
+    if (diskCache != null)
+      diskCache.remove(uri);
+  }
+
+  private synchronized void put(String uri, String[] varyNames, String varyKey, Entry entry) {
+    Variants variants = uris.get(uri);
+    if (variants == null || !Arrays.equals(variants.varyNames, varyNames)) {
+      if (variants != null)
+        bytes -= variants.weight;
+      variants = new Variants(varyNames);
+      uris.put(uri, variants);
+    }
+    Entry replaced = variants.entries.put(varyKey, entry);
+    if (replaced != null) {
+      variants.weight -= replaced.weight;
+      bytes -= replaced.weight;
+    }
+    variants.weight += entry.weight;
+    bytes += entry.weight;
+    storeCount.incrementAndGet();
+
+    Iterator<Variants> eldest = uris.values().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      Variants evicted = eldest.next();
+      if (evicted == variants && uris.size() == 1)
+        break;// it alone is too large; can't happen with maxEntryBytes <= maxBytes
+      eldest.remove();
+      bytes -= evicted.weight;
+      evictionCount.addAndGet(evicted.entries.size());
+    }
+  }
+
+  private static boolean isCacheableMethod(HttpRequest request) {
+    return "GET".equals(request.getRequestLine().getMethod());
+  }
+
+  private static boolean isSafeMethod(HttpRequest request) {
+    String method = request.getRequestLine().getMethod();
+    return method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS") || method.equals("TRACE");
+  }
+
+  private static boolean isCacheableStatus(int status) {
+    for (int cacheable : CACHEABLE_STATUSES) {
+      if (status == cacheable)
+        return true;
+    }
+    return false;
+  }
+
+  private static boolean isFresh(CacheEntry entry, CacheControl requestCc, long now) {
+    if (requestCc.noCache)
+      return false;
+    long age = entry.currentAge(now);
+    if (age >= entry.freshnessLifetime)
+      return false;
+    // max-age=0 is how clients ask for revalidation, even within the first second
+    if (requestCc.maxAge >= 0 && (requestCc.maxAge == 0 || age > requestCc.maxAge * 1000))
+      return false;
+    return requestCc.minFresh < 0 || entry.freshnessLifetime - age >= requestCc.minFresh * 1000;
+  }
+
+  /** Millis; 0 if none (we don't use heuristics). */
+  private static long freshnessLifetime(HttpResponse response, CacheControl responseCc, long dateValue) {
+    if (responseCc.sMaxAge >= 0)
+      return responseCc.sMaxAge * 1000;
+    if (responseCc.maxAge >= 0)
+      return responseCc.maxAge * 1000;
+    Header expires = response.getFirstHeader("Expires");
+    if (expires != null) {
+      Date expiresDate = DateUtils.parseDate(expires.getValue());
+      return expiresDate == null ? 0 : expiresDate.getTime() - dateValue;//invalid means expired
+    }
+    return 0;
+  }
+
+  /** Whether the request's If-None-Match, else If-Modified-Since, matches. RFC 7232 section 6. */
+  private static boolean isNotModified(HttpRequest request, CachedResponse cached) {
+    if (cached.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
+      return false;
+    Header ifNoneMatch = request.getFirstHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      Header etag = cached.getFirstHeader("ETag");
+      if (etag == null)
+        return false;
+      String tag = weakless(etag.getValue());
+      for (String candidate : ifNoneMatch.getValue().split(",")) {
+        candidate = candidate.trim();
+        if (candidate.equals("*") || weakless(candidate).equals(tag))
+          return true;
+      }
+      return false;
+    }
+    Header ifModifiedSince = request.getFirstHeader("If-Modified-Since");
+    Header lastModified = cached.getFirstHeader("Last-Modified");
+    if (ifModifiedSince == null || lastModified == null)
+      return false;
+    Date since = DateUtils.parseDate(ifModifiedSince.getValue());
+    Date modified = DateUtils.parseDate(lastModified.getValue());
+    return since != null && modified != null && !modified.after(since);
+  }
+
+  /**
+   * A 206 response with the single byte range the request asks for, or a 416 if it's not
+   * satisfiable; null to send the whole response, e.g. if there are several ranges, which we
+   * needn't support. RFC 7233.
+   */
+  private static HttpResponse rangeResponse(HttpRequest request, CacheEntry entry) {
+    Header range = request.getFirstHeader("Range");
+    if (range == null || entry.response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
+      return null;
+    String spec = range.getValue().trim();
+    if (!spec.startsWith("bytes=") || spec.indexOf(',') >= 0)
+      return null;
+    Header ifRange = request.getFirstHeader("If-Range");
+    if (ifRange != null && !isIfRangeMatching(ifRange.getValue().trim(), entry.response))
+      return null;
+    long length = entry.getBodyLength();
+    long first;
+    long last;
+    int dashIdx = spec.indexOf('-');
+    try {
+      if (dashIdx < 0)
+        return null;
+      String firstString = spec.substring("bytes=".length(), dashIdx).trim();
+      String lastString = spec.substring(dashIdx + 1).trim();
+      if (firstString.length() == 0) {//suffix
+        long suffix = Long.parseLong(lastString);
+        first = Math.max(0, length - suffix);
+        last = length - 1;
+        if (suffix == 0)
+          first = length;//unsatisfiable
+      } else {
+        first = Long.parseLong(firstString);
+        last = lastString.length() == 0 ? length - 1 : Math.min(Long.parseLong(lastString), length - 1);
+        if (last < first && first < length)
+          return null;//invalid
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    ProtocolVersion protocolVersion = entry.response.getStatusLine().getProtocolVersion();
+    if (first < 0 || first >= length) {
+      HttpResponse response = new BasicHttpResponse(protocolVersion, 416, "Requested Range Not Satisfiable");
+      response.setHeader("Content-Range", "bytes */" + length);
+      response.setHeader("Content-Length", "0");
+      return response;
+    }
+    HttpResponse response = entry.toHttpResponse();
+    response.setStatusLine(protocolVersion, HttpStatus.SC_PARTIAL_CONTENT, "Partial Content");
+    response.setHeader("Content-Range", "bytes " + first + "-" + last + "/" + length);
+    response.setHeader("Content-Length", Long.toString(last - first + 1));
+    response.setEntity(entry.newEntity(first, last - first + 1));
+    return response;
+  }
+
+  /** Whether If-Range is the strong ETag or the Last-Modified date of the response. */
+  private static boolean isIfRangeMatching(String ifRange, CachedResponse cached) {
+    if (ifRange.startsWith("\"")) {
+      Header etag = cached.getFirstHeader("ETag");
+      return etag != null && etag.getValue().equals(ifRange);
+    }
+    Header lastModified = cached.getFirstHeader("Last-Modified");
+    return lastModified != null && lastModified.getValue().equals(ifRange);
+  }
+
+  private static String weakless(String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag;
+  }
+
+  private static HttpResponse notModified(CachedResponse cached) {
+    HttpResponse response = new BasicHttpResponse(cached.getStatusLine().getProtocolVersion(),
+            HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+    // RFC 7232 section 4.1
+    for (String name : new String[]{"Cache-Control", "Content-Location", "Date", "ETag", "Expires", "Vary"}) {
+      Header header = cached.getFirstHeader(name);
+      if (header != null)
+        response.addHeader(header);
+    }
+    return response;
+  }
+
+  /** The lower-cased names of the Vary headers; null for "*". */
+  private static String[] varyNames(HttpResponse response) {
+    Header[] varyHeaders = response.getHeaders("Vary");
+    if (varyHeaders.length == 0)
+      return NO_VARY;
+    StringBuilder names = new StringBuilder();
+    for (Header vary : varyHeaders) {
+      if (names.length() > 0)
+        names.append(',');
+      names.append(vary.getValue());
+    }
+    String[] varyNames = names.toString().split(",");
+    for (int i = 0; i < varyNames.length; i++) {
+      varyNames[i] = varyNames[i].trim().toLowerCase(Locale.ENGLISH);
+      if (varyNames[i].equals("*"))
+        return null;
+    }
+    return varyNames;
+  }
+
+  private static String varyKey(HttpRequest request, String[] varyNames) {
+    if (varyNames.length == 0)
+      return "";
+    StringBuilder key = new StringBuilder();
+    for (String name : varyNames) {
+      for (Header header : request.getHeaders(name)) {
+        key.append(header.getValue().trim()).append(',');
+      }
+      key.append('\n');
+    }
+    return key.toString();
+  }
+
+  /**
+   * The URI without its fragment and with its scheme and host in lower case and a default port
+   * removed, so that equivalent URIs are cached once.
+   */
+  static String normalizeUri(String uri) {
+    int fragIdx = uri.indexOf('#');
+    if (fragIdx >= 0)
+      uri = uri.substring(0, fragIdx);
+    int schemeEnd = uri.indexOf("://");
+    if (schemeEnd < 0)
+      return uri;
+    int authorityEnd = schemeEnd + 3;
+    while (authorityEnd < uri.length() && "/?".indexOf(uri.charAt(authorityEnd)) < 0)
+      authorityEnd++;
+    String schemeAndAuthority = uri.substring(0, authorityEnd).toLowerCase(Locale.ENGLISH);
+    if (schemeAndAuthority.startsWith("http:") && schemeAndAuthority.endsWith(":80")) {
+      schemeAndAuthority = schemeAndAuthority.substring(0, schemeAndAuthority.length() - 3);
+    } else if (schemeAndAuthority.startsWith("https:") && schemeAndAuthority.endsWith(":443")) {
+      schemeAndAuthority = schemeAndAuthority.substring(0, schemeAndAuthority.length() - 4);
+    }
+    String rest = uri.substring(authorityEnd);
+    return schemeAndAuthority + (rest.length() == 0 ? "/" : rest);
+  }
+
+  /**
+   * Reads the body if it's no larger than {@code maxBytes}, and replaces the entity with it.
+   * Otherwise returns null, and replaces the entity with one that returns what was read first.
+   */
+  static byte[] readBody(HttpResponse response, int maxBytes) throws IOException {
+    HttpEntity entity = response.getEntity();
+    if (entity == null)
+      return new byte[0];
+    long contentLength = entity.getContentLength();
+    if (contentLength > maxBytes)
+      return null;
+    InputStream in = entity.getContent();
+    byte[] buf = new byte[contentLength >= 0 ? (int) contentLength + 1 : Math.min(8192, maxBytes + 1)];
+    int len = 0;
+    while (true) {
+      if (len == buf.length) {
+        if (len > maxBytes)
+          break;
+        buf = Arrays.copyOf(buf, (int) Math.min((long) maxBytes + 1, 2L * buf.length));
+      }
+      int n = in.read(buf, len, buf.length - len);
+      if (n < 0) {
+        in.close();
+        byte[] body = len == buf.length ? buf : Arrays.copyOf(buf, len);
+        ByteArrayEntity bodyEntity = new ByteArrayEntity(body);
+        bodyEntity.setContentType(entity.getContentType());
+        bodyEntity.setContentEncoding(entity.getContentEncoding());
+        response.setEntity(bodyEntity);
+        return body;
+      }
+      len += n;
+    }
+    // too large: put back what we read
+    BasicHttpEntity rest = new BasicHttpEntity();
+    rest.setContent(new SequenceInputStream(new ByteArrayInputStream(buf, 0, len), in));
+    rest.setContentLength(contentLength);
+    rest.setContentType(entity.getContentType());
+    rest.setContentEncoding(entity.getContentEncoding());
+    rest.setChunked(entity.isChunked());
+    response.setEntity(rest);
+    return null;
+  }
+
+  private static long parseDate(Header header, long defaultValue) {
+    Date date = header != null ? DateUtils.parseDate(header.getValue()) : null;
+    return date != null ? date.getTime() : defaultValue;
+  }
+
+  private static long parseSeconds(Header header) {
+    if (header == null)
+      return 0;
+    try {
+      return Math.max(0, Long.parseLong(header.getValue().trim()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static Header[] withoutAge(Header[] headers) {
+    int count = 0;
+    for (Header header : headers) {
+      if (!header.getName().equalsIgnoreCase("Age"))
+        headers[count++] = header;
+    }
+    return count == headers.length ? headers : Arrays.copyOf(headers, count);
+  }
+
+  /** Closes the disk cache, if any. */
+  public void close() {
+    if (diskCache != null)
+      diskCache.close();
+  }
+
+  /** The tier of large responses; null if none. */
+  public DiskCache getDiskCache() { return diskCache; }
+
+  public long getHitCount() { return hitCount.get(); }
+
+  public long getMissCount() { return missCount.get(); }
+
+  public long getStoreCount() { return storeCount.get(); }
+
+  /** The number of responses evicted to stay within the budget. */
+  public long getEvictionCount() { return evictionCount.get(); }
+
+  /** The estimated memory used, in bytes. */
+  public synchronized long getSize() { return bytes; }
+
+  /** The number of URIs with responses. */
+  public synchronized int getUriCount() { return uris.size(); }
+
+  public long getMaxBytes() { return maxBytes; }
+
+  public int getMaxEntryBytes() { return maxEntryBytes; }
+}
@@ -13,6 +13,8 @@ import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.config.SocketConfig;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.mitre.dsmiley.httpproxy.pool.ConnectionPoolConfig;
 
 public class ReverseproxyCaller {
 
@@ -20,6 +22,7 @@ public class ReverseproxyCaller {
 	private boolean doHandleRedirects = false;
 	private int connectTimeout = -1;
 	private int readTimeout = -1;
+	private ConnectionPoolConfig poolConfig = new ConnectionPoolConfig();
 
 	private HttpHost httpHost;
 
@@ -34,11 +37,24 @@ public class ReverseproxyCaller {
 	 * many opportunities for customization. In any case, it should be thread-safe.
 	 */
 	protected HttpClient createHttpClient() {
+		PoolingHttpClientConnectionManager connectionManager = poolConfig.createConnectionManager(buildSocketConfig(),
+				false);
 		HttpClientBuilder clientBuilder = HttpClientBuilder.create().setDefaultRequestConfig(buildRequestConfig())
-				.setDefaultSocketConfig(buildSocketConfig());
+				.setDefaultSocketConfig(buildSocketConfig()).setConnectionManager(connectionManager);
 		return clientBuilder.build();
 	}
 
+	/**
+	 * The settings of the connection pool used by {@link #createHttpClient()}.
+	 */
+	public ConnectionPoolConfig getPoolConfig() {
+		return poolConfig;
+	}
+
+	public void setPoolConfig(ConnectionPoolConfig poolConfig) {
+		this.poolConfig = poolConfig;
+	}
+
 	/**
 	 * Sub-classes can override specific behaviour of
 	 * {@link org.apache.http.client.config.RequestConfig}.
@@ -50,7 +66,9 @@ public class ReverseproxyCaller {
 
 				.setCookieSpec(CookieSpecs.IGNORE_COOKIES) // we handle them in the servlet instead
 
-				.setConnectTimeout(connectTimeout).setSocketTimeout(readTimeout).build();
+				.setConnectTimeout(connectTimeout).setSocketTimeout(readTimeout)
+
+				.setConnectionRequestTimeout(poolConfig.getLeaseTimeout()).build();
 	}
 
 	/**
@@ -58,11 +76,10 @@ public class ReverseproxyCaller {
 	 * {@link org.apache.http.config.SocketConfig}.
 	 */
 	protected SocketConfig buildSocketConfig() {
-
-		if (readTimeout < 1) {
-			return null;
+		SocketConfig.Builder builder = poolConfig.socketConfigBuilder();
+		if (readTimeout >= 1) {
+			builder.setSoTimeout(readTimeout);
 		}
-
-		return SocketConfig.custom().setSoTimeout(readTimeout).build();
+		return builder.build();
 	}
 }
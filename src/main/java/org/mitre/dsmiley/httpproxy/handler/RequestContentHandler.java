@@ -3,7 +3,6 @@ package org.mitre.dsmiley.httpproxy.handler;
 import java.io.IOException;
 import java.net.URI;
 import java.util.BitSet;
-import java.util.Formatter;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -13,6 +12,7 @@ import org.apache.http.HttpRequest;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.apache.http.message.BasicHttpRequest;
+import org.mitre.dsmiley.httpproxy.uri.UriRewriter;
 
 public class RequestContentHandler {
 	private boolean doSendUrlFragment;
@@ -42,44 +42,21 @@ public class RequestContentHandler {
 	 * considering targetUri. It's used to make the new request.
 	 */
 	protected String rewriteUrlFromRequest(HttpServletRequest servletRequest) {
-		StringBuilder uri = new StringBuilder(500);
-		uri.append(targetUri);
-		// Handle the path given to the servlet
-		String pathInfo = servletRequest.getPathInfo();
-		if (pathInfo != null) {// ex: /my/path.html
-			// getPathInfo() returns decoded string, so we need encodeUriQuery to encode "%"
-			// characters
-			uri.append(encodeUriQuery(pathInfo, true));
-		}
-		// Handle the query string & fragment
+		String pathInfo = servletRequest.getPathInfo();// ex: /my/path.html
 		String queryString = servletRequest.getQueryString();// ex:(following '?'): name=value&foo=bar#fragment
-		String fragment = null;
-		// split off fragment from queryString, updating queryString if found
-		if (queryString != null) {
-			int fragIdx = queryString.indexOf('#');
-			if (fragIdx >= 0) {
-				fragment = queryString.substring(fragIdx + 1);
-				queryString = queryString.substring(0, fragIdx);
-			}
-		}
-
-		queryString = rewriteQueryStringFromRequest(servletRequest, queryString);
-		if (queryString != null && queryString.length() > 0) {
-			uri.append('?');
-			// queryString is not decoded, so we need encodeUriQuery not to encode "%"
-			// characters, to avoid double-encoding
-			uri.append(encodeUriQuery(queryString, false));
+		// split off fragment from queryString, if found
+		int fragIdx = queryString != null ? queryString.indexOf('#') : -1;
+		if (fragIdx < 0) {
+			queryString = rewriteQueryStringFromRequest(servletRequest, queryString);
+			return UriRewriter.rewrite(targetUri, pathInfo, queryString, null);
 		}
-
-		if (doSendUrlFragment && fragment != null) {
-			uri.append('#');
-			// fragment is not decoded, so we need encodeUriQuery not to encode "%"
-			// characters, to avoid double-encoding
-			uri.append(encodeUriQuery(fragment, false));
-		}
-		return uri.toString();
+		String fragment = doSendUrlFragment ? queryString.substring(fragIdx + 1) : null;
+		queryString = rewriteQueryStringFromRequest(servletRequest, queryString.substring(0, fragIdx));
+		return UriRewriter.rewrite(targetUri, pathInfo, queryString, fragment);
 	}
 
+	/** @deprecated no longer used; {@link UriRewriter} has its own table. */
+	@Deprecated
 	protected static final BitSet asciiQueryChars;
 	static {
 		char[] c_unreserved = "_-!.~'()*".toCharArray();// plus alphanum
@@ -118,35 +95,7 @@ public class RequestContentHandler {
 	 *            determine whether percent characters need to be encoded
 	 */
 	protected static CharSequence encodeUriQuery(CharSequence in, boolean encodePercent) {
-		// Note that I can't simply use URI.java to encode because it will escape
-		// pre-existing escaped things.
-		StringBuilder outBuf = null;
-		Formatter formatter = null;
-		for (int i = 0; i < in.length(); i++) {
-			char c = in.charAt(i);
-			boolean escape = true;
-			if (c < 128) {
-				if (asciiQueryChars.get((int) c) && !(encodePercent && c == '%')) {
-					escape = false;
-				}
-			} else if (!Character.isISOControl(c) && !Character.isSpaceChar(c)) {// not-ascii
-				escape = false;
-			}
-			if (!escape) {
-				if (outBuf != null)
-					outBuf.append(c);
-			} else {
-				// escape
-				if (outBuf == null) {
-					outBuf = new StringBuilder(in.length() + 5 * 3);
-					outBuf.append(in, 0, i);
-					formatter = new Formatter(outBuf);
-				}
-				// leading %, 0 padded, width 2, capital hex
-				formatter.format("%%%02X", (int) c);// TODO
-			}
-		}
-		return outBuf != null ? outBuf : in;
+		return UriRewriter.encode(in, encodePercent);
 	}
 
 	protected String rewriteQueryStringFromRequest(HttpServletRequest servletRequest, String queryString) {
@@ -0,0 +1,148 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.health;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings of the {@link HealthChecker} of the load balanced targets: active probes, and the
+ * passive detection of outliers from the proxied responses. Either is disabled by a value of 0
+ * (or a null path).
+ */
+public class HealthCheckConfig {
+
+  private String path;
+  private long interval = 10000;
+  private int timeout = 2000;
+  private String expectedStatus = "200-399";
+  private int[] expectedStatusRanges = {200, 399};
+  private int unhealthyThreshold = 2;
+  private int healthyThreshold = 2;
+  private int consecutiveFailures = 5;
+  private double latencyFactor = 0;
+  private long minOutlierLatency = 100;
+  private long baseEjectionTime = 30000;
+  private long maxEjectionTime = 300000;
+  private int maxEjectionPercent = 50;
+
+  /**
+   * The path probed, appended to each target URI, e.g. {@code /health}. Null (the default)
+   * disables active checks.
+   */
+  public String getPath() { return path; }
+  public void setPath(String path) { this.path = path; }
+
+  /** The time between probes of a target (millis). */
+  public long getInterval() { return interval; }
+  public void setInterval(long interval) { this.interval = interval; }
+
+  /** The connect and read timeout of a probe (millis). */
+  public int getTimeout() { return timeout; }
+  public void setTimeout(int timeout) { this.timeout = timeout; }
+
+  /** The status codes of a healthy probe: codes or ranges, comma separated. Example: {@code 200-299, 304} */
+  public String getExpectedStatus() { return expectedStatus; }
+
+  /** @throws IllegalArgumentException if it can't be parsed */
+  public void setExpectedStatus(String expectedStatus) {
+    List<Integer> ranges = new ArrayList<Integer>();
+    for (String range : expectedStatus.split(",")) {
+      range = range.trim();
+      if (range.length() == 0)
+        continue;
+      int dashIdx = range.indexOf('-');
+      if (dashIdx < 0) {
+        ranges.add(Integer.parseInt(range));
+        ranges.add(Integer.parseInt(range));
+      } else {
+        ranges.add(Integer.parseInt(range.substring(0, dashIdx).trim()));
+        ranges.add(Integer.parseInt(range.substring(dashIdx + 1).trim()));
+      }
+    }
+    if (ranges.isEmpty())
+      throw new IllegalArgumentException("No expected status: " + expectedStatus);
+    int[] parsed = new int[ranges.size()];
+    for (int i = 0; i < parsed.length; i++) {
+      parsed[i] = ranges.get(i);
+    }
+    this.expectedStatusRanges = parsed;
+    this.expectedStatus = expectedStatus;
+  }
+
+  /** Whether a probe answered with this status is healthy. */
+  public boolean isExpectedStatus(int statusCode) {
+    for (int i = 0; i < expectedStatusRanges.length; i += 2) {
+      if (statusCode >= expectedStatusRanges[i] && statusCode <= expectedStatusRanges[i + 1])
+        return true;
+    }
+    return false;
+  }
+
+  /** The number of consecutive failed probes after which a target is down. */
+  public int getUnhealthyThreshold() { return unhealthyThreshold; }
+  public void setUnhealthyThreshold(int unhealthyThreshold) { this.unhealthyThreshold = unhealthyThreshold; }
+
+  /** The number of consecutive healthy probes after which a down target is up again. */
+  public int getHealthyThreshold() { return healthyThreshold; }
+  public void setHealthyThreshold(int healthyThreshold) { this.healthyThreshold = healthyThreshold; }
+
+  /**
+   * The number of consecutive failed requests (5xx, or no response) after which a target is
+   * ejected. 0 disables passive detection.
+   */
+  public int getConsecutiveFailures() { return consecutiveFailures; }
+  public void setConsecutiveFailures(int consecutiveFailures) { this.consecutiveFailures = consecutiveFailures; }
+
+  /**
+   * A response counts as failed too if a target's latency average exceeds the median of the
+   * others' by this factor. 0 (the default) disables it.
+   */
+  public double getLatencyFactor() { return latencyFactor; }
+  public void setLatencyFactor(double latencyFactor) { this.latencyFactor = latencyFactor; }
+
+  /** Responses faster than this (millis) are never latency outliers. */
+  public long getMinOutlierLatency() { return minOutlierLatency; }
+  public void setMinOutlierLatency(long minOutlierLatency) { this.minOutlierLatency = minOutlierLatency; }
+
+  /** The time of the first ejection of a target (millis); it doubles with each next one. */
+  public long getBaseEjectionTime() { return baseEjectionTime; }
+  public void setBaseEjectionTime(long baseEjectionTime) { this.baseEjectionTime = baseEjectionTime; }
+
+  /** The longest ejection (millis). */
+  public long getMaxEjectionTime() { return maxEjectionTime; }
+  public void setMaxEjectionTime(long maxEjectionTime) { this.maxEjectionTime = maxEjectionTime; }
+
+  /** The most targets ejected at once, as a percentage of all. */
+  public int getMaxEjectionPercent() { return maxEjectionPercent; }
+  public void setMaxEjectionPercent(int maxEjectionPercent) { this.maxEjectionPercent = maxEjectionPercent; }
+
+  /** Whether anything is checked. */
+  public boolean isEnabled() {
+    return (path != null && interval > 0) || consecutiveFailures > 0 || latencyFactor > 0;
+  }
+
+  @Override
+  public String toString() {
+    return "HealthCheckConfig{path=" + path + ", interval=" + interval + ", timeout=" + timeout +
+            ", expectedStatus=" + expectedStatus + ", unhealthyThreshold=" + unhealthyThreshold +
+            ", healthyThreshold=" + healthyThreshold + ", consecutiveFailures=" + consecutiveFailures +
+            ", latencyFactor=" + latencyFactor + ", minOutlierLatency=" + minOutlierLatency +
+            ", baseEjectionTime=" + baseEjectionTime + ", maxEjectionTime=" + maxEjectionTime +
+            ", maxEjectionPercent=" + maxEjectionPercent + "}";
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.health;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.mitre.dsmiley.httpproxy.lb.Endpoint;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the load balancer off the targets that are down or misbehaving, so no request is sent to
+ * a target known to be dead.
+ * <ul>
+ *   <li>Active: a daemon probes each target's health path; after a few failed probes the target is
+ *   down (see {@link Endpoint#setUp(boolean)}) until a few succeed.</li>
+ *   <li>Passive: the proxied responses are observed with {@link #onResponse(Endpoint, int, long)};
+ *   after consecutive failures (5xx, no response, or latency outliers) the target is ejected for a
+ *   time that doubles with each ejection (see {@link Endpoint#eject(long)}). When it's back, a
+ *   single failure ejects it again, until a response succeeds.</li>
+ * </ul>
+ * Observing a successful response takes no lock.
+ */
+public class HealthChecker {
+
+  private static final Log log = LogFactory.getLog(HealthChecker.class);
+
+  /** The ejection time doesn't double beyond this many ejections. */
+  private static final int MAX_EJECTION_LEVEL = 30;
+
+  private static class State {
+    final AtomicInteger consecutiveFailures = new AtomicInteger();
+    volatile boolean probation;
+    volatile int ejectionLevel;
+    volatile long ejectedUntilNanos;
+    // only updated by the probing thread
+    int probeFailures;
+    int probeSuccesses;
+  }
+
+  private final List<Endpoint> endpoints;
+  private final Map<Endpoint, State> states;
+  private final HealthCheckConfig config;
+  private final HttpClient client;
+  private final AtomicLong ejectionCount = new AtomicLong();
+  private final AtomicLong probeCount = new AtomicLong();
+  private final AtomicLong probeFailureCount = new AtomicLong();
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param client sends the probes; may be null if there's no {@link HealthCheckConfig#getPath()}
+   */
+  public HealthChecker(List<Endpoint> endpoints, HealthCheckConfig config, HttpClient client) {
+    if (config.getPath() != null && client == null)
+      throw new IllegalArgumentException("A client is required to probe");
+    this.endpoints = endpoints;
+    this.config = config;
+    this.client = client;
+    Map<Endpoint, State> states = new IdentityHashMap<Endpoint, State>();
+    for (Endpoint endpoint : endpoints) {
+      states.put(endpoint, new State());
+    }
+    this.states = Collections.unmodifiableMap(states);
+  }
+
+  /** Starts probing the targets periodically, if there's a path to probe. */
+  public synchronized void start(final String name) {
+    if (executor != null)
+      throw new IllegalStateException("Already started");
+    if (config.getPath() == null || config.getInterval() <= 0)
+      return;
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "HealthChecker-" + name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          probeAll();
+        } catch (RuntimeException e) {
+          log.warn("Probing targets: " + e, e);
+        }
+      }
+    }, 0, config.getInterval(), TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops probing and waits (briefly) for a probe in progress. */
+  public synchronized void shutdown() {
+    if (executor == null)
+      return;
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(config.getTimeout(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    executor = null;
+  }
+
+  /** Probes each target now. Not to be called concurrently with the daemon. */
+  public void probeAll() {
+    for (Endpoint endpoint : endpoints) {
+      if (Thread.currentThread().isInterrupted())
+        return;
+      onProbe(endpoint, probe(endpoint));
+    }
+  }
+
+  /** Sends a probe to the target. Returns whether it's healthy. */
+  protected boolean probe(Endpoint endpoint) {
+    probeCount.incrementAndGet();
+    HttpGet get = new HttpGet(endpoint.getTargetUri() + config.getPath());
+    get.setConfig(RequestConfig.custom().setConnectTimeout(config.getTimeout())
+            .setSocketTimeout(config.getTimeout()).setConnectionRequestTimeout(config.getTimeout())
+            .setRedirectsEnabled(false).build());
+    try {
+      HttpResponse response = client.execute(get);
+      EntityUtils.consumeQuietly(response.getEntity());
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (config.isExpectedStatus(statusCode))
+        return true;
+      if (log.isDebugEnabled())
+        log.debug("Probe of " + endpoint + " got " + response.getStatusLine());
+    } catch (IOException e) {
+      get.abort();
+      if (log.isDebugEnabled())
+        log.debug("Probe of " + endpoint + " failed: " + e);
+    }
+    probeFailureCount.incrementAndGet();
+    return false;
+  }
+
+  private void onProbe(Endpoint endpoint, boolean healthy) {
+    State state = states.get(endpoint);
+    if (healthy) {
+      state.probeFailures = 0;
+      if (!endpoint.isUp() && ++state.probeSuccesses >= config.getHealthyThreshold()) {
+        endpoint.setUp(true);
+        log.info("Target " + endpoint + " is up");
+      }
+    } else {
+      state.probeSuccesses = 0;
+      if (endpoint.isUp() && ++state.probeFailures >= config.getUnhealthyThreshold()) {
+        endpoint.setUp(false);
+        log.warn("Target " + endpoint + " is down, after " + state.probeFailures + " failed probes");
+      }
+    }
+  }
+
+  /**
+   * Observes a proxied response from the target.
+   * @param statusCode the response's status code; -1 if none came (e.g. the connection failed)
+   * @param latencyNanos the time to the response headers
+   */
+  public void onResponse(Endpoint endpoint, int statusCode, long latencyNanos) {
+    State state = states.get(endpoint);
+    if (state == null || (config.getConsecutiveFailures() <= 0 && config.getLatencyFactor() <= 0))
+      return;
+    if (statusCode < 0 || statusCode >= 500 || isLatencyOutlier(endpoint, latencyNanos)) {
+      int failures = state.consecutiveFailures.incrementAndGet();
+      if ((state.probation || (config.getConsecutiveFailures() > 0 && failures >= config.getConsecutiveFailures()))
+              && !endpoint.isEjected())
+        eject(endpoint, state, failures);
+    } else {
+      if (state.consecutiveFailures.get() != 0)
+        state.consecutiveFailures.set(0);
+      if (state.probation)
+        state.probation = false;
+      if (state.ejectionLevel > 0
+              && System.nanoTime() - state.ejectedUntilNanos > TimeUnit.MILLISECONDS.toNanos(config.getMaxEjectionTime()))
+        state.ejectionLevel = 0;//it behaved for long enough
+    }
+  }
+
+  /** Whether the target's latency average is far above the median of the others'. */
+  private boolean isLatencyOutlier(Endpoint endpoint, long latencyNanos) {
+    if (config.getLatencyFactor() <= 0 || endpoints.size() < 2
+            || latencyNanos < TimeUnit.MILLISECONDS.toNanos(config.getMinOutlierLatency()))
+      return false;
+    double[] others = new double[endpoints.size() - 1];
+    int i = 0;
+    for (Endpoint other : endpoints) {
+      if (other != endpoint)
+        others[i++] = other.getPeakEwmaMillis();
+    }
+    Arrays.sort(others);
+    double median = others[others.length / 2];
+    return endpoint.getPeakEwmaMillis() > config.getLatencyFactor() * Math.max(median, 1);
+  }
+
+  private synchronized void eject(Endpoint endpoint, State state, int failures) {
+    if (endpoint.isEjected())
+      return;//by another thread
+    int ejected = 0;
+    for (Endpoint other : endpoints) {
+      if (other.isEjected())
+        ejected++;
+    }
+    if ((ejected + 1) * 100 > config.getMaxEjectionPercent() * endpoints.size()) {
+      if (log.isDebugEnabled())
+        log.debug("Not ejecting " + endpoint + "; too many targets are ejected");
+      return;
+    }
+    int level = state.ejectionLevel;
+    long millis = Math.min(config.getBaseEjectionTime() << Math.min(level, MAX_EJECTION_LEVEL),
+            config.getMaxEjectionTime());
+    long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    endpoint.eject(nanos);
+    state.ejectedUntilNanos = System.nanoTime() + nanos;
+    state.ejectionLevel = level + 1;
+    state.probation = true;
+    state.consecutiveFailures.set(0);
+    ejectionCount.incrementAndGet();
+    log.warn("Ejected target " + endpoint + " for " + millis + "ms, after " + failures + " failures");
+  }
+
+  public HealthCheckConfig getConfig() {
+    return config;
+  }
+
+  /** The number of times a target was ejected. */
+  public long getEjectionCount() {
+    return ejectionCount.get();
+  }
+
+  public long getProbeCount() {
+    return probeCount.get();
+  }
+
+  public long getProbeFailureCount() {
+    return probeFailureCount.get();
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.hedge;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.mitre.dsmiley.httpproxy.metrics.LatencyHistogram;
+import org.mitre.dsmiley.httpproxy.retry.RetryBudget;
+import org.mitre.dsmiley.httpproxy.retry.RetryPolicy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cuts the tail latency of safe requests: if the response headers of a request haven't come
+ * within a delay, a copy (a hedge) is sent to another target, the first response is used, and
+ * the other request is aborted. The delay is fixed, or a percentile (e.g. the 95th) of the recent
+ * latencies, so that about 5% of the requests are hedged. Hedges are capped by a
+ * {@link RetryBudget}.
+ * <p>
+ *   The request is sent on the caller's thread; the hedge on a pooled thread.
+ * </p>
+ */
+public class Hedger {
+
+  private static final Log log = LogFactory.getLog(Hedger.class);
+
+  /** The latencies in a window; the percentile is of those of the last two windows. */
+  private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+  /** The percentile isn't used before this many latencies were recorded. */
+  private static final int MIN_SAMPLES = 100;
+
+  /** A request to the target, or to another one for a hedge. */
+  public interface Attempt {
+    /** Sends the request. Throws if it fails, or is aborted. */
+    HttpResponse execute() throws IOException;
+
+    /** Aborts the request, from another thread. */
+    void abort();
+
+    /** Makes the hedge of this request, to another target; null if there's none available. */
+    Attempt newHedge();
+  }
+
+  private final long fixedDelayNanos;
+  private final double quantile;
+  private final long minDelayNanos;
+  private final RetryBudget budget;
+  private volatile LatencyHistogram latencies = new LatencyHistogram();
+  private volatile LatencyHistogram previousLatencies = new LatencyHistogram();
+  private volatile long windowStartNanos = System.nanoTime();
+  private final AtomicLong hedgeCount = new AtomicLong();
+  private final AtomicLong hedgeWinCount = new AtomicLong();
+  private final AtomicLong budgetExhaustedCount = new AtomicLong();
+  private ScheduledExecutorService scheduler;
+  private ExecutorService executor;
+
+  /**
+   * @param fixedDelayMillis the delay after which a request is hedged; -1 to use the percentile
+   * @param quantile the fraction of requests not hedged, e.g. 0.95, if the delay isn't fixed
+   * @param minDelayMillis the shortest delay
+   * @param budgetPercent the hedges allowed per 100 requests
+   */
+  public Hedger(long fixedDelayMillis, double quantile, long minDelayMillis, int budgetPercent) {
+    if (quantile <= 0 || quantile >= 1)
+      throw new IllegalArgumentException("quantile must be between 0 and 1: " + quantile);
+    this.fixedDelayNanos = fixedDelayMillis >= 0 ? TimeUnit.MILLISECONDS.toNanos(fixedDelayMillis) : -1;
+    this.quantile = quantile;
+    this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+    this.budget = new RetryBudget(budgetPercent, 1);
+  }
+
+  public synchronized void start(final String name) {
+    if (scheduler != null)
+      throw new IllegalStateException("Already started");
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger threadCount = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Hedger-" + name + "-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    executor = Executors.newCachedThreadPool(threadFactory);
+  }
+
+  /** Stops the threads; the hedges in progress are interrupted. */
+  public synchronized void shutdown() {
+    if (scheduler == null)
+      return;
+    scheduler.shutdownNow();
+    executor.shutdownNow();
+    scheduler = null;
+    executor = null;
+  }
+
+  /** Whether the request may be hedged: its method is safe, and its body (if any) can be replayed. */
+  public static boolean isHedgeable(HttpRequest request) {
+    String method = request.getRequestLine().getMethod().toUpperCase(Locale.ROOT);
+    return (method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS") || method.equals("TRACE"))
+            && RetryPolicy.isReplayable(request);
+  }
+
+  /**
+   * The current delay after which a request is hedged (nanos); -1 if there are too few latencies
+   * to tell.
+   */
+  public long getDelayNanos() {
+    if (fixedDelayNanos >= 0)
+      return fixedDelayNanos;
+    LatencyHistogram current = latencies, previous = previousLatencies;
+    // the window with more samples is the more representative
+    LatencyHistogram histogram = current.getCount() >= previous.getCount() ? current : previous;
+    if (histogram.getCount() < MIN_SAMPLES)
+      return -1;
+    return Math.max(minDelayNanos, TimeUnit.MICROSECONDS.toNanos(histogram.getQuantileMicros(quantile)));
+  }
+
+  private void recordLatency(long nanos) {
+    long now = System.nanoTime();
+    if (now - windowStartNanos >= WINDOW_NANOS) {
+      synchronized (this) {
+        if (now - windowStartNanos >= WINDOW_NANOS) {
+          previousLatencies = latencies;
+          latencies = new LatencyHistogram();
+          windowStartNanos = now;
+        }
+      }
+    }
+    latencies.record(nanos);
+  }
+
+  /**
+   * Executes the attempt, and hedges it if its response doesn't come within the delay.
+   * @return the first response
+   * @throws IOException the attempt's failure, if the hedge (if any) failed too
+   */
+  public HttpResponse execute(Attempt primary) throws IOException {
+    budget.deposit();
+    long delayNanos = getDelayNanos();
+    ScheduledExecutorService scheduler = this.scheduler;
+    long startNanos = System.nanoTime();
+    if (delayNanos < 0 || scheduler == null) {
+      HttpResponse response = primary.execute();
+      recordLatency(System.nanoTime() - startNanos);
+      return response;
+    }
+    Race race = new Race(primary);
+    ScheduledFuture<?> timer = scheduler.schedule(race, delayNanos, TimeUnit.NANOSECONDS);
+    HttpResponse response = null;
+    IOException failure = null;
+    RuntimeException runtimeFailure = null;
+    try {
+      response = primary.execute();
+      recordLatency(System.nanoTime() - startNanos);
+    } catch (IOException e) {
+      failure = e;
+    } catch (RuntimeException e) {
+      runtimeFailure = e;
+    }
+    timer.cancel(false);
+    if (race.state.compareAndSet(Race.PENDING, Race.NOT_HEDGED)) {
+      // the usual case: no hedge was sent
+      if (failure != null)
+        throw failure;
+      if (runtimeFailure != null)
+        throw runtimeFailure;
+      return response;
+    }
+    if (response != null) {
+      if (race.winner.compareAndSet(Race.NONE, Race.PRIMARY)) {
+        race.abortHedge();
+        return response;
+      }
+      release(response);//the hedge won
+    }
+    HttpResponse hedgeResponse = race.awaitHedge();
+    if (hedgeResponse != null)
+      return hedgeResponse;
+    if (runtimeFailure != null)
+      throw runtimeFailure;
+    throw failure != null ? failure : new IOException("The request and its hedge failed");
+  }
+
+  private static void release(HttpResponse response) {
+    if (response instanceof Closeable) {
+      try {
+        ((Closeable) response).close();
+      } catch (IOException e) {
+        // ignore
+      }
+    } else {
+      EntityUtils.consumeQuietly(response.getEntity());
+    }
+  }
+
+  /** A request and its hedge. */
+  private class Race implements Runnable {
+    static final int PENDING = 0, HEDGED = 1, NOT_HEDGED = 2;
+    static final int NONE = 0, PRIMARY = 1, HEDGE = 2;
+
+    final Attempt primary;
+    final AtomicInteger state = new AtomicInteger(PENDING);
+    final AtomicInteger winner = new AtomicInteger(NONE);
+    final CountDownLatch hedgeDone = new CountDownLatch(1);
+    volatile Attempt hedge;
+    volatile HttpResponse hedgeResponse;
+
+    Race(Attempt primary) {
+      this.primary = primary;
+    }
+
+    /** Sends the hedge, when the delay elapsed. */
+    public void run() {
+      if (state.get() != PENDING)
+        return;
+      final Attempt hedge = primary.newHedge();
+      if (hedge == null)
+        return;
+      if (!budget.tryWithdraw()) {
+        budgetExhaustedCount.incrementAndGet();
+        return;
+      }
+      if (!state.compareAndSet(PENDING, HEDGED))
+        return;
+      this.hedge = hedge;
+      hedgeCount.incrementAndGet();
+      ExecutorService executor = Hedger.this.executor;
+      try {
+        executor.execute(new Runnable() {
+          public void run() {
+            sendHedge(hedge);
+          }
+        });
+      } catch (RuntimeException e) {//shut down
+        hedgeDone.countDown();
+      }
+    }
+
+    void sendHedge(Attempt hedge) {
+      try {
+        HttpResponse response = hedge.execute();
+        if (winner.compareAndSet(NONE, HEDGE)) {
+          hedgeWinCount.incrementAndGet();
+          hedgeResponse = response;
+          primary.abort();
+        } else {
+          release(response);
+        }
+      } catch (IOException e) {
+        if (log.isDebugEnabled())
+          log.debug("Hedge failed: " + e);
+      } catch (RuntimeException e) {
+        if (log.isDebugEnabled())
+          log.debug("Hedge failed: " + e);
+      } finally {
+        hedgeDone.countDown();
+      }
+    }
+
+    void abortHedge() {
+      Attempt hedge = this.hedge;
+      if (hedge != null)
+        hedge.abort();
+    }
+
+    /** Returns the hedge's response once done; null if it failed, or lost. */
+    HttpResponse awaitHedge() throws IOException {
+      try {
+        hedgeDone.await();
+      } catch (InterruptedException e) {
+        abortHedge();
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted awaiting the hedged request");
+      }
+      return hedgeResponse;
+    }
+  }
+
+  /** The number of hedges sent. */
+  public long getHedgeCount() {
+    return hedgeCount.get();
+  }
+
+  /** The number of hedges whose response came first. */
+  public long getHedgeWinCount() {
+    return hedgeWinCount.get();
+  }
+
+  /** The number of hedges not sent because of the budget. */
+  public long getBudgetExhaustedCount() {
+    return budgetExhaustedCount.get();
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import org.apache.http.HttpHost;
+import org.mitre.dsmiley.httpproxy.metrics.ProxyEvents;
+
+/**
+ * The {@link ProxyEvents} as Java Flight Recorder events, named {@code org.mitre.dsmiley.httpproxy.*}
+ * (in the "HTTP Proxy" category). They're duration events of the thread running the phase, so a
+ * recording relates them to the GC pauses, socket reads and thread parking of the same time. No
+ * event object is created unless a recording is running; a recording's settings can still disable
+ * them, or set a threshold.
+ * <p>
+ *   Only loaded by {@link ProxyEvents#get()} if the JVM has the {@code jdk.jfr} API, which this
+ *   package is compiled against; the rest of the proxy doesn't refer to it.
+ * </p>
+ */
+public class JfrProxyEvents extends ProxyEvents {
+
+  private volatile boolean recording;
+
+  public JfrProxyEvents() {
+    FlightRecorder.addListener(new FlightRecorderListener() {
+      public void recorderInitialized(FlightRecorder recorder) {
+        update();
+      }
+
+      public void recordingStateChanged(Recording changed) {
+        update();
+      }
+    });
+  }
+
+  private void update() {
+    boolean running = false;
+    if (FlightRecorder.isInitialized()) {
+      for (Recording recording : FlightRecorder.getFlightRecorder().getRecordings()) {
+        running |= recording.getState() == RecordingState.RUNNING;
+      }
+    }
+    recording = running;
+  }
+
+  @Override
+  public boolean isRecording() {
+    return recording;
+  }
+
+  @Override
+  public Object beginExchange() {
+    if (!recording)
+      return null;
+    ExchangeEvent event = new ExchangeEvent();
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void endExchange(Object exchange, String method, String uri, HttpHost target, int statusCode,
+                          long requestBytes, long responseBytes) {
+    if (exchange == null)
+      return;
+    ExchangeEvent event = (ExchangeEvent) exchange;
+    event.end();
+    if (event.shouldCommit()) {
+      event.method = method;
+      event.uri = uri;
+      event.target = target != null ? target.toURI() : null;
+      event.statusCode = statusCode;
+      event.requestBytes = requestBytes;
+      event.responseBytes = responseBytes;
+      event.commit();
+    }
+  }
+
+  @Override
+  public Object beginLease() {
+    if (!recording)
+      return null;
+    LeaseEvent event = new LeaseEvent();
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void endLease(Object lease, HttpHost target) {
+    if (lease == null)
+      return;
+    LeaseEvent event = (LeaseEvent) lease;
+    event.end();
+    if (event.shouldCommit()) {
+      event.target = target != null ? target.toURI() : null;
+      event.commit();
+    }
+  }
+
+  @Override
+  public Object beginConnect() {
+    if (!recording)
+      return null;
+    ConnectEvent event = new ConnectEvent();
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void endConnect(Object connect, HttpHost target, boolean connected) {
+    if (connect == null)
+      return;
+    ConnectEvent event = (ConnectEvent) connect;
+    event.end();
+    if (event.shouldCommit()) {
+      event.target = target != null ? target.toURI() : null;
+      event.connected = connected;
+      event.commit();
+    }
+  }
+
+  @Override
+  public Object beginFirstByte() {
+    if (!recording)
+      return null;
+    FirstByteEvent event = new FirstByteEvent();
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void endFirstByte(Object firstByte, HttpHost target, int statusCode) {
+    if (firstByte == null)
+      return;
+    FirstByteEvent event = (FirstByteEvent) firstByte;
+    event.end();
+    if (event.shouldCommit()) {
+      event.target = target != null ? target.toURI() : null;
+      event.statusCode = statusCode;
+      event.commit();
+    }
+  }
+
+  @Override
+  public Object beginBody() {
+    if (!recording)
+      return null;
+    BodyEvent event = new BodyEvent();
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void endBody(Object body, HttpHost target, long bytes) {
+    if (body == null)
+      return;
+    BodyEvent event = (BodyEvent) body;
+    event.end();
+    if (event.shouldCommit()) {
+      event.target = target != null ? target.toURI() : null;
+      event.bytes = bytes;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void error(String method, String uri, Throwable e) {
+    if (!recording)
+      return;
+    ErrorEvent event = new ErrorEvent();
+    if (event.shouldCommit()) {
+      event.method = method;
+      event.uri = uri;
+      event.exceptionClass = e.getClass().getName();
+      event.message = e.getMessage();
+      event.commit();
+    }
+  }
+
+  @Name("org.mitre.dsmiley.httpproxy.Exchange")
+  @Label("Proxy Exchange")
+  @Description("A request proxied, from receiving it to sending the response")
+  @Category("HTTP Proxy")
+  @StackTrace(false)
+  public static class ExchangeEvent extends Event {
+    @Label("Method")
+    String method;
+    @Label("URI")
+    String uri;
+    @Label("Target")
+    String target;
+    @Label("Status Code")
+    @Description("Sent to the client; -1 if none")
+    int statusCode;
+    @Label("Request Bytes")
+    @DataAmount
+    long requestBytes;
+    @Label("Response Bytes")
+    @DataAmount
+    long responseBytes;
+  }
+
+  @Name("org.mitre.dsmiley.httpproxy.Lease")
+  @Label("Proxy Connection Lease")
+  @Description("Waiting for a connection of the pool")
+  @Category("HTTP Proxy")
+  @StackTrace(false)
+  public static class LeaseEvent extends Event {
+    @Label("Target")
+    String target;
+  }
+
+  @Name("org.mitre.dsmiley.httpproxy.Connect")
+  @Label("Proxy Connect")
+  @Description("Opening a connection to the target, with the TLS handshake if any")
+  @Category("HTTP Proxy")
+  @StackTrace(false)
+  public static class ConnectEvent extends Event {
+    @Label("Target")
+    String target;
+    @Label("Connected")
+    boolean connected;
+  }
+
+  @Name("org.mitre.dsmiley.httpproxy.FirstByte")
+  @Label("Proxy First Byte")
+  @Description("Sending the request to the target, until the response headers are received")
+  @Category("HTTP Proxy")
+  @StackTrace(false)
+  public static class FirstByteEvent extends Event {
+    @Label("Target")
+    String target;
+    @Label("Status Code")
+    @Description("-1 if no response was received")
+    int statusCode;
+  }
+
+  @Name("org.mitre.dsmiley.httpproxy.Body")
+  @Label("Proxy Body Copy")
+  @Description("Copying the response body to the client")
+  @Category("HTTP Proxy")
+  @StackTrace(false)
+  public static class BodyEvent extends Event {
+    @Label("Target")
+    String target;
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name("org.mitre.dsmiley.httpproxy.Error")
+  @Label("Proxy Error")
+  @Description("A proxied exchange failed")
+  @Category("HTTP Proxy")
+  public static class ErrorEvent extends Event {
+    @Label("Method")
+    String method;
+    @Label("URI")
+    String uri;
+    @Label("Exception Class")
+    String exceptionClass;
+    @Label("Message")
+    String message;
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.lb;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.utils.URIUtils;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One of the targets (backend replicas) a servlet balances its requests over, with the counters
+ * the {@link LoadBalancer}s choose by. They're updated without locks: counts are atomic, and the
+ * latency average tolerates racy updates.
+ * <p>
+ *   A request is outstanding from {@link #begin()} until {@link #end(long, boolean)}, i.e. until
+ *   the target's response headers arrive.
+ * </p>
+ */
+public class Endpoint {
+
+  /** The time constant of the decay of the latency average (nanos). */
+  private static final double DECAY_NANOS = 10e9;
+
+  private final String targetUri;
+  private final URI targetUriObj;
+  private final HttpHost targetHost;
+  private final int weight;
+
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong failureCount = new AtomicLong();
+  private volatile double peakEwmaNanos;
+  private volatile long ewmaStampNanos = System.nanoTime();
+  private volatile boolean up = true;
+  private volatile long ejectedUntilNanos;
+  private volatile boolean ejected;
+
+  /** @throws IllegalArgumentException if the URI is invalid */
+  public Endpoint(String targetUri, int weight) {
+    if (weight <= 0)
+      throw new IllegalArgumentException("weight must be > 0: " + weight);
+    this.targetUri = targetUri;
+    this.targetUriObj = URI.create(targetUri);
+    this.targetHost = URIUtils.extractHost(targetUriObj);
+    if (targetHost == null)
+      throw new IllegalArgumentException("Not an absolute URI: " + targetUri);
+    this.weight = weight;
+  }
+
+  /** Counts a request to the endpoint. Returns the start time to pass to {@link #end(long, boolean)}. */
+  public long begin() {
+    outstanding.incrementAndGet();
+    requestCount.incrementAndGet();
+    return System.nanoTime();
+  }
+
+  /**
+   * Ends a request to the endpoint.
+   * @param success whether a response came; its latency is then observed
+   */
+  public void end(long startNanos, boolean success) {
+    outstanding.decrementAndGet();
+    if (success) {
+      observeLatency(System.nanoTime() - startNanos);
+    } else {
+      failureCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Ends a request to the endpoint that was cancelled before its response, e.g. the losing copy of
+   * a hedged request: it's neither a response nor a failure of the target.
+   */
+  public void cancel() {
+    outstanding.decrementAndGet();
+  }
+
+  /**
+   * Updates the peak EWMA of the latency: a slower response raises it at once, and faster ones
+   * lower it gradually, the more so the longer since the last one.
+   */
+  void observeLatency(long latencyNanos) {
+    long now = System.nanoTime();
+    double ewma = peakEwmaNanos;
+    if (latencyNanos > ewma) {
+      ewma = latencyNanos;
+    } else {
+      double w = Math.exp(-Math.max(0, now - ewmaStampNanos) / DECAY_NANOS);
+      ewma = ewma * w + latencyNanos * (1 - w);
+    }
+    peakEwmaNanos = ewma;
+    ewmaStampNanos = now;
+  }
+
+  /**
+   * Whether requests may be sent to it: it's not known to be down (see {@link #setUp(boolean)}),
+   * nor ejected (see {@link #eject(long)}).
+   */
+  public boolean isAvailable() {
+    if (!up)
+      return false;
+    if (ejected && System.nanoTime() - ejectedUntilNanos >= 0)
+      ejected = false;
+    return !ejected;
+  }
+
+  /** Whether the target is up, per active health checks. */
+  public boolean isUp() { return up; }
+
+  public void setUp(boolean up) { this.up = up; }
+
+  /** Whether it's ejected for now. */
+  public boolean isEjected() {
+    return ejected && System.nanoTime() - ejectedUntilNanos < 0;
+  }
+
+  /** Stops sending it requests for this long, as an outlier. */
+  public void eject(long durationNanos) {
+    ejectedUntilNanos = System.nanoTime() + durationNanos;
+    ejected = true;
+  }
+
+  /** The cost of sending it a request for {@link PeakEwmaLoadBalancer}: latency times load. */
+  double peakEwmaCost() {
+    return (peakEwmaNanos + 1) * (outstanding.get() + 1);
+  }
+
+  public String getTargetUri() { return targetUri; }
+
+  public URI getTargetUriObj() { return targetUriObj; }
+
+  public HttpHost getTargetHost() { return targetHost; }
+
+  public int getWeight() { return weight; }
+
+  /** The number of requests waiting for a response. */
+  public int getOutstanding() { return outstanding.get(); }
+
+  public long getRequestCount() { return requestCount.get(); }
+
+  /** The number of requests that got no response (an exception). */
+  public long getFailureCount() { return failureCount.get(); }
+
+  /** The peak EWMA of the latency to response headers (millis). */
+  public double getPeakEwmaMillis() { return peakEwmaNanos / 1e6; }
+
+  @Override
+  public String toString() {
+    return targetUri + (weight != 1 ? " (weight " + weight + ")" : "");
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.lb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the {@link Endpoint} of each request among the available ones of a servlet.
+ * Implementations must be thread-safe, preferably without locks. See {@link #create(String, List)}
+ * for the strategies.
+ */
+public abstract class LoadBalancer {
+
+  public static final String ROUND_ROBIN = "roundRobin";
+  public static final String WEIGHTED = "weighted";
+  public static final String LEAST_OUTSTANDING = "leastOutstanding";
+  public static final String POWER_OF_TWO_CHOICES = "p2c";
+  public static final String PEAK_EWMA = "peakEwma";
+
+  protected final Endpoint[] endpoints;
+
+  protected LoadBalancer(List<Endpoint> endpoints) {
+    if (endpoints.isEmpty())
+      throw new IllegalArgumentException("No endpoints");
+    this.endpoints = endpoints.toArray(new Endpoint[endpoints.size()]);
+  }
+
+  /** Creates the load balancer of the strategy, one of the constants of this class. */
+  public static LoadBalancer create(String strategy, List<Endpoint> endpoints) {
+    if (strategy.equals(ROUND_ROBIN))
+      return new RoundRobinLoadBalancer(endpoints);
+    if (strategy.equals(WEIGHTED))
+      return new WeightedLoadBalancer(endpoints);
+    if (strategy.equals(LEAST_OUTSTANDING))
+      return new LeastOutstandingLoadBalancer(endpoints);
+    if (strategy.equals(POWER_OF_TWO_CHOICES))
+      return new PowerOfTwoChoicesLoadBalancer(endpoints);
+    if (strategy.equals(PEAK_EWMA))
+      return new PeakEwmaLoadBalancer(endpoints);
+    throw new IllegalArgumentException("Unknown load balancing strategy: " + strategy);
+  }
+
+  private final AtomicInteger nextFallback = new AtomicInteger();
+
+  /**
+   * Chooses the endpoint of a request, among the available ones, or returns null if none is.
+   * When the strategy chooses an unavailable one, it's asked again, then any available one is.
+   */
+  public Endpoint select() {
+    for (int attempt = 0; attempt < Math.min(endpoints.length, 3); attempt++) {
+      Endpoint endpoint = choose();
+      if (endpoint.isAvailable())
+        return endpoint;
+    }
+    int start = (nextFallback.getAndIncrement() & Integer.MAX_VALUE) % endpoints.length;
+    for (int i = 0; i < endpoints.length; i++) {
+      Endpoint endpoint = endpoints[(start + i) % endpoints.length];
+      if (endpoint.isAvailable())
+        return endpoint;
+    }
+    return null;
+  }
+
+  /** Chooses the endpoint of a request, by the strategy; preferably an available one. */
+  protected abstract Endpoint choose();
+
+  public List<Endpoint> getEndpoints() {
+    return Collections.unmodifiableList(Arrays.asList(endpoints));
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.lb;
+
+import java.util.List;
+
+/**
+ * Power of two choices by latency: the cost of an endpoint is the peak EWMA of its latency times
+ * its outstanding requests (plus one). The peak makes a slowing endpoint lose traffic at once;
+ * the decay brings it back gradually. As in Finagle and Linkerd.
+ */
+public class PeakEwmaLoadBalancer extends PowerOfTwoChoicesLoadBalancer {
+
+  public PeakEwmaLoadBalancer(List<Endpoint> endpoints) {
+    super(endpoints);
+  }
+
+  @Override
+  protected double cost(Endpoint endpoint) {
+    return endpoint.peakEwmaCost();
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.lb;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picks two endpoints at random and chooses the less loaded one (the one with fewer outstanding
+ * requests). Nearly as good as the least loaded of all, without looking at all, and without the
+ * herding on the least loaded one of several servlets (or proxies) with stale views.
+ */
+public class PowerOfTwoChoicesLoadBalancer extends LoadBalancer {
+
+  private final Random random = new Random();
+
+  public PowerOfTwoChoicesLoadBalancer(List<Endpoint> endpoints) {
+    super(endpoints);
+  }
+
+  @Override
+  protected Endpoint choose() {
+    if (endpoints.length == 1)
+      return endpoints[0];
+    int first = random.nextInt(endpoints.length);
+    int second = random.nextInt(endpoints.length - 1);
+    if (second >= first)
+      second++;//distinct
+    if (!endpoints[first].isAvailable())
+      return endpoints[second];
+    if (!endpoints[second].isAvailable())
+      return endpoints[first];
+    return cost(endpoints[second]) < cost(endpoints[first]) ? endpoints[second] : endpoints[first];
+  }
+
+  /** The load of the endpoint; lower is better. */
+  protected double cost(Endpoint endpoint) {
+    return endpoint.getOutstanding();
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.lb;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Chooses the endpoints in turn. */
+public class RoundRobinLoadBalancer extends LoadBalancer {
+
+  private final AtomicInteger next = new AtomicInteger();
+
+  public RoundRobinLoadBalancer(List<Endpoint> endpoints) {
+    super(endpoints);
+  }
+
+  @Override
+  protected Endpoint choose() {
+    return endpoints[(next.getAndIncrement() & Integer.MAX_VALUE) % endpoints.length];
+  }
+}
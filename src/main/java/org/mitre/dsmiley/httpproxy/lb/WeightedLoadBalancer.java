@@ -0,0 +1,68 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.lb;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the endpoints in turn, in proportion to their weights. The order is that of nginx's
+ * smooth weighted round-robin, so that a heavy endpoint's turns are spread out; it's computed
+ * once, so that choosing is a counter increment.
+ */
+public class WeightedLoadBalancer extends LoadBalancer {
+
+  private static final int MAX_SCHEDULE_LENGTH = 10000;
+
+  private final Endpoint[] schedule;
+  private final AtomicInteger next = new AtomicInteger();
+
+  public WeightedLoadBalancer(List<Endpoint> endpoints) {
+    super(endpoints);
+    int gcd = 0;
+    for (Endpoint endpoint : this.endpoints) {
+      gcd = gcd(gcd, endpoint.getWeight());
+    }
+    int length = 0;
+    for (Endpoint endpoint : this.endpoints) {
+      length += endpoint.getWeight() / gcd;
+    }
+    if (length > MAX_SCHEDULE_LENGTH)
+      throw new IllegalArgumentException("The weights divided by their GCD must add up to at most " + MAX_SCHEDULE_LENGTH);
+    schedule = new Endpoint[length];
+    int[] current = new int[this.endpoints.length];
+    for (int turn = 0; turn < length; turn++) {
+      int best = 0;
+      for (int i = 0; i < current.length; i++) {
+        current[i] += this.endpoints[i].getWeight() / gcd;
+        if (current[i] > current[best])
+          best = i;
+      }
+      current[best] -= length;
+      schedule[turn] = this.endpoints[best];
+    }
+  }
+
+  private static int gcd(int a, int b) {
+    return b == 0 ? a : gcd(b, a % b);
+  }
+
+  @Override
+  protected Endpoint choose() {
+    return schedule[(next.getAndIncrement() & Integer.MAX_VALUE) % schedule.length];
+  }
+}
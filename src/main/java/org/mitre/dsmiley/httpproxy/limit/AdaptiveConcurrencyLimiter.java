@@ -0,0 +1,180 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.limit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the requests in flight to a limit it keeps adjusting, like TCP Vegas does its congestion
+ * window: the round-trip time (RTT) of a request is compared to the lowest one seen (the RTT
+ * without load), which estimates how many requests are queued at the target. When the queue is
+ * short the limit grows; when it's long, or a request fails for lack of capacity, the limit
+ * shrinks. Requests beyond the limit are rejected at once, not queued, so that an overloaded
+ * target gets less load instead of the same load later.
+ * <p>
+ *   The lowest RTT is forgotten every {@value #PROBE_INTERVAL} samples, so that a target that got
+ *   slower for good (e.g. more data) doesn't look overloaded forever. No method takes a lock.
+ * </p>
+ */
+public class AdaptiveConcurrencyLimiter {
+
+  /** The number of samples after which the RTT without load is measured afresh. */
+  public static final int PROBE_INTERVAL = 1000;
+
+  private final String name;
+  private final int minLimit;
+  private final int maxLimit;
+  /** The limit, as the bits of a double. */
+  private final AtomicLong limitBits;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  /** 0 until a sample is taken. */
+  private final AtomicLong noLoadRttNanos = new AtomicLong();
+  private volatile long lastRttNanos;
+  private final AtomicLong sampleCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  /**
+   * @param initialLimit the limit to start with
+   * @param minLimit the limit never goes below
+   * @param maxLimit the limit never goes above
+   */
+  public AdaptiveConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit) {
+    if (minLimit <= 0 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit)
+      throw new IllegalArgumentException("Expected 0 < minLimit <= initialLimit <= maxLimit");
+    this.name = name;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.limitBits = new AtomicLong(Double.doubleToLongBits(initialLimit));
+  }
+
+  /**
+   * Counts a request in flight, or returns false (and counts it rejected) if the limit is
+   * reached. Each successful call must be paired with an {@link #onSample(long, boolean)} or a
+   * {@link #release()}.
+   */
+  public boolean tryAcquire() {
+    int limit = getLimit();
+    while (true) {
+      int current = inFlight.get();
+      if (current >= limit) {
+        rejectedCount.incrementAndGet();
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1))
+        return true;
+    }
+  }
+
+  /** Ends a request that tells nothing of the target's load (e.g. it was aborted). */
+  public void release() {
+    inFlight.decrementAndGet();
+  }
+
+  /**
+   * Ends a request, adjusting the limit.
+   *
+   * @param rttNanos the time from sending the request to receiving the response (head)
+   * @param dropped whether it failed in a way that hints at overload: a timeout, a refused
+   *                connection, or a 503 or 504 response
+   */
+  public void onSample(long rttNanos, boolean dropped) {
+    int inFlightBefore = inFlight.getAndDecrement();
+    rttNanos = Math.max(1, rttNanos);
+    lastRttNanos = rttNanos;
+    if (sampleCount.incrementAndGet() % PROBE_INTERVAL == 0) {
+      noLoadRttNanos.set(rttNanos);
+    } else {
+      long noLoad;
+      while (((noLoad = noLoadRttNanos.get()) == 0 || rttNanos < noLoad)
+              && !noLoadRttNanos.compareAndSet(noLoad, rttNanos)) {
+        // retry
+      }
+    }
+    while (true) {
+      long bits = limitBits.get();
+      double limit = Double.longBitsToDouble(bits);
+      double newLimit = newLimit(limit, rttNanos, inFlightBefore, dropped);
+      newLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+      if (newLimit == limit || limitBits.compareAndSet(bits, Double.doubleToLongBits(newLimit)))
+        return;
+    }
+  }
+
+  /** The Vegas rule. The steps are logarithmic to the limit so that a large limit moves faster. */
+  protected double newLimit(double limit, long rttNanos, int inFlight, boolean dropped) {
+    double step = Math.max(1, Math.log10(limit));
+    if (dropped)
+      return limit - step;
+    if (inFlight * 2 < limit)
+      return limit;//not using the limit tells nothing of whether it's right
+    double queueSize = Math.ceil(limit * (1 - (double) noLoadRttNanos.get() / rttNanos));
+    if (queueSize <= step)
+      return limit + 6 * step;//alpha
+    if (queueSize < 3 * step)
+      return limit + step;
+    if (queueSize > 6 * step)//beta
+      return limit - step;
+    return limit;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** The current limit of requests in flight. */
+  public int getLimit() {
+    return (int) Double.longBitsToDouble(limitBits.get());
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /** The lowest recent RTT (micros), the baseline; 0 before any sample. */
+  public long getNoLoadRttMicros() {
+    return noLoadRttNanos.get() / 1000;
+  }
+
+  /** The RTT of the last sample (micros). */
+  public long getLastRttMicros() {
+    return lastRttNanos / 1000;
+  }
+
+  public long getSampleCount() {
+    return sampleCount.get();
+  }
+
+  /** The number of requests rejected for being beyond the limit. */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  public int getMinLimit() {
+    return minLimit;
+  }
+
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  @Override
+  public String toString() {
+    return "AdaptiveConcurrencyLimiter{" + name + ", limit=" + getLimit() + ", inFlight=" + getInFlight() +
+            ", noLoadRttMicros=" + getNoLoadRttMicros() + ", rejected=" + getRejectedCount() + "}";
+  }
+}
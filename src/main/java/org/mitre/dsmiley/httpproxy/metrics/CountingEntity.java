@@ -0,0 +1,82 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.metrics;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes of an entity as they're written or read, e.g. to count the bytes of bodies of
+ * unknown length. Not thread-safe; see {@link #getCount()}.
+ */
+public class CountingEntity extends HttpEntityWrapper {
+
+  private long count;
+
+  public CountingEntity(HttpEntity wrappedEntity) {
+    super(wrappedEntity);
+  }
+
+  /** The bytes written or read so far (several times, if it was written several times). */
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    return new FilterInputStream(super.getContent()) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0)
+          count++;
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0)
+          count += n;
+        return n;
+      }
+    };
+  }
+
+  @Override
+  public void writeTo(OutputStream outStream) throws IOException {
+    super.writeTo(new FilterOutputStream(outStream) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        count++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+      }
+    });
+  }
+}
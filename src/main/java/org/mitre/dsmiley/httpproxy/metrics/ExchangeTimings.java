@@ -0,0 +1,128 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.metrics;
+
+import org.apache.http.HttpHost;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The timings of an exchange gathered on the way, to be recorded in {@link PhaseLatencies} (or
+ * logged) when its status is known. Held in a request attribute, and in the HttpClient context of
+ * an attempt so that {@link TimingRequestExecutor} and {@link TimingSocketFactory} find it. Not
+ * thread-safe: an exchange (or an attempt) is run by one thread. Times are of
+ * {@link System#nanoTime()}; durations are -1 when unknown.
+ */
+public class ExchangeTimings {
+
+  /** The request and HttpClient context attribute. */
+  public static final String ATTR = ExchangeTimings.class.getName();
+
+  private long rewriteNanos = -1;
+  private long headersNanos = -1;
+  private long leaseNanos = -1;
+  private long connectNanos = -1;
+  private long firstByteNanos = -1;
+  private long bodyNanos = -1;
+  private long connectedAtNanos;
+  private long responseHeadAtNanos;
+  private Object leaseEvent;
+
+  /** The timings in the context; null if it's not timed. */
+  public static ExchangeTimings get(HttpContext context) {
+    return context != null ? (ExchangeTimings) context.getAttribute(ATTR) : null;
+  }
+
+  public void setRewriteNanos(long rewriteNanos) {
+    this.rewriteNanos = rewriteNanos;
+  }
+
+  public void setHeadersNanos(long headersNanos) {
+    this.headersNanos = headersNanos;
+  }
+
+  public void setBodyNanos(long bodyNanos) {
+    this.bodyNanos = bodyNanos;
+  }
+
+  /** Sets the {@link ProxyEvents} lease of the attempt, ended by {@link #leased}. */
+  public void setLeaseEvent(Object leaseEvent) {
+    this.leaseEvent = leaseEvent;
+  }
+
+  /**
+   * Notes that a connection of the pool is leased, ending the lease event if it's not already.
+   * Called on opening a connection, on sending the request and when the attempt ended.
+   */
+  public void leased(HttpHost target) {
+    if (leaseEvent != null) {
+      ProxyEvents.get().endLease(leaseEvent, target);
+      leaseEvent = null;
+    }
+  }
+
+  /** Adds the time opening a connection took; there may be several (e.g. if one was refused). */
+  public void addConnectNanos(long nanos) {
+    connectNanos = Math.max(0, connectNanos) + nanos;
+  }
+
+  /** Notes that a connection is ready and the request is being sent. */
+  public void connected(long nowNanos) {
+    connectedAtNanos = nowNanos;
+  }
+
+  /** Notes that the response headers are received. */
+  public void responseHeadReceived(long nowNanos) {
+    responseHeadAtNanos = nowNanos;
+  }
+
+  /**
+   * Computes the lease and first byte times of an attempt from what was noted.
+   *
+   * @param startNanos when the attempt started (before the lease)
+   * @param endNanos when it ended, with the response headers or a failure
+   */
+  public void attemptEnded(long startNanos, long endNanos) {
+    long connectNanos = Math.max(0, this.connectNanos);
+    if (connectedAtNanos == 0) {
+      // failed (or timed out) before the request was sent
+      leaseNanos = Math.max(0, endNanos - startNanos - connectNanos);
+    } else {
+      leaseNanos = Math.max(0, connectedAtNanos - startNanos - connectNanos);
+      firstByteNanos = (responseHeadAtNanos != 0 ? responseHeadAtNanos : endNanos) - connectedAtNanos;
+    }
+  }
+
+  /** Takes the lease, connect and first byte times of an attempt of this exchange. */
+  public void setAttempt(ExchangeTimings attempt) {
+    leaseNanos = attempt.leaseNanos;
+    connectNanos = attempt.connectNanos;
+    firstByteNanos = attempt.firstByteNanos;
+  }
+
+  public long getRewriteNanos() { return rewriteNanos; }
+
+  public long getHeadersNanos() { return headersNanos; }
+
+  public long getLeaseNanos() { return leaseNanos; }
+
+  /** -1 if no connection was opened. */
+  public long getConnectNanos() { return connectNanos; }
+
+  public long getFirstByteNanos() { return firstByteNanos; }
+
+  public long getBodyNanos() { return bodyNanos; }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, with buckets of exponentially growing width: 8 per power of two of
+ * microseconds, so a percentile is within 12.5% of the exact value. Recording takes no lock: it's
+ * an increment of a bucket, the count and the sum. Latencies up to 2^40 microseconds (12 days)
+ * are distinguished.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int MAX_EXPONENT = 40;
+  private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sumMicros = new AtomicLong();
+
+  /** Records a latency. */
+  public void record(long nanos) {
+    long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    counts.incrementAndGet(index(micros));
+    count.incrementAndGet();
+    sumMicros.addAndGet(micros);
+  }
+
+  static int index(long micros) {
+    if (micros < SUB_BUCKETS)
+      return (int) micros;
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent > MAX_EXPONENT)
+      return BUCKETS - 1;
+    int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+  }
+
+  /** The smallest latency of the bucket (micros). */
+  static long lowerBound(int index) {
+    if (index < SUB_BUCKETS)
+      return index;
+    int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+    int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + sub)) << (exponent - SUB_BITS);
+  }
+
+  /**
+   * The latency (micros) under which the fraction {@code quantile} of those recorded fall, e.g.
+   * 0.95 for the 95th percentile; the upper bound of its bucket. 0 if none was recorded.
+   */
+  public long getQuantileMicros(double quantile) {
+    long total = count.get();
+    if (total == 0)
+      return 0;
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank)
+        return i + 1 < BUCKETS ? lowerBound(i + 1) : lowerBound(i);
+    }
+    return lowerBound(BUCKETS - 1);
+  }
+
+  /** The number of latencies recorded. */
+  public long getCount() {
+    return count.get();
+  }
+
+  /** The sum of the latencies recorded (micros). */
+  public long getSumMicros() {
+    return sumMicros.get();
+  }
+
+  /** The number of latencies recorded in each bucket, by its upper bound (micros); for exports. */
+  public long[] getBucketCounts() {
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+    }
+    return snapshot;
+  }
+
+  /** The upper bound (micros, exclusive) of each bucket of {@link #getBucketCounts()}. */
+  public static long getBucketUpperBound(int index) {
+    return index + 1 < BUCKETS ? lowerBound(index + 1) : Long.MAX_VALUE;
+  }
+}
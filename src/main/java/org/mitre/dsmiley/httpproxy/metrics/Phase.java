@@ -0,0 +1,46 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.metrics;
+
+/** A phase of a proxied exchange, timed by {@link PhaseLatencies}. */
+public enum Phase {
+  /** Rewriting the request URI to the target's. */
+  REWRITE("rewrite"),
+  /** Copying the request headers. */
+  HEADERS("headers"),
+  /** Waiting for a pooled connection (or for a new one to be allowed). */
+  LEASE("lease"),
+  /** Opening a connection, including the TLS handshake; only when one is opened. */
+  CONNECT("connect"),
+  /** From sending the request (with its body) until the response headers are received. */
+  FIRST_BYTE("firstByte"),
+  /** Streaming the response body to the client. */
+  BODY("body"),
+  /** The whole exchange, in {@code service()}. */
+  TOTAL("total");
+
+  private final String label;
+
+  Phase(String label) {
+    this.label = label;
+  }
+
+  /** The name in metrics. */
+  public String getLabel() {
+    return label;
+  }
+}
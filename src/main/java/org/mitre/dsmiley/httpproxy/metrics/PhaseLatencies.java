@@ -0,0 +1,199 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.metrics;
+
+import org.apache.http.HttpHost;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The latencies of the phases of the exchanges of a servlet (see {@link Phase}), in a
+ * {@link LatencyHistogram} per phase, target host, method and status class. Recording takes no
+ * lock, and the histograms can be read meanwhile, e.g. by a metrics exporter.
+ * <p>
+ *   The number of histograms is bounded: beyond {@code maxHosts} target hosts, and for other than
+ *   the standard methods, the host or method is {@value #OTHER}.
+ * </p>
+ */
+public class PhaseLatencies {
+
+  /** The host or method of histograms beyond the bound. */
+  public static final String OTHER = "other";
+  /** The status class of exchanges that got no response. */
+  public static final String NO_RESPONSE = "none";
+
+  private static final Set<String> METHODS = new HashSet<String>(Arrays.asList(
+          "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE", "CONNECT"));
+  private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+  /** The key of a histogram. */
+  public static final class Key {
+    private final Phase phase;
+    private final String host;
+    private final String method;
+    private final String statusClass;
+
+    public Key(Phase phase, String host, String method, String statusClass) {
+      this.phase = phase;
+      this.host = host;
+      this.method = method;
+      this.statusClass = statusClass;
+    }
+
+    public Phase getPhase() { return phase; }
+
+    /** The target host, as a URI like {@code http://host:8080}, or {@value #OTHER}. */
+    public String getHost() { return host; }
+
+    /** The request method, or {@value #OTHER}. */
+    public String getMethod() { return method; }
+
+    /** Like {@code 2xx}, or {@value #NO_RESPONSE}. */
+    public String getStatusClass() { return statusClass; }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key))
+        return false;
+      Key key = (Key) o;
+      return phase == key.phase && host.equals(key.host) && method.equals(key.method)
+              && statusClass.equals(key.statusClass);
+    }
+
+    @Override
+    public int hashCode() {
+      return ((phase.hashCode() * 31 + host.hashCode()) * 31 + method.hashCode()) * 31 + statusClass.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return phase.getLabel() + " " + host + " " + method + " " + statusClass;
+    }
+  }
+
+  private final String name;
+  private final int maxHosts;
+  private final ConcurrentMap<HttpHost, String> hostLabels = new ConcurrentHashMap<HttpHost, String>();
+  private final ConcurrentMap<Key, LatencyHistogram> histograms = new ConcurrentHashMap<Key, LatencyHistogram>();
+
+  /**
+   * @param name of the servlet
+   * @param maxHosts the most target hosts distinguished
+   */
+  public PhaseLatencies(String name, int maxHosts) {
+    if (maxHosts <= 0)
+      throw new IllegalArgumentException("maxHosts must be > 0");
+    this.name = name;
+    this.maxHosts = maxHosts;
+  }
+
+  /**
+   * Records the phases of an attempt to send a request: {@link Phase#LEASE}, {@link Phase#CONNECT}
+   * and {@link Phase#FIRST_BYTE}, those known of the timings (see
+   * {@link ExchangeTimings#attemptEnded}).
+   *
+   * @param statusCode of the response; -1 if none
+   */
+  public void recordAttempt(HttpHost target, String method, int statusCode, ExchangeTimings timings) {
+    String host = hostLabel(target);
+    method = methodLabel(method);
+    String statusClass = statusClass(statusCode);
+    record(Phase.LEASE, host, method, statusClass, timings.getLeaseNanos());
+    record(Phase.CONNECT, host, method, statusClass, timings.getConnectNanos());
+    record(Phase.FIRST_BYTE, host, method, statusClass, timings.getFirstByteNanos());
+  }
+
+  /**
+   * Records the phases of a whole exchange: {@link Phase#REWRITE}, {@link Phase#HEADERS} and
+   * {@link Phase#BODY} if known of the timings, and {@link Phase#TOTAL}.
+   *
+   * @param statusCode sent to the client; -1 if none (it failed)
+   */
+  public void recordExchange(HttpHost target, String method, int statusCode, long totalNanos,
+                             ExchangeTimings timings) {
+    String host = hostLabel(target);
+    method = methodLabel(method);
+    String statusClass = statusClass(statusCode);
+    record(Phase.REWRITE, host, method, statusClass, timings.getRewriteNanos());
+    record(Phase.HEADERS, host, method, statusClass, timings.getHeadersNanos());
+    record(Phase.BODY, host, method, statusClass, timings.getBodyNanos());
+    record(Phase.TOTAL, host, method, statusClass, totalNanos);
+  }
+
+  /** Records the latency, unless it's unknown (< 0). */
+  private void record(Phase phase, String host, String method, String statusClass, long nanos) {
+    if (nanos < 0)
+      return;
+    Key key = new Key(phase, host, method, statusClass);
+    LatencyHistogram histogram = histograms.get(key);
+    if (histogram == null) {
+      histogram = new LatencyHistogram();
+      LatencyHistogram existing = histograms.putIfAbsent(key, histogram);
+      if (existing != null)
+        histogram = existing;
+    }
+    histogram.record(nanos);
+  }
+
+  private String hostLabel(HttpHost target) {
+    if (target == null)
+      return OTHER;
+    String label = hostLabels.get(target);
+    if (label == null) {
+      if (hostLabels.size() >= maxHosts)
+        return OTHER;
+      label = target.toURI();
+      hostLabels.putIfAbsent(target, label);
+    }
+    return label;
+  }
+
+  private static String methodLabel(String method) {
+    return METHODS.contains(method) ? method : OTHER;
+  }
+
+  private static String statusClass(int statusCode) {
+    return statusCode >= 100 && statusCode < 600 ? STATUS_CLASSES[statusCode / 100 - 1] : NO_RESPONSE;
+  }
+
+  /** The histogram of the key; null if nothing was recorded for it. */
+  public LatencyHistogram getHistogram(Phase phase, String host, String method, String statusClass) {
+    return histograms.get(new Key(phase, host, method, statusClass));
+  }
+
+  /**
+   * All the histograms, by key. A live, unmodifiable view: iterating it doesn't block recording
+   * (and may or may not see histograms added meanwhile).
+   */
+  public Map<Key, LatencyHistogram> getHistograms() {
+    return Collections.unmodifiableMap(histograms);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getMaxHosts() {
+    return maxHosts;
+  }
+}
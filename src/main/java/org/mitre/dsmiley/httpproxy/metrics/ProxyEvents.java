@@ -0,0 +1,105 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.metrics;
+
+import org.apache.http.HttpHost;
+
+/**
+ * Events of the phases of the proxied exchanges, for a profiler to relate them to what else the
+ * JVM did meanwhile (GC pauses, socket reads, parked threads...). A phase is begun on the thread
+ * running it, returning a token (null if it's not recorded), and ended with it on the same thread.
+ * <p>
+ *   This implementation records nothing. If the JVM has Java Flight Recorder's API (Java 11, or
+ *   OpenJDK 8u262 and later), {@link #get()} is the one of
+ *   {@code org.mitre.dsmiley.httpproxy.jfr.JfrProxyEvents} instead, which emits JFR events while
+ *   a recording runs. Either way, when nothing is recorded a phase costs a volatile read.
+ * </p>
+ */
+public class ProxyEvents {
+
+  private static final ProxyEvents INSTANCE = load();
+
+  /** The events of this JVM. */
+  public static ProxyEvents get() {
+    return INSTANCE;
+  }
+
+  private static ProxyEvents load() {
+    try {
+      Class.forName("jdk.jfr.FlightRecorder");
+      return (ProxyEvents) Class.forName("org.mitre.dsmiley.httpproxy.jfr.JfrProxyEvents").newInstance();
+    } catch (Throwable e) {
+      // no JFR (e.g. Java 6, or it's disabled), or it failed; the proxy works without
+      return new ProxyEvents();
+    }
+  }
+
+  /** Whether the events may be recorded now. */
+  public boolean isRecording() {
+    return false;
+  }
+
+  /** Begins a whole exchange, from receiving the request to sending the response. */
+  public Object beginExchange() {
+    return null;
+  }
+
+  /**
+   * @param target null if unknown
+   * @param statusCode sent to the client; -1 if none
+   */
+  public void endExchange(Object exchange, String method, String uri, HttpHost target, int statusCode,
+                          long requestBytes, long responseBytes) {
+  }
+
+  /** Begins waiting for a connection of the pool. */
+  public Object beginLease() {
+    return null;
+  }
+
+  public void endLease(Object lease, HttpHost target) {
+  }
+
+  /** Begins opening a connection (with the TLS handshake, if any). */
+  public Object beginConnect() {
+    return null;
+  }
+
+  public void endConnect(Object connect, HttpHost target, boolean connected) {
+  }
+
+  /** Begins sending the request on a connection, until the response headers are received. */
+  public Object beginFirstByte() {
+    return null;
+  }
+
+  /** @param statusCode -1 if no response was received */
+  public void endFirstByte(Object firstByte, HttpHost target, int statusCode) {
+  }
+
+  /** Begins copying the response body to the client. */
+  public Object beginBody() {
+    return null;
+  }
+
+  public void endBody(Object body, HttpHost target, long bytes) {
+  }
+
+  /** An exchange failed with the exception, e.g. in {@code ProxyServlet.handleRequestException}. */
+  public void error(String method, String uri, Throwable e) {
+  }
+}
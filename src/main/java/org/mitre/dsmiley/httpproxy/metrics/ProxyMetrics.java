@@ -0,0 +1,120 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The counters of the exchanges of a servlet: by status class, failures, body bytes, and those in
+ * flight. Counting takes no lock; the values can be read meanwhile.
+ */
+public class ProxyMetrics {
+
+  /** The status classes counted; index 0 is of exchanges that failed without a response. */
+  private static final String[] STATUS_CLASSES = {PhaseLatencies.NO_RESPONSE, "1xx", "2xx", "3xx", "4xx", "5xx"};
+
+  private final String name;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicLongArray statusClassCounts = new AtomicLongArray(STATUS_CLASSES.length);
+  private final AtomicLong requestBytes = new AtomicLong();
+  private final AtomicLong responseBytes = new AtomicLong();
+
+  public ProxyMetrics(String name) {
+    this.name = name;
+  }
+
+  /** Counts an exchange in flight. Each call must be paired with an {@link #end}. */
+  public void begin() {
+    inFlight.incrementAndGet();
+  }
+
+  /**
+   * Counts an exchange as done.
+   *
+   * @param statusCode sent to the client; -1 if it failed without one
+   * @param requestBytes of the request body sent to the target(s)
+   * @param responseBytes of the response body sent to the client
+   */
+  public void end(int statusCode, long requestBytes, long responseBytes) {
+    count(statusCode);
+    if (requestBytes > 0)
+      this.requestBytes.addAndGet(requestBytes);
+    if (responseBytes > 0)
+      this.responseBytes.addAndGet(responseBytes);
+    // last, so that once a reader sees it out of flight, it's counted
+    inFlight.decrementAndGet();
+  }
+
+  /**
+   * Counts an exchange answered at once, without being in flight (e.g. refused by the proxy).
+   * @param statusCode sent to the client
+   */
+  public void count(int statusCode) {
+    statusClassCounts.incrementAndGet(statusCode >= 100 && statusCode < 600 ? statusCode / 100 : 0);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /** The number of exchanges done. */
+  public long getRequestCount() {
+    long count = 0;
+    for (int i = 0; i < STATUS_CLASSES.length; i++) {
+      count += statusClassCounts.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * The number of exchanges done with a status code of the class.
+   * @param statusClass like {@code 2xx}, or {@value PhaseLatencies#NO_RESPONSE}
+   */
+  public long getRequestCount(String statusClass) {
+    for (int i = 0; i < STATUS_CLASSES.length; i++) {
+      if (STATUS_CLASSES[i].equals(statusClass))
+        return statusClassCounts.get(i);
+    }
+    throw new IllegalArgumentException("Unknown status class: " + statusClass);
+  }
+
+  /** The number of exchanges that failed without a response (e.g. the target is down). */
+  public long getErrorCount() {
+    return statusClassCounts.get(0);
+  }
+
+  /** The status classes, in the order of {@link #getRequestCount(String)}. */
+  public static String[] getStatusClasses() {
+    return STATUS_CLASSES.clone();
+  }
+
+  /** The bytes of the request bodies sent to the targets (retries included). */
+  public long getRequestBytes() {
+    return requestBytes.get();
+  }
+
+  /** The bytes of the response bodies sent to the clients. */
+  public long getResponseBytes() {
+    return responseBytes.get();
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.metrics;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+
+/**
+ * Notes in the {@link ExchangeTimings} of the context when a connection (leased, and opened if
+ * needed) starts sending the request, and when the response headers are received; the time between
+ * is emitted as a {@link ProxyEvents} first byte. Also sets {@link #ATTR_REUSED_CONNECTION} if the
+ * connection sent requests before. Set with
+ * {@link org.apache.http.impl.client.HttpClientBuilder#setRequestExecutor}.
+ */
+public class TimingRequestExecutor extends HttpRequestExecutor {
+
+  /** The context attribute set (to true) when the request is sent on a reused connection. */
+  public static final String ATTR_REUSED_CONNECTION = TimingRequestExecutor.class.getName() + ".reused";
+
+  @Override
+  public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+          throws IOException, HttpException {
+    if (conn.getMetrics().getRequestCount() > 0)
+      context.setAttribute(ATTR_REUSED_CONNECTION, Boolean.TRUE);
+    ExchangeTimings timings = ExchangeTimings.get(context);
+    if (timings != null) {
+      timings.leased(targetOf(context));
+      timings.connected(System.nanoTime());
+    }
+    ProxyEvents events = ProxyEvents.get();
+    Object firstByteEvent = events.beginFirstByte();
+    if (firstByteEvent == null)
+      return super.execute(request, conn, context);
+    HttpResponse response = null;
+    try {
+      // returns once the response headers are received
+      response = super.execute(request, conn, context);
+      return response;
+    } finally {
+      events.endFirstByte(firstByteEvent, targetOf(context),
+              response != null ? response.getStatusLine().getStatusCode() : -1);
+    }
+  }
+
+  @Override
+  protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context)
+          throws HttpException, IOException {
+    HttpResponse response = super.doReceiveResponse(request, conn, context);
+    ExchangeTimings timings = ExchangeTimings.get(context);
+    if (timings != null)
+      timings.responseHeadReceived(System.nanoTime());
+    return response;
+  }
+
+  private static HttpHost targetOf(HttpContext context) {
+    return (HttpHost) context.getAttribute(HttpCoreContext.HTTP_TARGET_HOST);
+  }
+}
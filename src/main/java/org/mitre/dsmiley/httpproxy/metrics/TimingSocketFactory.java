@@ -0,0 +1,84 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.metrics;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Adds the time opening a connection takes (with the TLS handshake, if any) to the
+ * {@link ExchangeTimings} of the context, and emits it as a {@link ProxyEvents} connect. Wraps the socket factory of a scheme; see
+ * {@link #wrap(ConnectionSocketFactory)}.
+ */
+public class TimingSocketFactory implements ConnectionSocketFactory {
+
+  private final ConnectionSocketFactory delegate;
+
+  private TimingSocketFactory(ConnectionSocketFactory delegate) {
+    this.delegate = delegate;
+  }
+
+  /** Wraps the factory, keeping it layered (for TLS over a tunnel) if it is. */
+  public static ConnectionSocketFactory wrap(ConnectionSocketFactory delegate) {
+    if (delegate instanceof LayeredConnectionSocketFactory)
+      return new Layered((LayeredConnectionSocketFactory) delegate);
+    return new TimingSocketFactory(delegate);
+  }
+
+  public Socket createSocket(HttpContext context) throws IOException {
+    return delegate.createSocket(context);
+  }
+
+  public Socket connectSocket(int connectTimeout, Socket sock, HttpHost host, InetSocketAddress remoteAddress,
+                              InetSocketAddress localAddress, HttpContext context) throws IOException {
+    ExchangeTimings timings = ExchangeTimings.get(context);
+    if (timings != null)
+      timings.leased(host);
+    ProxyEvents events = ProxyEvents.get();
+    Object connectEvent = events.beginConnect();
+    long startNanos = System.nanoTime();
+    Socket connected = null;
+    try {
+      connected = delegate.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+      return connected;
+    } finally {
+      if (timings != null)
+        timings.addConnectNanos(System.nanoTime() - startNanos);
+      events.endConnect(connectEvent, host, connected != null);
+    }
+  }
+
+  private static class Layered extends TimingSocketFactory implements LayeredConnectionSocketFactory {
+    private final LayeredConnectionSocketFactory layered;
+
+    Layered(LayeredConnectionSocketFactory delegate) {
+      super(delegate);
+      this.layered = delegate;
+    }
+
+    public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+            throws IOException {
+      return layered.createLayeredSocket(socket, target, port, context);
+    }
+  }
+}
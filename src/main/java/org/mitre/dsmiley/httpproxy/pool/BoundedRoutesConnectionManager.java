@@ -0,0 +1,116 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.pool;
+
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolEntry;
+import org.apache.http.pool.PoolEntryCallback;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool that keeps idle connections for a bounded number of routes (destinations): those most
+ * recently requested. When a route falls out of them, its idle connections are closed, and the
+ * route's own pool with them. This is for targets that vary per request (see
+ * {@link org.mitre.dsmiley.httpproxy.URITemplateProxyServlet}), so that a long tail of rarely used
+ * hosts doesn't hold sockets, and pool capacity, that the busy ones need.
+ * <p>
+ *   Connections leased when their route is evicted are closed by {@link #closeIdleRoutes()} once
+ *   released, which the {@link ConnectionEvictor} calls. Requires HttpClient 4.4.
+ * </p>
+ */
+public class BoundedRoutesConnectionManager extends PoolingHttpClientConnectionManager {
+
+  private final int maxRoutes;
+  /** Access ordered; the eldest is the least recently requested. Guarded by itself. */
+  private final LinkedHashMap<HttpRoute, Boolean> recentRoutes;
+  private final AtomicLong evictedRouteCount = new AtomicLong();
+
+  public BoundedRoutesConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry,
+                                        long timeToLive, TimeUnit tunit, int maxRoutes) {
+    super(socketFactoryRegistry, null, null, null, timeToLive, tunit);
+    if (maxRoutes <= 0)
+      throw new IllegalArgumentException("maxRoutes must be > 0");
+    this.maxRoutes = maxRoutes;
+    this.recentRoutes = new LinkedHashMap<HttpRoute, Boolean>(16, 0.75f, true);
+  }
+
+  @Override
+  public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+    HttpRoute evicted = null;
+    synchronized (recentRoutes) {
+      if (recentRoutes.put(route, Boolean.TRUE) == null && recentRoutes.size() > maxRoutes) {
+        Iterator<HttpRoute> eldest = recentRoutes.keySet().iterator();
+        evicted = eldest.next();
+        eldest.remove();
+      }
+    }
+    if (evicted != null) {
+      evictedRouteCount.incrementAndGet();
+      closeIdleConnections(Collections.singleton(evicted), true);
+    }
+    return super.requestConnection(route, state);
+  }
+
+  /**
+   * Closes the idle connections of the routes that aren't among the recent ones.
+   * @return how many were closed
+   */
+  public int closeIdleRoutes() {
+    Set<HttpRoute> recent;
+    synchronized (recentRoutes) {
+      recent = new HashSet<HttpRoute>(recentRoutes.keySet());
+    }
+    return closeIdleConnections(recent, false);
+  }
+
+  /** Closes the idle connections of the routes in {@code routes}, or not in them. */
+  private int closeIdleConnections(final Collection<HttpRoute> routes, final boolean in) {
+    final int[] closed = new int[1];
+    enumAvailable(new PoolEntryCallback<HttpRoute, ManagedHttpClientConnection>() {
+      public void process(PoolEntry<HttpRoute, ManagedHttpClientConnection> entry) {
+        if (routes.contains(entry.getRoute()) == in) {
+          entry.close();// the pool then removes it, and the route's pool if empty
+          closed[0]++;
+        }
+      }
+    });
+    return closed[0];
+  }
+
+  /** The maximum number of routes whose idle connections are kept. */
+  public int getMaxRoutes() {
+    return maxRoutes;
+  }
+
+  /** The number of routes evicted so far for not being among the recent ones. */
+  public long getEvictedRouteCount() {
+    return evictedRouteCount.get();
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.pool;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A daemon that periodically closes the expired connections of a pool, and those idle for longer
+ * than a maximum, or of an evicted route (see {@link BoundedRoutesConnectionManager}). Otherwise a
+ * pooled connection half-closed by the target (e.g. after a restart or a load balancer's idle
+ * timeout) is only noticed when a request fails on it.
+ * <p>
+ *   HttpClient's own {@code IdleConnectionEvictor} is similar but doesn't count what it closed.
+ * </p>
+ */
+public class ConnectionEvictor {
+
+  private static final Log log = LogFactory.getLog(ConnectionEvictor.class);
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final long intervalMillis;
+  private final long maxIdleMillis;
+  private final AtomicLong evictedCount = new AtomicLong();
+  private final AtomicLong runCount = new AtomicLong();
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param intervalMillis how often to run
+   * @param maxIdleMillis connections idle for longer are closed; -1 closes only expired ones
+   */
+  public ConnectionEvictor(PoolingHttpClientConnectionManager connectionManager,
+                           long intervalMillis, long maxIdleMillis) {
+    if (intervalMillis <= 0)
+      throw new IllegalArgumentException("intervalMillis must be > 0");
+    this.connectionManager = connectionManager;
+    this.intervalMillis = intervalMillis;
+    this.maxIdleMillis = maxIdleMillis;
+  }
+
+  public synchronized void start(final String name) {
+    if (executor != null)
+      throw new IllegalStateException("Already started");
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ConnectionEvictor-" + name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          evict();
+        } catch (RuntimeException e) {
+          log.warn("Evicting connections: " + e, e);
+        }
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops the daemon and waits (briefly) for a run in progress. */
+  public synchronized void shutdown() {
+    if (executor == null)
+      return;
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(intervalMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    executor = null;
+  }
+
+  /**
+   * Closes the expired and idle connections now.
+   * @return how many were closed (approximately, if the pool is in use meanwhile)
+   */
+  public int evict() {
+    int availableBefore = connectionManager.getTotalStats().getAvailable();
+    connectionManager.closeExpiredConnections();
+    if (maxIdleMillis >= 0)
+      connectionManager.closeIdleConnections(maxIdleMillis, TimeUnit.MILLISECONDS);
+    if (connectionManager instanceof BoundedRoutesConnectionManager)
+      ((BoundedRoutesConnectionManager) connectionManager).closeIdleRoutes();
+    int evicted = Math.max(0, availableBefore - connectionManager.getTotalStats().getAvailable());
+    runCount.incrementAndGet();
+    if (evicted > 0) {
+      evictedCount.addAndGet(evicted);
+      if (log.isDebugEnabled())
+        log.debug("Evicted " + evicted + " connections; " + connectionManager.getTotalStats());
+    }
+    return evicted;
+  }
+
+  /** The total number of connections closed so far. */
+  public long getEvictedCount() {
+    return evictedCount.get();
+  }
+
+  /** The number of times it ran. */
+  public long getRunCount() {
+    return runCount.get();
+  }
+
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  public long getMaxIdleMillis() {
+    return maxIdleMillis;
+  }
+}
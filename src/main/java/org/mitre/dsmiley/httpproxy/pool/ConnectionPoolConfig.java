@@ -0,0 +1,247 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.pool;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.mitre.dsmiley.httpproxy.metrics.TimingSocketFactory;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings of the pool of connections to the target(s), and of their sockets. HttpClient's
+ * defaults (2 connections per route, 20 in total) are far too low for a proxy, so the defaults
+ * here are higher.
+ * <p>
+ *   A value of -1 means "not set"; HttpClient's default applies.
+ * </p>
+ */
+public class ConnectionPoolConfig {
+
+  private int maxTotal = 200;
+  private int maxPerRoute = 50;
+  private final Map<HttpHost, Integer> maxPerRouteOverrides = new LinkedHashMap<HttpHost, Integer>();
+  private long connectionTtl = -1;
+  private int validateAfterInactivity = -1;
+  private int leaseTimeout = 5000;
+  private boolean tcpNoDelay = true;
+  private int sendBufferSize = -1;
+  private int receiveBufferSize = -1;
+  private long evictionInterval = 5000;
+  private long maxIdleTime = 30000;
+  private int maxRoutes = -1;
+
+  /** The maximum number of connections, across all routes. */
+  public int getMaxTotal() { return maxTotal; }
+  public void setMaxTotal(int maxTotal) { this.maxTotal = maxTotal; }
+
+  /** The maximum number of connections per route (target host) unless overridden. */
+  public int getMaxPerRoute() { return maxPerRoute; }
+  public void setMaxPerRoute(int maxPerRoute) { this.maxPerRoute = maxPerRoute; }
+
+  /** The per-route overrides of {@link #getMaxPerRoute()}. Unmodifiable. */
+  public Map<HttpHost, Integer> getMaxPerRouteOverrides() {
+    return Collections.unmodifiableMap(maxPerRouteOverrides);
+  }
+
+  public void setMaxPerRoute(HttpHost target, int max) {
+    maxPerRouteOverrides.put(target, max);
+  }
+
+  /**
+   * Parses per-route overrides of the form {@code host:port=max} or {@code scheme://host:port=max},
+   * separated by commas or whitespace. Example: {@code backend1:8080=100, https://backend2=20}
+   */
+  public void parseMaxPerRouteOverrides(String overrides) {
+    for (String override : overrides.split("[,\\s]+")) {
+      if (override.length() == 0)
+        continue;
+      int eqIdx = override.lastIndexOf('=');
+      if (eqIdx <= 0)
+        throw new IllegalArgumentException("Expected host=max but got: " + override);
+      HttpHost target = parseHost(override.substring(0, eqIdx).trim());
+      setMaxPerRoute(target, Integer.parseInt(override.substring(eqIdx + 1).trim()));
+    }
+  }
+
+  /** The time to live of a connection (millis), after which it's not reused. */
+  public long getConnectionTtl() { return connectionTtl; }
+  public void setConnectionTtl(long connectionTtl) { this.connectionTtl = connectionTtl; }
+
+  /**
+   * The time of inactivity (millis) after which a pooled connection is checked for being stale
+   * before it's leased. Requires HttpClient 4.4.
+   */
+  public int getValidateAfterInactivity() { return validateAfterInactivity; }
+  public void setValidateAfterInactivity(int validateAfterInactivity) {
+    this.validateAfterInactivity = validateAfterInactivity;
+  }
+
+  /**
+   * The maximum time (millis) to wait to lease a connection from the pool. When elapsed, a
+   * {@link PoolExhaustedException} is thrown. Default 5000, so that requests fail rather than pile
+   * up when the pool is saturated; 0 or -1 waits forever.
+   */
+  public int getLeaseTimeout() { return leaseTimeout; }
+  public void setLeaseTimeout(int leaseTimeout) { this.leaseTimeout = leaseTimeout; }
+
+  public boolean isTcpNoDelay() { return tcpNoDelay; }
+  public void setTcpNoDelay(boolean tcpNoDelay) { this.tcpNoDelay = tcpNoDelay; }
+
+  /** SO_SNDBUF (bytes). Requires HttpClient 4.4. */
+  public int getSendBufferSize() { return sendBufferSize; }
+  public void setSendBufferSize(int sendBufferSize) { this.sendBufferSize = sendBufferSize; }
+
+  /** SO_RCVBUF (bytes). Requires HttpClient 4.4. */
+  public int getReceiveBufferSize() { return receiveBufferSize; }
+  public void setReceiveBufferSize(int receiveBufferSize) { this.receiveBufferSize = receiveBufferSize; }
+
+  /**
+   * How often the {@link ConnectionEvictor} closes expired and idle connections (millis). 0 or
+   * less disables it.
+   */
+  public long getEvictionInterval() { return evictionInterval; }
+  public void setEvictionInterval(long evictionInterval) { this.evictionInterval = evictionInterval; }
+
+  /** The time (millis) after which an idle connection is evicted. -1 evicts only expired ones. */
+  public long getMaxIdleTime() { return maxIdleTime; }
+  public void setMaxIdleTime(long maxIdleTime) { this.maxIdleTime = maxIdleTime; }
+
+  /**
+   * The maximum number of routes (target hosts) whose idle connections are kept; those of the
+   * least recently used routes beyond are closed. -1 is unbounded. For targets that vary per
+   * request. Requires HttpClient 4.4. See {@link BoundedRoutesConnectionManager}.
+   */
+  public int getMaxRoutes() { return maxRoutes; }
+  public void setMaxRoutes(int maxRoutes) { this.maxRoutes = maxRoutes; }
+
+  /**
+   * Creates (but doesn't start) the evictor of the connection manager, or returns null if
+   * disabled.
+   */
+  public ConnectionEvictor createConnectionEvictor(PoolingHttpClientConnectionManager connectionManager) {
+    if (evictionInterval <= 0)
+      return null;
+    return new ConnectionEvictor(connectionManager, evictionInterval, maxIdleTime);
+  }
+
+  /**
+   * Returns a {@link SocketConfig} builder with the socket options of this config applied.
+   */
+  public SocketConfig.Builder socketConfigBuilder() {
+    SocketConfig.Builder builder = SocketConfig.custom().setTcpNoDelay(tcpNoDelay);
+    //only call the 4.4 methods if needed, so that 4.3 keeps working otherwise
+    if (sendBufferSize > 0)
+      builder.setSndBufSize(sendBufferSize);
+    if (receiveBufferSize > 0)
+      builder.setRcvBufSize(receiveBufferSize);
+    return builder;
+  }
+
+  /**
+   * Creates a connection manager configured by this config.
+   *
+   * @param socketConfig the default socket config; may be null
+   * @param useSystemProperties whether to use the JVM's SSL and "http.maxConnections" settings,
+   *                            like {@link org.apache.http.impl.client.HttpClientBuilder#useSystemProperties()}
+   */
+  public PoolingHttpClientConnectionManager createConnectionManager(SocketConfig socketConfig,
+                                                                    boolean useSystemProperties) {
+    Registry<ConnectionSocketFactory> socketFactoryRegistry = createSocketFactoryRegistry(useSystemProperties);
+    PoolingHttpClientConnectionManager connectionManager = maxRoutes > 0
+            ? new BoundedRoutesConnectionManager(socketFactoryRegistry, connectionTtl, TimeUnit.MILLISECONDS, maxRoutes)
+            : new PoolingHttpClientConnectionManager(socketFactoryRegistry, null, null, null,
+                    connectionTtl, TimeUnit.MILLISECONDS);
+    configure(connectionManager, useSystemProperties);
+    if (socketConfig != null)
+      connectionManager.setDefaultSocketConfig(socketConfig);
+    return connectionManager;
+  }
+
+  /** Applies the pool sizes and validation settings to the connection manager. */
+  protected void configure(PoolingHttpClientConnectionManager connectionManager, boolean useSystemProperties) {
+    int total = maxTotal;
+    int perRoute = maxPerRoute;
+    if (useSystemProperties && "true".equalsIgnoreCase(System.getProperty("http.keepAlive", "true"))) {
+      String maxConnections = System.getProperty("http.maxConnections");
+      if (maxConnections != null) {
+        // same as HttpClientBuilder.useSystemProperties()
+        perRoute = Integer.parseInt(maxConnections);
+        total = 2 * perRoute;
+      }
+    }
+    connectionManager.setMaxTotal(total);
+    connectionManager.setDefaultMaxPerRoute(perRoute);
+    for (Map.Entry<HttpHost, Integer> override : maxPerRouteOverrides.entrySet()) {
+      connectionManager.setMaxPerRoute(routeOf(override.getKey()), override.getValue());
+    }
+    if (validateAfterInactivity >= 0)
+      connectionManager.setValidateAfterInactivity(validateAfterInactivity);
+  }
+
+  /** The socket factories by scheme, wrapped to time connecting (see {@link TimingSocketFactory}). */
+  protected Registry<ConnectionSocketFactory> createSocketFactoryRegistry(boolean useSystemProperties) {
+    return RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", TimingSocketFactory.wrap(PlainConnectionSocketFactory.getSocketFactory()))
+            .register("https", TimingSocketFactory.wrap(useSystemProperties
+                    ? SSLConnectionSocketFactory.getSystemSocketFactory() : SSLConnectionSocketFactory.getSocketFactory()))
+            .build();
+  }
+
+  /**
+   * The route HttpClient uses to reach {@code target} directly, which is how the pool is keyed.
+   * The port is made explicit like HttpClient's route planner does.
+   */
+  public static HttpRoute routeOf(HttpHost target) {
+    boolean secure = "https".equalsIgnoreCase(target.getSchemeName());
+    if (target.getPort() < 0) {
+      target = new HttpHost(target.getHostName(), secure ? 443 : 80, target.getSchemeName());
+    }
+    return new HttpRoute(target, null, secure);
+  }
+
+  /** Parses {@code host[:port]} or {@code scheme://host[:port]}. */
+  public static HttpHost parseHost(String host) {
+    if (host.contains("://"))
+      return URIUtils.extractHost(URI.create(host));
+    int colonIdx = host.lastIndexOf(':');
+    if (colonIdx < 0)
+      return new HttpHost(host);
+    return new HttpHost(host.substring(0, colonIdx), Integer.parseInt(host.substring(colonIdx + 1)));
+  }
+
+  @Override
+  public String toString() {
+    return "ConnectionPoolConfig{maxTotal=" + maxTotal + ", maxPerRoute=" + maxPerRoute +
+            ", overrides=" + maxPerRouteOverrides + ", ttl=" + connectionTtl +
+            ", validateAfterInactivity=" + validateAfterInactivity + ", leaseTimeout=" + leaseTimeout +
+            ", evictionInterval=" + evictionInterval + ", maxIdleTime=" + maxIdleTime +
+            ", maxRoutes=" + maxRoutes + "}";
+  }
+}
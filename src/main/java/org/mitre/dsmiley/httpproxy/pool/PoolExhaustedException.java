@@ -0,0 +1,49 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.pool;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * No connection to the target could be leased from the pool within the lease timeout; the pool is
+ * saturated. It's a {@link ConnectionPoolTimeoutException}, so code catching that still works.
+ */
+@SuppressWarnings("serial")
+public class PoolExhaustedException extends ConnectionPoolTimeoutException {
+
+  private final HttpHost target;
+  private final PoolStats routeStats;
+
+  public PoolExhaustedException(HttpHost target, PoolStats routeStats, ConnectionPoolTimeoutException cause) {
+    super("Connection pool exhausted for " + target + (routeStats != null ? " " + routeStats : ""));
+    this.target = target;
+    this.routeStats = routeStats;
+    initCause(cause);
+  }
+
+  /** The target host the connection was for. */
+  public HttpHost getTarget() {
+    return target;
+  }
+
+  /** The pool statistics of the route when it happened; might be null. */
+  public PoolStats getRouteStats() {
+    return routeStats;
+  }
+}
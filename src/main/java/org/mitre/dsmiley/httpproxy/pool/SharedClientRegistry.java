@@ -0,0 +1,152 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.pool;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import javax.servlet.ServletContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The http clients shared by the servlets of a web application, keyed by a named client profile.
+ * Servlets that proxy to the same backends acquire the client of the same profile and so share
+ * one pool of connections, instead of one pool each. The first servlet acquiring a profile creates
+ * its client; the last one releasing it closes it.
+ * <p>
+ *   There's one registry per {@link ServletContext}; see {@link #get(ServletContext)}.
+ * </p>
+ */
+public class SharedClientRegistry {
+
+  private static final Log log = LogFactory.getLog(SharedClientRegistry.class);
+
+  /** The {@link ServletContext} attribute holding the registry. */
+  public static final String ATTR_REGISTRY = SharedClientRegistry.class.getName();
+
+  /** Creates the client of a profile, on its first acquisition. */
+  public interface ClientFactory {
+    SharedClient create();
+  }
+
+  /** A shared client and the resources closed with it. */
+  public static class SharedClient {
+    private final HttpClient client;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final ConnectionEvictor connectionEvictor;
+    private final ConnectionPoolConfig poolConfig;
+    private int references;
+
+    /**
+     * @param connectionManager the client's pool; may be null
+     * @param connectionEvictor started already, or null; shut down when the client is closed
+     * @param poolConfig what the pool was configured with; may be null
+     */
+    public SharedClient(HttpClient client, PoolingHttpClientConnectionManager connectionManager,
+                        ConnectionEvictor connectionEvictor, ConnectionPoolConfig poolConfig) {
+      if (client == null)
+        throw new IllegalArgumentException("client is required");
+      this.client = client;
+      this.connectionManager = connectionManager;
+      this.connectionEvictor = connectionEvictor;
+      this.poolConfig = poolConfig;
+    }
+
+    public HttpClient getClient() { return client; }
+
+    public PoolingHttpClientConnectionManager getConnectionManager() { return connectionManager; }
+
+    public ConnectionEvictor getConnectionEvictor() { return connectionEvictor; }
+
+    public ConnectionPoolConfig getPoolConfig() { return poolConfig; }
+
+    void close() throws IOException {
+      if (connectionEvictor != null)
+        connectionEvictor.shutdown();
+      if (client instanceof Closeable) {
+        ((Closeable) client).close();
+      } else {
+        client.getConnectionManager().shutdown();
+      }
+    }
+  }
+
+  private final Map<String, SharedClient> clients = new HashMap<String, SharedClient>();
+
+  /** Returns the registry of the context, creating it if needed. */
+  public static SharedClientRegistry get(ServletContext servletContext) {
+    // the context has no lock of its own we could use; servlets usually initialize on one thread
+    synchronized (SharedClientRegistry.class) {
+      SharedClientRegistry registry = (SharedClientRegistry) servletContext.getAttribute(ATTR_REGISTRY);
+      if (registry == null) {
+        registry = new SharedClientRegistry();
+        servletContext.setAttribute(ATTR_REGISTRY, registry);
+      }
+      return registry;
+    }
+  }
+
+  /**
+   * Returns the client of the profile, creating it with {@code factory} if there's none, and
+   * counts a reference to it. Each call must be paired with a {@link #release(String)}.
+   */
+  public synchronized SharedClient acquire(String profile, ClientFactory factory) {
+    SharedClient shared = clients.get(profile);
+    if (shared == null) {
+      shared = factory.create();
+      clients.put(profile, shared);
+      if (log.isDebugEnabled())
+        log.debug("Created the shared client of profile " + profile);
+    }
+    shared.references++;
+    return shared;
+  }
+
+  /**
+   * Removes a reference to the client of the profile, closing it when there's none left.
+   * @return true if the client was closed
+   */
+  public synchronized boolean release(String profile) throws IOException {
+    SharedClient shared = clients.get(profile);
+    if (shared == null)
+      throw new IllegalStateException("No shared client of profile " + profile);
+    if (--shared.references > 0)
+      return false;
+    clients.remove(profile);
+    shared.close();
+    return true;
+  }
+
+  /** The number of servlets using the client of the profile, 0 if there's none. */
+  public synchronized int getReferenceCount(String profile) {
+    SharedClient shared = clients.get(profile);
+    return shared == null ? 0 : shared.references;
+  }
+
+  /** The profiles having a client. */
+  public synchronized Set<String> getProfiles() {
+    return Collections.unmodifiableSet(new TreeSet<String>(clients.keySet()));
+  }
+}
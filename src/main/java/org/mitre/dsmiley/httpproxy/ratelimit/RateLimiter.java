@@ -0,0 +1,160 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.ratelimit;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of requests per key (e.g. a client address), with a {@link TokenBucket} per key.
+ * The buckets are held in a bounded map, so that many distinct keys (e.g. a spoofed header) can't
+ * grow the heap without limit: it's split in stripes, each locked only to find a bucket and
+ * holding at most its share of {@code maxKeys}, its least recently used beyond are dropped. Full
+ * buckets, which are as good as new, are dropped on the way as well. Taking a token takes no lock.
+ * <p>
+ *   A key dropped while its bucket was not full gets a full one when it's back, so when there are
+ *   more active keys than {@code maxKeys} the limit is looser.
+ * </p>
+ */
+public class RateLimiter {
+
+  private static final int STRIPES = 16;
+  /** The most idle buckets removed when finding one; bounds the work under the lock. */
+  private static final int MAX_EXPIRED_PER_LOOKUP = 2;
+
+  private final double permitsPerSecond;
+  private final int burst;
+  private final long intervalNanos;
+  private final int maxKeysPerStripe;
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final AtomicLong permittedCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  @SuppressWarnings("serial")
+  private static class Stripe extends LinkedHashMap<String, TokenBucket> {
+    private final int maxSize;
+
+    Stripe(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+      return size() > maxSize;
+    }
+  }
+
+  /**
+   * @param permitsPerSecond the sustained rate allowed per key
+   * @param burst the most requests allowed at once per key
+   * @param maxKeys the most keys whose buckets are kept
+   */
+  public RateLimiter(double permitsPerSecond, int burst, int maxKeys) {
+    if (!(permitsPerSecond > 0) || burst <= 0 || maxKeys <= 0)
+      throw new IllegalArgumentException("permitsPerSecond, burst and maxKeys must be > 0");
+    this.permitsPerSecond = permitsPerSecond;
+    this.burst = burst;
+    this.intervalNanos = Math.max(1, (long) (1000000000 / permitsPerSecond));
+    this.maxKeysPerStripe = (maxKeys + STRIPES - 1) / STRIPES;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe(maxKeysPerStripe);
+    }
+  }
+
+  /**
+   * Takes a token of the key's bucket if there's one.
+   * @return 0 if the request is permitted, else the time until it would be (nanos)
+   */
+  public long tryAcquire(String key) {
+    long nowNanos = System.nanoTime();
+    long waitNanos = getBucket(key, nowNanos).tryTake(nowNanos);
+    if (waitNanos == 0)
+      permittedCount.incrementAndGet();
+    else
+      rejectedCount.incrementAndGet();
+    return waitNanos;
+  }
+
+  /** Returns the bucket of the key, creating it (full) if there's none. */
+  public TokenBucket getBucket(String key) {
+    return getBucket(key, System.nanoTime());
+  }
+
+  private TokenBucket getBucket(String key, long nowNanos) {
+    int hash = key.hashCode();
+    Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    synchronized (stripe) {
+      TokenBucket bucket = stripe.get(key);
+      if (bucket == null) {
+        expire(stripe, nowNanos);
+        bucket = new TokenBucket(intervalNanos, burst, nowNanos);
+        stripe.put(key, bucket);
+      }
+      return bucket;
+    }
+  }
+
+  private void expire(Stripe stripe, long nowNanos) {
+    Iterator<TokenBucket> iterator = stripe.values().iterator();
+    for (int i = 0; i < MAX_EXPIRED_PER_LOOKUP && iterator.hasNext(); i++) {
+      if (iterator.next().getNanosUntilFull(nowNanos) > 0)
+        return;
+      iterator.remove();
+    }
+  }
+
+  /** The number of keys having a bucket. */
+  public int getKeyCount() {
+    int count = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        count += stripe.size();
+      }
+    }
+    return count;
+  }
+
+  public double getPermitsPerSecond() {
+    return permitsPerSecond;
+  }
+
+  public int getBurst() {
+    return burst;
+  }
+
+  /** The most keys whose buckets are kept (rounded up to the stripes). */
+  public int getMaxKeys() {
+    return maxKeysPerStripe * STRIPES;
+  }
+
+  public long getPermittedCount() {
+    return permittedCount.get();
+  }
+
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "RateLimiter{" + permitsPerSecond + "/s, burst=" + burst + ", keys=" + getKeyCount() +
+            ", rejected=" + getRejectedCount() + "}";
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.ratelimit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket, refilled at a steady rate up to a burst size. Rather than a count of tokens and
+ * the time of the last refill, it holds a single value, the time it will be full again, so that a
+ * token is taken with one compare-and-set and no lock (this is the "generic cell rate algorithm").
+ * <p>
+ *   Times are of {@link System#nanoTime()}.
+ * </p>
+ */
+public class TokenBucket {
+
+  private final long intervalNanos;
+  private final long burstNanos;
+  private final AtomicLong fullAtNanos;
+
+  /**
+   * @param intervalNanos the time to refill one token
+   * @param burst the size of the bucket; it starts full
+   */
+  public TokenBucket(long intervalNanos, int burst, long nowNanos) {
+    if (intervalNanos <= 0 || burst <= 0)
+      throw new IllegalArgumentException("intervalNanos and burst must be > 0");
+    this.intervalNanos = intervalNanos;
+    this.burstNanos = intervalNanos * burst;
+    this.fullAtNanos = new AtomicLong(nowNanos);
+  }
+
+  /**
+   * Takes a token if there's one.
+   * @return 0 if it was taken, else the time until there's one (nanos)
+   */
+  public long tryTake(long nowNanos) {
+    while (true) {
+      long fullAt = fullAtNanos.get();
+      long newFullAt = (fullAt - nowNanos > 0 ? fullAt : nowNanos) + intervalNanos;
+      long waitNanos = newFullAt - nowNanos - burstNanos;
+      if (waitNanos > 0)
+        return waitNanos;
+      if (fullAtNanos.compareAndSet(fullAt, newFullAt))
+        return 0;
+    }
+  }
+
+  /** The number of whole tokens left. */
+  public int getAvailable(long nowNanos) {
+    return (int) ((burstNanos - getNanosUntilFull(nowNanos)) / intervalNanos);
+  }
+
+  /** The time until the bucket is full again (nanos); 0 if it is. */
+  public long getNanosUntilFull(long nowNanos) {
+    return Math.max(0, fullAtNanos.get() - nowNanos);
+  }
+
+  /** The size of the bucket. */
+  public int getBurst() {
+    return (int) (burstNanos / intervalNanos);
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.retry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the retries to a target to a percentage of its requests, so that retries can't multiply
+ * the load of a target that is failing. Each request deposits a fraction of a retry; each retry
+ * withdraws a whole one. A minimum rate of retries is allowed regardless, so that a quiet target
+ * can still be retried. The balance is capped at 10 seconds of that rate (10 retries at least), so
+ * a long calm doesn't fund a storm.
+ * <p>
+ *   A deposit takes no lock.
+ * </p>
+ */
+public class RetryBudget {
+
+  /** The cost of a retry; a request deposits {@code percent} of it. */
+  private static final long UNIT = 100;
+
+  private final int percent;
+  private final double minPerSecond;
+  private final long maxBalance;
+  private final AtomicLong balance;
+  private long refilledNanos = System.nanoTime();//guarded by this
+
+  /**
+   * @param percent the retries allowed per 100 requests
+   * @param minPerSecond the retries allowed per second anyway
+   */
+  public RetryBudget(int percent, double minPerSecond) {
+    if (percent < 0 || minPerSecond < 0)
+      throw new IllegalArgumentException("percent and minPerSecond must be >= 0");
+    this.percent = percent;
+    this.minPerSecond = minPerSecond;
+    this.maxBalance = UNIT * Math.max(10, (long) Math.ceil(10 * minPerSecond));
+    this.balance = new AtomicLong(UNIT * (long) Math.ceil(minPerSecond));
+  }
+
+  /** Counts a request (not a retry). */
+  public void deposit() {
+    if (percent > 0 && balance.get() < maxBalance)
+      balance.addAndGet(percent);
+  }
+
+  /** Withdraws a retry if the budget allows it. */
+  public synchronized boolean tryWithdraw() {
+    long now = System.nanoTime();
+    long refill = (long) ((now - refilledNanos) / 1e9 * minPerSecond * UNIT);
+    if (refill > 0) {
+      refilledNanos = now;
+      long room = maxBalance - balance.get();
+      if (room > 0)
+        balance.addAndGet(Math.min(refill, room));
+    }
+    while (true) {
+      long current = balance.get();
+      if (current < UNIT)
+        return false;
+      if (balance.compareAndSet(current, current - UNIT))
+        return true;
+    }
+  }
+
+  /** The number of retries currently allowed. */
+  public long getBalance() {
+    return balance.get() / UNIT;
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.retry;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a request that got no response from its target is sent again. It is if:
+ * <ul>
+ *   <li>it has been retried less than the maximum number of times;</li>
+ *   <li>its method is idempotent, and its body (if any) can be replayed;</li>
+ *   <li>the failure shows the target didn't process it: the connection couldn't be opened, or was
+ *   closed without a response ({@link NoHttpResponseException}), or was reset while reusing a
+ *   pooled connection (which the target had closed). Not a read timeout, since the target may
+ *   still be processing it, nor an exhausted connection pool;</li>
+ *   <li>the {@link RetryBudget} of the target allows it.</li>
+ * </ul>
+ * Retries wait for an exponential backoff with full jitter.
+ */
+public class RetryPolicy {
+
+  /** The budgets are dropped beyond this many target hosts. */
+  private static final int MAX_HOSTS = 1000;
+
+  private final int maxRetries;
+  private final int budgetPercent;
+  private final double minRetriesPerSecond;
+  private final long backoffMillis;
+  private final long maxBackoffMillis;
+  private final ConcurrentMap<HttpHost, RetryBudget> budgets = new ConcurrentHashMap<HttpHost, RetryBudget>();
+  private final Random random = new Random();
+  private final AtomicLong retryCount = new AtomicLong();
+  private final AtomicLong budgetExhaustedCount = new AtomicLong();
+
+  /**
+   * @param maxRetries the most times a request is retried
+   * @param budgetPercent the retries allowed per 100 requests to a target
+   * @param minRetriesPerSecond the retries allowed per second to a target anyway
+   * @param backoffMillis the backoff before the first retry, doubling with each next
+   * @param maxBackoffMillis the longest backoff
+   */
+  public RetryPolicy(int maxRetries, int budgetPercent, double minRetriesPerSecond,
+                     long backoffMillis, long maxBackoffMillis) {
+    if (maxRetries < 0 || budgetPercent < 0 || minRetriesPerSecond < 0 || backoffMillis < 0 || maxBackoffMillis < 0)
+      throw new IllegalArgumentException("Retry settings must be >= 0");
+    this.maxRetries = maxRetries;
+    this.budgetPercent = budgetPercent;
+    this.minRetriesPerSecond = minRetriesPerSecond;
+    this.backoffMillis = backoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  /** Counts a request (not a retry) to the target, funding its budget. */
+  public void onRequest(HttpHost target) {
+    getBudget(target).deposit();
+  }
+
+  /**
+   * Whether to retry the request, which failed with {@code failure} on a new connection.
+   * @see #shouldRetry(HttpRequest, IOException, boolean, int, HttpHost)
+   */
+  public boolean shouldRetry(HttpRequest request, IOException failure, int retry, HttpHost target) {
+    return shouldRetry(request, failure, false, retry, target);
+  }
+
+  /**
+   * Whether to retry the request, which failed with {@code failure}. If so, the retry is
+   * withdrawn from the target's budget and counted.
+   * @param reusedConnection whether it failed on a pooled connection that had sent requests before
+   * @param retry the number of the retry, from 1
+   */
+  public boolean shouldRetry(HttpRequest request, IOException failure, boolean reusedConnection, int retry,
+                             HttpHost target) {
+    if (retry > maxRetries || !isIdempotent(request.getRequestLine().getMethod())
+            || !isReplayable(request) || !isRetryable(failure, reusedConnection))
+      return false;
+    if (!getBudget(target).tryWithdraw()) {
+      budgetExhaustedCount.incrementAndGet();
+      return false;
+    }
+    retryCount.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Whether the failure shows that the target didn't process the request, so that it's worth a
+   * retry. A reset of a new connection, or a read timeout, may come after the target processed it.
+   */
+  protected boolean isRetryable(IOException failure, boolean reusedConnection) {
+    if (failure instanceof ConnectionPoolTimeoutException)//a ConnectTimeoutException, but of the proxy
+      return false;
+    if (failure instanceof ConnectException || failure instanceof ConnectTimeoutException
+            || failure instanceof NoHttpResponseException)
+      return true;
+    return reusedConnection && failure instanceof SocketException && failure.getMessage() != null
+            && failure.getMessage().startsWith("Connection reset");
+  }
+
+  /** The backoff before the retry: random, up to the exponential backoff. */
+  public long getBackoffMillis(int retry) {
+    long ceiling = Math.min(maxBackoffMillis, backoffMillis << Math.min(retry - 1, 30));
+    return ceiling <= 0 ? 0 : (long) (random.nextDouble() * ceiling);
+  }
+
+  /** The budget of the target, created on first use. */
+  public RetryBudget getBudget(HttpHost target) {
+    RetryBudget budget = budgets.get(target);
+    if (budget != null)
+      return budget;
+    if (budgets.size() >= MAX_HOSTS)
+      budgets.clear();//the target varies per request; budgets are best effort then
+    budget = new RetryBudget(budgetPercent, minRetriesPerSecond);
+    RetryBudget existing = budgets.putIfAbsent(target, budget);
+    return existing != null ? existing : budget;
+  }
+
+  /** Whether sending the method twice has the same effect as once (RFC 7231 section 4.2.2). */
+  public static boolean isIdempotent(String method) {
+    method = method.toUpperCase(Locale.ROOT);
+    return method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS")
+            || method.equals("TRACE") || method.equals("PUT") || method.equals("DELETE");
+  }
+
+  /** Whether the request's body, if any, can be sent again. */
+  public static boolean isReplayable(HttpRequest request) {
+    if (!(request instanceof HttpEntityEnclosingRequest))
+      return true;
+    HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+    return entity == null || entity.isRepeatable() || entity.getContentLength() == 0;
+  }
+
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /** The number of retries. */
+  public long getRetryCount() {
+    return retryCount.get();
+  }
+
+  /** The number of retries refused by a budget. */
+  public long getBudgetExhaustedCount() {
+    return budgetExhaustedCount.get();
+  }
+}
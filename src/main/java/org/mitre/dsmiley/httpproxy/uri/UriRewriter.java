@@ -0,0 +1,144 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.uri;
+
+/**
+ * Builds the URI of the request to the target, escaping the characters of the path, query and
+ * fragment that {@link java.net.URI} (and so HttpClient) would reject. It's done in one pass per
+ * part with a lookup table, and the input is returned as-is when there's nothing to escape.
+ * <p>
+ *   Existing percent escapes are left in place, except in the (decoded) path.
+ * </p>
+ */
+public final class UriRewriter {
+
+  /** Escape the character. */
+  private static final byte ESCAPE = 0;
+  /** Keep the character. */
+  private static final byte KEEP = 1;
+  /** Keep '%' unless it's literal (decoded input). */
+  private static final byte PERCENT = 2;
+
+  /** For each ASCII character, one of the above. */
+  private static final byte[] ASCII_TABLE = new byte[128];
+  static {
+    String unreserved = "_-!.~'()*";//plus alphanum
+    String punct = ",;:$&+=";
+    String reserved = "?/[]@";//plus punct
+    for (char c = 'a'; c <= 'z'; c++) ASCII_TABLE[c] = KEEP;
+    for (char c = 'A'; c <= 'Z'; c++) ASCII_TABLE[c] = KEEP;
+    for (char c = '0'; c <= '9'; c++) ASCII_TABLE[c] = KEEP;
+    for (char c : (unreserved + punct + reserved).toCharArray()) ASCII_TABLE[c] = KEEP;
+    ASCII_TABLE['%'] = PERCENT;
+  }
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  /** Room for a few escapes before the output has to grow. */
+  private static final int ESCAPE_SLACK = 16;
+
+  private UriRewriter() {}
+
+  /**
+   * Concatenates the target URI with the encoded path, query and fragment.
+   *
+   * @param targetUri the base URI, as-is
+   * @param pathInfo decoded, as from {@code getPathInfo()}; may be null
+   * @param query without the '?', not decoded; may be null or empty
+   * @param fragment without the '#', not decoded; may be null
+   */
+  public static String rewrite(CharSequence targetUri, CharSequence pathInfo, CharSequence query,
+                               CharSequence fragment) {
+    int capacity = targetUri.length() + ESCAPE_SLACK;
+    if (pathInfo != null)
+      capacity += pathInfo.length();
+    if (query != null)
+      capacity += query.length() + 1;
+    if (fragment != null)
+      capacity += fragment.length() + 1;
+    StringBuilder uri = new StringBuilder(capacity);
+    uri.append(targetUri);
+    if (pathInfo != null)
+      appendEncoded(uri, pathInfo, true);
+    if (query != null && query.length() > 0) {
+      uri.append('?');
+      appendEncoded(uri, query, false);
+    }
+    if (fragment != null) {
+      uri.append('#');
+      appendEncoded(uri, fragment, false);
+    }
+    return uri.toString();
+  }
+
+  /**
+   * Encodes the characters disallowed in a URI's query or fragment.
+   *
+   * @param encodePercent whether '%' is literal (the input is decoded) and must be escaped too
+   * @return {@code in} itself if nothing needs escaping
+   */
+  public static CharSequence encode(CharSequence in, boolean encodePercent) {
+    int len = in.length();
+    for (int i = 0; i < len; i++) {
+      if (mustEscape(in.charAt(i), encodePercent)) {
+        StringBuilder out = new StringBuilder(len + ESCAPE_SLACK);
+        out.append(in, 0, i);
+        appendEncoded(out, in, i, len, encodePercent);
+        return out;
+      }
+    }
+    return in;
+  }
+
+  /** Appends {@code in}, encoded as by {@link #encode(CharSequence, boolean)}. */
+  public static void appendEncoded(StringBuilder out, CharSequence in, boolean encodePercent) {
+    appendEncoded(out, in, 0, in.length(), encodePercent);
+  }
+
+  /** Appends the characters of {@code in} from {@code start} to {@code end} (exclusive), encoded. */
+  public static void appendEncoded(StringBuilder out, CharSequence in, int start, int end,
+                                   boolean encodePercent) {
+    int kept = start;//start of the run of characters to copy as-is
+    for (int i = start; i < end; i++) {
+      char c = in.charAt(i);
+      if (mustEscape(c, encodePercent)) {
+        out.append(in, kept, i);
+        appendEscaped(out, c);
+        kept = i + 1;
+      }
+    }
+    out.append(in, kept, end);
+  }
+
+  static boolean mustEscape(char c, boolean encodePercent) {
+    if (c < 128) {
+      byte cls = ASCII_TABLE[c];
+      return cls == ESCAPE || (cls == PERCENT && encodePercent);
+    }
+    return Character.isISOControl(c) || Character.isSpaceChar(c);
+  }
+
+  /** Appends '%' and the char's upper case hex, 0 padded to width 2 (as it always has been). */
+  private static void appendEscaped(StringBuilder out, char c) {
+    out.append('%');
+    if (c > 0xFFF)
+      out.append(HEX_DIGITS[c >> 12]);
+    if (c > 0xFF)
+      out.append(HEX_DIGITS[(c >> 8) & 0xF]);
+    out.append(HEX_DIGITS[(c >> 4) & 0xF]).append(HEX_DIGITS[c & 0xF]);
+  }
+}
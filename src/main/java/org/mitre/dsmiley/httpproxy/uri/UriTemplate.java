@@ -0,0 +1,370 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.uri;
+
+import org.apache.http.HttpHost;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A URI template with "Level 1" variables, like {@code http://{host}:{port}/{path}}, compiled once
+ * into its literal and variable segments. The variables are expanded from the parameters of a
+ * query string, which are scanned in place; the other parameters are kept (not decoded) as the
+ * remaining query string. Thread-safe.
+ *
+ * @see <a href="http://tools.ietf.org/html/rfc6570">URI Template RFC</a>
+ */
+public final class UriTemplate {
+
+  /** Same as {@code URITemplateProxyServlet.TEMPLATE_PATTERN}. */
+  private static final Pattern VARIABLE_PATTERN = Pattern.compile("\\{(.+?)\\}");
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** The default of {@link #compile(String, int)}'s hostCacheSize. */
+  public static final int DEFAULT_HOST_CACHE_SIZE = 256;
+
+  /** The expansion of a template for a request. */
+  public static final class Expansion {
+    private final String targetUri;
+    private final HttpHost targetHost;
+    private final String queryString;
+
+    Expansion(String targetUri, HttpHost targetHost, String queryString) {
+      this.targetUri = targetUri;
+      this.targetHost = targetHost;
+      this.queryString = queryString;
+    }
+
+    /** The template with the variables replaced. */
+    public String getTargetUri() { return targetUri; }
+
+    public HttpHost getTargetHost() { return targetHost; }
+
+    /** The query string without the template variables, and without any fragment. Not null. */
+    public String getQueryString() { return queryString; }
+  }
+
+  private final String template;
+  /** literals[i] precedes the variable at segmentVars[i]; there's one more literal at the end. */
+  private final String[] literals;
+  private final int[] segmentVars;
+  /** Distinct. */
+  private final String[] variableNames;
+  private final int literalLength;
+  /** When no variable is in the scheme or authority; else null. */
+  private final HttpHost staticHost;
+  /** The hosts of the expanded schemes and authorities, when not static; else null. */
+  private final HostCache hostCache;
+
+  private UriTemplate(String template, String[] literals, int[] segmentVars, String[] variableNames,
+                      HttpHost staticHost, int hostCacheSize) {
+    this.template = template;
+    this.literals = literals;
+    this.segmentVars = segmentVars;
+    this.variableNames = variableNames;
+    int len = 0;
+    for (String literal : literals)
+      len += literal.length();
+    this.literalLength = len;
+    this.staticHost = staticHost;
+    this.hostCache = staticHost == null && hostCacheSize > 0 ? new HostCache(hostCacheSize) : null;
+  }
+
+  /**
+   * Compiles the template, with a host cache of the default size.
+   * @throws IllegalArgumentException if it's not an absolute http(s) URI
+   */
+  public static UriTemplate compile(String template) {
+    return compile(template, DEFAULT_HOST_CACHE_SIZE);
+  }
+
+  /**
+   * Compiles the template.
+   * @param hostCacheSize how many of the hosts of the expansions (when they vary) to keep, so they
+   *                      aren't parsed again; 0 for none
+   * @throws IllegalArgumentException if it's not an absolute http(s) URI
+   */
+  public static UriTemplate compile(String template, int hostCacheSize) {
+    List<String> literals = new ArrayList<String>();
+    List<Integer> segmentVars = new ArrayList<Integer>();
+    List<String> variableNames = new ArrayList<String>();
+    int authorityEnd = authorityEnd(template);
+    boolean staticAuthority = authorityEnd > 0;
+    Matcher matcher = VARIABLE_PATTERN.matcher(template);
+    int literalStart = 0;
+    while (matcher.find()) {
+      literals.add(template.substring(literalStart, matcher.start()));
+      String name = matcher.group(1);
+      int varIdx = variableNames.indexOf(name);
+      if (varIdx < 0) {
+        varIdx = variableNames.size();
+        variableNames.add(name);
+      }
+      segmentVars.add(varIdx);
+      if (matcher.start() < authorityEnd)
+        staticAuthority = false;
+      literalStart = matcher.end();
+    }
+    literals.add(template.substring(literalStart));
+
+    int[] segmentVarsArr = new int[segmentVars.size()];
+    for (int i = 0; i < segmentVarsArr.length; i++)
+      segmentVarsArr[i] = segmentVars.get(i);
+    HttpHost staticHost = staticAuthority ? parseHost(template) : null;
+    return new UriTemplate(template, literals.toArray(new String[literals.size()]), segmentVarsArr,
+            variableNames.toArray(new String[variableNames.size()]), staticHost, hostCacheSize);
+  }
+
+  public String getTemplate() { return template; }
+
+  /** The names of the variables, in order of first appearance. */
+  public List<String> getVariableNames() {
+    return Collections.unmodifiableList(Arrays.asList(variableNames));
+  }
+
+  /**
+   * Expands the template from the parameters of {@code queryString}, which must have all the
+   * variables. When a parameter occurs more than once, the last value is used.
+   *
+   * @param queryString as from {@code getQueryString()}: not decoded, maybe with a '#fragment',
+   *                    may be null
+   * @throws IllegalArgumentException if a variable is missing, or the host can't be determined
+   */
+  public Expansion expand(String queryString) {
+    String[] values = new String[variableNames.length];
+    String remainingQuery = scanQuery(queryString, values);
+
+    StringBuilder uri = new StringBuilder(literalLength + 16 * values.length);
+    for (int i = 0; i < segmentVars.length; i++) {
+      uri.append(literals[i]);
+      String value = values[segmentVars[i]];
+      if (value == null)
+        throw new IllegalArgumentException(
+                "Missing HTTP parameter " + variableNames[segmentVars[i]] + " to fill the template");
+      uri.append(value);
+    }
+    uri.append(literals[segmentVars.length]);
+    String targetUri = uri.toString();
+    HttpHost targetHost = staticHost;
+    if (targetHost == null)
+      targetHost = hostCache != null ? hostCache.get(targetUri) : parseHost(targetUri);
+    return new Expansion(targetUri, targetHost, remainingQuery);
+  }
+
+  /**
+   * Puts the decoded values of the variables into {@code values}, and returns the other
+   * parameters, as-is but joined by '&amp;'. Like {@code URLEncodedUtils}, both '&amp;' and ';'
+   * separate parameters, and parameters without a name are dropped.
+   */
+  private String scanQuery(String query, String[] values) {
+    if (query == null)
+      return "";
+    int end = query.indexOf('#');
+    if (end < 0)
+      end = query.length();
+    StringBuilder remaining = null;
+    int start = 0;
+    while (start < end) {
+      int paramEnd = start;
+      while (paramEnd < end && query.charAt(paramEnd) != '&' && query.charAt(paramEnd) != ';')
+        paramEnd++;
+      int nameEnd = start;
+      while (nameEnd < paramEnd && query.charAt(nameEnd) != '=')
+        nameEnd++;
+      int nameStart = start;
+      int trimmedNameEnd = nameEnd;
+      while (nameStart < trimmedNameEnd && query.charAt(nameStart) <= ' ')
+        nameStart++;
+      while (trimmedNameEnd > nameStart && query.charAt(trimmedNameEnd - 1) <= ' ')
+        trimmedNameEnd--;
+      if (nameStart < trimmedNameEnd) {
+        int varIdx = indexOfVariable(query, nameStart, trimmedNameEnd);
+        if (varIdx >= 0) {
+          values[varIdx] = nameEnd < paramEnd ? decode(query, nameEnd + 1, paramEnd) : "";
+        } else {
+          if (remaining == null) {
+            remaining = new StringBuilder(end - start);
+          } else {
+            remaining.append('&');
+          }
+          remaining.append(query, start, paramEnd);
+        }
+      }
+      start = paramEnd + 1;
+    }
+    return remaining != null ? remaining.toString() : "";
+  }
+
+  private int indexOfVariable(String query, int start, int end) {
+    int len = end - start;
+    for (int i = 0; i < variableNames.length; i++) {
+      String name = variableNames[i];
+      if (name.length() == len && query.regionMatches(start, name, 0, len))
+        return i;
+    }
+    // maybe the name is encoded (rare)
+    if (!isEncoded(query, start, end))
+      return -1;
+    String name = decode(query, start, end);
+    for (int i = 0; i < variableNames.length; i++) {
+      if (variableNames[i].equals(name))
+        return i;
+    }
+    return -1;
+  }
+
+  /** URL-decodes (UTF-8) leniently: malformed escapes are kept as-is. */
+  static String decode(String s, int start, int end) {
+    if (!isEncoded(s, start, end))
+      return s.substring(start, end);
+    byte[] bytes = new byte[(end - start) * 3];
+    int len = 0;
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c == '+') {
+        bytes[len++] = ' ';
+      } else if (c == '%' && i + 2 < end
+              && hexValue(s.charAt(i + 1)) >= 0 && hexValue(s.charAt(i + 2)) >= 0) {
+        bytes[len++] = (byte) ((hexValue(s.charAt(i + 1)) << 4) + hexValue(s.charAt(i + 2)));
+        i += 2;
+      } else if (c < 0x80) {
+        bytes[len++] = (byte) c;
+      } else {
+        int charEnd = Character.isHighSurrogate(c) && i + 1 < end ? i + 2 : i + 1;
+        byte[] encoded = s.substring(i, charEnd).getBytes(UTF8);
+        System.arraycopy(encoded, 0, bytes, len, encoded.length);
+        len += encoded.length;
+        i = charEnd - 1;
+      }
+    }
+    return new String(bytes, 0, len, UTF8);
+  }
+
+  private static boolean isEncoded(String s, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c == '%' || c == '+')
+        return true;
+    }
+    return false;
+  }
+
+  private static int hexValue(char c) {
+    if (c >= '0' && c <= '9') return c - '0';
+    if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+    if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+    return -1;
+  }
+
+  /** The index after the scheme and authority of the URI, or 0 if it has no "://". */
+  private static int authorityEnd(String uri) {
+    int schemeEnd = uri.indexOf("://");
+    if (schemeEnd < 0)
+      return 0;
+    int i = schemeEnd + 3;
+    while (i < uri.length() && "/?#".indexOf(uri.charAt(i)) < 0)
+      i++;
+    return i;
+  }
+
+  /**
+   * Parses the scheme, host and port of an absolute URI like
+   * {@link org.apache.http.client.utils.URIUtils#extractHost(java.net.URI)} but without a URI.
+   */
+  static HttpHost parseHost(String uri) {
+    int schemeEnd = uri.indexOf("://");
+    if (schemeEnd <= 0)
+      throw new IllegalArgumentException("Not an absolute URI: " + uri);
+    int authorityEnd = authorityEnd(uri);
+    int hostStart = schemeEnd + 3;
+    int at = uri.lastIndexOf('@', authorityEnd - 1);
+    if (at >= hostStart)
+      hostStart = at + 1;
+    int hostEnd = authorityEnd;
+    int port = -1;
+    int colon = uri.lastIndexOf(':', authorityEnd - 1);
+    int bracket = uri.lastIndexOf(']', authorityEnd - 1);
+    if (colon >= hostStart && colon > bracket) {
+      hostEnd = colon;
+      if (colon + 1 < authorityEnd) {
+        try {
+          port = Integer.parseInt(uri.substring(colon + 1, authorityEnd));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Invalid port in URI: " + uri);
+        }
+      }
+    }
+    if (hostStart == hostEnd)
+      throw new IllegalArgumentException("No host in URI: " + uri);
+    return new HttpHost(uri.substring(hostStart, hostEnd), port, uri.substring(0, schemeEnd));
+  }
+
+  /** The number of hosts in the cache. */
+  public int getHostCacheSize() {
+    return hostCache != null ? hostCache.size() : 0;
+  }
+
+  /** An LRU cache of the hosts of URIs, keyed by their scheme and authority. */
+  private static final class HostCache {
+    private final int maxSize;
+    private final LinkedHashMap<String, HttpHost> hosts;//guarded by itself
+
+    HostCache(int maxSize) {
+      this.maxSize = maxSize;
+      this.hosts = new LinkedHashMap<String, HttpHost>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HttpHost> eldest) {
+          return size() > HostCache.this.maxSize;
+        }
+      };
+    }
+
+    HttpHost get(String uri) {
+      String key = uri.substring(0, authorityEnd(uri));
+      synchronized (hosts) {
+        HttpHost host = hosts.get(key);
+        if (host != null)
+          return host;
+      }
+      HttpHost host = parseHost(uri);
+      synchronized (hosts) {
+        hosts.put(key, host);
+      }
+      return host;
+    }
+
+    int size() {
+      synchronized (hosts) {
+        return hosts.size();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return template;
+  }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.dsmiley.httpproxy.lb.Endpoint;
+import org.mitre.dsmiley.httpproxy.metrics.ProxyMetrics;
+
+/**
+ * Tests {@link AsyncProxyServlet} in an embedded Jetty, since httpunit doesn't support async.
+ */
+public class AsyncProxyServletTest {
+
+  protected LocalTestServer localTestServer;
+  protected Server server;
+  protected AsyncProxyServlet servlet;
+  protected CloseableHttpClient client;
+  protected String sourceBaseUri;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.start();
+    localTestServer.register("/targetPath*", new ProxyServletTest.RequestInfoHandler());
+
+    client = HttpClients.createDefault();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    if (server != null)
+      server.stop();
+    localTestServer.stop();
+  }
+
+  protected void startProxy(String targetUri, String asyncTimeout) throws Exception {
+    Map<String, String> params = new HashMap<String, String>();
+    if (asyncTimeout != null)
+      params.put(AsyncProxyServlet.P_ASYNCTIMEOUT, asyncTimeout);
+    startProxy(targetUri, params);
+  }
+
+  protected void startProxy(String targetUri, Map<String, String> params) throws Exception {
+    server = new Server();
+    ServerConnector connector = new ServerConnector(server);
+    connector.setPort(0);
+    server.addConnector(connector);
+    ServletContextHandler context = new ServletContextHandler();
+    context.setContextPath("/");
+    servlet = new AsyncProxyServlet();
+    ServletHolder holder = new ServletHolder(servlet);
+    holder.setAsyncSupported(true);
+    holder.setInitParameters(params);
+    holder.setInitParameter(ProxyServlet.P_TARGET_URI, targetUri);
+    holder.setInitParameter(ProxyServlet.P_LOG, "true");
+    context.addServlet(holder, "/proxyMe/*");
+    server.setHandler(context);
+    server.start();
+    sourceBaseUri = "http://localhost:" + connector.getLocalPort() + "/proxyMe";
+  }
+
+  /** Waits for the exchange to be counted once the response is complete, and returns the metrics. */
+  private ProxyMetrics countedMetrics() throws InterruptedException {
+    ProxyMetrics metrics = servlet.getMetrics();
+    for (int i = 0; i < 100 && metrics.getInFlight() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, metrics.getInFlight());
+    return metrics;
+  }
+
+  private String targetBaseUri() {
+    return "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath";
+  }
+
+  @Test
+  public void testGet() throws Exception {
+    startProxy(targetBaseUri(), (String) null);
+    CloseableHttpResponse rsp = client.execute(new HttpGet(sourceBaseUri + "/pathInfo?q=v"));
+    try {
+      assertEquals(HttpStatus.SC_OK, rsp.getStatusLine().getStatusCode());
+      String text = EntityUtils.toString(rsp.getEntity());
+      assertTrue(text, text.startsWith("REQUESTLINE: GET /targetPath/pathInfo?q=v HTTP/1.1"));
+    } finally {
+      rsp.close();
+    }
+  }
+
+  @Test
+  public void testPost() throws Exception {
+    startProxy(targetBaseUri(), (String) null);
+    HttpPost post = new HttpPost(sourceBaseUri + "/p");
+    post.setEntity(new StringEntity("abc=ABC"));
+    CloseableHttpResponse rsp = client.execute(post);
+    try {
+      assertEquals(HttpStatus.SC_OK, rsp.getStatusLine().getStatusCode());
+      String text = EntityUtils.toString(rsp.getEntity());
+      assertTrue(text, text.startsWith("REQUESTLINE: POST /targetPath/p HTTP/1.1"));
+      assertTrue(text, text.contains("abc=ABC"));
+      ProxyMetrics metrics = countedMetrics();
+      assertEquals(1, metrics.getRequestCount("2xx"));
+      assertEquals(7, metrics.getRequestBytes());
+      assertEquals(text.length(), metrics.getResponseBytes());
+    } finally {
+      rsp.close();
+    }
+  }
+
+  @Test
+  public void testPostBlockingIO() throws Exception {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(AsyncProxyServlet.P_NONBLOCKINGIO, "false");
+    startProxy(targetBaseUri(), params);
+    HttpPost post = new HttpPost(sourceBaseUri + "/p");
+    post.setEntity(new StringEntity("abc=ABC"));
+    CloseableHttpResponse rsp = client.execute(post);
+    try {
+      assertEquals(HttpStatus.SC_OK, rsp.getStatusLine().getStatusCode());
+      String text = EntityUtils.toString(rsp.getEntity());
+      assertTrue(text, text.contains("abc=ABC"));
+      ProxyMetrics metrics = countedMetrics();
+      assertEquals(1, metrics.getRequestCount("2xx"));
+      assertEquals(7, metrics.getRequestBytes());
+      assertEquals(text.length(), metrics.getResponseBytes());
+    } finally {
+      rsp.close();
+    }
+  }
+
+  /** With blocking I/O a body of unknown length is buffered before the exchange. */
+  @Test
+  public void testPostChunkedBlockingIO() throws Exception {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(AsyncProxyServlet.P_NONBLOCKINGIO, "false");
+    startProxy(targetBaseUri(), params);
+    HttpPost post = new HttpPost(sourceBaseUri + "/p");
+    StringEntity entity = new StringEntity("abc=ABC");
+    entity.setChunked(true);
+    post.setEntity(entity);
+    CloseableHttpResponse rsp = client.execute(post);
+    try {
+      assertEquals(HttpStatus.SC_OK, rsp.getStatusLine().getStatusCode());
+      String text = EntityUtils.toString(rsp.getEntity());
+      assertTrue(text, text.contains("abc=ABC"));
+      assertEquals(7, countedMetrics().getRequestBytes());
+    } finally {
+      rsp.close();
+    }
+  }
+
+  /** Bodies much larger than the buffers must stream through in both directions. */
+  @Test
+  public void testLargeBodies() throws Exception {
+    final byte[] download = new byte[3 * 1024 * 1024 + 17];
+    for (int i = 0; i < download.length; i++)
+      download[i] = (byte) (i % 251);
+    localTestServer.register("/targetPath/download", new ProxyServletTest.RequestInfoHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        response.setStatusCode(200);
+        response.setEntity(new ByteArrayEntity(download));
+      }
+    });
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(AsyncProxyServlet.P_IOBUFFERSIZE, "4096");
+    startProxy(targetBaseUri(), params);
+
+    CloseableHttpResponse rsp = client.execute(new HttpGet(sourceBaseUri + "/download"));
+    try {
+      assertEquals(HttpStatus.SC_OK, rsp.getStatusLine().getStatusCode());
+      assertTrue(Arrays.equals(download, EntityUtils.toByteArray(rsp.getEntity())));
+    } finally {
+      rsp.close();
+    }
+
+    byte[] upload = new byte[2 * 1024 * 1024];
+    Arrays.fill(upload, (byte) 'u');
+    HttpPost post = new HttpPost(sourceBaseUri + "/upload");
+    post.setEntity(new ByteArrayEntity(upload));
+    rsp = client.execute(post);
+    try {
+      assertEquals(HttpStatus.SC_OK, rsp.getStatusLine().getStatusCode());
+      String text = EntityUtils.toString(rsp.getEntity());
+      assertTrue(text.endsWith(new String(upload, "ISO-8859-1")));
+    } finally {
+      rsp.close();
+    }
+  }
+
+  @Test
+  public void testConnectionPool() throws Exception {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(ProxyServlet.P_POOL_MAXTOTAL, "7");
+    params.put(ProxyServlet.P_POOL_MAXPERROUTE, "3");
+    startProxy(targetBaseUri(), params);
+    CloseableHttpResponse rsp = client.execute(new HttpGet(sourceBaseUri));
+    try {
+      assertEquals(HttpStatus.SC_OK, rsp.getStatusLine().getStatusCode());
+    } finally {
+      rsp.close();
+    }
+    assertEquals(7, servlet.getAsyncConnectionManager().getMaxTotal());
+    assertEquals(3, servlet.getAsyncConnectionManager().getDefaultMaxPerRoute());
+    // the blocking client isn't created
+    assertNull(servlet.getProxyClient());
+    assertNull(servlet.getConnectionManager());
+  }
+
+  @Test
+  public void testLoadBalanced() throws Exception {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(ProxyServlet.P_OUTLIER_CONSECUTIVEFAILURES, "1");
+    // the second target refuses connections
+    startProxy(targetBaseUri() + " http://localhost:1/targetPath", params);
+    int[] statuses = new int[2];
+    for (int i = 0; i < 2; i++) {
+      CloseableHttpResponse rsp = client.execute(new HttpGet(sourceBaseUri));
+      try {
+        statuses[i] = rsp.getStatusLine().getStatusCode();
+      } finally {
+        rsp.close();
+      }
+    }
+    Arrays.sort(statuses);
+    assertEquals(HttpStatus.SC_OK, statuses[0]);
+    assertEquals(HttpStatus.SC_BAD_GATEWAY, statuses[1]);
+    List<Endpoint> endpoints = servlet.getLoadBalancer().getEndpoints();
+    for (Endpoint endpoint : endpoints) {
+      assertEquals(1, endpoint.getRequestCount());
+      assertEquals(0, endpoint.getOutstanding());
+    }
+    assertEquals(0, endpoints.get(0).getFailureCount());
+    assertEquals(1, endpoints.get(1).getFailureCount());
+    assertTrue(endpoints.get(1).isEjected());
+  }
+
+  @Test
+  public void testUnreachableTarget() throws Exception {
+    ServerSocket socket = new ServerSocket(0);
+    int port = socket.getLocalPort();
+    socket.close();// now nothing listens on that port
+    startProxy("http://localhost:" + port + "/targetPath", (String) null);
+    CloseableHttpResponse rsp = client.execute(new HttpGet(sourceBaseUri));
+    try {
+      assertEquals(HttpStatus.SC_BAD_GATEWAY, rsp.getStatusLine().getStatusCode());
+    } finally {
+      rsp.close();
+    }
+    assertEquals(1, countedMetrics().getErrorCount());
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    localTestServer.register("/targetPath*", new ProxyServletTest.RequestInfoHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        try {
+          Thread.sleep(2000);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        super.handle(request, response, context);
+      }
+    });
+    startProxy(targetBaseUri(), "200");
+    CloseableHttpResponse rsp = client.execute(new HttpGet(sourceBaseUri));
+    try {
+      assertEquals(HttpStatus.SC_GATEWAY_TIMEOUT, rsp.getStatusLine().getStatusCode());
+    } finally {
+      rsp.close();
+    }
+  }
+
+  /** The stages the async exchange doesn't run must not be silently ignored. */
+  @Test
+  public void testUnsupportedParams() throws Exception {
+    String[][] unsupported = {
+        {ProxyServlet.P_RESPONSECACHE_MAXBYTES, "1000000"}, {ProxyServlet.P_COALESCE, "true"},
+        {ProxyServlet.P_CIRCUITBREAKER, "true"}, {ProxyServlet.P_BULKHEAD_MAXCONCURRENT, "10"},
+        {ProxyServlet.P_CONCURRENCYLIMIT, "true"}, {ProxyServlet.P_RETRY_MAXRETRIES, "2"},
+        {ProxyServlet.P_HEDGE, "true"}, {ProxyServlet.P_LATENCYHISTOGRAMS, "true"},
+        {ProxyServlet.P_ACCESSLOG, "true"}};
+    for (String[] param : unsupported) {
+      final Map<String, String> params = new HashMap<String, String>();
+      params.put(ProxyServlet.P_TARGET_URI, targetBaseUri());
+      params.put(param[0], param[1]);
+      AsyncProxyServlet asyncServlet = new AsyncProxyServlet();
+      try {
+        asyncServlet.init(new ServletConfig() {
+          public String getServletName() {
+            return "unsupported";
+          }
+
+          public ServletContext getServletContext() {
+            return new ServletContextHandler().getServletContext();
+          }
+
+          public String getInitParameter(String name) {
+            return params.get(name);
+          }
+
+          public Enumeration<String> getInitParameterNames() {
+            return Collections.enumeration(params.keySet());
+          }
+        });
+        fail(param[0]);
+      } catch (ServletException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains(param[0]));
+      } finally {
+        asyncServlet.destroy();
+      }
+    }
+  }
+}
@@ -17,24 +17,35 @@
 package org.mitre.dsmiley.httpproxy;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
@@ -42,11 +53,14 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.RequestLine;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.localserver.LocalTestServer;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
@@ -54,6 +68,17 @@ import org.apache.http.util.EntityUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mitre.dsmiley.httpproxy.accesslog.AccessLog;
+import org.mitre.dsmiley.httpproxy.bulkhead.Bulkhead;
+import org.mitre.dsmiley.httpproxy.lb.Endpoint;
+import org.mitre.dsmiley.httpproxy.limit.AdaptiveConcurrencyLimiter;
+import org.mitre.dsmiley.httpproxy.metrics.LatencyHistogram;
+import org.mitre.dsmiley.httpproxy.metrics.Phase;
+import org.mitre.dsmiley.httpproxy.metrics.PhaseLatencies;
+import org.mitre.dsmiley.httpproxy.metrics.ProxyMetrics;
+import org.mitre.dsmiley.httpproxy.pool.ConnectionPoolConfig;
+import org.mitre.dsmiley.httpproxy.pool.PoolExhaustedException;
+import org.mitre.dsmiley.httpproxy.pool.SharedClientRegistry;
 import org.xml.sax.SAXException;
 
 import com.meterware.httpunit.GetMethodWebRequest;
@@ -325,6 +350,7 @@ public class ProxyServletTest
 
   @Test
   public void testPreserveCookie() throws Exception {
+    servletRunner.shutDown();
     servletRunner = new ServletRunner();
 
     Properties servletProps = new Properties();
@@ -452,6 +478,7 @@ public class ProxyServletTest
 
   @Test
   public void testPreserveHost() throws Exception {
+    servletRunner.shutDown();
     servletRunner = new ServletRunner();
 
     Properties servletProps = new Properties();
@@ -482,6 +509,7 @@ public class ProxyServletTest
   @Test
   public void testUseSystemProperties() throws Exception {
     System.setProperty("http.proxyHost", "foo.blah.nonexisting.dns.name");
+    servletRunner.shutDown();
     servletRunner = new ServletRunner();
 
     Properties servletProps = new Properties();
@@ -506,6 +534,650 @@ public class ProxyServletTest
     }
   }
 
+  @Test
+  public void testPoolExhausted() throws Exception {
+    servletRunner.shutDown();
+    servletRunner = new ServletRunner();
+
+    Properties servletProps = new Properties();
+    servletProps.setProperty(ProxyServlet.P_LOG, "true");
+    servletProps.setProperty(ProxyServlet.P_POOL_MAXPERROUTE, "1");
+    servletProps.setProperty(ProxyServlet.P_POOL_LEASETIMEOUT, "100");
+    setUpServlet(servletProps);
+
+    final CountDownLatch handling = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    localTestServer.register("/targetPath*", new RequestInfoHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        handling.countDown();
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        super.handle(request, response, context);
+      }
+    });
+
+    // the first request holds the only connection
+    final ServletUnitClient firstClient = servletRunner.newClient();
+    final GetMethodWebRequest firstReq = makeGetMethodRequest(sourceBaseUri);
+    Thread first = new Thread() {
+      @Override
+      public void run() {
+        try {
+          firstClient.getResponse(firstReq);
+        } catch (Exception e) {
+          log.error(e.toString(), e);
+        }
+      }
+    };
+    first.start();
+    try {
+      assertTrue(handling.await(5, TimeUnit.SECONDS));
+      sc = servletRunner.newClient();
+      try {
+        sc.getResponse(makeGetMethodRequest(sourceBaseUri));
+        fail("PoolExhaustedException expected.");
+      } catch (PoolExhaustedException e) {
+        assertEquals(1, e.getRouteStats().getLeased());
+      }
+    } finally {
+      release.countDown();
+      first.join();
+    }
+  }
+
+  @Test
+  public void testSharedClientProfile() throws Exception {
+    servletRunner.shutDown();
+    servletRunner = new ServletRunner();
+    Properties servletProps = new Properties();
+    servletProps.setProperty(ProxyServlet.P_CLIENT_PROFILE, "farm");
+    setUpServlet(servletProps);
+    servletRunner.registerServlet("/other/*", servletName, servletProps);
+    Properties dedicatedProps = new Properties();
+    dedicatedProps.setProperty(ProxyServlet.P_CLIENT_PROFILE, ProxyServlet.CLIENT_PROFILE_DEDICATED);
+    dedicatedProps.setProperty("targetUri", targetBaseUri);
+    servletRunner.registerServlet("/dedicated/*", servletName, dedicatedProps);
+    sc = servletRunner.newClient();
+
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation(makeGetMethodRequest(sourceBaseUri)).getServlet();
+    ProxyServlet other = (ProxyServlet) sc.newInvocation("http://localhost/other/p").getServlet();
+    ProxyServlet dedicated = (ProxyServlet) sc.newInvocation("http://localhost/dedicated/p").getServlet();
+    assertTrue(servlet.getProxyClient() == other.getProxyClient());
+    assertTrue(servlet.getProxyClient() != dedicated.getProxyClient());
+    SharedClientRegistry registry = SharedClientRegistry.get(servlet.getServletContext());
+    assertEquals(2, registry.getReferenceCount("farm"));
+
+    execAssert(makeGetMethodRequest(sourceBaseUri));
+    assertEquals(200, sc.getResponse(makeGetMethodRequest("http://localhost/other/p")).getResponseCode());
+    assertEquals(1, servlet.getConnectionManager().getTotalStats().getAvailable());
+
+    servlet.destroy();
+    assertEquals(1, registry.getReferenceCount("farm"));
+    other.destroy();
+    assertEquals(0, registry.getReferenceCount("farm"));
+  }
+
+  @Test
+  public void testResponseCache() throws Exception {
+    final AtomicInteger targetHits = new AtomicInteger();
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+        targetHits.incrementAndGet();
+        response.setHeader("Cache-Control", "max-age=60");
+        response.setHeader("ETag", "\"v1\"");
+        response.setEntity(new ByteArrayEntity("cached".getBytes()));
+      }
+    });
+    servletRunner.shutDown();
+    servletRunner = new ServletRunner();
+    Properties servletProps = new Properties();
+    servletProps.setProperty(ProxyServlet.P_RESPONSECACHE_MAXBYTES, "100000");
+    setUpServlet(servletProps);
+    sc = servletRunner.newClient();
+
+    for (int i = 0; i < 3; i++) {
+      WebResponse rsp = sc.getResponse(makeGetMethodRequest(sourceBaseUri + "/a"));
+      assertEquals(200, rsp.getResponseCode());
+      assertEquals("cached", rsp.getText());
+    }
+    assertEquals(1, targetHits.get());
+    GetMethodWebRequest conditional = makeGetMethodRequest(sourceBaseUri + "/a");
+    conditional.setHeaderField("If-None-Match", "\"v1\"");
+    assertEquals(304, sc.getResponse(conditional).getResponseCode());
+    GetMethodWebRequest noCache = makeGetMethodRequest(sourceBaseUri + "/a");
+    noCache.setHeaderField("Cache-Control", "no-cache");
+    assertEquals("cached", sc.getResponse(noCache).getText());
+    assertEquals(2, targetHits.get());
+
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation(makeGetMethodRequest(sourceBaseUri)).getServlet();
+    assertEquals(3, servlet.getResponseCache().getHitCount());
+    assertEquals(2, servlet.getResponseCache().getStoreCount());
+  }
+
+  @Test
+  public void testResponseCacheLoadBalanced() throws Exception {
+    final AtomicInteger targetHits = new AtomicInteger();
+    localTestServer.register("/replica*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+        targetHits.incrementAndGet();
+        response.setHeader("Cache-Control", "max-age=60");
+        response.setEntity(new ByteArrayEntity("cached".getBytes()));
+      }
+    });
+    int port = localTestServer.getServiceAddress().getPort();
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + port + "/replica http://127.0.0.1:" + port + "/replica");
+    servletProps.setProperty(ProxyServlet.P_RESPONSECACHE_MAXBYTES, "100000");
+    servletRunner.registerServlet("/cachedbalanced/*", ProxyServlet.class.getName(), servletProps);
+
+    // round robin: each replica gets a request, but they share the cached response
+    for (int i = 0; i < 2; i++) {
+      assertEquals("cached", sc.getResponse(makeGetMethodRequest("http://localhost/cachedbalanced/p?q=1")).getText());
+    }
+    assertEquals(1, targetHits.get());
+  }
+
+  @Test
+  public void testResponseCachePreserveHost() throws Exception {
+    final AtomicInteger targetHits = new AtomicInteger();
+    localTestServer.register("/vhost*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+        targetHits.incrementAndGet();
+        response.setHeader("Cache-Control", "max-age=60");
+        response.setEntity(new StringEntity(request.getFirstHeader("Host").getValue(), "UTF-8"));
+      }
+    });
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/vhost");
+    servletProps.setProperty(ProxyServlet.P_PRESERVEHOST, "true");
+    servletProps.setProperty(ProxyServlet.P_RESPONSECACHE_MAXBYTES, "100000");
+    servletRunner.registerServlet("/vhosts/*", ProxyServlet.class.getName(), servletProps);
+
+    // each virtual host gets its own response
+    for (int i = 0; i < 2; i++) {
+      for (String host : new String[]{"a.example.com", "b.example.com"}) {
+        GetMethodWebRequest request = makeGetMethodRequest("http://localhost/vhosts/p");
+        request.setHeaderField("Host", host);
+        assertEquals(host, sc.getResponse(request).getText());
+      }
+    }
+    assertEquals(2, targetHits.get());
+  }
+
+  @Test
+  public void testCoalesce() throws Exception {
+    servletRunner.shutDown();
+    servletRunner = new ServletRunner();
+    Properties servletProps = new Properties();
+    servletProps.setProperty(ProxyServlet.P_COALESCE, "true");
+    setUpServlet(servletProps);
+    sc = servletRunner.newClient();
+
+    execAssert(makeGetMethodRequest(sourceBaseUri + "/a"));
+    execAndAssert(makePostMethodRequest(sourceBaseUri + "/a"));
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation(makeGetMethodRequest(sourceBaseUri)).getServlet();
+    assertEquals(1, servlet.getRequestCoalescer().getLeaderCount());
+    assertEquals(0, servlet.getRequestCoalescer().getInFlightCount());
+  }
+
+  @Test
+  public void testLoadBalancer() throws Exception {
+    int port = localTestServer.getServiceAddress().getPort();
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + port + "/targetPath\n  http://127.0.0.1:" + port + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_LOADBALANCER, "weighted");
+    servletProps.setProperty(ProxyServlet.P_LOADBALANCER_WEIGHTS, "2, 1");
+    servletRunner.registerServlet("/balanced/*", ProxyServlet.class.getName(), servletProps);
+
+    for (int i = 0; i < 3; i++) {
+      WebResponse rsp = sc.getResponse(makeGetMethodRequest("http://localhost/balanced/p"));
+      assertEquals(200, rsp.getResponseCode());
+    }
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/balanced/p").getServlet();
+    List<Endpoint> endpoints = servlet.getLoadBalancer().getEndpoints();
+    assertEquals(2, endpoints.get(0).getRequestCount());
+    assertEquals(1, endpoints.get(1).getRequestCount());
+    assertEquals(0, endpoints.get(0).getOutstanding());
+  }
+
+  @Test
+  public void testNoTargetAvailable() throws Exception {
+    int port = localTestServer.getServiceAddress().getPort();
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + port + "/targetPath http://127.0.0.1:" + port + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_OUTLIER_CONSECUTIVEFAILURES, "1");
+    servletRunner.registerServlet("/balanced/*", ProxyServlet.class.getName(), servletProps);
+
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/balanced/p").getServlet();
+    assertNotNull(servlet.getHealthChecker());
+    for (Endpoint endpoint : servlet.getLoadBalancer().getEndpoints()) {
+      endpoint.setUp(false);
+    }
+    sc.setExceptionsThrownOnErrorStatus(false);
+    WebResponse rsp = sc.getResponse(makeGetMethodRequest("http://localhost/balanced/p"));
+    assertEquals(503, rsp.getResponseCode());
+    assertEquals(0, servlet.getLoadBalancer().getEndpoints().get(0).getRequestCount());
+  }
+
+  @Test
+  public void testCircuitBreaker() throws Exception {
+    final int[] status = {500};
+    localTestServer.register("/flaky*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+        response.setStatusCode(status[0]);
+      }
+    });
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/flaky");
+    servletProps.setProperty(ProxyServlet.P_CIRCUITBREAKER, "true");
+    servletProps.setProperty(ProxyServlet.P_CIRCUITBREAKER_MINIMUMCALLS, "2");
+    servletProps.setProperty(ProxyServlet.P_CIRCUITBREAKER_WAITDURATION, "60000");
+    servletRunner.registerServlet("/breaker/*", ProxyServlet.class.getName(), servletProps);
+    sc.setExceptionsThrownOnErrorStatus(false);
+
+    assertEquals(500, sc.getResponse(makeGetMethodRequest("http://localhost/breaker/")).getResponseCode());
+    assertEquals(500, sc.getResponse(makeGetMethodRequest("http://localhost/breaker/")).getResponseCode());
+    status[0] = 200;
+    WebResponse rsp = sc.getResponse(makeGetMethodRequest("http://localhost/breaker/"));
+    assertEquals(503, rsp.getResponseCode());
+    assertEquals("60", rsp.getHeaderField("Retry-After"));
+
+    servletRunner.registerServlet("/metrics", ProxyMetricsServlet.class.getName());
+    String text = sc.getResponse(makeGetMethodRequest("http://localhost/metrics")).getText();
+    String labels = "servlet=\"" + ProxyServlet.class.getName() + "\",target=\"http://localhost:"
+            + localTestServer.getServiceAddress().getPort() + "\"";
+    assertTrue(text, text.contains("proxy_circuit_breaker_state{" + labels + ",state=\"open\"} 1\n"));
+    assertTrue(text, text.contains("proxy_circuit_breaker_state{" + labels + ",state=\"closed\"} 0\n"));
+    assertTrue(text, text.contains("proxy_circuit_breaker_opened_total{" + labels + "} 1\n"));
+    assertTrue(text, text.contains("proxy_circuit_breaker_not_permitted_total{" + labels + "} 1\n"));
+  }
+
+  @Test
+  public void testRetry() throws Exception {
+    int port = localTestServer.getServiceAddress().getPort();
+    Properties servletProps = new Properties();
+    // the second target refuses connections
+    servletProps.setProperty("targetUri", "http://localhost:" + port + "/targetPath http://localhost:1/targetPath");
+    servletProps.setProperty(ProxyServlet.P_RETRY_MAXRETRIES, "1");
+    servletProps.setProperty(ProxyServlet.P_RETRY_MINPERSECOND, "10");
+    servletProps.setProperty(ProxyServlet.P_RETRY_BACKOFF, "1");
+    servletProps.setProperty(ProxyServlet.P_BULKHEAD_MAXCONCURRENT, "10");
+    servletProps.setProperty(ProxyServlet.P_BULKHEAD_PERTARGET, "true");
+    servletRunner.registerServlet("/retried/*", ProxyServlet.class.getName(), servletProps);
+
+    for (int i = 0; i < 4; i++) {
+      WebResponse rsp = sc.getResponse(makeGetMethodRequest("http://localhost/retried/p"));
+      assertEquals(200, rsp.getResponseCode());
+      assertTrue(rsp.getText().contains("Host: localhost:" + port));
+    }
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/retried/p").getServlet();
+    long failures = servlet.getLoadBalancer().getEndpoints().get(1).getFailureCount();
+    assertTrue(failures >= 2);
+    assertEquals(failures, servlet.getRetryPolicy().getRetryCount());
+    // a retry takes a slot of its own target's bulkhead
+    assertEquals(2, servlet.getBulkheads().getBulkheads().size());
+    for (Bulkhead bulkhead : servlet.getBulkheads().getBulkheads())
+      assertEquals(0, bulkhead.getInFlight());
+  }
+
+  @Test
+  public void testHedge() throws Exception {
+    localTestServer.register("/hedged*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        // "localhost" is the slow replica
+        if (request.getFirstHeader("Host").getValue().startsWith("localhost")) {
+          try {
+            Thread.sleep(1000);
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+        }
+        response.setEntity(new StringEntity(request.getFirstHeader("Host").getValue()));
+      }
+    });
+    int port = localTestServer.getServiceAddress().getPort();
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + port + "/hedged http://127.0.0.1:" + port + "/hedged");
+    servletProps.setProperty(ProxyServlet.P_HEDGE, "true");
+    servletProps.setProperty(ProxyServlet.P_HEDGE_DELAY, "50");
+    servletProps.setProperty(ProxyServlet.P_BULKHEAD_MAXCONCURRENT, "10");
+    servletProps.setProperty(ProxyServlet.P_BULKHEAD_PERTARGET, "true");
+    servletRunner.registerServlet("/hedge/*", ProxyServlet.class.getName(), servletProps);
+
+    long start = System.currentTimeMillis();
+    WebResponse rsp = sc.getResponse(makeGetMethodRequest("http://localhost/hedge/p"));
+    assertEquals(200, rsp.getResponseCode());
+    assertEquals("127.0.0.1:" + port, rsp.getText());
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/hedge/p").getServlet();
+    assertEquals(1, servlet.getHedger().getHedgeWinCount());
+    // the aborted primary isn't a failure of the slow replica
+    Endpoint slow = servlet.getLoadBalancer().getEndpoints().get(0);
+    for (int i = 0; i < 50 && slow.getOutstanding() > 0; i++)
+      Thread.sleep(20);
+    assertEquals(0, slow.getOutstanding());
+    assertEquals(0, slow.getFailureCount());
+    // the hedge took a slot of its own target's bulkhead, and both were released
+    assertEquals(2, servlet.getBulkheads().getBulkheads().size());
+    for (Bulkhead bulkhead : servlet.getBulkheads().getBulkheads())
+      assertEquals(0, bulkhead.getInFlight());
+  }
+
+  @Test
+  public void testHedgeFallsBackToRetry() throws Exception {
+    int port = localTestServer.getServiceAddress().getPort();
+    Properties servletProps = new Properties();
+    // the second target refuses connections, long before the hedge delay
+    servletProps.setProperty("targetUri", "http://localhost:" + port + "/targetPath http://localhost:1/targetPath");
+    servletProps.setProperty(ProxyServlet.P_HEDGE, "true");
+    servletProps.setProperty(ProxyServlet.P_HEDGE_DELAY, "5000");
+    servletProps.setProperty(ProxyServlet.P_RETRY_MAXRETRIES, "1");
+    servletProps.setProperty(ProxyServlet.P_RETRY_MINPERSECOND, "10");
+    servletProps.setProperty(ProxyServlet.P_RETRY_BACKOFF, "1");
+    servletRunner.registerServlet("/hedgeretried/*", ProxyServlet.class.getName(), servletProps);
+
+    for (int i = 0; i < 4; i++) {
+      WebResponse rsp = sc.getResponse(makeGetMethodRequest("http://localhost/hedgeretried/p"));
+      assertEquals(200, rsp.getResponseCode());
+    }
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/hedgeretried/p").getServlet();
+    assertTrue(servlet.getRetryPolicy().getRetryCount() >= 2);
+    assertEquals(0, servlet.getHedger().getHedgeWinCount());
+  }
+
+  @Test
+  public void testBulkhead() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    localTestServer.register("/slow*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/slow");
+    servletProps.setProperty(ProxyServlet.P_BULKHEAD_MAXCONCURRENT, "1");
+    servletProps.setProperty(ProxyServlet.P_BULKHEAD_MAXQUEUED, "0");
+    servletRunner.registerServlet("/bulkhead/*", ProxyServlet.class.getName(), servletProps);
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/bulkhead/").getServlet();
+    Bulkhead bulkhead = servlet.getBulkheads().getBulkheads().iterator().next();
+
+    final ServletUnitClient otherClient = servletRunner.newClient();
+    final int[] otherStatus = new int[1];
+    Thread other = new Thread() {
+      public void run() {
+        try {
+          otherStatus[0] = otherClient.getResponse(makeGetMethodRequest("http://localhost/bulkhead/")).getResponseCode();
+        } catch (Exception e) {
+          otherStatus[0] = -1;
+        }
+      }
+    };
+    other.start();
+    for (int i = 0; i < 200 && bulkhead.getInFlight() == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, bulkhead.getInFlight());
+    sc.setExceptionsThrownOnErrorStatus(false);
+    assertEquals(503, sc.getResponse(makeGetMethodRequest("http://localhost/bulkhead/")).getResponseCode());
+    release.countDown();
+    other.join();
+    assertEquals(200, otherStatus[0]);
+    assertEquals(0, bulkhead.getInFlight());
+    assertEquals(1, bulkhead.getRejectedCount());
+
+    servletRunner.registerServlet("/metrics", ProxyMetricsServlet.class.getName());
+    String text = sc.getResponse(makeGetMethodRequest("http://localhost/metrics")).getText();
+    String labels = "{servlet=\"" + servlet.getServletName() + "\",bulkhead=\"" + bulkhead.getName() + "\"}";
+    assertTrue(text, text.contains("proxy_bulkhead_in_flight" + labels + " 0\n"));
+    assertTrue(text, text.contains("proxy_bulkhead_queued" + labels + " 0\n"));
+    assertTrue(text, text.contains("proxy_bulkhead_rejected_total" + labels + " 1\n"));
+  }
+
+  @Test
+  public void testBulkheadCoalesced() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    localTestServer.register("/slow*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/slow");
+    servletProps.setProperty(ProxyServlet.P_BULKHEAD_MAXCONCURRENT, "1");
+    servletProps.setProperty(ProxyServlet.P_BULKHEAD_MAXQUEUED, "0");
+    servletProps.setProperty(ProxyServlet.P_COALESCE, "true");
+    servletRunner.registerServlet("/bulkhead/*", ProxyServlet.class.getName(), servletProps);
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/bulkhead/").getServlet();
+    Bulkhead bulkhead = servlet.getBulkheads().getBulkheads().iterator().next();
+
+    final ServletUnitClient otherClient = servletRunner.newClient();
+    final int[] otherStatus = new int[1];
+    Thread other = new Thread() {
+      public void run() {
+        try {
+          otherStatus[0] = otherClient.getResponse(makeGetMethodRequest("http://localhost/bulkhead/")).getResponseCode();
+        } catch (Exception e) {
+          otherStatus[0] = -1;
+        }
+      }
+    };
+    other.start();
+    for (int i = 0; i < 200 && bulkhead.getInFlight() == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, bulkhead.getInFlight());
+    new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        release.countDown();
+      }
+    }.start();
+    // follows the request in flight rather than taking (and being refused) a slot
+    assertEquals(200, sc.getResponse(makeGetMethodRequest("http://localhost/bulkhead/")).getResponseCode());
+    other.join();
+    assertEquals(200, otherStatus[0]);
+    assertEquals(0, bulkhead.getRejectedCount());
+    assertEquals(1, servlet.getRequestCoalescer().getCoalescedCount());
+  }
+
+  @Test
+  public void testConcurrencyLimit() throws Exception {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_CONCURRENCYLIMIT, "true");
+    servletProps.setProperty(ProxyServlet.P_CONCURRENCYLIMIT_INITIAL, "5");
+    servletRunner.registerServlet("/limited/*", ProxyServlet.class.getName(), servletProps);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(200, sc.getResponse(makeGetMethodRequest("http://localhost/limited/")).getResponseCode());
+    }
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/limited/").getServlet();
+    AdaptiveConcurrencyLimiter limiter = servlet.getConcurrencyLimiter();
+    assertEquals(3, limiter.getSampleCount());
+    assertEquals(0, limiter.getInFlight());
+    assertEquals(5, limiter.getLimit());//never loaded enough to tell
+    assertTrue(limiter.getNoLoadRttMicros() > 0);
+
+    servletRunner.registerServlet("/metrics", ProxyMetricsServlet.class.getName());
+    String text = sc.getResponse(makeGetMethodRequest("http://localhost/metrics")).getText();
+    String labels = "{servlet=\"" + servlet.getServletName() + "\"}";
+    assertTrue(text, text.contains("proxy_concurrency_limit" + labels + " 5\n"));
+    assertTrue(text, text.contains("proxy_concurrency_in_flight" + labels + " 0\n"));
+    assertTrue(text, text.contains("proxy_concurrency_no_load_rtt_seconds" + labels + " "));
+    assertTrue(text, text.contains("proxy_concurrency_rejected_total" + labels + " 0\n"));
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_RATELIMIT, "0.1");
+    servletProps.setProperty(ProxyServlet.P_RATELIMIT_BURST, "2");
+    servletProps.setProperty(ProxyServlet.P_RATELIMIT_KEY, "header:X-Api-Key");
+    servletRunner.registerServlet("/ratelimited/*", ProxyServlet.class.getName(), servletProps);
+    sc.setExceptionsThrownOnErrorStatus(false);
+    GetMethodWebRequest request = makeGetMethodRequest("http://localhost/ratelimited/");
+    request.setHeaderField("X-Api-Key", "key1");
+    assertEquals(200, sc.getResponse(request).getResponseCode());
+    assertEquals(200, sc.getResponse(request).getResponseCode());
+    WebResponse rsp = sc.getResponse(request);
+    assertEquals(429, rsp.getResponseCode());
+    int retryAfter = Integer.parseInt(rsp.getHeaderField(HttpHeaders.RETRY_AFTER));
+    assertTrue(retryAfter > 0 && retryAfter <= 10);
+    assertEquals("2", rsp.getHeaderField("RateLimit-Limit"));
+    assertEquals("0", rsp.getHeaderField("RateLimit-Remaining"));
+    assertTrue(Integer.parseInt(rsp.getHeaderField("RateLimit-Reset")) > 10);
+
+    request.setHeaderField("X-Api-Key", "key2");
+    assertEquals(200, sc.getResponse(request).getResponseCode());
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/ratelimited/").getServlet();
+    assertEquals(1, servlet.getRateLimiter().getRejectedCount());
+  }
+
+  @Test
+  public void testLatencyHistograms() throws Exception {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_LATENCYHISTOGRAMS, "true");
+    servletRunner.registerServlet("/timed/*", ProxyServlet.class.getName(), servletProps);
+    assertEquals(200, sc.getResponse(makeGetMethodRequest("http://localhost/timed/")).getResponseCode());
+    assertEquals(200, sc.getResponse(makeGetMethodRequest("http://localhost/timed/")).getResponseCode());
+
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/timed/").getServlet();
+    PhaseLatencies latencies = servlet.getPhaseLatencies();
+    String host = "http://localhost:" + localTestServer.getServiceAddress().getPort();
+    for (Phase phase : Phase.values()) {
+      LatencyHistogram histogram = latencies.getHistogram(phase, host, "GET", "2xx");
+      // the connection is reused
+      assertEquals(phase.toString(), phase == Phase.CONNECT ? 1 : 2, histogram.getCount());
+    }
+    assertTrue(latencies.getHistogram(Phase.TOTAL, host, "GET", "2xx").getSumMicros()
+            >= latencies.getHistogram(Phase.FIRST_BYTE, host, "GET", "2xx").getSumMicros());
+  }
+
+  @Test
+  public void testAccessLog() throws Exception {
+    File logFile = File.createTempFile("access", ".log");
+    logFile.deleteOnExit();
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_ACCESSLOG, "true");
+    servletProps.setProperty(ProxyServlet.P_ACCESSLOG_FILE, logFile.getPath());
+    servletProps.setProperty(ProxyServlet.P_ACCESSLOG_FORMAT, "json");
+    servletRunner.registerServlet("/logged/*", ProxyServlet.class.getName(), servletProps);
+    assertEquals(200, sc.getResponse(makeGetMethodRequest("http://localhost/logged/a?b=c")).getResponseCode());
+
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/logged/").getServlet();
+    AccessLog accessLog = servlet.getAccessLog();
+    for (int i = 0; i < 100 && accessLog.getWrittenCount() == 0; i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(1, accessLog.getWrittenCount());
+    String line = EntityUtils.toString(new FileEntity(logFile), "UTF-8");
+    assertTrue(line, line.endsWith("}\n"));
+    assertTrue(line, line.contains("\"method\":\"GET\",\"uri\":\"/logged/a\",\"query\":\"b=c"));
+    String target = "http://localhost:" + localTestServer.getServiceAddress().getPort();
+    assertTrue(line, line.contains("\"target\":\"" + target + "\",\"rewrittenUri\":\"" + target + "/targetPath/a?b=c"));
+    assertTrue(line, line.contains("\"status\":200,"));
+    assertTrue(line, line.contains("\"firstByteMs\":"));
+  }
+
+  @Test
+  public void testMetricsServlet() throws Exception {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_LATENCYHISTOGRAMS, "true");
+    servletRunner.registerServlet("/counted/*", ProxyServlet.class.getName(), servletProps);
+    servletRunner.registerServlet("/metrics", ProxyMetricsServlet.class.getName());
+    PostMethodWebRequest post = new PostMethodWebRequest("http://localhost/counted/");
+    post.setParameter("abc", "ABC");
+    assertEquals(200, sc.getResponse(post).getResponseCode());
+    assertEquals(200, sc.getResponse(makeGetMethodRequest("http://localhost/counted/")).getResponseCode());
+
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/counted/").getServlet();
+    ProxyMetrics metrics = servlet.getMetrics();
+    assertEquals(2, metrics.getRequestCount("2xx"));
+    assertEquals(0, metrics.getInFlight());
+    assertEquals("abc=ABC".length(), metrics.getRequestBytes());
+    assertTrue(metrics.getResponseBytes() > 0);
+
+    WebResponse rsp = sc.getResponse(makeGetMethodRequest("http://localhost/metrics"));
+    assertEquals("text/plain", rsp.getContentType());
+    String text = rsp.getText();
+    String name = "\"" + servlet.getServletName() + "\"";
+    assertTrue(text, text.contains("# TYPE proxy_requests_total counter\n"));
+    assertTrue(text, text.contains("proxy_requests_total{servlet=" + name + ",code=\"2xx\"} 2\n"));
+    assertTrue(text, text.contains("proxy_requests_in_flight{servlet=" + name + "} 0\n"));
+    assertTrue(text, text.contains("proxy_request_bytes_total{servlet=" + name + "} 7\n"));
+    String route = "route=\"http://localhost:" + localTestServer.getServiceAddress().getPort() + "\"";
+    assertTrue(text, text.contains("proxy_pool_connections{pool=" + name + "," + route + ",state=\"available\"} 1\n"));
+    assertTrue(text, text.contains("proxy_phase_latency_seconds_count{servlet=" + name + ",phase=\"total\""));
+  }
+
+  @Test
+  public void testMBean() throws Exception {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_CONNECTTIMEOUT, "1234");
+    servletRunner.registerServlet("/jmx/*", ProxyServlet.class.getName(), servletProps);
+    assertEquals(200, sc.getResponse(makeGetMethodRequest("http://localhost/jmx/")).getResponseCode());
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/jmx/").getServlet();
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("org.mitre.dsmiley.httpproxy:type=ProxyServlet,context="
+            + ObjectName.quote("") + ",name="
+            + ObjectName.quote(servlet.getServletName()));
+    assertEquals(1234, server.getAttribute(name, "ConnectTimeout"));
+    assertEquals(1L, server.getAttribute(name, "RequestCount"));
+    assertEquals(1, server.getAttribute(name, "PoolAvailable"));
+    assertEquals(200, server.getAttribute(name, "PoolMaxTotal"));
+
+    server.setAttribute(name, new Attribute("PoolMaxTotal", 7));
+    assertEquals(7, servlet.getConnectionManager().getMaxTotal());
+    server.invoke(name, "setPoolMaxPerRoute", new Object[]{"localhost:1234", 3},
+            new String[]{String.class.getName(), int.class.getName()});
+    assertEquals(3, servlet.getConnectionManager().getMaxPerRoute(
+            ConnectionPoolConfig.routeOf(new HttpHost("localhost", 1234))));
+    assertEquals(1, server.invoke(name, "closeIdleConnections", new Object[]{0L}, new String[]{long.class.getName()}));
+    assertEquals(0, servlet.getConnectionManager().getTotalStats().getAvailable());
+  }
+
+  @Test
+  public void testMBeanSameName() throws Exception {
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", targetBaseUri);
+    servletRunner.registerServlet("/jmx/*", ProxyServlet.class.getName(), servletProps);
+    ServletRunner otherRunner = new ServletRunner();
+    otherRunner.registerServlet("/jmx/*", ProxyServlet.class.getName(), servletProps);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("org.mitre.dsmiley.httpproxy:type=ProxyServlet,context="
+            + ObjectName.quote("") + ",name=" + ObjectName.quote(ProxyServlet.class.getName()));
+    ObjectName otherName = new ObjectName(name + ",instance=2");
+    try {
+      sc.newInvocation("http://localhost/jmx/").getServlet();
+      otherRunner.newClient().newInvocation("http://localhost/jmx/").getServlet();
+      assertTrue(server.isRegistered(name));
+      assertTrue(server.isRegistered(otherName));
+    } finally {
+      otherRunner.shutDown();
+    }
+    assertFalse(server.isRegistered(otherName));
+  }
+
   private WebResponse execAssert(GetMethodWebRequest request, String expectedUri) throws Exception {
     return execAndAssert(request, expectedUri);
   }
@@ -73,11 +73,6 @@ public class URITemplateProxyServletTest extends ProxyServletTest {
     return new URI(this.targetBaseUri).getPath() + expectedUri;
   }
 
-  @Override @Test
-  @Ignore // because internally uses "new URI()" which is strict
-  public void testProxyWithUnescapedChars() throws Exception {
-  }
-
   @Override @Test
   @Ignore //because HttpUnit is faulty
   public void testSendFile() throws Exception {
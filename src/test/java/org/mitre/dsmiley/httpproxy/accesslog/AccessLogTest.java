@@ -0,0 +1,134 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.accesslog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+import org.mitre.dsmiley.httpproxy.metrics.ExchangeTimings;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+public class AccessLogTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /** A GET of /proxy/a?x="1" from 10.0.0.1. */
+  private static HttpServletRequest request() {
+    return (HttpServletRequest) Proxy.newProxyInstance(AccessLogTest.class.getClassLoader(),
+            new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+              public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getRemoteAddr"))
+                  return "10.0.0.1";
+                if (name.equals("getMethod"))
+                  return "GET";
+                if (name.equals("getRequestURI"))
+                  return "/proxy/a";
+                if (name.equals("getQueryString"))
+                  return "x=\"1\"";
+                return null;
+              }
+            });
+  }
+
+  @Test
+  public void testFormats() throws Exception {
+    ExchangeTimings timings = new ExchangeTimings();
+    timings.setRewriteNanos(12345);
+    timings.setBodyNanos(1500 * MS);
+    HttpHost target = new HttpHost("backend", 8080);
+
+    StringWriter text = new StringWriter();
+    AccessLog textLog = new AccessLog(text, AccessLog.Format.TEXT, 1, 4);
+    assertTrue(textLog.log(request(), "/a?x=%221%22", target, 200, 0, 42, 2 * MS, timings));
+    assertTrue(textLog.log(request(), null, null, -1, 0, 0, 3 * MS, null));
+    assertEquals(2, textLog.write());
+    String[] lines = text.toString().split("\n");
+    assertEquals(2, lines.length);
+    assertTrue(lines[0], lines[0].matches("\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3}Z .*"));
+    assertTrue(lines[0], lines[0].endsWith(" 10.0.0.1 \"GET /proxy/a?x=\"1\"\" http://backend:8080 \"/a?x=%221%22\" 200 0 42"
+            + " total=2.000 rewrite=0.012 headers=- lease=- connect=- firstByte=- body=1500.000"));
+    assertTrue(lines[1], lines[1].endsWith(" \"GET /proxy/a?x=\"1\"\" - \"-\" - 0 0"
+            + " total=3.000 rewrite=- headers=- lease=- connect=- firstByte=- body=-"));
+
+    StringWriter json = new StringWriter();
+    AccessLog jsonLog = new AccessLog(json, AccessLog.Format.JSON, 1, 4);
+    jsonLog.log(request(), "/a?x=%221%22", target, 200, 0, 42, 2 * MS, timings);
+    jsonLog.write();
+    String line = json.toString();
+    assertTrue(line, line.endsWith(",\"remoteAddr\":\"10.0.0.1\",\"method\":\"GET\",\"uri\":\"/proxy/a\","
+            + "\"query\":\"x=\\\"1\\\"\",\"target\":\"http://backend:8080\",\"rewrittenUri\":\"/a?x=%221%22\","
+            + "\"status\":200,\"requestBytes\":0,\"responseBytes\":42,\"totalMs\":2.000,\"rewriteMs\":0.012,"
+            + "\"bodyMs\":1500.000}\n"));
+  }
+
+  @Test
+  public void testDropsWhenFull() {
+    StringWriter out = new StringWriter();
+    AccessLog accessLog = new AccessLog(out, AccessLog.Format.TEXT, 1, 3);
+    assertEquals(4, accessLog.getBufferSize());
+    for (int i = 0; i < 4; i++) {
+      assertTrue(accessLog.log(request(), null, null, 200, 0, 0, MS, null));
+    }
+    assertFalse(accessLog.log(request(), null, null, 200, 0, 0, MS, null));
+    assertEquals(1, accessLog.getDroppedCount());
+    assertEquals(4, accessLog.getPendingCount());
+
+    assertEquals(4, accessLog.write());
+    assertEquals(0, accessLog.write());
+    // the slots are reused
+    assertTrue(accessLog.log(request(), null, null, 200, 0, 0, MS, null));
+    assertEquals(1, accessLog.write());
+    assertEquals(5, accessLog.getWrittenCount());
+    assertEquals(5, out.toString().split("\n").length);
+  }
+
+  @Test
+  public void testSampling() {
+    AccessLog accessLog = new AccessLog(new StringWriter(), AccessLog.Format.TEXT, 0.25, 1000);
+    int logged = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (accessLog.log(request(), null, null, 200, 0, 0, MS, null))
+        logged++;
+    }
+    assertTrue(Integer.toString(logged), logged > 200 && logged < 300);
+    assertEquals(0, accessLog.getDroppedCount());
+  }
+
+  @Test
+  public void testWriterThread() throws Exception {
+    StringWriter out = new StringWriter();
+    AccessLog accessLog = new AccessLog(out, AccessLog.Format.TEXT, 1, 1024);
+    accessLog.start("test");
+    for (int i = 0; i < 500; i++) {
+      accessLog.log(request(), null, null, 200, 0, 0, MS, null);
+    }
+    // what's buffered is written before it stops
+    accessLog.shutdown();
+    assertEquals(500, accessLog.getWrittenCount());
+    assertEquals(500, out.toString().split("\n").length);
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.breaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class CircuitBreakerTest {
+
+  private static CircuitBreakerConfig config() {
+    CircuitBreakerConfig config = new CircuitBreakerConfig();
+    config.setMinimumCalls(4);
+    config.setFailureRateThreshold(50);
+    config.setWaitDuration(50);
+    config.setHalfOpenCalls(2);
+    return config;
+  }
+
+  @Test
+  public void testStates() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker("backend", config());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(CircuitBreaker.CLOSED_PERMIT, breaker.tryAcquire());
+      breaker.onResult(CircuitBreaker.CLOSED_PERMIT, true, 0);
+    }
+    // not enough calls yet
+    assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+    breaker.onResult(CircuitBreaker.CLOSED_PERMIT, false, 0);
+    breaker.onResult(CircuitBreaker.CLOSED_PERMIT, false, 0);
+    breaker.onResult(CircuitBreaker.CLOSED_PERMIT, true, 0);//4 of 6
+    assertEquals(CircuitBreaker.OPEN, breaker.getState());
+    assertEquals(CircuitBreaker.NOT_PERMITTED, breaker.tryAcquire());
+    assertTrue(breaker.getRemainingOpenMillis() > 0);
+    assertEquals(1, breaker.getOpenCount());
+    assertEquals(1, breaker.getNotPermittedCount());
+
+    // half-open: 2 trials, and a failed one opens it again
+    Thread.sleep(60);
+    long trial = breaker.tryAcquire();
+    assertTrue(trial > CircuitBreaker.CLOSED_PERMIT);
+    assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+    assertEquals(trial, breaker.tryAcquire());
+    assertEquals(CircuitBreaker.NOT_PERMITTED, breaker.tryAcquire());
+    breaker.onResult(trial, false, 0);
+    breaker.onResult(trial, true, 0);
+    assertEquals(CircuitBreaker.OPEN, breaker.getState());
+
+    // successful trials close it, with a fresh window
+    Thread.sleep(60);
+    long nextTrial = breaker.tryAcquire();
+    assertTrue(nextTrial > trial);
+    assertEquals(nextTrial, breaker.tryAcquire());
+    breaker.release(nextTrial);
+    assertEquals(nextTrial, breaker.tryAcquire());
+    breaker.onResult(nextTrial, false, 0);
+    breaker.onResult(nextTrial, false, 0);
+    assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+    breaker.onResult(CircuitBreaker.CLOSED_PERMIT, true, 0);
+    assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testStaleResults() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker("backend", config());
+    long slowCall = breaker.tryAcquire();
+    for (int i = 0; i < 4; i++) {
+      breaker.onResult(breaker.tryAcquire(), true, 0);
+    }
+    assertEquals(CircuitBreaker.OPEN, breaker.getState());
+    Thread.sleep(60);
+    long trial = breaker.tryAcquire();
+    long staleTrial = breaker.tryAcquire();
+    // the result of a call permitted while closed isn't a trial
+    breaker.onResult(slowCall, false, 0);
+    breaker.onResult(trial, false, 0);
+    assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+    breaker.onResult(slowCall, true, 0);
+    assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+
+    // nor is that of a trial of an earlier half-open period
+    breaker.onResult(trial, true, 0);
+    assertEquals(CircuitBreaker.OPEN, breaker.getState());
+    Thread.sleep(60);
+    long nextTrial = breaker.tryAcquire();
+    breaker.onResult(staleTrial, true, 0);
+    breaker.release(staleTrial);
+    assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+    assertEquals(nextTrial, breaker.tryAcquire());
+    assertEquals(CircuitBreaker.NOT_PERMITTED, breaker.tryAcquire());
+    breaker.onResult(nextTrial, false, 0);
+    breaker.onResult(nextTrial, false, 0);
+    assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testSlowCalls() {
+    CircuitBreakerConfig config = config();
+    config.setSlowCallDuration(100);
+    config.setSlowCallRateThreshold(75);
+    CircuitBreaker breaker = new CircuitBreaker("backend", config);
+    long slow = TimeUnit.MILLISECONDS.toNanos(150);
+    breaker.onResult(CircuitBreaker.CLOSED_PERMIT, false, 0);
+    for (int i = 0; i < 2; i++) {
+      breaker.onResult(CircuitBreaker.CLOSED_PERMIT, false, slow);
+    }
+    assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+    breaker.onResult(CircuitBreaker.CLOSED_PERMIT, false, slow);
+    assertEquals(CircuitBreaker.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testRegistry() {
+    CircuitBreakerRegistry registry = new CircuitBreakerRegistry(config(), 2);
+    HttpHost a = new HttpHost("a"), b = new HttpHost("b");
+    CircuitBreaker breaker = registry.get(a);
+    assertSame(breaker, registry.get(new HttpHost("a")));
+    assertNotSame(breaker, registry.get(b));
+    for (int i = 0; i < 4; i++) {
+      registry.get(b).onResult(CircuitBreaker.CLOSED_PERMIT, true, 0);
+    }
+    registry.get(new HttpHost("c"));//drops a
+    assertEquals(2, registry.getBreakers().size());
+    assertTrue(registry.getBreakers().containsKey(b));
+  }
+}
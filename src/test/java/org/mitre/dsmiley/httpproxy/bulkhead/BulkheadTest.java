@@ -0,0 +1,89 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.bulkhead;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BulkheadTest {
+
+  @Test
+  public void testQueue() throws Exception {
+    final Bulkhead bulkhead = new Bulkhead("test", 1, 1, 5000);
+    assertTrue(bulkhead.tryAcquire());
+    assertEquals(1, bulkhead.getInFlight());
+
+    final AtomicBoolean queuedAcquired = new AtomicBoolean();
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread queuedThread = new Thread() {
+      public void run() {
+        try {
+          queuedAcquired.set(bulkhead.tryAcquire());
+        } catch (InterruptedException e) {
+          // fails below
+        }
+        done.countDown();
+      }
+    };
+    queuedThread.start();
+    for (int i = 0; i < 100 && bulkhead.getQueued() == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, bulkhead.getQueued());
+    // the queue is full
+    assertFalse(bulkhead.tryAcquire());
+    assertEquals(1, bulkhead.getRejectedCount());
+
+    bulkhead.release();
+    done.await();
+    assertTrue(queuedAcquired.get());
+    assertEquals(0, bulkhead.getQueued());
+    assertEquals(1, bulkhead.getInFlight());
+    bulkhead.release();
+    assertEquals(0, bulkhead.getInFlight());
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    Bulkhead bulkhead = new Bulkhead("test", 1, 5, 20);
+    assertTrue(bulkhead.tryAcquire());
+    assertFalse(bulkhead.tryAcquire());
+    assertEquals(1, bulkhead.getTimeoutCount());
+    assertEquals(1, bulkhead.getRejectedCount());
+    assertEquals(0, bulkhead.getQueued());
+  }
+
+  @Test
+  public void testRegistry() {
+    BulkheadRegistry shared = new BulkheadRegistry("servlet", false, 2, 0, 0);
+    assertSame(shared.get(new HttpHost("a")), shared.get(new HttpHost("b")));
+    assertEquals("servlet", shared.get(new HttpHost("a")).getName());
+
+    BulkheadRegistry perTarget = new BulkheadRegistry("servlet", true, 2, 0, 0);
+    assertSame(perTarget.get(new HttpHost("a")), perTarget.get(new HttpHost("a")));
+    assertFalse(perTarget.get(new HttpHost("a")) == perTarget.get(new HttpHost("b")));
+    assertEquals(2, perTarget.getBulkheads().size());
+  }
+}
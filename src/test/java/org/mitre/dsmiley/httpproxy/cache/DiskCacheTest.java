@@ -0,0 +1,226 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DiskCacheTest {
+
+  private static final int SEGMENT_BYTES = 64 * 1024;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File directory;
+  private ResponseCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = folder.newFolder("cache");
+    cache = open();
+  }
+
+  @After
+  public void tearDown() {
+    cache.close();
+  }
+
+  private ResponseCache open() throws Exception {
+    return new ResponseCache(10000, 100, new DiskCache(directory, 4 * SEGMENT_BYTES, SEGMENT_BYTES));
+  }
+
+  private static byte[] body(int length) {
+    byte[] body = new byte[length];
+    for (int i = 0; i < length; i++) {
+      body[i] = (byte) i;
+    }
+    return body;
+  }
+
+  private static HttpRequest get(String uri, String... headers) {
+    HttpRequest request = new BasicHttpRequest("GET", uri);
+    for (int i = 0; i < headers.length; i += 2) {
+      request.addHeader(headers[i], headers[i + 1]);
+    }
+    return request;
+  }
+
+  /** Stores the body through the cache and returns what the client got. */
+  private byte[] store(String uri, byte[] body) throws Exception {
+    return store(uri, body, body.length);
+  }
+
+  private byte[] store(String uri, byte[] body, long contentLength) throws Exception {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.addHeader("Cache-Control", "max-age=60");
+    response.addHeader("ETag", "\"e1\"");
+    response.setEntity(new InputStreamEntity(new ByteArrayInputStream(body), contentLength));
+    response = cache.store(get(uri), response, System.currentTimeMillis());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    response.getEntity().writeTo(out);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testStoreAndServe() throws Exception {
+    byte[] body = body(10000);
+    assertArrayEquals(body, store("http://host/big", body));
+    DiskCache diskCache = cache.getDiskCache();
+    assertEquals(1, diskCache.getStoreCount());
+    assertEquals(0, cache.getStoreCount());//not in memory
+
+    HttpResponse hit = cache.lookup(get("http://host/big"));
+    assertNotNull(hit);
+    assertEquals("\"e1\"", hit.getFirstHeader("ETag").getValue());
+    assertArrayEquals(body, EntityUtils.toByteArray(hit.getEntity()));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    hit.getEntity().writeTo(out);
+    assertArrayEquals(body, out.toByteArray());
+
+    cache.invalidate(get("http://host/big"));
+    assertNull(cache.lookup(get("http://host/big")));
+  }
+
+  @Test
+  public void testRange() throws Exception {
+    byte[] body = body(1000);
+    store("http://host/big", body);
+
+    HttpResponse partial = cache.lookup(get("http://host/big", "Range", "bytes=100-199"));
+    assertEquals(206, partial.getStatusLine().getStatusCode());
+    assertEquals("bytes 100-199/1000", partial.getFirstHeader("Content-Range").getValue());
+    assertEquals("100", partial.getFirstHeader("Content-Length").getValue());
+    assertArrayEquals(Arrays.copyOfRange(body, 100, 200), EntityUtils.toByteArray(partial.getEntity()));
+
+    HttpResponse suffix = cache.lookup(get("http://host/big", "Range", "bytes=-10"));
+    assertArrayEquals(Arrays.copyOfRange(body, 990, 1000), EntityUtils.toByteArray(suffix.getEntity()));
+
+    HttpResponse open = cache.lookup(get("http://host/big", "Range", "bytes=995-"));
+    assertEquals("bytes 995-999/1000", open.getFirstHeader("Content-Range").getValue());
+
+    assertEquals(416, cache.lookup(get("http://host/big", "Range", "bytes=1000-")).getStatusLine().getStatusCode());
+    assertEquals(200, cache.lookup(get("http://host/big", "Range", "bytes=0-1,5-6")).getStatusLine().getStatusCode());
+    assertEquals(206, cache.lookup(get("http://host/big", "Range", "bytes=0-1", "If-Range", "\"e1\""))
+            .getStatusLine().getStatusCode());
+    assertEquals(200, cache.lookup(get("http://host/big", "Range", "bytes=0-1", "If-Range", "\"e2\""))
+            .getStatusLine().getStatusCode());
+  }
+
+  @Test
+  public void testUnknownLength() throws Exception {
+    byte[] body = body(5000);
+    assertArrayEquals(body, store("http://host/a", body, -1));
+    assertArrayEquals(body(3000), store("http://host/b", body(3000), -1));
+    assertArrayEquals(body(70000), store("http://host/huge", body(70000), -1));//larger than a segment
+    DiskCache diskCache = cache.getDiskCache();
+    assertEquals(2, diskCache.getStoreCount());
+    assertEquals(1, diskCache.getSegmentCount());//the unused space was given back
+    assertArrayEquals(body, EntityUtils.toByteArray(cache.lookup(get("http://host/a")).getEntity()));
+    assertNull(cache.lookup(get("http://host/huge")));
+
+    cache.close();
+    cache = open();
+    assertEquals(2, cache.getDiskCache().getEntryCount());
+    assertArrayEquals(body(3000), EntityUtils.toByteArray(cache.lookup(get("http://host/b")).getEntity()));
+  }
+
+  @Test
+  public void testIncompleteNotStored() throws Exception {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.addHeader("Cache-Control", "max-age=60");
+    response.setEntity(new InputStreamEntity(new ByteArrayInputStream(body(1000)), 1000));
+    response = cache.store(get("http://host/big"), response, System.currentTimeMillis());
+    response.getEntity().getContent().read(new byte[10]);
+    response.getEntity().getContent().close();//e.g. the client went away
+    assertNull(cache.lookup(get("http://host/big")));
+    assertEquals(0, cache.getDiskCache().getStoreCount());
+  }
+
+  @Test
+  public void testRebuild() throws Exception {
+    byte[] body = body(5000);
+    store("http://host/a", body);
+    store("http://host/b", body(3000));
+    cache.close();
+
+    cache = open();
+    assertEquals(2, cache.getDiskCache().getEntryCount());
+    assertArrayEquals(body, EntityUtils.toByteArray(cache.lookup(get("http://host/a")).getEntity()));
+    // appends after what was there
+    store("http://host/c", body(2000));
+    assertEquals(1, cache.getDiskCache().getSegmentCount());
+    assertNotNull(cache.lookup(get("http://host/b")));
+  }
+
+  @Test
+  public void testDropOldestSegment() throws Exception {
+    for (int i = 0; i < 6; i++) {
+      store("http://host/" + i, body(40000));//one per segment
+    }
+    DiskCache diskCache = cache.getDiskCache();
+    assertEquals(4, diskCache.getSegmentCount());
+    assertEquals(2, diskCache.getDroppedSegmentCount());
+    assertEquals(4, diskCache.getEntryCount());
+    assertNull(cache.lookup(get("http://host/0")));
+    assertNotNull(cache.lookup(get("http://host/5")));
+    assertEquals(4, directory.list().length);
+  }
+
+  @Test
+  public void testMappedRegionWrittenInChunks() throws Exception {
+    byte[] body = body(600 * 1024);
+    ByteBuffer region = ByteBuffer.allocateDirect(body.length + 10);
+    region.position(10);
+    region.put(body);
+    region.position(10);
+    final List<Integer> writes = new ArrayList<Integer>();
+    ByteArrayOutputStream out = new ByteArrayOutputStream() {
+      @Override
+      public synchronized void write(byte[] b, int off, int len) {
+        writes.add(len);
+        super.write(b, off, len);
+      }
+    };
+    new MappedRegionEntity(region.slice()).writeTo(out);
+    assertArrayEquals(body, out.toByteArray());
+    assertEquals(Arrays.asList(256 * 1024, 256 * 1024, 88 * 1024), writes);
+  }
+}
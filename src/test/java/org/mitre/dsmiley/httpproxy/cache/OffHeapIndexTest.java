@@ -0,0 +1,48 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class OffHeapIndexTest {
+
+  @Test
+  public void testPutGetRemove() {
+    OffHeapIndex index = new OffHeapIndex(4);
+    for (long i = 0; i < 1000; i++) {
+      index.put(OffHeapIndex.hash("key" + i), i);
+    }
+    assertEquals(1000, index.size());
+    for (long i = 0; i < 1000; i++) {
+      assertEquals(i, index.get(OffHeapIndex.hash("key" + i)));
+    }
+    assertEquals(-1, index.get(OffHeapIndex.hash("missing")));
+
+    index.put(OffHeapIndex.hash("key1"), 5000);
+    assertEquals(5000, index.get(OffHeapIndex.hash("key1")));
+    assertEquals(5000, index.remove(OffHeapIndex.hash("key1")));
+    assertEquals(-1, index.get(OffHeapIndex.hash("key1")));
+    assertEquals(999, index.size());
+
+    assertEquals(100, index.removeLocations(100, 200));
+    assertEquals(-1, index.get(OffHeapIndex.hash("key150")));
+    assertEquals(250, index.get(OffHeapIndex.hash("key250")));
+    assertEquals(899, index.size());
+  }
+}
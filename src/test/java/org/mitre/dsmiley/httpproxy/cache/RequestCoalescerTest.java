@@ -0,0 +1,139 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class RequestCoalescerTest {
+
+  private static HttpRequest get(String uri, String... headers) {
+    HttpRequest request = new BasicHttpRequest("GET", uri);
+    for (int i = 0; i < headers.length; i += 2) {
+      request.addHeader(headers[i], headers[i + 1]);
+    }
+    return request;
+  }
+
+  private static HttpResponse response(String body, String... headers) {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    for (int i = 0; i < headers.length; i += 2) {
+      response.addHeader(headers[i], headers[i + 1]);
+    }
+    response.setEntity(new StringEntity(body, "UTF-8"));
+    return response;
+  }
+
+  @Test
+  public void testFollowersShareTheResponse() throws Exception {
+    final RequestCoalescer coalescer = new RequestCoalescer(new String[]{"Accept-Encoding"}, 5000, 1000);
+    RequestCoalescer.Flight leader = coalescer.join(get("http://host/a"));
+    assertTrue(leader.isLeader());
+    assertEquals(1, coalescer.getInFlightCount());
+
+    final CountDownLatch joined = new CountDownLatch(4);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> followers = new ArrayList<Future<String>>();
+      for (int i = 0; i < 4; i++) {
+        followers.add(executor.submit(new Callable<String>() {
+          public String call() throws Exception {
+            RequestCoalescer.Flight flight = coalescer.join(get("HTTP://host:80/a"));
+            assertFalse(flight.isLeader());
+            joined.countDown();
+            return EntityUtils.toString(flight.await().getEntity());
+          }
+        }));
+      }
+      assertTrue(joined.await(5, TimeUnit.SECONDS));
+      HttpResponse response = leader.share(response("body", "Content-Type", "text/plain"));
+      leader.cancel();//no-op
+      assertEquals("body", EntityUtils.toString(response.getEntity()));
+      for (Future<String> follower : followers) {
+        assertEquals("body", follower.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, coalescer.getLeaderCount());
+    assertEquals(4, coalescer.getCoalescedCount());
+    assertEquals(0, coalescer.getInFlightCount());
+
+    // the next one leads a new flight
+    assertTrue(coalescer.join(get("http://host/a")).isLeader());
+  }
+
+  @Test
+  public void testNotShared() throws Exception {
+    RequestCoalescer coalescer = new RequestCoalescer(new String[]{"Cookie"}, 5000, 10);
+    assertNull(coalescer.join(new BasicHttpEntityEnclosingRequest("POST", "http://host/a")));
+
+    RequestCoalescer.Flight leader = coalescer.join(get("http://host/a", "Cookie", "a=1"));
+    assertTrue(coalescer.join(get("http://host/a", "Cookie", "a=2")).isLeader());
+    assertTrue(coalescer.join(get("http://host/a", "Cookie", "a=1", "Range", "bytes=0-1")).isLeader());
+
+    RequestCoalescer.Flight follower = coalescer.join(get("http://host/a", "Cookie", "a=1"));
+    assertFalse(follower.isLeader());
+    HttpResponse response = leader.share(response("too large to share"));
+    assertEquals("too large to share", EntityUtils.toString(response.getEntity()));
+    assertNull(follower.await());
+    assertEquals(1, coalescer.getFallbackCount());
+
+    leader = coalescer.join(get("http://host/b"));
+    follower = coalescer.join(get("http://host/b"));
+    leader.share(response("b", "Set-Cookie", "session=1"));
+    assertNull(follower.await());
+
+    leader = coalescer.join(get("http://host/c"));
+    follower = coalescer.join(get("http://host/c"));
+    leader.cancel();//e.g. the target failed
+    assertNull(follower.await());
+    assertEquals(3, coalescer.getFallbackCount());
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    RequestCoalescer coalescer = new RequestCoalescer(new String[0], 10, 1000);
+    RequestCoalescer.Flight leader = coalescer.join(get("http://host/a"));
+    RequestCoalescer.Flight follower = coalescer.join(get("http://host/a"));
+    assertNull(follower.await());
+    assertEquals(1, coalescer.getTimeoutCount());
+    assertNotNull(leader.share(response("late")));
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+
+  private static final String URI = "http://localhost:8080/path?q=1";
+
+  private static HttpRequest get(String uri) {
+    return new BasicHttpRequest("GET", uri);
+  }
+
+  private static HttpResponse response(String body, String... headers) {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    for (int i = 0; i < headers.length; i += 2) {
+      response.addHeader(headers[i], headers[i + 1]);
+    }
+    response.setEntity(new ByteArrayEntity(body.getBytes()));
+    return response;
+  }
+
+  private static String store(ResponseCache cache, HttpRequest request, HttpResponse response) throws Exception {
+    return EntityUtils.toString(cache.store(request, response, System.currentTimeMillis()).getEntity());
+  }
+
+  @Test
+  public void testFreshness() throws Exception {
+    ResponseCache cache = new ResponseCache(100000, 1000);
+    assertNull(cache.lookup(get(URI)));
+    assertEquals("a", store(cache, get(URI), response("a", "Cache-Control", "max-age=60")));
+    HttpResponse hit = cache.lookup(get("HTTP://LOCALHOST:8080/path?q=1#frag"));
+    assertNotNull(hit);
+    assertEquals("a", EntityUtils.toString(hit.getEntity()));
+    assertEquals("0", hit.getFirstHeader("Age").getValue());
+
+    HttpRequest tooOld = get(URI);
+    tooOld.addHeader("Cache-Control", "max-age=0");
+    assertNull(cache.lookup(tooOld));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+
+    // no explicit freshness, or not to be stored
+    store(cache, get("http://localhost:8080/b"), response("b"));
+    store(cache, get("http://localhost:8080/c"), response("c", "Cache-Control", "max-age=60, private"));
+    store(cache, get("http://localhost:8080/d"), response("d", "Cache-Control", "max-age=60", "Set-Cookie", "x=y"));
+    store(cache, get("http://localhost:8080/e"), response("e", "Cache-Control", "max-age=60", "Vary", "*"));
+    assertEquals(1, cache.getStoreCount());
+
+    cache.invalidate(get(URI));
+    assertNull(cache.lookup(get(URI)));
+  }
+
+  @Test
+  public void testVaryAndAuthorization() throws Exception {
+    ResponseCache cache = new ResponseCache(100000, 1000);
+    HttpRequest english = get(URI);
+    english.addHeader("Accept-Language", "en");
+    store(cache, english, response("hello", "Cache-Control", "max-age=60", "Vary", "Accept-Language"));
+    HttpRequest french = get(URI);
+    french.addHeader("Accept-Language", "fr");
+    assertNull(cache.lookup(french));
+    store(cache, french, response("bonjour", "Cache-Control", "max-age=60", "Vary", "Accept-Language"));
+    assertEquals("hello", EntityUtils.toString(cache.lookup(english).getEntity()));
+    assertEquals("bonjour", EntityUtils.toString(cache.lookup(french).getEntity()));
+
+    HttpRequest authorized = get("http://localhost:8080/private");
+    authorized.addHeader("Authorization", "Basic Zm9vOmJhcg==");
+    store(cache, authorized, response("mine", "Cache-Control", "max-age=60"));
+    assertNull(cache.lookup(authorized));
+    store(cache, authorized, response("ours", "Cache-Control", "public, max-age=60"));
+    assertNotNull(cache.lookup(authorized));
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    byte[] body = new byte[250];
+    ResponseCache cache = new ResponseCache(1000, 1000);
+    for (int i = 0; i < 3; i++) {
+      store(cache, get("http://localhost/" + i), response(new String(body), "Cache-Control", "max-age=60"));
+    }
+    assertEquals(1, cache.getEvictionCount());
+    assertNull(cache.lookup(get("http://localhost/0")));
+    assertNotNull(cache.lookup(get("http://localhost/2")));
+    assertEquals(2, cache.getUriCount());
+
+    // larger than maxEntryBytes: passed through, not stored
+    ResponseCache small = new ResponseCache(1000, 10);
+    assertEquals("01234567890123", store(small, get(URI), response("01234567890123", "Cache-Control", "max-age=60")));
+    assertEquals(0, small.getStoreCount());
+  }
+
+  @Test
+  public void testNormalizeUri() {
+    assertEquals("http://host/", ResponseCache.normalizeUri("HTTP://Host:80"));
+    assertEquals("https://host/a?b", ResponseCache.normalizeUri("https://HOST:443/a?b#"));
+    assertEquals("http://host:8080/A?B", ResponseCache.normalizeUri("http://host:8080/A?B#C"));
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.health;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.Test;
+import org.mitre.dsmiley.httpproxy.lb.Endpoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class HealthCheckerTest {
+
+  private static List<Endpoint> endpoints(String... targetUris) {
+    List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    for (String targetUri : targetUris) {
+      endpoints.add(new Endpoint(targetUri, 1));
+    }
+    return endpoints;
+  }
+
+  @Test
+  public void testEjection() throws Exception {
+    List<Endpoint> endpoints = endpoints("http://backend0", "http://backend1", "http://backend2", "http://backend3");
+    HealthCheckConfig config = new HealthCheckConfig();
+    config.setConsecutiveFailures(3);
+    config.setBaseEjectionTime(50);
+    HealthChecker checker = new HealthChecker(endpoints, config, null);
+    Endpoint endpoint = endpoints.get(0);
+
+    checker.onResponse(endpoint, 502, 0);
+    checker.onResponse(endpoint, 200, 0);//resets
+    checker.onResponse(endpoint, 500, 0);
+    checker.onResponse(endpoint, -1, 0);
+    assertTrue(endpoint.isAvailable());
+    checker.onResponse(endpoint, 503, 0);
+    assertFalse(endpoint.isAvailable());
+    assertEquals(1, checker.getEjectionCount());
+
+    // back, on probation: a single failure ejects it again, for twice as long
+    Thread.sleep(60);
+    assertTrue(endpoint.isAvailable());
+    checker.onResponse(endpoint, 500, 0);
+    assertFalse(endpoint.isAvailable());
+    Thread.sleep(60);
+    assertFalse(endpoint.isAvailable());
+    Thread.sleep(60);
+    assertTrue(endpoint.isAvailable());
+
+    // a success ends the probation
+    checker.onResponse(endpoint, 200, 0);
+    checker.onResponse(endpoint, 500, 0);
+    assertTrue(endpoint.isAvailable());
+
+    // no more than half are ejected
+    for (Endpoint other : endpoints) {
+      for (int i = 0; i < 3; i++) {
+        checker.onResponse(other, 500, 0);
+      }
+    }
+    int available = 0;
+    for (Endpoint other : endpoints) {
+      if (other.isAvailable())
+        available++;
+    }
+    assertEquals(2, available);
+  }
+
+  @Test
+  public void testLatencyOutlier() {
+    List<Endpoint> endpoints = endpoints("http://backend0", "http://backend1", "http://backend2");
+    HealthCheckConfig config = new HealthCheckConfig();
+    config.setConsecutiveFailures(2);
+    config.setLatencyFactor(5);
+    config.setMinOutlierLatency(100);
+    config.setMaxEjectionPercent(100);
+    HealthChecker checker = new HealthChecker(endpoints, config, null);
+    for (Endpoint endpoint : endpoints) {
+      long start = endpoint.begin();
+      endpoint.end(start - TimeUnit.MILLISECONDS.toNanos(endpoint == endpoints.get(0) ? 2000 : 50), true);
+    }
+    long slow = TimeUnit.MILLISECONDS.toNanos(2000);
+    checker.onResponse(endpoints.get(1), 200, TimeUnit.MILLISECONDS.toNanos(50));
+    checker.onResponse(endpoints.get(0), 200, slow);
+    checker.onResponse(endpoints.get(0), 200, slow);
+    assertFalse(endpoints.get(0).isAvailable());
+    assertTrue(endpoints.get(1).isAvailable());
+  }
+
+  @Test
+  public void testProbes() throws Exception {
+    LocalTestServer server = new LocalTestServer(null, null);
+    server.start();
+    final int[] status = {200};
+    server.register("/app/health", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+        response.setStatusCode(status[0]);
+      }
+    });
+    CloseableHttpClient client = HttpClients.createDefault();
+    try {
+      int port = server.getServiceAddress().getPort();
+      List<Endpoint> endpoints = endpoints("http://localhost:" + port + "/app", "http://localhost:1/app");
+      HealthCheckConfig config = new HealthCheckConfig();
+      config.setPath("/health");
+      config.setExpectedStatus("200-299, 304");
+      config.setTimeout(1000);
+      HealthChecker checker = new HealthChecker(endpoints, config, client);
+
+      checker.probeAll();
+      assertTrue(endpoints.get(1).isAvailable());
+      checker.probeAll();
+      assertEquals(Arrays.asList(true, false),
+              Arrays.asList(endpoints.get(0).isAvailable(), endpoints.get(1).isAvailable()));
+
+      status[0] = 503;
+      checker.probeAll();
+      checker.probeAll();
+      assertFalse(endpoints.get(0).isUp());
+      status[0] = 304;
+      checker.probeAll();
+      assertFalse(endpoints.get(0).isUp());
+      checker.probeAll();
+      assertTrue(endpoints.get(0).isUp());
+      assertEquals(12, checker.getProbeCount());
+      assertEquals(8, checker.getProbeFailureCount());
+    } finally {
+      client.close();
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.hedge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class HedgerTest {
+
+  private Hedger hedger;
+
+  @Before
+  public void setUp() {
+    hedger = new Hedger(50, 0.95, 0, 100);
+    hedger.start("test");
+  }
+
+  @After
+  public void tearDown() {
+    hedger.shutdown();
+  }
+
+  /** Responds after a delay, unless aborted. */
+  private static class TestAttempt implements Hedger.Attempt {
+    final long delayMillis;
+    final TestAttempt hedge;
+    final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    final CountDownLatch aborted = new CountDownLatch(1);
+    volatile boolean hedged;
+
+    TestAttempt(long delayMillis, TestAttempt hedge) {
+      this.delayMillis = delayMillis;
+      this.hedge = hedge;
+    }
+
+    public HttpResponse execute() throws IOException {
+      try {
+        if (aborted.await(delayMillis, TimeUnit.MILLISECONDS))
+          throw new InterruptedIOException("aborted");
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      return response;
+    }
+
+    public void abort() {
+      aborted.countDown();
+    }
+
+    public Hedger.Attempt newHedge() {
+      hedged = true;
+      return hedge;
+    }
+  }
+
+  @Test
+  public void testHedgeWins() throws Exception {
+    TestAttempt hedge = new TestAttempt(0, null);
+    TestAttempt primary = new TestAttempt(5000, hedge);
+    long start = System.nanoTime();
+    assertSame(hedge.response, hedger.execute(primary));
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+    assertEquals(0, primary.aborted.getCount());
+    assertEquals(1, hedger.getHedgeCount());
+    assertEquals(1, hedger.getHedgeWinCount());
+  }
+
+  @Test
+  public void testPrimaryWins() throws Exception {
+    TestAttempt fast = new TestAttempt(0, new TestAttempt(0, null));
+    assertSame(fast.response, hedger.execute(fast));
+    assertFalse(fast.hedged);
+
+    TestAttempt hedge = new TestAttempt(5000, null);
+    TestAttempt primary = new TestAttempt(100, hedge);
+    assertSame(primary.response, hedger.execute(primary));
+    assertTrue(hedge.aborted.await(1, TimeUnit.SECONDS));
+    assertEquals(1, hedger.getHedgeCount());
+    assertEquals(0, hedger.getHedgeWinCount());
+  }
+
+  @Test
+  public void testPercentileDelay() {
+    Hedger percentile = new Hedger(-1, 0.9, 5, 5);
+    assertEquals(-1, percentile.getDelayNanos());
+    assertTrue(Hedger.isHedgeable(new BasicHttpRequest("GET", "/")));
+    assertFalse(Hedger.isHedgeable(new BasicHttpRequest("PUT", "/")));
+    assertFalse(Hedger.isHedgeable(new BasicHttpEntityEnclosingRequest("POST", "/")));
+  }
+}
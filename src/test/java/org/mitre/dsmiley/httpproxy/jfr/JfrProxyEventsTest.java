@@ -0,0 +1,155 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.jfr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.WebResponse;
+import com.meterware.servletunit.ServletRunner;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.Test;
+import org.mitre.dsmiley.httpproxy.ProxyServlet;
+import org.mitre.dsmiley.httpproxy.metrics.ProxyEvents;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public class JfrProxyEventsTest {
+
+  private static final String PREFIX = "org.mitre.dsmiley.httpproxy.";
+
+  @Test
+  public void testEvents() throws Exception {
+    ProxyEvents events = ProxyEvents.get();
+    assumeTrue(events instanceof JfrProxyEvents);
+    assertNull("not recording", events.beginExchange());
+
+    HttpHost target = new HttpHost("backend", 8080);
+    Recording recording = new Recording();//the events are enabled by default
+    recording.disable(PREFIX + "Lease");
+    recording.start();
+    try {
+      assertTrue(events.isRecording());
+      Object exchange = events.beginExchange();
+      Object body = events.beginBody();
+      events.endBody(body, target, 42);
+      events.error("GET", "http://backend:8080/a", new IOException("refused"));
+      events.endExchange(exchange, "GET", "/proxy/a", target, 502, 0, 42);
+      events.endLease(events.beginLease(), target);
+    } finally {
+      recording.stop();
+    }
+    assertFalse(events.isRecording());
+
+    Map<String, RecordedEvent> recorded = readEvents(recording);
+    assertEquals(new TreeSet<String>(Arrays.asList("Body", "Error", "Exchange")), recorded.keySet());
+
+    RecordedEvent exchange = recorded.get("Exchange");
+    assertEquals("/proxy/a", exchange.getString("uri"));
+    assertEquals("http://backend:8080", exchange.getString("target"));
+    assertEquals(502, exchange.getInt("statusCode"));
+    assertEquals(42, exchange.getLong("responseBytes"));
+    assertEquals(Thread.currentThread().getName(), exchange.getThread().getJavaName());
+    RecordedEvent body = recorded.get("Body");
+    assertEquals(42, body.getLong("bytes"));
+    assertTrue(!body.getStartTime().isBefore(exchange.getStartTime()));
+    assertTrue(!body.getEndTime().isAfter(exchange.getEndTime()));
+    RecordedEvent error = recorded.get("Error");
+    assertEquals(IOException.class.getName(), error.getString("exceptionClass"));
+    assertEquals("refused", error.getString("message"));
+  }
+
+  @Test
+  public void testServletEvents() throws Exception {
+    assumeTrue(ProxyEvents.get() instanceof JfrProxyEvents);
+    LocalTestServer localTestServer = new LocalTestServer(null, null);
+    localTestServer.start();
+    localTestServer.register("/*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+        response.setStatusCode(200);
+        response.setEntity(new StringEntity("hello", "UTF-8"));
+      }
+    });
+    String target = "http://localhost:" + localTestServer.getServiceAddress().getPort();
+    ServletRunner servletRunner = new ServletRunner();
+    Properties servletProps = new Properties();
+    servletProps.setProperty("targetUri", target + "/targetPath");
+    servletRunner.registerServlet("/proxyMe/*", ProxyServlet.class.getName(), servletProps);
+    Recording recording = new Recording();
+    try {
+      recording.start();
+      try {
+        WebResponse rsp = servletRunner.newClient().getResponse(new GetMethodWebRequest("http://localhost/proxyMe/a"));
+        assertEquals(200, rsp.getResponseCode());
+      } finally {
+        recording.stop();
+      }
+    } finally {
+      servletRunner.shutDown();
+      localTestServer.stop();
+    }
+
+    Map<String, RecordedEvent> recorded = readEvents(recording);
+    assertEquals(new TreeSet<String>(Arrays.asList("Body", "Connect", "Exchange", "FirstByte", "Lease")),
+            recorded.keySet());
+    for (RecordedEvent event : recorded.values()) {
+      assertEquals(target, event.getString("target"));
+    }
+    assertEquals("/proxyMe/a", recorded.get("Exchange").getString("uri"));
+    assertEquals(200, recorded.get("Exchange").getInt("statusCode"));
+    assertEquals(200, recorded.get("FirstByte").getInt("statusCode"));
+    assertTrue(recorded.get("Connect").getBoolean("connected"));
+    assertEquals("hello".length(), recorded.get("Body").getLong("bytes"));
+  }
+
+  /** The proxy's events of the (stopped) recording by short name, which it closes. */
+  private static Map<String, RecordedEvent> readEvents(Recording recording) throws IOException {
+    File file = File.createTempFile("proxy", ".jfr");
+    try {
+      recording.dump(file.toPath());
+      recording.close();
+      Map<String, RecordedEvent> recorded = new TreeMap<String, RecordedEvent>();
+      for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+        String name = event.getEventType().getName();
+        if (name.startsWith(PREFIX))
+          recorded.put(name.substring(PREFIX.length()), event);
+      }
+      return recorded;
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.lb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class LoadBalancerTest {
+
+  private static List<Endpoint> endpoints(int... weights) {
+    List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    for (int i = 0; i < weights.length; i++) {
+      endpoints.add(new Endpoint("http://backend" + i + ":8080/app", weights[i]));
+    }
+    return endpoints;
+  }
+
+  private static Map<Endpoint, Integer> count(LoadBalancer loadBalancer, int requests) {
+    Map<Endpoint, Integer> counts = new HashMap<Endpoint, Integer>();
+    for (int i = 0; i < requests; i++) {
+      Endpoint endpoint = loadBalancer.select();
+      counts.put(endpoint, counts.containsKey(endpoint) ? counts.get(endpoint) + 1 : 1);
+    }
+    return counts;
+  }
+
+  @Test
+  public void testRoundRobin() {
+    List<Endpoint> endpoints = endpoints(1, 1, 1);
+    LoadBalancer loadBalancer = LoadBalancer.create(LoadBalancer.ROUND_ROBIN, endpoints);
+    for (int i = 0; i < 6; i++) {
+      assertSame(endpoints.get(i % 3), loadBalancer.select());
+    }
+    assertEquals("backend0", endpoints.get(0).getTargetHost().getHostName());
+  }
+
+  @Test
+  public void testWeighted() {
+    List<Endpoint> endpoints = endpoints(5, 1, 1);
+    LoadBalancer loadBalancer = LoadBalancer.create(LoadBalancer.WEIGHTED, endpoints);
+    List<Endpoint> turns = new ArrayList<Endpoint>();
+    for (int i = 0; i < 7; i++) {
+      turns.add(loadBalancer.select());
+    }
+    // smooth: a a b a c a a
+    Endpoint a = endpoints.get(0), b = endpoints.get(1), c = endpoints.get(2);
+    assertEquals(Arrays.asList(a, a, b, a, c, a, a), turns);
+    Map<Endpoint, Integer> counts = count(LoadBalancer.create(LoadBalancer.WEIGHTED, endpoints(20, 10)), 300);
+    assertEquals(2, counts.size());
+    assertTrue(counts.containsValue(200));
+  }
+
+  @Test
+  public void testLeastOutstanding() {
+    List<Endpoint> endpoints = endpoints(1, 1, 1);
+    LoadBalancer loadBalancer = LoadBalancer.create(LoadBalancer.LEAST_OUTSTANDING, endpoints);
+    endpoints.get(0).begin();
+    endpoints.get(1).begin();
+    assertSame(endpoints.get(2), loadBalancer.select());
+    long start = endpoints.get(2).begin();
+    endpoints.get(2).begin();
+    endpoints.get(2).end(start, true);
+    // all have 1
+    assertEquals(3, count(loadBalancer, 3).size());
+  }
+
+  @Test
+  public void testPowerOfTwoChoices() {
+    List<Endpoint> endpoints = endpoints(1, 1);
+    for (int i = 0; i < 10; i++) {
+      endpoints.get(0).begin();
+    }
+    LoadBalancer loadBalancer = LoadBalancer.create(LoadBalancer.POWER_OF_TWO_CHOICES, endpoints);
+    assertEquals(Integer.valueOf(100), count(loadBalancer, 100).get(endpoints.get(1)));
+  }
+
+  @Test
+  public void testPeakEwma() {
+    List<Endpoint> endpoints = endpoints(1, 1);
+    endpoints.get(0).observeLatency(50000000);//50ms
+    endpoints.get(1).observeLatency(1000000);
+    assertEquals(50.0, endpoints.get(0).getPeakEwmaMillis(), 0.001);
+    LoadBalancer loadBalancer = LoadBalancer.create(LoadBalancer.PEAK_EWMA, endpoints);
+    assertEquals(Integer.valueOf(100), count(loadBalancer, 100).get(endpoints.get(1)));
+
+    // a faster response lowers it only gradually
+    endpoints.get(0).observeLatency(1000000);
+    assertTrue(endpoints.get(0).getPeakEwmaMillis() > 40);
+  }
+
+  @Test
+  public void testSkipsUnavailable() {
+    for (String strategy : new String[]{LoadBalancer.ROUND_ROBIN, LoadBalancer.WEIGHTED,
+            LoadBalancer.LEAST_OUTSTANDING, LoadBalancer.POWER_OF_TWO_CHOICES, LoadBalancer.PEAK_EWMA}) {
+      List<Endpoint> endpoints = endpoints(3, 1, 1);
+      LoadBalancer loadBalancer = LoadBalancer.create(strategy, endpoints);
+      endpoints.get(0).setUp(false);
+      endpoints.get(1).eject(TimeUnit.MINUTES.toNanos(1));
+      Map<Endpoint, Integer> counts = count(loadBalancer, 50);
+      assertEquals(strategy, Collections.singleton(endpoints.get(2)), counts.keySet());
+
+      endpoints.get(2).setUp(false);
+      assertNull(strategy, loadBalancer.select());
+
+      endpoints.get(1).eject(0);
+      assertSame(strategy, endpoints.get(1), loadBalancer.select());
+    }
+  }
+}
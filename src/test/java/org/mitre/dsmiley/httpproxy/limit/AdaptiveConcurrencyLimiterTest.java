@@ -0,0 +1,92 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.limit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testRejectsBeyondLimit() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 2, 1, 10);
+    assertTrue(limiter.tryAcquire());
+    assertTrue(limiter.tryAcquire());
+    assertFalse(limiter.tryAcquire());
+    assertEquals(1, limiter.getRejectedCount());
+    assertEquals(2, limiter.getInFlight());
+    limiter.release();
+    assertTrue(limiter.tryAcquire());
+  }
+
+  @Test
+  public void testGrowsWithoutQueue() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 10, 1, 100);
+    for (int round = 0; round < 3; round++) {
+      int limit = limiter.getLimit();
+      for (int i = 0; i < limit; i++) {
+        assertTrue(limiter.tryAcquire());
+      }
+      for (int i = 0; i < limit; i++) {
+        limiter.onSample(MS, false);
+      }
+      assertTrue(limiter.getLimit() > limit);
+    }
+    assertEquals(1000, limiter.getNoLoadRttMicros());
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void testShrinks() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 50, 5, 100);
+    // the baseline, unloaded: doesn't change the limit
+    assertTrue(limiter.tryAcquire());
+    limiter.onSample(MS, false);
+    assertEquals(50, limiter.getLimit());
+
+    // the latency rises tenfold under load: requests are queued at the target
+    for (int i = 0; i < 50; i++) {
+      assertTrue(limiter.tryAcquire());
+    }
+    for (int i = 0; i < 50; i++) {
+      limiter.onSample(10 * MS, false);
+    }
+    int limit = limiter.getLimit();
+    assertTrue("limit " + limit, limit < 50);
+    assertEquals(1000, limiter.getNoLoadRttMicros());
+    assertEquals(10000, limiter.getLastRttMicros());
+
+    // a timeout
+    assertTrue(limiter.tryAcquire());
+    limiter.onSample(10 * MS, true);
+    assertTrue(limiter.getLimit() < limit);
+
+    // never below the minimum
+    for (int i = 0; i < 100; i++) {
+      assertTrue(limiter.tryAcquire());
+      limiter.onSample(10 * MS, true);
+    }
+    assertEquals(5, limiter.getLimit());
+  }
+}
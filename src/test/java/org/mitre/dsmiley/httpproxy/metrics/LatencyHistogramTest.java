@@ -0,0 +1,52 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBuckets() {
+    for (long micros = 0; micros < 100000; micros = micros * 2 + 1) {
+      int index = LatencyHistogram.index(micros);
+      assertTrue(LatencyHistogram.lowerBound(index) <= micros);
+      assertTrue(micros < LatencyHistogram.getBucketUpperBound(index));
+    }
+    assertEquals(LatencyHistogram.getBucketUpperBound(LatencyHistogram.index(Long.MAX_VALUE)), Long.MAX_VALUE);
+  }
+
+  @Test
+  public void testQuantiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getQuantileMicros(0.5));
+    for (int millis = 1; millis <= 1000; millis++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(500500000, histogram.getSumMicros());
+    long p95 = histogram.getQuantileMicros(0.95);
+    assertTrue(p95 + "", p95 >= 950000 && p95 <= 950000 * 1.125);
+    long p50 = histogram.getQuantileMicros(0.5);
+    assertTrue(p50 + "", p50 >= 500000 && p50 <= 500000 * 1.125);
+  }
+}
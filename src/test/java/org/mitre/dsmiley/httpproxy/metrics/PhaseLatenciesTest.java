@@ -0,0 +1,78 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class PhaseLatenciesTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testAttempt() {
+    PhaseLatencies latencies = new PhaseLatencies("test", 10);
+    HttpHost target = new HttpHost("backend", 8080);
+    ExchangeTimings timings = new ExchangeTimings();
+    long start = 1000 * MS;
+    timings.addConnectNanos(3 * MS);
+    timings.connected(start + 5 * MS);
+    timings.responseHeadReceived(start + 25 * MS);
+    timings.attemptEnded(start, start + 25 * MS);
+    latencies.recordAttempt(target, "GET", 200, timings);
+
+    assertMillis(2, latencies.getHistogram(Phase.LEASE, "http://backend:8080", "GET", "2xx"));
+    assertMillis(3, latencies.getHistogram(Phase.CONNECT, "http://backend:8080", "GET", "2xx"));
+    assertMillis(20, latencies.getHistogram(Phase.FIRST_BYTE, "http://backend:8080", "GET", "2xx"));
+
+    // a reused connection; the lease timed out
+    timings = new ExchangeTimings();
+    timings.attemptEnded(start, start + 7 * MS);
+    latencies.recordAttempt(target, "GET", -1, timings);
+    assertMillis(7, latencies.getHistogram(Phase.LEASE, "http://backend:8080", "GET", PhaseLatencies.NO_RESPONSE));
+    assertNull(latencies.getHistogram(Phase.CONNECT, "http://backend:8080", "GET", PhaseLatencies.NO_RESPONSE));
+    assertEquals(4, latencies.getHistograms().size());
+  }
+
+  @Test
+  public void testExchangeAndBounds() {
+    PhaseLatencies latencies = new PhaseLatencies("test", 1);
+    ExchangeTimings timings = new ExchangeTimings();
+    timings.setRewriteNanos(MS);
+    latencies.recordExchange(new HttpHost("a"), "PROPFIND", 404, 30 * MS, timings);
+    timings = new ExchangeTimings();
+    timings.setBodyNanos(10 * MS);
+    latencies.recordExchange(new HttpHost("b"), "POST", 503, 40 * MS, timings);
+
+    assertMillis(1, latencies.getHistogram(Phase.REWRITE, "http://a", PhaseLatencies.OTHER, "4xx"));
+    assertMillis(30, latencies.getHistogram(Phase.TOTAL, "http://a", PhaseLatencies.OTHER, "4xx"));
+    // beyond maxHosts
+    assertMillis(10, latencies.getHistogram(Phase.BODY, PhaseLatencies.OTHER, "POST", "5xx"));
+    assertMillis(40, latencies.getHistogram(Phase.TOTAL, PhaseLatencies.OTHER, "POST", "5xx"));
+    assertEquals(4, latencies.getHistograms().size());
+  }
+
+  private static void assertMillis(long expectedMillis, LatencyHistogram histogram) {
+    assertEquals(1, histogram.getCount());
+    assertEquals(expectedMillis * 1000, histogram.getSumMicros());
+  }
+}
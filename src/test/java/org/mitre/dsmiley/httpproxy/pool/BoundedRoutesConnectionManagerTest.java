@@ -0,0 +1,87 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BoundedRoutesConnectionManagerTest {
+
+  private LocalTestServer localTestServer;
+  private BoundedRoutesConnectionManager connectionManager;
+  private CloseableHttpClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.start();
+    localTestServer.register("/*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+        response.setStatusCode(200);
+      }
+    });
+    ConnectionPoolConfig config = new ConnectionPoolConfig();
+    config.setMaxRoutes(1);
+    connectionManager = (BoundedRoutesConnectionManager) config.createConnectionManager(null, false);
+    client = HttpClients.custom().setConnectionManager(connectionManager).build();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    localTestServer.stop();
+  }
+
+  private void execute(String hostName) throws Exception {
+    HttpHost target = new HttpHost(hostName, localTestServer.getServiceAddress().getPort());
+    CloseableHttpResponse rsp = client.execute(target, new HttpGet("/"));
+    EntityUtils.consume(rsp.getEntity());
+    rsp.close();
+  }
+
+  @Test
+  public void testEvictsLeastRecentRoute() throws Exception {
+    // two names of the same server are two routes
+    execute("localhost");
+    execute("localhost");
+    assertEquals(1, connectionManager.getTotalStats().getAvailable());
+    assertEquals(1, connectionManager.getRoutes().size());
+
+    execute("127.0.0.1");
+    assertEquals(1, connectionManager.getEvictedRouteCount());
+    assertEquals(1, connectionManager.getTotalStats().getAvailable());
+    assertEquals(1, connectionManager.getRoutes().size());
+    assertTrue(connectionManager.getRoutes().iterator().next().getTargetHost().getHostName().equals("127.0.0.1"));
+
+    assertEquals(0, connectionManager.closeIdleRoutes());
+  }
+}
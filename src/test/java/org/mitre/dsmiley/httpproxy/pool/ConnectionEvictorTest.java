@@ -0,0 +1,92 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionEvictorTest {
+
+  private LocalTestServer localTestServer;
+  private PoolingHttpClientConnectionManager connectionManager;
+  private CloseableHttpClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.start();
+    localTestServer.register("/*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+        response.setStatusCode(200);
+      }
+    });
+    connectionManager = new ConnectionPoolConfig().createConnectionManager(null, false);
+    client = HttpClients.custom().setConnectionManager(connectionManager).build();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    localTestServer.stop();
+  }
+
+  private void execute() throws Exception {
+    HttpHost target = new HttpHost("localhost", localTestServer.getServiceAddress().getPort());
+    CloseableHttpResponse rsp = client.execute(target, new HttpGet("/"));
+    EntityUtils.consume(rsp.getEntity());
+    rsp.close();
+  }
+
+  @Test
+  public void testEvictIdle() throws Exception {
+    execute();
+    assertEquals(1, connectionManager.getTotalStats().getAvailable());
+
+    ConnectionEvictor notIdleLongEnough = new ConnectionEvictor(connectionManager, 1000, 60000);
+    assertEquals(0, notIdleLongEnough.evict());
+    assertEquals(1, connectionManager.getTotalStats().getAvailable());
+
+    ConnectionEvictor evictor = new ConnectionEvictor(connectionManager, 50, 0);
+    evictor.start("test");
+    try {
+      for (int i = 0; i < 100 && evictor.getEvictedCount() == 0; i++) {
+        Thread.sleep(20);
+      }
+      assertEquals(1, evictor.getEvictedCount());
+      assertTrue(evictor.getRunCount() >= 1);
+      assertEquals(0, connectionManager.getTotalStats().getAvailable());
+    } finally {
+      evictor.shutdown();
+    }
+  }
+}
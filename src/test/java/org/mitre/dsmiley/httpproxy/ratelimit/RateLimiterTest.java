@@ -0,0 +1,85 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.ratelimit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiterTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  public void testTokenBucket() {
+    long now = 1000 * SECOND;
+    TokenBucket bucket = new TokenBucket(SECOND / 2, 3, now);// 2 per second
+    assertEquals(3, bucket.getAvailable(now));
+    assertEquals(0, bucket.tryTake(now));
+    assertEquals(0, bucket.tryTake(now));
+    assertEquals(0, bucket.tryTake(now));
+    assertEquals(0, bucket.getAvailable(now));
+    assertEquals(SECOND / 2, bucket.tryTake(now));
+    assertEquals(3 * SECOND / 2, bucket.getNanosUntilFull(now));
+
+    now += SECOND / 2;
+    assertEquals(1, bucket.getAvailable(now));
+    assertEquals(0, bucket.tryTake(now));
+    assertEquals(SECOND / 2, bucket.tryTake(now));
+
+    // refills up to the burst only
+    now += 10 * SECOND;
+    assertEquals(0, bucket.getNanosUntilFull(now));
+    assertEquals(3, bucket.getAvailable(now));
+  }
+
+  @Test
+  public void testPerKey() {
+    RateLimiter limiter = new RateLimiter(1, 2, 100);
+    assertEquals(0, limiter.tryAcquire("a"));
+    assertEquals(0, limiter.tryAcquire("a"));
+    long waitNanos = limiter.tryAcquire("a");
+    assertTrue(waitNanos > 0 && waitNanos <= SECOND);
+    assertEquals(0, limiter.tryAcquire("b"));
+    assertEquals(3, limiter.getPermittedCount());
+    assertEquals(1, limiter.getRejectedCount());
+    assertSame(limiter.getBucket("a"), limiter.getBucket("a"));
+    assertEquals(2, limiter.getKeyCount());
+  }
+
+  @Test
+  public void testBounded() {
+    RateLimiter limiter = new RateLimiter(0.001, 1, 1600);
+    for (int i = 0; i < 100000; i++) {
+      limiter.tryAcquire("client" + i);
+    }
+    assertEquals(1600, limiter.getMaxKeys());
+    assertTrue(limiter.getKeyCount() <= 1600);
+    assertEquals(100000, limiter.getPermittedCount());
+
+    // full buckets are as good as none, so they're dropped
+    RateLimiter fast = new RateLimiter(1000000, 1, 1600);
+    for (int i = 0; i < 100000; i++) {
+      fast.getBucket("client" + i);
+    }
+    assertTrue(fast.getKeyCount() < 100);
+  }
+}
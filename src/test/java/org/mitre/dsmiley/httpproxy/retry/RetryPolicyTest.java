@@ -0,0 +1,108 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.retry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpHost;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+public class RetryPolicyTest {
+
+  private static final HttpHost TARGET = new HttpHost("backend");
+
+  @Test
+  public void testBudget() {
+    RetryBudget budget = new RetryBudget(10, 0);
+    assertFalse(budget.tryWithdraw());
+    for (int i = 0; i < 25; i++) {
+      budget.deposit();
+    }
+    assertTrue(budget.tryWithdraw());
+    assertTrue(budget.tryWithdraw());
+    assertFalse(budget.tryWithdraw());
+
+    // capped
+    for (int i = 0; i < 1000; i++) {
+      budget.deposit();
+    }
+    assertEquals(10, budget.getBalance());
+
+    assertTrue(new RetryBudget(0, 1).tryWithdraw());
+  }
+
+  @Test
+  public void testShouldRetry() {
+    RetryPolicy policy = new RetryPolicy(2, 0, 2, 0, 0);
+    ConnectException refused = new ConnectException("Connection refused");
+    BasicHttpRequest get = new BasicHttpRequest("GET", "/");
+    assertFalse(policy.shouldRetry(new BasicHttpRequest("POST", "/"), refused, 1, TARGET));
+    assertFalse(policy.shouldRetry(get, new SocketTimeoutException(), 1, TARGET));
+    assertFalse(policy.shouldRetry(get, refused, 3, TARGET));
+
+    BasicHttpEntityEnclosingRequest put = new BasicHttpEntityEnclosingRequest("PUT", "/");
+    put.setEntity(new InputStreamEntity(new ByteArrayInputStream(new byte[1]), 1));
+    assertFalse(policy.shouldRetry(put, refused, 1, TARGET));
+    put.setEntity(new ByteArrayEntity(new byte[1]));
+    assertTrue(policy.shouldRetry(put, refused, 1, TARGET));
+    assertTrue(policy.shouldRetry(get, refused, 2, TARGET));
+    // the budget (2 per second) is spent
+    assertFalse(policy.shouldRetry(get, refused, 1, TARGET));
+    assertEquals(2, policy.getRetryCount());
+    assertEquals(1, policy.getBudgetExhaustedCount());
+  }
+
+  @Test
+  public void testRetryableFailures() {
+    RetryPolicy policy = new RetryPolicy(1, 0, 1, 0, 0);
+    assertTrue(policy.isRetryable(new ConnectException("Connection refused"), false));
+    assertTrue(policy.isRetryable(new ConnectTimeoutException(), false));
+    assertTrue(policy.isRetryable(new NoHttpResponseException("The target server failed to respond"), false));
+    SocketException reset = new SocketException("Connection reset");
+    assertTrue(policy.isRetryable(reset, true));
+    assertFalse(policy.isRetryable(reset, false));//the target may have processed it
+    assertFalse(policy.isRetryable(new SocketException("Broken pipe"), true));
+    assertFalse(policy.isRetryable(new SocketTimeoutException("Read timed out"), true));
+    assertFalse(policy.isRetryable(new ConnectionPoolTimeoutException(), false));
+    assertFalse(policy.isRetryable(new IOException("Premature end of Content-Length delimited message body"), true));
+  }
+
+  @Test
+  public void testBackoff() {
+    RetryPolicy policy = new RetryPolicy(5, 10, 1, 100, 300);
+    for (int i = 0; i < 100; i++) {
+      long backoff = policy.getBackoffMillis(1);
+      assertTrue(backoff >= 0 && backoff < 100);
+      assertTrue(policy.getBackoffMillis(5) < 300);
+    }
+  }
+}
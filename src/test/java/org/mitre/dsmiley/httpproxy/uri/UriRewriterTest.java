@@ -0,0 +1,72 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.uri;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Formatter;
+
+import org.junit.Test;
+
+public class UriRewriterTest {
+
+  @Test
+  public void testEncodeNothingToEscape() {
+    String in = "name=value&foo=bar&q=note:Leitbild&id=p%20i";
+    assertSame(in, UriRewriter.encode(in, false));
+  }
+
+  @Test
+  public void testEncode() {
+    assertEquals("a%20b%7Cc%22d", UriRewriter.encode("a b|c\"d", false).toString());
+    assertEquals("p%20i", UriRewriter.encode("p%20i", false).toString());
+    assertEquals("p%2520i", UriRewriter.encode("p%20i", true).toString());
+    assertEquals("\u00e9t\u00e9", UriRewriter.encode("\u00e9t\u00e9", false).toString());// non-ascii kept
+  }
+
+  /** Escapes as {@code Formatter.format("%%%02X")} used to, including of non-ascii spaces. */
+  @Test
+  public void testEncodeLikeFormatter() {
+    String in = "x\u0000\u001f \u007f\u0085\u00a0\u2028\u3000y%";
+    for (boolean encodePercent : new boolean[]{false, true}) {
+      assertEquals(formatterEncode(in, encodePercent), UriRewriter.encode(in, encodePercent).toString());
+    }
+  }
+
+  private static String formatterEncode(String in, boolean encodePercent) {
+    StringBuilder out = new StringBuilder();
+    Formatter formatter = new Formatter(out);
+    for (int i = 0; i < in.length(); i++) {
+      char c = in.charAt(i);
+      if (UriRewriter.mustEscape(c, encodePercent))
+        formatter.format("%%%02X", (int) c);
+      else
+        out.append(c);
+    }
+    return out.toString();
+  }
+
+  @Test
+  public void testRewrite() {
+    assertEquals("http://t/api", UriRewriter.rewrite("http://t/api", null, null, null));
+    assertEquals("http://t/api", UriRewriter.rewrite("http://t/api", null, "", null));
+    assertEquals("http://t/api/p%2520i?q=a%20b#f%7C",
+            UriRewriter.rewrite("http://t/api", "/p%20i", "q=a b", "f|"));
+    assertEquals("http://t/api#", UriRewriter.rewrite("http://t/api", null, null, ""));
+  }
+}
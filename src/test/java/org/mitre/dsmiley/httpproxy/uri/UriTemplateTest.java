@@ -0,0 +1,99 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy.uri;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+
+public class UriTemplateTest {
+
+  @Test
+  public void testExpand() {
+    UriTemplate template = UriTemplate.compile("http://{_host}:{_port}/{_path}/x");
+    assertEquals(Arrays.asList("_host", "_port", "_path"), template.getVariableNames());
+    UriTemplate.Expansion expansion = template.expand(
+            "a=1&_host=localhost&_port=8080&b=x%20y;c&_path=tar%2Fget+path#frag");
+    assertEquals("http://localhost:8080/tar/get path/x", expansion.getTargetUri());
+    assertEquals(new HttpHost("localhost", 8080, "http"), expansion.getTargetHost());
+    assertEquals("a=1&b=x%20y&c", expansion.getQueryString());
+  }
+
+  @Test
+  public void testLastValueWinsAndLiteralReplacement() {
+    UriTemplate template = UriTemplate.compile("https://backend/{p}/{p}");
+    UriTemplate.Expansion expansion = template.expand("p=a&%70=$1\\");
+    assertEquals("https://backend/$1\\/$1\\", expansion.getTargetUri());
+    assertEquals(new HttpHost("backend", -1, "https"), expansion.getTargetHost());
+    assertEquals("", expansion.getQueryString());
+  }
+
+  @Test
+  public void testHostCache() {
+    UriTemplate template = UriTemplate.compile("http://{host}/{path}", 2);
+    HttpHost host = template.expand("host=a:81&path=x").getTargetHost();
+    assertSame(host, template.expand("host=a:81&path=y").getTargetHost());
+    template.expand("host=b&path=x");
+    template.expand("host=c&path=x");
+    assertEquals(2, template.getHostCacheSize());
+    assertNotSame(host, template.expand("host=a:81&path=x").getTargetHost());
+
+    assertEquals(0, UriTemplate.compile("http://static/{path}").getHostCacheSize());
+  }
+
+  @Test
+  public void testMissingVariable() {
+    UriTemplate template = UriTemplate.compile("http://{host}/");
+    try {
+      template.expand("hostx=a");
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals("Missing HTTP parameter host to fill the template", e.getMessage());
+    }
+    try {
+      template.expand(null);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testParseHost() {
+    assertEquals(new HttpHost("h", 81, "http"), UriTemplate.parseHost("http://user:pw@h:81/p?q#f"));
+    assertEquals(new HttpHost("[::1]", 8080, "http"), UriTemplate.parseHost("http://[::1]:8080"));
+    assertEquals(new HttpHost("[::1]", -1, "http"), UriTemplate.parseHost("http://[::1]/"));
+    try {
+      UriTemplate.parseHost("/relative");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDecode() {
+    assertEquals("a b/\u00e9", UriTemplate.decode("xa+b%2F%C3%A9", 1, 13));
+    assertEquals("100%", UriTemplate.decode("100%", 0, 4));
+  }
+}